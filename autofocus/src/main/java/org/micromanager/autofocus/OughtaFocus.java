@@ -31,6 +31,7 @@
 
 package org.micromanager.autofocus;
 
+import ij.gui.Roi;
 import ij.process.ImageProcessor;
 import java.awt.Rectangle;
 import java.text.ParseException;
@@ -44,6 +45,7 @@ import org.micromanager.Studio;
 import org.micromanager.autofocus.optimizers.BrentFocusOptimizer;
 import org.micromanager.autofocus.optimizers.FocusOptimizer;
 import org.micromanager.autofocus.optimizers.ZStackFocusOptimizer;
+import org.micromanager.imageprocessing.FocusMetricEngine;
 import org.micromanager.imageprocessing.ImgSharpnessAnalysis;
 import org.micromanager.internal.utils.AutofocusBase;
 import org.micromanager.internal.utils.MMException;
@@ -68,7 +70,9 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
    private static final String FOCUSDRIVE = "FocusDrive";
    private static final String SEARCH_RANGE = "SearchRange_um";
    private static final String TOLERANCE = "Tolerance_um";
+   private static final String DRIVE_STEP_SIZE = "DriveStepSize_um";
    private static final String CROP_FACTOR = "CropFactor";
+   private static final String SOFTWARE_CROP = "CropInSoftware";
    private static final String CHANNEL = "Channel";
    private static final String EXPOSURE = "Exposure";
    private static final String SHOW_IMAGES = "ShowImages";
@@ -79,6 +83,7 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
    private static final String FFT_LOWER_CUTOFF = "FFTLowerCutoff(%)";
 
    private final ImgSharpnessAnalysis fcsAnalysis_ = new ImgSharpnessAnalysis();
+   private final FocusMetricEngine metricEngine_ = new FocusMetricEngine();
    private final BrentFocusOptimizer brentFocusOptimizer_;
    private final ZStackFocusOptimizer zStackFocusOptimizer_;
    private FocusOptimizer focusOptimizer_;
@@ -89,6 +94,7 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
    private boolean displayImages_ = false;
    private boolean displayGraph_ = false;
    private double cropFactor_ = 1;
+   private boolean softwareCrop_ = false;
    private String optimizer_ = OPTIMIZERS[0];
 
 
@@ -99,8 +105,8 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
     * the focus curves.  Image analysis code is done in the ImageProcessing library.
     */
    public OughtaFocus() {
-      brentFocusOptimizer_ = new BrentFocusOptimizer(fcsAnalysis_::compute);
-      zStackFocusOptimizer_  = new ZStackFocusOptimizer(fcsAnalysis_::compute);
+      brentFocusOptimizer_ = new BrentFocusOptimizer(this::computeScore);
+      zStackFocusOptimizer_  = new ZStackFocusOptimizer(this::computeScore);
       focusOptimizer_ = brentFocusOptimizer_;
 
       super.createProperty(OPTIMIZER_STRATEGY, OPTIMIZERS[0], OPTIMIZERS);
@@ -109,8 +115,11 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
               NumberUtils.doubleToDisplayString(focusOptimizer_.getSearchRange()));
       super.createProperty(TOLERANCE,
               NumberUtils.doubleToDisplayString(focusOptimizer_.getAbsoluteTolerance()));
+      super.createProperty(DRIVE_STEP_SIZE, NumberUtils.doubleToDisplayString(
+              brentFocusOptimizer_.getScoreCache().getStepSizeUm()));
       super.createProperty(CROP_FACTOR,
               NumberUtils.doubleToDisplayString(cropFactor_));
+      super.createProperty(SOFTWARE_CROP, SHOWVALUES[1], SHOWVALUES);
       super.createProperty(EXPOSURE,
               NumberUtils.doubleToDisplayString(exposure_));
       super.createProperty(FFT_LOWER_CUTOFF,
@@ -145,8 +154,11 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
                  NumberUtils.displayStringToDouble(getPropertyValue(SEARCH_RANGE)));
          focusOptimizer_.setAbsoluteTolerance(
                  NumberUtils.displayStringToDouble(getPropertyValue(TOLERANCE)));
+         brentFocusOptimizer_.getScoreCache().setStepSizeUm(
+                 NumberUtils.displayStringToDouble(getPropertyValue(DRIVE_STEP_SIZE)));
          cropFactor_ = NumberUtils.displayStringToDouble(getPropertyValue(CROP_FACTOR));
          cropFactor_ = clip(0.01, cropFactor_, 1.0);
+         softwareCrop_ = getPropertyValue(SOFTWARE_CROP).contentEquals("Yes");
          channel_ = getPropertyValue(CHANNEL);
          exposure_ = NumberUtils.displayStringToDouble(getPropertyValue(EXPOSURE));
          double fftLowerCutoff =
@@ -156,6 +168,7 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
                  NumberUtils.displayStringToDouble(getPropertyValue(FFT_UPPER_CUTOFF));
          fftUpperCutoff = clip(0.0, fftUpperCutoff, 100.0);
          fcsAnalysis_.setFFTCutoff(fftLowerCutoff, fftUpperCutoff);
+         metricEngine_.setFFTCutoff(fftLowerCutoff, fftUpperCutoff);
          fcsAnalysis_.setComputationMethod(
                  ImgSharpnessAnalysis.Method.valueOf(getPropertyValue(SCORING_METHOD)));
          displayImages_ = getPropertyValue(SHOW_IMAGES).contentEquals("Yes");
@@ -182,7 +195,8 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
       }
 
       // avoid wasting time on setting roi if it is the same
-      if (cropFactor_ < 1.0) {
+      final boolean cameraCrop = cropFactor_ < 1.0 && !softwareCrop_;
+      if (cameraCrop) {
          int w = (int) (oldROI.width * cropFactor_);
          int h = (int) (oldROI.height * cropFactor_);
          int x = oldROI.x + (oldROI.width - w) / 2;
@@ -196,7 +210,7 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
       final double z = focusOptimizer_.runAutofocusAlgorithm();
       core.setPosition(zDrive_, z);
 
-      if (cropFactor_ < 1.0) {
+      if (cameraCrop) {
          studio_.app().setROI(oldROI);
          core.waitForDevice(core.getCameraDevice());
       }
@@ -247,6 +261,14 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
 
    @Override
    public double computeScore(final ImageProcessor proc) {
+      if (softwareCrop_ && cropFactor_ < 1.0) {
+         // score the center of the image instead of cropping the camera
+         int w = (int) (proc.getWidth() * cropFactor_);
+         int h = (int) (proc.getHeight() * cropFactor_);
+         Roi roi = new Roi((proc.getWidth() - w) / 2, (proc.getHeight() - h) / 2,
+               Math.max(w, 1), Math.max(h, 1));
+         return metricEngine_.compute(proc, roi, fcsAnalysis_.getComputationMethod());
+      }
       return fcsAnalysis_.compute(proc);
    }
 
@@ -1,6 +1,7 @@
 package org.micromanager.autofocus.optimizers;
 
 import ij.process.ImageProcessor;
+import java.awt.geom.Point2D;
 import java.text.DecimalFormat;
 import java.util.function.Function;
 import mmcorej.CMMCore;
@@ -20,6 +21,14 @@ import org.micromanager.internal.utils.TextUtils;
  * the value returned by the `imgScoringFunction` so this function should return
  * larger values as the image sharpness increases.
  *
+ * <p>Scores are kept in a {@link FocusScoreCache} per XY position.  Positions
+ * that Brent's method asks for are rounded to the step size of the drive, and
+ * positions that were already measured in this run are not snapped again.
+ * When the focus was found at the same XY position before, the search starts
+ * there, in a bracket sized by how much the focus moved between the last two
+ * runs.  If the optimum ends up at the edge of that bracket, the search is
+ * repeated over the full search range.</p>
+ *
  * @author Nick Anthony
  */
 public class BrentFocusOptimizer implements FocusOptimizer {
@@ -74,6 +83,16 @@ public class BrentFocusOptimizer implements FocusOptimizer {
    private double searchRange_ = 10;
    private double absoluteTolerance_ = 1.0;
    private final Function<ImageProcessor, Double> imgScoringFunction_;
+   private final FocusScoreCache cache_ = new FocusScoreCache();
+   private int snapsSaved_;
+
+   /**
+    * Measures the focus score at a Z position, for instance by moving the
+    * stage and scoring a snapped image.
+    */
+   public interface ScoreFunction {
+      double score(double z) throws Exception;
+   }
 
    /**
     * The constructor takes a function that calculates a focus score.
@@ -136,6 +155,22 @@ public class BrentFocusOptimizer implements FocusOptimizer {
       return absoluteTolerance_;
    }
 
+   /**
+    * Gives access to the cached scores, for instance to set the step size of
+    * the drive or to forget the results of an earlier experiment.
+    */
+   public FocusScoreCache getScoreCache() {
+      return cache_;
+   }
+
+   /**
+    * Number of positions of the last run that were served from the cache
+    * instead of snapping an image.
+    */
+   public int getSnapsSaved() {
+      return snapsSaved_;
+   }
+
    /**
     * Runs the actual algorithm.
     *
@@ -151,34 +186,103 @@ public class BrentFocusOptimizer implements FocusOptimizer {
          zDrive_ = studio_.getCMMCore().getFocusDevice();
       }
 
+      CMMCore core = studio_.getCMMCore();
+      double x = 0.0;
+      double y = 0.0;
+      if (!core.getXYStageDevice().isEmpty()) {
+         Point2D.Double xy = core.getXYStagePosition();
+         x = xy.x;
+         y = xy.y;
+      }
+      double z = core.getPosition(zDrive_);
+      double result = optimize(x, y, z, (double d) -> measureFocusScore(zDrive_, d));
+      studio_.logs().logMessage("OughtaFocus Images: " + imageCount_
+              + ", from cache: " + snapsSaved_
+              + ", z=" + TextUtils.FMT2.format(result)
+              + ", dz=" + TextUtils.FMT2.format(result - z)
+              + ", t=" + (System.currentTimeMillis() - startTimeMs_));
+      return result;
+   }
+
+   /**
+    * Finds the Z position with the highest score around z, reusing the
+    * scores and the last result cached for this XY position.
+    *
+    * @param x X position, used to find the cached scores.
+    * @param y Y position, used to find the cached scores.
+    * @param z Current Z position, center of the search range.
+    * @param measure Measures the score at a Z position that is not cached.
+    * @return Optimal Z position.
+    * @throws Exception Any exception thrown by measure.
+    */
+   public double optimize(double x, double y, double z, ScoreFunction measure)
+         throws Exception {
       startTimeMs_ = System.currentTimeMillis();
+      imageCount_ = 0;
+      snapsSaved_ = 0;
+      cache_.startRun();
 
       UnivariateObjectiveFunction uof = new UnivariateObjectiveFunction(
               (double d) -> {
+                 double zq = cache_.quantize(d);
+                 FocusScoreCache.Sample sample = cache_.lookup(x, y, zq,
+                         System.currentTimeMillis());
+                 if (sample != null) {
+                    snapsSaved_++;
+                    return sample.getScore();
+                 }
                  try {
-                    return measureFocusScore(zDrive_, d);
+                    double score = measure.score(zq);
+                    imageCount_++;
+                    cache_.add(x, y, zq, score, System.currentTimeMillis());
+                    return score;
                  } catch (Exception e) {
                     throw new RuntimeException(e);
                  }
               }
       );
 
+      final double low = z - searchRange_ / 2;
+      final double high = z + searchRange_ / 2;
+      double seed = cache_.getLastResult(x, y);
+      UnivariatePointValuePair result;
+      try {
+         if (!Double.isNaN(seed) && seed > low && seed < high) {
+            double drift = cache_.getLastDrift(x, y);
+            double halfWidth = Double.isNaN(drift) ? searchRange_ / 4 : 3 * drift;
+            halfWidth = Math.min(Math.max(halfWidth, 4 * absoluteTolerance_), searchRange_ / 2);
+            final double seededLow = Math.max(low, seed - halfWidth);
+            final double seededHigh = Math.min(high, seed + halfWidth);
+            result = maximize(uof, seededLow, seededHigh, seed);
+            // Brent's method stops within twice the tolerance of the optimum
+            final double margin = 2 * absoluteTolerance_;
+            boolean atEdge = (result.getPoint() - seededLow < margin && seededLow > low)
+                    || (seededHigh - result.getPoint() < margin && seededHigh < high);
+            if (atEdge) {
+               // the focus moved further than expected
+               result = maximize(uof, low, high, result.getPoint());
+            }
+         } else {
+            result = maximize(uof, low, high, z);
+         }
+      } catch (RuntimeException e) {
+         if (e.getCause() instanceof Exception) {
+            throw (Exception) e.getCause();
+         }
+         throw e;
+      }
+      cache_.setResult(x, y, result.getPoint());
+      return result.getPoint();
+   }
+
+   private UnivariatePointValuePair maximize(UnivariateObjectiveFunction uof, double low,
+                                             double high, double start) {
       BrentOptimizer brentOptimizer =
               new BrentOptimizer(BRENT_RELATIVE_TOLERANCE, absoluteTolerance_);
-
-      imageCount_ = 0;
-
-      double z = studio_.core().getPosition(zDrive_);
-
-      UnivariatePointValuePair result = brentOptimizer.optimize(uof,
+      return brentOptimizer.optimize(uof,
               GoalType.MAXIMIZE,
               new MaxEval(100),
-              new SearchInterval(z - searchRange_ / 2, z + searchRange_ / 2));
-      studio_.logs().logMessage("OughtaFocus Iterations: " + brentOptimizer.getIterations()
-              + ", z=" + TextUtils.FMT2.format(result.getPoint())
-              + ", dz=" + TextUtils.FMT2.format(result.getPoint() - z)
-              + ", t=" + (System.currentTimeMillis() - startTimeMs_));
-      return result.getPoint();
+              new SearchInterval(low, high, Math.min(Math.max(start, low), high)));
    }
 
    private double measureFocusScore(String zDrive, double z) throws Exception {
@@ -197,7 +301,7 @@ public class BrentFocusOptimizer implements FocusOptimizer {
          ImageProcessor proc = studio_.data().ij().createProcessor(img);
          double score = imgScoringFunction_.apply(proc);
          long tC = System.currentTimeMillis() - start - tZ - tI;
-         studio_.logs().logMessage("OughtaFocus: image=" + imageCount_++
+         studio_.logs().logMessage("OughtaFocus: image=" + imageCount_
                  + ", t=" + (System.currentTimeMillis() - startTimeMs_)
                  + ", z=" + TextUtils.FMT2.format(z)
                  + ", score=" + TextUtils.FMT2.format(score)
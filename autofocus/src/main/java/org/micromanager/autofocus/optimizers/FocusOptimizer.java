@@ -4,6 +4,10 @@ import org.micromanager.Studio;
 
 /**
  * Interface for focus optimizers.
+ *
+ * <p>Optimizers that take a function to score the sharpness of images may
+ * call it for several images at once, from different threads.  Such scoring
+ * functions must be thread-safe.</p>
  */
 public interface FocusOptimizer {
 
@@ -0,0 +1,196 @@
+package org.micromanager.autofocus.optimizers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Remembers the focus scores measured at each XY position, and the best
+ * focus found there, so that an optimizer does not snap the same Z position
+ * twice and can start close to the last result.
+ *
+ * <p>Z positions are rounded to the step size of the drive before they are
+ * measured or looked up, since positions closer than one step can not be
+ * told apart by the hardware.  Samples are reused when they were measured
+ * during the current run, or while they are younger than the maximum sample
+ * age.  XY positions closer than the position tolerance share their
+ * samples.</p>
+ */
+public class FocusScoreCache {
+
+   private static final int MAX_SAMPLES_PER_POSITION = 256;
+
+   /**
+    * One measured focus score.
+    */
+   public static final class Sample {
+      private final double z_;
+      private final double score_;
+      private final long timeMs_;
+      private final int run_;
+
+      private Sample(double z, double score, long timeMs, int run) {
+         z_ = z;
+         score_ = score;
+         timeMs_ = timeMs;
+         run_ = run;
+      }
+
+      public double getZ() {
+         return z_;
+      }
+
+      public double getScore() {
+         return score_;
+      }
+
+      public long getTimeMs() {
+         return timeMs_;
+      }
+   }
+
+   private static final class Position {
+      private final double x_;
+      private final double y_;
+      private final List<Sample> samples_ = new ArrayList<>();
+      private double lastResult_ = Double.NaN;
+      private double previousResult_ = Double.NaN;
+
+      private Position(double x, double y) {
+         x_ = x;
+         y_ = y;
+      }
+   }
+
+   private final List<Position> positions_ = new ArrayList<>();
+   private double stepSizeUm_ = 0.01;
+   private double positionToleranceUm_ = 5.0;
+   private long maxSampleAgeMs_ = 0;
+   private int run_ = 0;
+
+   /**
+    * Sets the smallest step the Z drive can make.  Requested positions are
+    * rounded to a multiple of this step.
+    *
+    * @param stepSizeUm Step size in micrometers, 0 disables rounding.
+    */
+   public void setStepSizeUm(double stepSizeUm) {
+      stepSizeUm_ = Math.max(0.0, stepSizeUm);
+   }
+
+   public double getStepSizeUm() {
+      return stepSizeUm_;
+   }
+
+   /**
+    * Sets how far apart two XY positions can be and still share samples.
+    *
+    * @param toleranceUm Distance in micrometers.
+    */
+   public void setPositionToleranceUm(double toleranceUm) {
+      positionToleranceUm_ = toleranceUm;
+   }
+
+   /**
+    * Sets how long samples from earlier runs stay valid.  Samples of the
+    * current run are always valid.
+    *
+    * @param maxAgeMs Age in milliseconds, 0 to only reuse samples within a run.
+    */
+   public void setMaxSampleAgeMs(long maxAgeMs) {
+      maxSampleAgeMs_ = maxAgeMs;
+   }
+
+   /**
+    * Starts a new run.  Samples of earlier runs are only reused while they are
+    * younger than the maximum sample age.
+    */
+   public void startRun() {
+      run_++;
+   }
+
+   /**
+    * Rounds a Z position to the step size of the drive.
+    */
+   public double quantize(double z) {
+      if (stepSizeUm_ <= 0.0) {
+         return z;
+      }
+      return Math.round(z / stepSizeUm_) * stepSizeUm_;
+   }
+
+   /**
+    * Returns a valid sample at the given, already rounded, Z position.
+    *
+    * @param nowMs Current time.
+    * @return The sample, or null if Z has to be measured.
+    */
+   public Sample lookup(double x, double y, double z, long nowMs) {
+      Position position = find(x, y, false);
+      if (position == null) {
+         return null;
+      }
+      double tolerance = Math.max(stepSizeUm_ / 2, 1e-9);
+      for (int i = position.samples_.size() - 1; i >= 0; i--) {
+         Sample sample = position.samples_.get(i);
+         boolean valid = sample.run_ == run_
+               || (maxSampleAgeMs_ > 0 && nowMs - sample.timeMs_ <= maxSampleAgeMs_);
+         if (valid && Math.abs(sample.z_ - z) < tolerance) {
+            return sample;
+         }
+      }
+      return null;
+   }
+
+   public void add(double x, double y, double z, double score, long nowMs) {
+      List<Sample> samples = find(x, y, true).samples_;
+      if (samples.size() >= MAX_SAMPLES_PER_POSITION) {
+         samples.remove(0);
+      }
+      samples.add(new Sample(z, score, nowMs, run_));
+   }
+
+   /**
+    * Records the best focus found at a position.
+    */
+   public void setResult(double x, double y, double z) {
+      Position position = find(x, y, true);
+      position.previousResult_ = position.lastResult_;
+      position.lastResult_ = z;
+   }
+
+   /**
+    * Returns the best focus found at a position the last time, or NaN.
+    */
+   public double getLastResult(double x, double y) {
+      Position position = find(x, y, false);
+      return position == null ? Double.NaN : position.lastResult_;
+   }
+
+   /**
+    * Returns how much the best focus at a position moved between the last
+    * two runs, or NaN if there were fewer than two.
+    */
+   public double getLastDrift(double x, double y) {
+      Position position = find(x, y, false);
+      return position == null ? Double.NaN
+            : Math.abs(position.lastResult_ - position.previousResult_);
+   }
+
+   public void clear() {
+      positions_.clear();
+   }
+
+   private Position find(double x, double y, boolean create) {
+      for (Position position : positions_) {
+         if (Math.hypot(position.x_ - x, position.y_ - y) <= positionToleranceUm_) {
+            return position;
+         }
+      }
+      if (!create) {
+         return null;
+      }
+      Position position = new Position(x, y);
+      positions_.add(position);
+      return position;
+   }
+}
@@ -1,24 +1,45 @@
 package org.micromanager.autofocus.optimizers;
 
 import ij.process.ImageProcessor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import javax.swing.SwingUtilities;
 import mmcorej.CMMCore;
 import mmcorej.DoubleVector;
 import mmcorej.TaggedImage;
+import mmcorej.org.json.JSONException;
 import org.jfree.data.xy.XYSeries;
 import org.micromanager.Studio;
 import org.micromanager.data.Image;
 import org.micromanager.imageprocessing.curvefit.Fitter;
 import org.micromanager.imageprocessing.curvefit.PlotUtils;
+import org.micromanager.internal.utils.imageanalysis.ImageUtils;
 
 /**
  * This class uses a Z-stack of images to perform autofocus. The Z position with the highest focus
  * score is returned. The focus score is calculated using the `imgScoringFunction` provided in the
  * constructor. The Z-stack is acquired using the MMCore's Z-stage and camera.
-
+ *
+ * <p>Frames are scored by a small pool of worker threads while the stack is
+ * still being acquired, directly from the pixel buffers returned by the core.
+ * The pool only accepts a few frames per thread; when it falls behind, the
+ * acquiring thread scores the next frame itself, so that memory use stays
+ * bounded.  The capture and scoring time of every step of the last run are
+ * available from {@link #getCaptureTimesMs()} and
+ * {@link #getScoringTimesMs()}.</p>
+ *
+ * <p>Because frames are scored concurrently, the scoring function is called
+ * from several threads at once and must be thread-safe.</p>
  */
 public class ZStackFocusOptimizer implements FocusOptimizer {
    private final Function<ImageProcessor, Double> imgScoringFunction_;
@@ -29,6 +50,13 @@ public class ZStackFocusOptimizer implements FocusOptimizer {
    private double searchRangeUm_ = 10.0; //
    private double absoluteToleranceUm_ = 1.0; // abuse the tolerance setting as Z step size
    private int imageCount_ = 0;
+   private int scoringThreads_ = Math.max(1,
+         Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+   private double[] captureTimesMs_ = new double[0];
+   private double[] scoringTimesMs_ = new double[0];
+
+   // frames waiting to be scored, per scoring thread
+   private static final int QUEUED_FRAMES_PER_THREAD = 2;
 
    /**
     * The constructor takes a function that calculates a focus score.
@@ -36,6 +64,8 @@ public class ZStackFocusOptimizer implements FocusOptimizer {
     * @param imgScoringFunction A function that takes an ImageJ `ImageProcessor`
     *                           and returns a double indicating a measure of the
     *                           image sharpness. A large value indicates a sharper image.
+    *                           It is called from several threads at once, and must
+    *                           be thread-safe.
     */
    public ZStackFocusOptimizer(Function<ImageProcessor, Double> imgScoringFunction) {
       imgScoringFunction_ = imgScoringFunction;
@@ -90,6 +120,40 @@ public class ZStackFocusOptimizer implements FocusOptimizer {
       displayGraph_ = display;
    }
 
+   /**
+    * Sets the number of threads that score images while the Z stack is acquired.
+    *
+    * @param threads Number of scoring threads, at least 1.
+    */
+   public void setScoringThreads(int threads) {
+      scoringThreads_ = Math.max(1, threads);
+   }
+
+   public int getScoringThreads() {
+      return scoringThreads_;
+   }
+
+   /**
+    * Time spent acquiring each image of the last run, in the order of the Z
+    * positions.  For sequence acquisitions, this is the time between the
+    * arrival of consecutive images.
+    *
+    * @return Capture times in milliseconds.
+    */
+   public double[] getCaptureTimesMs() {
+      return captureTimesMs_.clone();
+   }
+
+   /**
+    * Time spent scoring each image of the last run, in the order of the Z
+    * positions.
+    *
+    * @return Scoring times in milliseconds.
+    */
+   public double[] getScoringTimesMs() {
+      return scoringTimesMs_.clone();
+   }
+
    /**
     * Acquires a Z-stack of images and computes the focus score for each image.
     * The Z position with the highest focus score is returned.
@@ -116,43 +180,194 @@ public class ZStackFocusOptimizer implements FocusOptimizer {
       for (int i = 0; i < nrZ; i++) {
          positions.add(z - dz + i * absoluteToleranceUm_);
       }
-      SortedMap<Double, Double> focusScoreMap = new TreeMap<>();
-
-      if (core.isStageSequenceable(zDrive_)) {
-         core.loadStageSequence(zDrive_, positions);
-         core.startSequenceAcquisition(nrZ, 0, true);
-         core.waitForDevice(zDrive_);
-         core.waitForDevice(core.getCameraDevice());
-         while (core.isSequenceRunning() || core.getRemainingImageCount() > 0) {
-            if (!(core.getRemainingImageCount() > 0)) {
-               Thread.sleep((long) core.getExposure());
-            } else {
-               TaggedImage tImg = core.popNextTaggedImage();
-               Image img = studio_.data().convertTaggedImage(tImg);
-               if (displayImages_) {
-                  SwingUtilities.invokeLater(() -> {
-                     studio_.live().displayImage(img);
-                  });
+      final int width = (int) core.getImageWidth();
+      final int height = (int) core.getImageHeight();
+      final int type = ImageUtils.bppToImageType(core.getBytesPerPixel());
+      final double[] captureTimesMs = new double[nrZ];
+      final long startNs = System.nanoTime();
+      final Consumer<TaggedImage> display = displayImages_ ? tImg -> {
+         try {
+            Image img = studio_.data().convertTaggedImage(tImg);
+            SwingUtilities.invokeLater(() -> {
+               studio_.live().displayImage(img);
+            });
+         } catch (JSONException e) {
+            studio_.logs().logError(e, "Failed to display autofocus image");
+         }
+      } : null;
+
+      try (ScoringPool scorers = new ScoringPool(imgScoringFunction_, scoringThreads_,
+            type, width, height, nrZ, display)) {
+         long lastNs = System.nanoTime();
+         if (core.isStageSequenceable(zDrive_)) {
+            core.loadStageSequence(zDrive_, positions);
+            core.startSequenceAcquisition(nrZ, 0, true);
+            core.waitForDevice(zDrive_);
+            core.waitForDevice(core.getCameraDevice());
+            while (core.isSequenceRunning() || core.getRemainingImageCount() > 0) {
+               if (!(core.getRemainingImageCount() > 0)) {
+                  Thread.sleep((long) core.getExposure());
+               } else {
+                  TaggedImage tImg = core.popNextTaggedImage();
+                  long nowNs = System.nanoTime();
+                  if (imageCount_ < nrZ) {
+                     captureTimesMs[imageCount_] = (nowNs - lastNs) / 1e6;
+                     scorers.submit(tImg);
+                  }
+                  lastNs = nowNs;
+                  imageCount_++;
                }
-               ImageProcessor proc = studio_.data().ij().createProcessor(img);
-               focusScoreMap.put(positions.get(imageCount_), imgScoringFunction_.apply(proc));
+            }
+         } else {
+            for (int i = 0; i < nrZ; i++) {
+               core.setPosition(zDrive_, positions.get(i));
+               core.waitForDevice(zDrive_);
+               core.snapImage();
+               TaggedImage tImg = core.getTaggedImage();
+               if (tImg == null) {
+                  throw new Exception("Failed to acquire image.");
+               }
+               long nowNs = System.nanoTime();
+               captureTimesMs[i] = (nowNs - lastNs) / 1e6;
+               lastNs = nowNs;
+               // scored while the stage moves to the next position
+               scorers.submit(tImg);
                imageCount_++;
             }
          }
-      } else {
-         for (int i = 0; i < nrZ; i++) {
-            core.setPosition(zDrive_, positions.get(i));
-            core.waitForDevice(zDrive_);
-            Image img = studio_.live().snap(displayImages_).get(0);
-            if (img == null) {
-               throw new Exception("Failed to acquire image.");
-            }
-            ImageProcessor proc = studio_.data().ij().createProcessor(img);
-            focusScoreMap.put(positions.get(imageCount_), imgScoringFunction_.apply(proc));
-            imageCount_++;
+         imageCount_ = scorers.size();
+         SortedMap<Double, Double> focusScoreMap = new TreeMap<>();
+         for (int i = 0; i < scorers.size(); i++) {
+            focusScoreMap.put(positions.get(i), scorers.getScore(i));
          }
+         captureTimesMs_ = captureTimesMs;
+         scoringTimesMs_ = scorers.getScoringTimesMs();
+         studio_.logs().logDebugMessage(String.format(
+               "ZStackFocusOptimizer: %d images in %.1f ms, capture %.1f ms, "
+                     + "scoring %.1f ms on %d threads",
+               imageCount_, (System.nanoTime() - startNs) / 1e6,
+               sum(captureTimesMs), sum(scorers.getScoringTimesMs()), scoringThreads_));
+         return fitFocus(focusScoreMap, positions, z);
+      }
+   }
+
+   /**
+    * Scores frames on a small pool of threads, directly from their raw
+    * pixels.  The queue of the pool is bounded; when it is full, the
+    * submitting thread scores the frame itself.
+    */
+   static final class ScoringPool implements AutoCloseable {
+      private final Function<ImageProcessor, Double> scoringFunction_;
+      private final int type_;
+      private final int width_;
+      private final int height_;
+      private final Consumer<TaggedImage> display_;
+      private final ThreadPoolExecutor executor_;
+      private final List<Future<Double>> scores_;
+      private final double[] scoringTimesMs_;
+
+      /**
+       * Creates the pool.
+       *
+       * @param scoringFunction Thread-safe focus score of an image.
+       * @param threads Number of scoring threads.
+       * @param type ImageJ type of the frames.
+       * @param width Width of the frames.
+       * @param height Height of the frames.
+       * @param maxFrames Largest number of frames that will be submitted.
+       * @param display Shows each frame before it is scored, or null.
+       */
+      ScoringPool(Function<ImageProcessor, Double> scoringFunction, int threads,
+                  int type, int width, int height, int maxFrames,
+                  Consumer<TaggedImage> display) {
+         scoringFunction_ = scoringFunction;
+         type_ = type;
+         width_ = width;
+         height_ = height;
+         display_ = display;
+         scores_ = new ArrayList<>(maxFrames);
+         scoringTimesMs_ = new double[maxFrames];
+         executor_ = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+               new ArrayBlockingQueue<>(threads * QUEUED_FRAMES_PER_THREAD),
+               r -> {
+                  Thread thread = new Thread(r, "ZStack focus scoring");
+                  thread.setDaemon(true);
+                  return thread;
+               },
+               new ThreadPoolExecutor.CallerRunsPolicy());
+      }
+
+      /**
+       * Queues the next frame for scoring.
+       *
+       * @param tImg Frame as returned by the core.
+       */
+      void submit(TaggedImage tImg) {
+         scores_.add(executor_.submit(scoringTask(tImg, scores_.size())));
+      }
+
+      /**
+       * Scores one image from its raw pixels, without making an {@link Image}
+       * unless it has to be displayed.
+       */
+      private Callable<Double> scoringTask(final TaggedImage tImg, final int index) {
+         return () -> {
+            if (display_ != null) {
+               display_.accept(tImg);
+            }
+            long startNs = System.nanoTime();
+            ImageProcessor proc = ImageUtils.makeProcessor(type_, width_, height_, tImg.pix);
+            if (proc == null) {
+               throw new Exception("Unsupported image type for focus scoring.");
+            }
+            double score = scoringFunction_.apply(proc);
+            scoringTimesMs_[index] = (System.nanoTime() - startNs) / 1e6;
+            return score;
+         };
       }
 
+      /**
+       * Number of frames submitted.
+       */
+      int size() {
+         return scores_.size();
+      }
+
+      /**
+       * Score of the given frame, waiting for it when needed.
+       *
+       * @param index Index of the frame, in the order of submission.
+       * @return Focus score.
+       * @throws Exception when scoring failed or was interrupted.
+       */
+      double getScore(int index) throws Exception {
+         return scores_.get(index).get();
+      }
+
+      /**
+       * Time spent scoring each frame, in the order of submission.  Only
+       * complete once all scores were retrieved.
+       */
+      double[] getScoringTimesMs() {
+         return Arrays.copyOf(scoringTimesMs_, scores_.size());
+      }
+
+      @Override
+      public void close() {
+         executor_.shutdownNow();
+      }
+   }
+
+   private static double sum(double[] values) {
+      double sum = 0.0;
+      for (double value : values) {
+         sum += value;
+      }
+      return sum;
+   }
+
+   private double fitFocus(SortedMap<Double, Double> focusScoreMap, DoubleVector positions,
+         double z) {
       // we have the map relating Z stage positions to Focus Score, now fit to find the
       // optimum position.
 
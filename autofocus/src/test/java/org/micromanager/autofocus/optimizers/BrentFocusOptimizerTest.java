@@ -0,0 +1,90 @@
+package org.micromanager.autofocus.optimizers;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class BrentFocusOptimizerTest {
+
+   /**
+    * Focus curve with its peak at a settable Z, that records where it was
+    * measured.
+    */
+   private static final class SyntheticFocus implements BrentFocusOptimizer.ScoreFunction {
+      private double focusUm_;
+      private final List<Double> measured_ = new ArrayList<>();
+
+      SyntheticFocus(double focusUm) {
+         focusUm_ = focusUm;
+      }
+
+      @Override
+      public double score(double z) {
+         measured_.add(z);
+         double dz = z - focusUm_;
+         return 10.0 + 1000.0 * Math.exp(-dz * dz / 8.0);
+      }
+   }
+
+   private static BrentFocusOptimizer optimizer(double toleranceUm, double stepUm) {
+      BrentFocusOptimizer optimizer = new BrentFocusOptimizer(proc -> 0.0);
+      optimizer.setSearchRange(20.0);
+      optimizer.setAbsoluteTolerance(toleranceUm);
+      optimizer.getScoreCache().setStepSizeUm(stepUm);
+      return optimizer;
+   }
+
+   @Test
+   public void doesNotSnapTheSameStepTwice() throws Exception {
+      BrentFocusOptimizer optimizer = optimizer(0.05, 0.5);
+      SyntheticFocus focus = new SyntheticFocus(1.2);
+      double z = optimizer.optimize(0.0, 0.0, 0.0, focus);
+      assertEquals(1.2, z, 0.5);
+      assertEquals(focus.measured_.size(), new HashSet<>(focus.measured_).size());
+      assertEquals(focus.measured_.size(), optimizer.getImageCount());
+      assertTrue(optimizer.getSnapsSaved() > 0);
+      for (double measured : focus.measured_) {
+         assertEquals(0.0, Math.IEEEremainder(measured, 0.5), 1e-9);
+      }
+   }
+
+   @Test
+   public void startsFromTheLastResult() throws Exception {
+      BrentFocusOptimizer optimizer = optimizer(0.1, 0.01);
+      SyntheticFocus focus = new SyntheticFocus(3.0);
+      assertEquals(3.0, optimizer.optimize(0.0, 0.0, 0.0, focus), 0.2);
+      final int firstImages = optimizer.getImageCount();
+      focus.focusUm_ = 3.1;
+      assertEquals(3.1, optimizer.optimize(0.0, 0.0, 0.0, focus), 0.2);
+      // the drift between the last two runs now sets the size of the bracket
+      focus.focusUm_ = 3.15;
+      assertEquals(3.15, optimizer.optimize(0.0, 0.0, 0.0, focus), 0.2);
+      assertTrue(optimizer.getImageCount() < firstImages);
+   }
+
+   @Test
+   public void searchesTheFullRangeWhenFocusJumps() throws Exception {
+      BrentFocusOptimizer optimizer = optimizer(0.1, 0.01);
+      SyntheticFocus focus = new SyntheticFocus(3.0);
+      optimizer.optimize(0.0, 0.0, 0.0, focus);
+      focus.focusUm_ = 3.1;
+      optimizer.optimize(0.0, 0.0, 0.0, focus);
+      focus.focusUm_ = 7.0;
+      assertEquals(7.0, optimizer.optimize(0.0, 0.0, 0.0, focus), 0.2);
+   }
+
+   @Test
+   public void keepsPositionsApart() throws Exception {
+      BrentFocusOptimizer optimizer = optimizer(0.1, 0.01);
+      SyntheticFocus focus = new SyntheticFocus(3.0);
+      optimizer.optimize(0.0, 0.0, 0.0, focus);
+      final int firstImages = optimizer.getImageCount();
+      assertTrue(Double.isNaN(optimizer.getScoreCache().getLastResult(100.0, 0.0)));
+      assertEquals(3.0, optimizer.optimize(100.0, 0.0, 0.0, focus), 0.2);
+      // nothing known at the new position, so the search is the same
+      assertEquals(firstImages, optimizer.getImageCount());
+      assertEquals(3.0, optimizer.getScoreCache().getLastResult(0.0, 0.0), 0.2);
+   }
+}
@@ -0,0 +1,93 @@
+package org.micromanager.autofocus.optimizers;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import mmcorej.TaggedImage;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class ZStackFocusOptimizerTest {
+
+   private static final int WIDTH = 8;
+   private static final int HEIGHT = 4;
+
+   /*
+    * Frame whose first pixel holds its index.
+    */
+   private static TaggedImage frame(int index) {
+      short[] pixels = new short[WIDTH * HEIGHT];
+      pixels[0] = (short) index;
+      return new TaggedImage(pixels, null);
+   }
+
+   @Test
+   public void scoresFramesInSubmissionOrderOnSeveralThreads() throws Exception {
+      final Set<String> threads = Collections.synchronizedSet(new HashSet<>());
+      final AtomicInteger running = new AtomicInteger();
+      final AtomicInteger maxRunning = new AtomicInteger();
+      // stands in for a sharpness measure: slow, and returns the frame index
+      Function<ImageProcessor, Double> score = proc -> {
+         maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+         threads.add(Thread.currentThread().getName());
+         try {
+            Thread.sleep(5);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         assertEquals(WIDTH, proc.getWidth());
+         assertEquals(HEIGHT, proc.getHeight());
+         running.decrementAndGet();
+         return (double) proc.get(0);
+      };
+      final int nrFrames = 40;
+      try (ZStackFocusOptimizer.ScoringPool pool = new ZStackFocusOptimizer.ScoringPool(
+            score, 3, ImagePlus.GRAY16, WIDTH, HEIGHT, nrFrames, null)) {
+         for (int i = 0; i < nrFrames; i++) {
+            pool.submit(frame(i));
+         }
+         assertEquals(nrFrames, pool.size());
+         for (int i = 0; i < nrFrames; i++) {
+            assertEquals(i, pool.getScore(i), 0.0);
+         }
+         assertEquals(nrFrames, pool.getScoringTimesMs().length);
+         for (double ms : pool.getScoringTimesMs()) {
+            assertTrue(ms >= 5.0);
+         }
+      }
+      // the 3 workers, and the submitting thread when their queue was full
+      assertTrue(maxRunning.get() > 1);
+      assertTrue(threads.contains(Thread.currentThread().getName()));
+      assertTrue(threads.size() <= 4);
+   }
+
+   @Test
+   public void displaysEveryFrame() throws Exception {
+      final Set<Object> displayed = Collections.synchronizedSet(new HashSet<>());
+      try (ZStackFocusOptimizer.ScoringPool pool = new ZStackFocusOptimizer.ScoringPool(
+            proc -> 0.0, 2, ImagePlus.GRAY16, WIDTH, HEIGHT, 10,
+            tImg -> displayed.add(tImg.pix))) {
+         for (int i = 0; i < 10; i++) {
+            pool.submit(frame(i));
+         }
+         for (int i = 0; i < 10; i++) {
+            pool.getScore(i);
+         }
+      }
+      assertEquals(10, displayed.size());
+   }
+
+   @Test(expected = ExecutionException.class)
+   public void reportsUnsupportedFrames() throws Exception {
+      try (ZStackFocusOptimizer.ScoringPool pool = new ZStackFocusOptimizer.ScoringPool(
+            proc -> 0.0, 1, -1, WIDTH, HEIGHT, 1, null)) {
+         pool.submit(frame(0));
+         pool.getScore(0);
+      }
+   }
+}
@@ -40,6 +40,7 @@
 package edu.ucsf.valelab.gaussianfit;
 
 import com.google.common.eventbus.Subscribe;
+import edu.ucsf.valelab.gaussianfit.data.ChunkedSpotFile;
 import edu.ucsf.valelab.gaussianfit.data.LoadAndSave;
 import edu.ucsf.valelab.gaussianfit.data.RowData;
 import edu.ucsf.valelab.gaussianfit.data.SpotData;
@@ -150,7 +151,7 @@ public class DataCollectionForm extends JFrame {
             {"1x", "2x", "4x", "8x", "16x", "32x", "64x", "128x"};
    private final String[] c2CorrectAlgorithms_ =
             {"NR-Similarity", "Affine", "Piecewise-Affine", "LWM"};
-   private final String[] fileFormats_ = {"Binary", "Text"};
+   private final String[] fileFormats_ = {"Binary", "Text", "Chunked"};
 
    public static final String EXTENSION = ".tsf";
 
@@ -189,7 +190,7 @@ public class DataCollectionForm extends JFrame {
    private static final FileType TSF_FILE = new FileType("TSF File",
          "Tagged Spot Format file",
          "./data.tsf",
-         false, new String[]{"txt", "tsf"});
+         false, new String[]{"txt", "tsf", "csf"});
 
    private static CoordinateMapper c2t_;
    private static String loadTSFDir_ = "";
@@ -1128,6 +1129,8 @@ public class DataCollectionForm extends JFrame {
             LoadAndSave.loadTSF(selectedFile, this);
          } else if (selectedFile.getName().endsWith(".bin")) {
             LoadAndSave.loadBin(selectedFile, this);
+         } else if (selectedFile.getName().endsWith(ChunkedSpotFile.EXTENSION)) {
+            LoadAndSave.loadChunked(selectedFile, this);
          } else {
             JOptionPane.showMessageDialog(this, "Unrecognized file extension");
          }
@@ -1144,8 +1147,10 @@ public class DataCollectionForm extends JFrame {
          }
          if (saveFormatBox_.getSelectedIndex() == 0) {
             dir_ = LoadAndSave.saveData(rowData, false, dir_, this);
-         } else {
+         } else if (saveFormatBox_.getSelectedIndex() == 1) {
             dir_ = LoadAndSave.saveDataAsText(rowData, dir_, this);
+         } else {
+            dir_ = LoadAndSave.saveDataAsChunked(rowData, dir_, this);
          }
 
       } else {
@@ -0,0 +1,153 @@
+/*
+Copyright (c) 2010-2017, Regents of the University of California
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies,
+either expressed or implied, of the FreeBSD Project.
+ */
+
+package edu.ucsf.valelab.gaussianfit.algorithm;
+
+import java.awt.geom.Point2D;
+import org.micromanager.internal.utils.imageanalysis.FFTCorrelator;
+
+/**
+ * Determines the displacement of test images relative to a reference image by FFT-based
+ * cross-correlation.
+ *
+ * <p>The (conjugated) spectrum of the reference is calculated once in the constructor.  Each
+ * call to {@link #getShift(double[], int)} only needs one forward and one inverse transform, and
+ * uses its own buffers, so that one instance can be used to process many test images in
+ * parallel.  The location of the correlation peak is refined to sub-pixel precision with a
+ * three point Gaussian (or, when that is not possible, parabolic) fit in x and y.  The FFT and
+ * the peak fit are those of mmstudio's {@link FFTCorrelator}.
+ *
+ * <p>Images are stored row by row in double arrays.  Width and height need to be powers of 2;
+ * images of other sizes should be zero-padded.
+ */
+public class FFTCrossCorrelator {
+
+   private final int width_;
+   private final int height_;
+   private final double[] refRe_;
+   private final double[] refIm_;
+
+   /**
+    * @param reference reference image, stored row by row
+    * @param width     width of the image, must be a power of 2
+    * @param height    height of the image, must be a power of 2
+    */
+   public FFTCrossCorrelator(double[] reference, int width, int height) {
+      if (width != FFTCorrelator.nextPowerOf2(width)
+            || height != FFTCorrelator.nextPowerOf2(height)) {
+         throw new IllegalArgumentException("Image width and height should be powers of 2");
+      }
+      if (reference.length != width * height) {
+         throw new IllegalArgumentException("Reference image does not have the given size");
+      }
+      width_ = width;
+      height_ = height;
+      refRe_ = meanSubtracted(reference);
+      refIm_ = new double[refRe_.length];
+      FFTCorrelator.fft2D(refRe_, refIm_, width_, height_, false);
+      // store the complex conjugate, so that multiplication gives the cross-correlation
+      for (int i = 0; i < refIm_.length; i++) {
+         refIm_[i] = -refIm_[i];
+      }
+   }
+
+   public int getWidth() {
+      return width_;
+   }
+
+   public int getHeight() {
+      return height_;
+   }
+
+   /**
+    * Calculates by how much the test image is shifted relative to the reference, i.e. the
+    * displacement d for which test(x) best matches reference(x - d).
+    *
+    * @param test     test image, same size as the reference
+    * @param maxShift only displacements of at most this many pixels in x and y are considered
+    * @return displacement in pixels
+    */
+   public Point2D.Double getShift(double[] test, int maxShift) {
+      if (test.length != width_ * height_) {
+         throw new IllegalArgumentException("Test image does not have the expected size");
+      }
+      double[] re = meanSubtracted(test);
+      double[] im = new double[re.length];
+      FFTCorrelator.fft2D(re, im, width_, height_, false);
+      for (int i = 0; i < re.length; i++) {
+         final double r = re[i] * refRe_[i] - im[i] * refIm_[i];
+         im[i] = re[i] * refIm_[i] + im[i] * refRe_[i];
+         re[i] = r;
+      }
+      FFTCorrelator.fft2D(re, im, width_, height_, true);
+
+      // the correlation is circular: shift s is found at index s modulo the size
+      final int maxX = Math.min(maxShift, width_ / 2 - 1);
+      final int maxY = Math.min(maxShift, height_ / 2 - 1);
+      int peakX = 0;
+      int peakY = 0;
+      double max = Double.NEGATIVE_INFINITY;
+      for (int dy = -maxY; dy <= maxY; dy++) {
+         final int row = wrap(dy, height_) * width_;
+         for (int dx = -maxX; dx <= maxX; dx++) {
+            final double value = re[row + wrap(dx, width_)];
+            if (value > max) {
+               max = value;
+               peakX = dx;
+               peakY = dy;
+            }
+         }
+      }
+
+      final double left = re[wrap(peakY, height_) * width_ + wrap(peakX - 1, width_)];
+      final double right = re[wrap(peakY, height_) * width_ + wrap(peakX + 1, width_)];
+      final double up = re[wrap(peakY - 1, height_) * width_ + wrap(peakX, width_)];
+      final double down = re[wrap(peakY + 1, height_) * width_ + wrap(peakX, width_)];
+      return new Point2D.Double(peakX + FFTCorrelator.subPixelOffset(left, max, right),
+            peakY + FFTCorrelator.subPixelOffset(up, max, down));
+   }
+
+   private static int wrap(int index, int size) {
+      return ((index % size) + size) % size;
+   }
+
+   private static double[] meanSubtracted(double[] image) {
+      double sum = 0.0;
+      for (double value : image) {
+         sum += value;
+      }
+      final double mean = sum / image.length;
+      double[] result = new double[image.length];
+      for (int i = 0; i < image.length; i++) {
+         result[i] = image[i] - mean;
+      }
+      return result;
+   }
+
+}
@@ -33,6 +33,7 @@ import edu.ucsf.valelab.gaussianfit.data.SpotData;
 import org.apache.commons.math.complex.Complex;
 import org.apache.commons.math.transform.FastFourierTransformer;
 import org.jfree.data.xy.XYSeries;
+import org.micromanager.internal.utils.imageanalysis.FFTCorrelator;
 
 /**
  * @author nico
@@ -47,11 +48,7 @@ public class FFTUtils {
     * @return first number &gt; n that is a power of 2
     */
    public static int nextPowerOf2(int n) {
-      int res = 1;
-      while (res < n) {
-         res <<= 1;
-      }
-      return res;
+      return FFTCorrelator.nextPowerOf2(n);
    }
 
    /**
@@ -33,92 +33,60 @@ either expressed or implied, of the FreeBSD Project.
 
 package edu.ucsf.valelab.gaussianfit.algorithm;
 
-import ij.process.FHT;
 import ij.process.ImageProcessor;
-import java.awt.Point;
 import java.awt.geom.Point2D;
 
 /**
+ * Finds the displacement of images relative to a reference image.  The spectrum of the reference
+ * is calculated once (see {@link FFTCrossCorrelator}), and can be used from several threads.
+ *
  * @author Nico Stuurman
  */
 public class JitterDetector {
 
-   private final FHT ref_;
+   // size of the edge of the square around the center in which the correlation peak is searched
+   private static final int SEARCH_SIZE = 32;
+
+   private final int width_;
+   private final int height_;
+   private final FFTCrossCorrelator correlator_;
 
    public JitterDetector(ImageProcessor reference) {
-      ref_ = new FHT(reference);
-      ref_.transform();
-      ref_.resetMinAndMax();
+      width_ = reference.getWidth();
+      height_ = reference.getHeight();
+      correlator_ = new FFTCrossCorrelator(toPaddedArray(reference),
+            FFTUtils.nextPowerOf2(width_), FFTUtils.nextPowerOf2(height_));
    }
 
+   /**
+    * Determines the position of the cross-correlation peak between the reference and the test
+    * image, with the zero shift position at the center of the image (as when the quadrants of
+    * the correlation image are swapped).  The difference between this position for the
+    * reference and for the test image is the displacement of the test image.
+    *
+    * @param test image of the same size as the reference
+    * @param com  used to return the position of the peak, with sub-pixel precision
+    */
    public void getJitter(ImageProcessor test, Point2D.Double com) {
-      FHT t = new FHT(test);
-      t.transform();
-      t.resetMinAndMax();
-
-      FHT m = ref_.conjugateMultiply(t);
-
-      m.inverseTransform();
-      m.swapQuadrants();
-
-      // return the position of the brightest pixel
-      Point brightPix = new Point(0, 0);
-      brightestPixel(m, brightPix, 32);
-
-      try {
-         // Gaussian fit using Nelder Mead and 3D fitting
-         GaussianFit gs = new GaussianFit(3, 2);
-         // halfsize of the square around brightest pixel used for Gaussian fit
-         int hs = 5;
-         ImageProcessor ip = m.convertToShort(true);
-         ip.setRoi(brightPix.x - hs, brightPix.y - hs, 2 * hs, 2 * hs);
-         ImageProcessor ipc = ip.crop();
-
-         GaussianFit.Data fitResult = gs.dogaussianfit(ipc, 100);
-         com.x = fitResult.getParms()[GaussianFit.XC] - hs + brightPix.x;
-         com.y = fitResult.getParms()[GaussianFit.YC] - hs + brightPix.y;
-
-      } catch (Exception ex) {
-         // Gaussian fit failed, try second best estimate
-         com.x = brightPix.x;
-         com.y = brightPix.y;
-      }
-
+      Point2D.Double shift = correlator_.getShift(toPaddedArray(test), SEARCH_SIZE / 2);
+      com.x = correlator_.getWidth() / 2 - shift.x;
+      com.y = correlator_.getHeight() / 2 - shift.y;
    }
 
    /**
-    * Finds the brightest pixel in the center of the image m only searches in the center of the
-    * image in a square with edge size searchsize
-    *
-    * @param m          image to be searched
-    * @param brightPix  point use to return coordinates of pixel found
-    * @param searchSize size of edge of center square in which to look for brightest pixel
+    * Copies the pixels of the processor into an array whose dimensions are powers of 2, padding
+    * with zeros when needed.
     */
-   private void brightestPixel(FHT m, Point brightPix, int searchSize) {
-      float[] pixels = (float[]) m.getPixels();
-
-      int height = m.getHeight();
-      int width = m.getWidth();
-      int halfHeight = (height / 2);
-      int halfWidth = (width / 2);
-      int halfSearchSize = (searchSize / 2);
-
-      double max = pixels[halfHeight * width + halfWidth];
-      brightPix.x = halfWidth;
-      brightPix.y = halfHeight;
-
-      for (int y = halfHeight - halfSearchSize;
-            y < halfHeight + halfSearchSize; y++) {
-         for (int x = halfWidth - halfSearchSize;
-               x < halfWidth + halfSearchSize; x++) {
-            if (pixels[y * width + x] > max) {
-               max = pixels[y * width + x];
-               brightPix.x = x;
-               brightPix.y = y;
-            }
+   private static double[] toPaddedArray(ImageProcessor ip) {
+      final int width = FFTUtils.nextPowerOf2(ip.getWidth());
+      final int height = FFTUtils.nextPowerOf2(ip.getHeight());
+      double[] result = new double[width * height];
+      for (int y = 0; y < ip.getHeight(); y++) {
+         for (int x = 0; x < ip.getWidth(); x++) {
+            result[y * width + x] = ip.getf(x, y);
          }
       }
-
+      return result;
    }
 
 }
@@ -0,0 +1,648 @@
+/*
+Copyright (c) 2010-2017, Regents of the University of California
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies,
+either expressed or implied, of the FreeBSD Project.
+ */
+
+package edu.ucsf.valelab.gaussianfit.data;
+
+import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
+import java.awt.geom.Rectangle2D;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Chunked, columnar file format for localization data.
+ *
+ * <p>Spots are stored in chunks of (at most) a fixed number of spots.  Within a chunk, each
+ * property of the spots is stored as a contiguous column of primitives, and the chunk can
+ * optionally be deflate-compressed.  An index at the end of the file lists, for every chunk, its
+ * location in the file, the range of frames it contains and the bounding box of the spot
+ * positions.  This makes it possible to:
+ * <ul>
+ * <li>encode and decode chunks on several threads at once,</li>
+ * <li>memory-map uncompressed chunks rather than copy them through streams,</li>
+ * <li>skip chunks entirely when only a range of frames or a region of interest is needed.</li>
+ * </ul>
+ *
+ * <p>Layout of the file (all numbers big-endian):
+ * <pre>
+ * long   magic ("MMCSF001")
+ * int    version
+ * long   offset of the index
+ * ...    chunks
+ * index: dataset header, long number of spots,
+ *        int number of chunks, chunk descriptors
+ * </pre>
+ *
+ * <p>The Tagged Spot Format (.tsf) and text formats remain available through
+ * {@link LoadAndSave} for exchange with other software.
+ */
+public final class ChunkedSpotFile {
+
+   public static final String EXTENSION = ".csf";
+   public static final int DEFAULT_CHUNK_SIZE = 65536;
+
+   private static final long MAGIC = 0x4d4d435346303031L; // "MMCSF001"
+   private static final int VERSION = 1;
+   private static final int HEADER_SIZE = 8 + 4 + 8;
+   private static final int NR_INT_COLUMNS = 9;
+   private static final int NR_DOUBLE_COLUMNS = 12;
+
+   private ChunkedSpotFile() {
+   }
+
+   /**
+    * Description of a single chunk, as stored in the index of the file.
+    */
+   public static final class ChunkInfo {
+
+      public final long offset;
+      public final int storedLength;
+      public final int rawLength;
+      public final boolean compressed;
+      public final int nrSpots;
+      public final int minFrame;
+      public final int maxFrame;
+      public final double minX;
+      public final double maxX;
+      public final double minY;
+      public final double maxY;
+
+      ChunkInfo(long offset, int storedLength, int rawLength, boolean compressed, int nrSpots,
+            int minFrame, int maxFrame, double minX, double maxX, double minY, double maxY) {
+         this.offset = offset;
+         this.storedLength = storedLength;
+         this.rawLength = rawLength;
+         this.compressed = compressed;
+         this.nrSpots = nrSpots;
+         this.minFrame = minFrame;
+         this.maxFrame = maxFrame;
+         this.minX = minX;
+         this.maxX = maxX;
+         this.minY = minY;
+         this.maxY = maxY;
+      }
+
+      /**
+       * @return true when this chunk may contain spots within the given frame range and roi
+       */
+      public boolean overlaps(int fromFrame, int toFrame, Rectangle2D roi) {
+         if (maxFrame < fromFrame || minFrame > toFrame) {
+            return false;
+         }
+         if (roi == null) {
+            return true;
+         }
+         return !(maxX < roi.getMinX() || minX > roi.getMaxX()
+               || maxY < roi.getMinY() || minY > roi.getMaxY());
+      }
+   }
+
+   /**
+    * Contents of the index of a file: dataset description and chunk descriptors.
+    */
+   public static final class Index {
+
+      public final int version;
+      public final RowData.Builder header;
+      public final boolean hasZ;
+      public final long nrSpots;
+      public final List<ChunkInfo> chunks;
+
+      Index(int version, RowData.Builder header, boolean hasZ, long nrSpots,
+            List<ChunkInfo> chunks) {
+         this.version = version;
+         this.header = header;
+         this.hasZ = hasZ;
+         this.nrSpots = nrSpots;
+         this.chunks = Collections.unmodifiableList(chunks);
+      }
+   }
+
+   /**
+    * Writes the spots of the given dataset.  Chunks are encoded (and compressed) on nrThreads
+    * threads, and written to disk in order as soon as they are ready.
+    *
+    * @param rowData   dataset to be saved
+    * @param file      destination file, will be overwritten
+    * @param chunkSize maximum number of spots in a chunk
+    * @param compress  whether or not to deflate the chunks
+    * @param nrThreads number of threads used to encode chunks
+    * @throws IOException when writing fails
+    */
+   public static void write(RowData rowData, File file, int chunkSize, boolean compress,
+         int nrThreads) throws IOException {
+      final List<SpotData> spots = new ArrayList<SpotData>(rowData.spotList_.size());
+      for (SpotData spot : rowData.spotList_) {
+         if (spot != null) {
+            spots.add(spot);
+         }
+      }
+      final int nrChunks = (spots.size() + chunkSize - 1) / chunkSize;
+      final List<ChunkInfo> chunkInfos = new ArrayList<ChunkInfo>(nrChunks);
+
+      ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, nrThreads));
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+         raf.setLength(0);
+         raf.writeLong(MAGIC);
+         raf.writeInt(VERSION);
+         raf.writeLong(0L); // offset of the index, filled in at the end
+         long position = HEADER_SIZE;
+
+         // keep a bounded number of chunks in flight so that memory use stays limited
+         final int maxInFlight = 2 * Math.max(1, nrThreads);
+         Deque<Future<EncodedChunk>> inFlight = new ArrayDeque<Future<EncodedChunk>>();
+         int nextChunk = 0;
+         while (nextChunk < nrChunks || !inFlight.isEmpty()) {
+            while (nextChunk < nrChunks && inFlight.size() < maxInFlight) {
+               final List<SpotData> chunk = spots.subList(nextChunk * chunkSize,
+                     Math.min(spots.size(), (nextChunk + 1) * chunkSize));
+               inFlight.add(executor.submit(new Callable<EncodedChunk>() {
+                  @Override
+                  public EncodedChunk call() {
+                     return encodeChunk(chunk, compress);
+                  }
+               }));
+               nextChunk++;
+            }
+            EncodedChunk encoded = get(inFlight.removeFirst());
+            raf.write(encoded.data, 0, encoded.length);
+            chunkInfos.add(new ChunkInfo(position, encoded.length, encoded.rawLength,
+                  compress, encoded.nrSpots, encoded.minFrame, encoded.maxFrame,
+                  encoded.minX, encoded.maxX, encoded.minY, encoded.maxY));
+            position += encoded.length;
+            ij.IJ.showProgress(chunkInfos.size(), Math.max(1, nrChunks));
+         }
+
+         final long indexOffset = position;
+         raf.write(encodeIndex(rowData, spots.size(), chunkInfos));
+         raf.seek(8 + 4);
+         raf.writeLong(indexOffset);
+      } finally {
+         executor.shutdownNow();
+         raf.close();
+      }
+   }
+
+   /**
+    * Reads the index of the file without reading any of the spots.
+    *
+    * @param file file to be read
+    * @return index of the file
+    * @throws IOException when the file can not be read or is not in the expected format
+    */
+   public static Index readIndex(File file) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+         return readIndex(raf);
+      } finally {
+         raf.close();
+      }
+   }
+
+   /**
+    * Reads all spots in the file.
+    *
+    * @see #read(File, int, int, Rectangle2D, int)
+    */
+   public static RowData.Builder read(File file, int nrThreads) throws IOException {
+      return read(file, Integer.MIN_VALUE, Integer.MAX_VALUE, null, nrThreads);
+   }
+
+   /**
+    * Reads the spots within the given frame range and region of interest.  Chunks that can not
+    * contain any of the requested spots are not read at all, the others are memory-mapped and
+    * decoded on nrThreads threads.  The order of the spots in the file is maintained.
+    *
+    * @param file      file to be read
+    * @param fromFrame first frame (inclusive) to be loaded
+    * @param toFrame   last frame (inclusive) to be loaded
+    * @param roi       only spots within this rectangle (in the coordinates of the spots, i.e.
+    *                  normally nm) are loaded, can be null to load everything
+    * @param nrThreads number of threads used to decode chunks
+    * @return RowData Builder containing the dataset description and the selected spots
+    * @throws IOException when the file can not be read or is not in the expected format
+    */
+   public static RowData.Builder read(File file, final int fromFrame, final int toFrame,
+         final Rectangle2D roi, int nrThreads) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, nrThreads));
+      try {
+         final Index index = readIndex(raf);
+         final FileChannel channel = raf.getChannel();
+         List<Future<List<SpotData>>> futures = new ArrayList<Future<List<SpotData>>>();
+         for (final ChunkInfo info : index.chunks) {
+            if (!info.overlaps(fromFrame, toFrame, roi)) {
+               continue;
+            }
+            futures.add(executor.submit(new Callable<List<SpotData>>() {
+               @Override
+               public List<SpotData> call() throws IOException, DataFormatException {
+                  ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                        info.offset, info.storedLength);
+                  if (info.compressed) {
+                     buffer = inflate(buffer, info.rawLength);
+                  }
+                  return decodeChunk(buffer, fromFrame, toFrame, roi);
+               }
+            }));
+         }
+
+         List<SpotData> spots = new ArrayList<SpotData>();
+         for (int i = 0; i < futures.size(); i++) {
+            spots.addAll(get(futures.get(i)));
+            ij.IJ.showProgress(i + 1, futures.size());
+         }
+
+         double minZ = Double.POSITIVE_INFINITY;
+         double maxZ = Double.NEGATIVE_INFINITY;
+         if (index.hasZ) {
+            for (SpotData spot : spots) {
+               minZ = Math.min(minZ, spot.getZCenter());
+               maxZ = Math.max(maxZ, spot.getZCenter());
+            }
+         }
+         return index.header.setSpotList(spots).setMaxNrSpots(spots.size())
+               .setHasZ(index.hasZ && !spots.isEmpty()).setMinZ(minZ).setMaxZ(maxZ);
+      } finally {
+         executor.shutdownNow();
+         raf.close();
+      }
+   }
+
+   private static Index readIndex(RandomAccessFile raf) throws IOException {
+      raf.seek(0);
+      if (raf.readLong() != MAGIC) {
+         throw new IOException("Not a chunked spot file");
+      }
+      int version = raf.readInt();
+      if (version != VERSION) {
+         throw new IOException("Unsupported chunked spot file version: " + version);
+      }
+      long indexOffset = raf.readLong();
+      if (indexOffset < HEADER_SIZE || indexOffset >= raf.length()) {
+         throw new IOException("Chunked spot file is incomplete");
+      }
+      byte[] indexBytes = new byte[(int) (raf.length() - indexOffset)];
+      raf.seek(indexOffset);
+      raf.readFully(indexBytes);
+
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(indexBytes));
+      RowData.Builder builder = new RowData.Builder();
+      builder.setName(in.readUTF()).setTitle(in.readUTF()).setDisplayWindow(null)
+            .setColColorRef(in.readUTF())
+            .setWidth(in.readInt()).setHeight(in.readInt())
+            .setPixelSizeNm(in.readFloat()).setZStackStepSizeNm(in.readFloat())
+            .setShape(in.readInt()).setHalfSize(in.readInt())
+            .setNrChannels(in.readInt()).setNrFrames(in.readInt())
+            .setNrSlices(in.readInt()).setNrPositions(in.readInt())
+            .setIsTrack(in.readBoolean())
+            .setCoordinate(DataCollectionForm.Coordinates.valueOf(in.readUTF()));
+      boolean hasZ = in.readBoolean();
+      builder.setHasZ(hasZ);
+      long nrSpots = in.readLong();
+      int nrChunks = in.readInt();
+      List<ChunkInfo> chunks = new ArrayList<ChunkInfo>(nrChunks);
+      for (int i = 0; i < nrChunks; i++) {
+         chunks.add(new ChunkInfo(in.readLong(), in.readInt(), in.readInt(), in.readBoolean(),
+               in.readInt(), in.readInt(), in.readInt(), in.readDouble(), in.readDouble(),
+               in.readDouble(), in.readDouble()));
+      }
+      return new Index(version, builder, hasZ, nrSpots, chunks);
+   }
+
+   private static byte[] encodeIndex(RowData rowData, long nrSpots, List<ChunkInfo> chunks)
+         throws IOException {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bos);
+      out.writeUTF(rowData.getName() == null ? "" : rowData.getName());
+      out.writeUTF(rowData.title_ == null ? "" : rowData.title_);
+      out.writeUTF(rowData.colCorrRef_ == null ? "" : rowData.colCorrRef_);
+      out.writeInt(rowData.width_);
+      out.writeInt(rowData.height_);
+      out.writeFloat(rowData.pixelSizeNm_);
+      out.writeFloat(rowData.zStackStepSizeNm_);
+      out.writeInt(rowData.shape_);
+      out.writeInt(rowData.halfSize_);
+      out.writeInt(rowData.nrChannels_);
+      out.writeInt(rowData.nrFrames_);
+      out.writeInt(rowData.nrSlices_);
+      out.writeInt(rowData.nrPositions_);
+      out.writeBoolean(rowData.isTrack_);
+      out.writeUTF(rowData.coordinate_ == null ? DataCollectionForm.Coordinates.NM.name()
+            : rowData.coordinate_.name());
+      out.writeBoolean(rowData.hasZ_);
+      out.writeLong(nrSpots);
+      out.writeInt(chunks.size());
+      for (ChunkInfo info : chunks) {
+         out.writeLong(info.offset);
+         out.writeInt(info.storedLength);
+         out.writeInt(info.rawLength);
+         out.writeBoolean(info.compressed);
+         out.writeInt(info.nrSpots);
+         out.writeInt(info.minFrame);
+         out.writeInt(info.maxFrame);
+         out.writeDouble(info.minX);
+         out.writeDouble(info.maxX);
+         out.writeDouble(info.minY);
+         out.writeDouble(info.maxY);
+      }
+      out.flush();
+      return bos.toByteArray();
+   }
+
+   private static final class EncodedChunk {
+
+      byte[] data;
+      int length;
+      int rawLength;
+      int nrSpots;
+      int minFrame = Integer.MAX_VALUE;
+      int maxFrame = Integer.MIN_VALUE;
+      double minX = Double.POSITIVE_INFINITY;
+      double maxX = Double.NEGATIVE_INFINITY;
+      double minY = Double.POSITIVE_INFINITY;
+      double maxY = Double.NEGATIVE_INFINITY;
+   }
+
+   /**
+    * Chunk layout: int nrSpots, int nrKeys, the keys (UTF-8, preceded by their length as short),
+    * followed by the int columns, the double columns, and per key a double column and a bitmap
+    * with one bit per spot that is set when the spot has that key.  Spots without the key have
+    * NaN in the column, but a NaN value is only missing when its bit is clear.
+    */
+   private static EncodedChunk encodeChunk(List<SpotData> spots, boolean compress) {
+      Set<String> keySet = new LinkedHashSet<String>();
+      for (SpotData spot : spots) {
+         Collections.addAll(keySet, spot.getKeys());
+      }
+      List<byte[]> keys = new ArrayList<byte[]>(keySet.size());
+      int keysLength = 0;
+      for (String key : keySet) {
+         byte[] k = key.getBytes(StandardCharsets.UTF_8);
+         keys.add(k);
+         keysLength += 2 + k.length;
+      }
+      final int n = spots.size();
+      final int bitmapLength = (n + 7) / 8;
+      final int rawLength = 8 + keysLength + keys.size() * bitmapLength
+            + n * (4 * NR_INT_COLUMNS + 8 * (NR_DOUBLE_COLUMNS + keys.size()));
+      ByteBuffer buffer = ByteBuffer.allocate(rawLength);
+      buffer.putInt(n);
+      buffer.putInt(keys.size());
+      for (byte[] k : keys) {
+         buffer.putShort((short) k.length);
+         buffer.put(k);
+      }
+
+      EncodedChunk chunk = new EncodedChunk();
+      chunk.nrSpots = n;
+      for (SpotData spot : spots) {
+         chunk.minFrame = Math.min(chunk.minFrame, spot.getFrame());
+         chunk.maxFrame = Math.max(chunk.maxFrame, spot.getFrame());
+         chunk.minX = Math.min(chunk.minX, spot.getXCenter());
+         chunk.maxX = Math.max(chunk.maxX, spot.getXCenter());
+         chunk.minY = Math.min(chunk.minY, spot.getYCenter());
+         chunk.maxY = Math.max(chunk.maxY, spot.getYCenter());
+      }
+      // int columns
+      for (SpotData spot : spots) {
+         buffer.putInt(spot.getFrame());
+      }
+      for (SpotData spot : spots) {
+         buffer.putInt(spot.getSlice());
+      }
+      for (SpotData spot : spots) {
+         buffer.putInt(spot.getChannel());
+      }
+      for (SpotData spot : spots) {
+         buffer.putInt(spot.getPosition());
+      }
+      for (SpotData spot : spots) {
+         buffer.putInt(spot.getNr());
+      }
+      for (SpotData spot : spots) {
+         buffer.putInt(spot.getX());
+      }
+      for (SpotData spot : spots) {
+         buffer.putInt(spot.getY());
+      }
+      for (SpotData spot : spots) {
+         buffer.putInt(spot.nrLinks_);
+      }
+      for (SpotData spot : spots) {
+         buffer.putInt(spot.originalFrame_);
+      }
+      // double columns
+      for (SpotData spot : spots) {
+         buffer.putDouble(spot.getIntensity());
+      }
+      for (SpotData spot : spots) {
+         buffer.putDouble(spot.getBackground());
+      }
+      for (SpotData spot : spots) {
+         buffer.putDouble(spot.getXCenter());
+      }
+      for (SpotData spot : spots) {
+         buffer.putDouble(spot.getYCenter());
+      }
+      for (SpotData spot : spots) {
+         buffer.putDouble(spot.getZCenter());
+      }
+      for (SpotData spot : spots) {
+         buffer.putDouble(spot.getXOri());
+      }
+      for (SpotData spot : spots) {
+         buffer.putDouble(spot.geYOri());
+      }
+      for (SpotData spot : spots) {
+         buffer.putDouble(spot.getZOri());
+      }
+      for (SpotData spot : spots) {
+         buffer.putDouble(spot.getWidth());
+      }
+      for (SpotData spot : spots) {
+         buffer.putDouble(spot.getA());
+      }
+      for (SpotData spot : spots) {
+         buffer.putDouble(spot.getTheta());
+      }
+      for (SpotData spot : spots) {
+         buffer.putDouble(spot.getSigma());
+      }
+      // key columns
+      for (String key : keySet) {
+         byte[] present = new byte[bitmapLength];
+         int i = 0;
+         for (SpotData spot : spots) {
+            if (spot.hasKey(key)) {
+               present[i >> 3] |= 1 << (i & 7);
+            }
+            buffer.putDouble(spot.getValue(key, Double.NaN));
+            i++;
+         }
+         buffer.put(present);
+      }
+
+      chunk.rawLength = rawLength;
+      if (compress) {
+         Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+         deflater.setInput(buffer.array(), 0, rawLength);
+         deflater.finish();
+         ByteArrayOutputStream bos = new ByteArrayOutputStream(rawLength / 2 + 64);
+         byte[] tmp = new byte[65536];
+         while (!deflater.finished()) {
+            int count = deflater.deflate(tmp);
+            bos.write(tmp, 0, count);
+         }
+         deflater.end();
+         chunk.data = bos.toByteArray();
+         chunk.length = chunk.data.length;
+      } else {
+         chunk.data = buffer.array();
+         chunk.length = rawLength;
+      }
+      return chunk;
+   }
+
+   private static ByteBuffer inflate(ByteBuffer stored, int rawLength)
+         throws DataFormatException {
+      byte[] input = new byte[stored.remaining()];
+      stored.get(input);
+      Inflater inflater = new Inflater();
+      try {
+         inflater.setInput(input);
+         byte[] output = new byte[rawLength];
+         int count = 0;
+         while (count < rawLength && !inflater.finished()) {
+            int inflated = inflater.inflate(output, count, rawLength - count);
+            if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+               throw new DataFormatException("Truncated chunk");
+            }
+            count += inflated;
+         }
+         return ByteBuffer.wrap(output);
+      } finally {
+         inflater.end();
+      }
+   }
+
+   private static List<SpotData> decodeChunk(ByteBuffer buffer, int fromFrame, int toFrame,
+         Rectangle2D roi) {
+      final int n = buffer.getInt();
+      final int nrKeys = buffer.getInt();
+      String[] keys = new String[nrKeys];
+      for (int k = 0; k < nrKeys; k++) {
+         byte[] key = new byte[buffer.getShort()];
+         buffer.get(key);
+         keys[k] = new String(key, StandardCharsets.UTF_8);
+      }
+      int[][] ints = new int[NR_INT_COLUMNS][n];
+      for (int[] column : ints) {
+         buffer.asIntBuffer().get(column);
+         buffer.position(buffer.position() + 4 * n);
+      }
+      double[][] doubles = new double[NR_DOUBLE_COLUMNS + nrKeys][n];
+      byte[][] present = new byte[nrKeys][];
+      for (int c = 0; c < doubles.length; c++) {
+         buffer.asDoubleBuffer().get(doubles[c]);
+         buffer.position(buffer.position() + 8 * n);
+         if (c >= NR_DOUBLE_COLUMNS) {
+            present[c - NR_DOUBLE_COLUMNS] = new byte[(n + 7) / 8];
+            buffer.get(present[c - NR_DOUBLE_COLUMNS]);
+         }
+      }
+
+      List<SpotData> spots = new ArrayList<SpotData>(n);
+      for (int i = 0; i < n; i++) {
+         final int frame = ints[0][i];
+         final double x = doubles[2][i];
+         final double y = doubles[3][i];
+         if (frame < fromFrame || frame > toFrame
+               || (roi != null && !roi.contains(x, y))) {
+            continue;
+         }
+         SpotData spot = new SpotData(null, ints[2][i], ints[1][i], frame, ints[3][i],
+               ints[4][i], ints[5][i], ints[6][i]);
+         spot.nrLinks_ = ints[7][i];
+         spot.originalFrame_ = ints[8][i];
+         spot.setData(doubles[0][i], doubles[1][i], x, y, 0.0, doubles[8][i],
+               doubles[9][i], doubles[10][i], doubles[11][i]);
+         spot.setZCenter(doubles[4][i]);
+         spot.setOriginalPosition(doubles[5][i], doubles[6][i], doubles[7][i]);
+         for (int k = 0; k < nrKeys; k++) {
+            if ((present[k][i >> 3] & (1 << (i & 7))) != 0) {
+               spot.addKeyValue(keys[k], doubles[NR_DOUBLE_COLUMNS + k][i]);
+            }
+         }
+         spots.add(spot);
+      }
+      return spots;
+   }
+
+   private static <T> T get(Future<T> future) throws IOException {
+      try {
+         return future.get();
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while processing chunks", ie);
+      } catch (ExecutionException ee) {
+         if (ee.getCause() instanceof IOException) {
+            throw (IOException) ee.getCause();
+         }
+         if (ee.getCause() instanceof OutOfMemoryError) {
+            throw (OutOfMemoryError) ee.getCause();
+         }
+         throw new IOException("Failed to process chunk", ee.getCause());
+      }
+   }
+
+}
@@ -41,6 +41,7 @@ import edu.ucsf.valelab.tsf.TaggedSpotsProtos;
 import ij.process.ImageProcessor;
 import java.awt.Cursor;
 import java.awt.FileDialog;
+import java.awt.geom.Rectangle2D;
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.DataInputStream;
@@ -485,6 +486,112 @@ public class LoadAndSave {
       }
    }
 
+   /**
+    * Load a file in the chunked spot format (see {@link ChunkedSpotFile}).  Chunks are decoded on
+    * as many threads as there are processors.
+    *
+    * @param selectedFile - File to be loaded
+    * @param caller       - Calling GUI element, used to set WaitCursor
+    */
+   public static void loadChunked(File selectedFile, JFrame caller) {
+      loadChunked(selectedFile, Integer.MIN_VALUE, Integer.MAX_VALUE, null, caller);
+   }
+
+   /**
+    * Load part of a file in the chunked spot format.  Parts of the file that contain only
+    * spots outside of the requested frame range and roi are not read.
+    *
+    * @param selectedFile - File to be loaded
+    * @param fromFrame    - first frame (inclusive) to be loaded
+    * @param toFrame      - last frame (inclusive) to be loaded
+    * @param roi          - area (in nm) from which spots will be loaded, null to load all
+    * @param caller       - Calling GUI element, used to set WaitCursor
+    */
+   public static void loadChunked(File selectedFile, int fromFrame, int toFrame,
+         Rectangle2D roi, JFrame caller) {
+      try {
+         ij.IJ.showStatus("Loading data..");
+         caller.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+         RowData.Builder builder = ChunkedSpotFile.read(selectedFile, fromFrame, toFrame, roi,
+               Runtime.getRuntime().availableProcessors());
+         DataCollectionForm.getInstance().addSpotData(builder);
+      } catch (FileNotFoundException ex) {
+         JOptionPane.showMessageDialog(getInstance(), "File not found");
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex);
+         JOptionPane.showMessageDialog(getInstance(), "Error while reading file");
+      } catch (OutOfMemoryError ome) {
+         JOptionPane.showMessageDialog(getInstance(), "Out Of Memory");
+      } finally {
+         caller.setCursor(Cursor.getDefaultCursor());
+         ij.IJ.showStatus("");
+         ij.IJ.showProgress(1.0);
+      }
+   }
+
+   /**
+    * Save data sets in the chunked spot format (see {@link ChunkedSpotFile}).  Chunks are
+    * compressed and encoded in parallel.
+    *
+    * @param rows   - rows with spot data to be saved
+    * @param dir    - directory shown in the file dialog
+    * @param caller - JFrame of calling code to provide visual feedback
+    * @return directory in which the data were saved
+    */
+   public static String saveDataAsChunked(final RowData[] rows, String dir,
+         final JFrame caller) {
+      String[] parts = rows[0].getName().split(File.separator);
+      String name = parts[parts.length - 1];
+      FileDialog fd = new FileDialog(caller, "Save Spot Data", FileDialog.SAVE);
+      if (dir != null) {
+         fd.setDirectory(dir);
+      }
+      fd.setFile(name + ChunkedSpotFile.EXTENSION);
+      fd.setVisible(true);
+      String fn = fd.getFile();
+      if (fn == null) {
+         return dir;
+      }
+      if (!fn.contains(".")) {
+         fn += ChunkedSpotFile.EXTENSION;
+      }
+      final String fdir = fd.getDirectory();
+      final File selectedFile = new File(fdir + File.separator + fn);
+
+      Runnable doWorkRunnable = new Runnable() {
+
+         @Override
+         public void run() {
+            try {
+               caller.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+               for (int rowNr = 0; rowNr < rows.length; rowNr++) {
+                  File file = selectedFile;
+                  if (rowNr > 0) {
+                     String[] nameParts = rows[rowNr].getName().split(File.separator);
+                     String tmpName = nameParts[nameParts.length - 1];
+                     file = new File(fdir + File.separator + tmpName
+                           + ChunkedSpotFile.EXTENSION);
+                  }
+                  ij.IJ.showStatus("Saving spotData...");
+                  ChunkedSpotFile.write(rows[rowNr], file, ChunkedSpotFile.DEFAULT_CHUNK_SIZE,
+                        true, Runtime.getRuntime().availableProcessors());
+                  ij.IJ.showProgress(1);
+                  ij.IJ.showStatus("Finished saving spotData...");
+               }
+            } catch (IOException ex) {
+               ReportingUtils.logError(ex);
+               JOptionPane.showMessageDialog(getInstance(), "Error while saving data");
+            } finally {
+               caller.setCursor(Cursor.getDefaultCursor());
+            }
+         }
+      };
+
+      (new Thread(doWorkRunnable)).start();
+
+      return fdir;
+   }
+
    /**
     * Save data set in TSF (Tagged Spot File) format
     *
@@ -295,23 +295,14 @@ public class ParticlePairLister {
                         SpotData ch1Spot = (SpotData) it2.next();
                         Point2D.Double pCh1 = new Point2D.Double(
                               ch1Spot.getXCenter(), ch1Spot.getYCenter());
-                        Point2D.Double pCh2 = np.findKDWSE(pCh1);
-                        if (pCh2 != null) {
-                           // find this point in the ch2 spot list
-                           SpotData ch2Spot = null;
-                           for (int i = 0; i < gsCh2.size() && ch2Spot == null; i++) {
-                              if (pCh2.x == gsCh2.get(i).getXCenter()
-                                    && pCh2.y == gsCh2.get(i).getYCenter()) {
-                                 ch2Spot = gsCh2.get(i);
-                              }
-                           }
-                           if (ch2Spot != null) {
-                              GsSpotPair pair = new GsSpotPair(ch1Spot, ch2Spot, pCh1, pCh2);
-                              spotPairsByFrame.get(pos).get(frame - 1).add(pair);
-                           } else {
-                              // this should never happen!
-                              System.out.println("Failed to find spot");
-                           }
+                        // gsCh2 and xyPointsCh2 are filled in the same order
+                        int ch2Index = np.findIndex(pCh1);
+                        if (ch2Index >= 0) {
+                           Point2D.Double pCh2 = (Point2D.Double) xyPointsCh2.get(ch2Index)
+                                 .clone();
+                           GsSpotPair pair = new GsSpotPair(ch1Spot, gsCh2.get(ch2Index),
+                                 pCh1, pCh2);
+                           spotPairsByFrame.get(pos).get(frame - 1).add(pair);
                         }
                      }
                   }
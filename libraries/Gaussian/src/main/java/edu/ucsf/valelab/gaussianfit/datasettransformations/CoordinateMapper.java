@@ -29,6 +29,7 @@ package edu.ucsf.valelab.gaussianfit.datasettransformations;
 
 import ags.utils.KdTree;
 import edu.ucsf.valelab.gaussianfit.spotoperations.NearestPoint2D;
+import edu.ucsf.valelab.gaussianfit.spotoperations.SpatialGridIndex;
 import edu.ucsf.valelab.gaussianfit.utils.ListUtils;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.NoninvertibleTransformException;
@@ -59,6 +60,9 @@ public class CoordinateMapper {
    private final ExponentPairs exponentPairs_;
    private final ControlPoints controlPoints_;
    private final EnhancedKDTree kdTree_;
+   private final Point2D.Double[] controlPointKeys_;
+   private SpatialGridIndex localGrid_;
+   private double localGridCellSize_;
    private final int order_;
    private final PointMap pointMap_;
    private boolean log_;
@@ -470,8 +474,15 @@ public class CoordinateMapper {
    public AffineTransform generateLocalAffineTransform(
          Point2D.Double srcTestPoint, int maxNrControlPoints, double maxDistance) {
 
-      List<Point2D.Double> nearestNeighbors
-            = kdTree_.nearestNeighbor(srcTestPoint, maxNrControlPoints, maxDistance);
+      // the grid (cell size = maxDistance) only needs to look at the 3x3 cells around the
+      // test point, the kd tree would first collect maxNrControlPoints neighbors and trim them
+      final int[] hits = getLocalGrid(maxDistance).withinDistance(
+            srcTestPoint.x, srcTestPoint.y, maxDistance);
+      final int nrNeighbors = Math.min(hits.length, maxNrControlPoints);
+      List<Point2D.Double> nearestNeighbors = new ArrayList<Point2D.Double>(nrNeighbors);
+      for (int i = 0; i < nrNeighbors; i++) {
+         nearestNeighbors.add(controlPointKeys_[hits[i]]);
+      }
       if (nearestNeighbors.size() > 10) {
          PointMap localMap = selectPoints(pointMap_, nearestNeighbors);
          return generateAffineTransformFromPointPairs(localMap);
@@ -479,6 +490,24 @@ public class CoordinateMapper {
       return null;
    }
 
+   /**
+    * Returns the grid index over the source points, building it with the given cell size when
+    * needed.  The index is kept as long as the same cell size is requested.
+    */
+   private synchronized SpatialGridIndex getLocalGrid(double cellSize) {
+      if (localGrid_ == null || localGridCellSize_ != cellSize) {
+         final double[] xs = new double[controlPointKeys_.length];
+         final double[] ys = new double[controlPointKeys_.length];
+         for (int i = 0; i < controlPointKeys_.length; i++) {
+            xs[i] = controlPointKeys_[i].x;
+            ys[i] = controlPointKeys_[i].y;
+         }
+         localGrid_ = new SpatialGridIndex(xs, ys, cellSize);
+         localGridCellSize_ = cellSize;
+      }
+      return localGrid_;
+   }
+
    // General methods 
 
 
@@ -606,6 +635,7 @@ public class CoordinateMapper {
       final ArrayList<Point2D.Double> keys = new ArrayList<Point2D.Double>();
       keys.addAll(pointMap.keySet());
       final Point2D.Double[] keyArray = keys.toArray(new Point2D.Double[]{});
+      controlPointKeys_ = keyArray;
       kdTree_ = new EnhancedKDTree(keyArray);
       controlPoints_ = createControlPoints(kdTree_, order_, pointMap_);
 
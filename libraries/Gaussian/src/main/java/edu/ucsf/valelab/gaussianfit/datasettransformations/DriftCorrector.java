@@ -32,9 +32,12 @@ package edu.ucsf.valelab.gaussianfit.datasettransformations;
 import static edu.ucsf.valelab.gaussianfit.DataCollectionForm.getInstance;
 
 import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
+import edu.ucsf.valelab.gaussianfit.algorithm.FFTCrossCorrelator;
+import edu.ucsf.valelab.gaussianfit.algorithm.FFTUtils;
 import edu.ucsf.valelab.gaussianfit.algorithm.JitterDetector;
 import edu.ucsf.valelab.gaussianfit.data.RowData;
 import edu.ucsf.valelab.gaussianfit.data.SpotData;
+import edu.ucsf.valelab.gaussianfit.utils.ReportingUtils;
 import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
 import java.awt.Point;
@@ -43,6 +46,11 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.swing.JOptionPane;
 
 /**
@@ -50,6 +58,9 @@ import javax.swing.JOptionPane;
  */
 public class DriftCorrector {
 
+   // maximum drift (in magnified pixels) between time windows that will be detected
+   private static final int MAX_SHIFT_PIXELS = 16;
+
    // storage of stage movement data
    class StageMovementData {
 
@@ -94,16 +105,6 @@ public class DriftCorrector {
             int width = mag * rowData.width_;
             int height = mag * rowData.height_;
 
-            int size = width * height;
-
-            // TODO: add 0 padding to deal with aberrant image sizes
-            if ((width != height) || ((width & (width - 1)) != 0)) {
-               JOptionPane.showMessageDialog(getInstance(),
-                     "Magnified image is not a square with a size that is a power of 2");
-               ij.IJ.showStatus(" ");
-               return;
-            }
-
             // TODO: what if we should go through nrSlices instead of nrFrames?
             boolean useSlices = false;
             int nrOfTests = rowData.nrFrames_ / framesToCombine;
@@ -133,141 +134,71 @@ public class DriftCorrector {
 
             ArrayList<StageMovementData> stagePos = new ArrayList<>();
 
-            try {
-               // make imageprocessors for all the images that we will generate
-               ImageProcessor[] ip = new ImageProcessor[nrOfTests];
-               byte[][] pixels = new byte[nrOfTests][width * height];
-
-               for (int i = 0; i < nrOfTests; i++) {
-                  ip[i] = new ByteProcessor(width, height);
-                  ip[i].setPixels(pixels[i]);
-               }
-
-               double factor = (double) mag / rowData.pixelSizeNm_;
-
-               // make 2D scattergrams of all pixelData
-               for (SpotData spot : rowData.spotList_) {
-                  int j;
-                  if (useSlices) {
-                     j = (spot.getSlice() - 1) / framesToCombine;
-                  } else {
-                     j = (spot.getFrame() - 1) / framesToCombine;
-                  }
-                  int x = (int) (factor * spot.getXCenter());
-                  int y = (int) (factor * spot.getYCenter());
-                  int index = (y * width) + x;
-                  if (index < size && index > 0) {
-                     if (pixels[j][index] != -1) {
-                        pixels[j][index] += 1;
-                     }
-                  }
+            final double factor = (double) mag / rowData.pixelSizeNm_;
 
+            // sort the spots into their time windows in a single pass
+            final List<List<SpotData>> windows = new ArrayList<List<SpotData>>(nrOfTests);
+            for (int i = 0; i < nrOfTests; i++) {
+               windows.add(new ArrayList<SpotData>());
+            }
+            for (SpotData spot : rowData.spotList_) {
+               int j;
+               if (useSlices) {
+                  j = (spot.getSlice() - 1) / framesToCombine;
+               } else {
+                  j = (spot.getFrame() - 1) / framesToCombine;
                }
-
-               JitterDetector jd = new JitterDetector(ip[0]);
-
-               Point2D.Double fp = new Point2D.Double(0.0, 0.0);
-               Point2D.Double com = new Point2D.Double(0.0, 0.0);
-
-               jd.getJitter(ip[0], fp);
-
-               for (int i = 1; i < ip.length; i++) {
-                  ij.IJ.showStatus("Executing jitter correction..." + i);
-                  ij.IJ.showProgress(i, ip.length);
-                  int spotCount = 0;
-                  for (int j = 0; j < ip[i].getPixelCount(); j++) {
-                     spotCount += ip[i].get(j);
-                  }
-
-                  jd.getJitter(ip[i], com);
-                  double x = (fp.x - com.x) / factor;
-                  double y = (fp.y - com.y) / factor;
-                  if (rowData.timePoints_ != null) {
-                     rowData.timePoints_.get(i);
-                  }
-                  stagePos.add(new StageMovementData(new Point2D.Double(x, y),
-                        new Point(i * framesToCombine, ((i + 1) * framesToCombine - 1))));
-                  System.out.println("i: " + i + " nSpots: " + spotCount + " X: " + x + " Y: " + y);
+               if (j >= 0 && j < nrOfTests) {
+                  windows.get(j).add(spot);
                }
+            }
 
-            } catch (OutOfMemoryError ex) {
-               // not enough memory to allocate all images in one go
-               // we need to cycle through all gaussian spots cycle by cycle
-
-               double factor = (double) mag / rowData.pixelSizeNm_;
-
-               ImageProcessor ipRef = new ByteProcessor(width, height);
-               byte[] pixelsRef = new byte[width * height];
-               ipRef.setPixels(pixelsRef);
-
-               // take the first image as reference
-               for (SpotData spot : rowData.spotList_) {
-                  int j;
-                  if (useSlices) {
-                     j = (spot.getSlice() - 1) / framesToCombine;
-                  } else {
-                     j = (spot.getFrame() - 1) / framesToCombine;
-                  }
-                  if (j == 0) {
-                     int x = (int) (factor * spot.getXCenter());
-                     int y = (int) (factor * spot.getYCenter());
-                     int index = (y * width) + x;
-                     if (index < size && index > 0) {
-                        if (pixelsRef[index] != -1) {
-                           pixelsRef[index] += 1;
-                        }
-                     }
+            // images are zero-padded to a power of 2, the spectrum of the first window is
+            // calculated once and used for all others
+            final int fftWidth = FFTUtils.nextPowerOf2(width);
+            final int fftHeight = FFTUtils.nextPowerOf2(height);
+            final FFTCrossCorrelator correlator = new FFTCrossCorrelator(
+                  scatterGram(windows.get(0), factor, width, height, fftWidth, fftHeight),
+                  fftWidth, fftHeight);
+
+            // calculate the displacement of all other windows in parallel
+            final int nrThreads = Math.max(1, Math.min(nrOfTests - 1,
+                  Runtime.getRuntime().availableProcessors()));
+            ExecutorService executor = Executors.newFixedThreadPool(nrThreads);
+            List<Future<Point2D.Double>> shifts = new ArrayList<Future<Point2D.Double>>();
+            for (int i = 1; i < nrOfTests; i++) {
+               final List<SpotData> window = windows.get(i);
+               shifts.add(executor.submit(new Callable<Point2D.Double>() {
+                  @Override
+                  public Point2D.Double call() {
+                     return correlator.getShift(scatterGram(window, factor, width, height,
+                           fftWidth, fftHeight), MAX_SHIFT_PIXELS);
                   }
-               }
-
-               JitterDetector jd = new JitterDetector(ipRef);
-
-               Point2D.Double fp = new Point2D.Double(0.0, 0.0);
-               jd.getJitter(ipRef, fp);
-
-               Point2D.Double com = new Point2D.Double(0.0, 0.0);
-               ImageProcessor ipTest = new ByteProcessor(width, height);
-               byte[] pixelsTest = new byte[width * height];
-               ipTest.setPixels(pixelsTest);
-
+               }));
+            }
+            try {
                for (int i = 1; i < nrOfTests; i++) {
                   ij.IJ.showStatus("Executing jitter correction..." + i);
                   ij.IJ.showProgress(i, nrOfTests);
-                  for (int p = 0; p < size; p++) {
-                     ipTest.set(p, 0);
-                  }
-
-                  for (SpotData spot : rowData.spotList_) {
-                     int j;
-                     if (useSlices) {
-                        j = (spot.getSlice() - 1) / framesToCombine;
-                     } else {
-                        j = (spot.getFrame() - 1) / framesToCombine;
-                     }
-                     if (j == i) {
-                        int x = (int) (factor * spot.getXCenter());
-                        int y = (int) (factor * spot.getYCenter());
-                        int index = (y * width) + x;
-                        if (index < size && index > 0) {
-                           if (pixelsTest[index] != -1) {
-                              pixelsTest[index] += 1;
-                           }
-                        }
-                     }
-                  }
-
-                  jd.getJitter(ipTest, com);
-                  double x = (fp.x - com.x) / factor;
-                  double y = (fp.y - com.y) / factor;
-                  double timePoint = i;
-                  if (rowData.timePoints_ != null) {
-                     rowData.timePoints_.get(i);
-                  }
+                  Point2D.Double shift = shifts.get(i - 1).get();
+                  double x = shift.x / factor;
+                  double y = shift.y / factor;
                   stagePos.add(new StageMovementData(new Point2D.Double(x, y),
                         new Point(i * framesToCombine, ((i + 1) * framesToCombine - 1))));
-                  System.out.println("X: " + x + " Y: " + y);
                }
-
+            } catch (InterruptedException ie) {
+               Thread.currentThread().interrupt();
+               ij.IJ.showStatus("Jitter correction interrupted");
+               return;
+            } catch (ExecutionException ee) {
+               if (ee.getCause() instanceof OutOfMemoryError) {
+                  ij.IJ.error("Out of Memory");
+               } else {
+                  ReportingUtils.logError(ee.getCause(), "Jitter correction failed");
+               }
+               return;
+            } finally {
+               executor.shutdownNow();
             }
 
             try {
@@ -385,6 +316,31 @@ public class DriftCorrector {
    }
 
 
+   /**
+    * Renders the spots as a 2D histogram (scattergram) into an image of fftWidth x fftHeight
+    * pixels.  Only the top-left width x height pixels can be occupied, the rest is zero padding.
+    *
+    * @param spots     spots to be rendered
+    * @param factor    conversion factor from spot coordinates to pixels
+    * @param width     width of the area in which spots are rendered
+    * @param height    height of the area in which spots are rendered
+    * @param fftWidth  width of the output image
+    * @param fftHeight height of the output image
+    * @return image stored row by row
+    */
+   private static double[] scatterGram(List<SpotData> spots, double factor, int width,
+         int height, int fftWidth, int fftHeight) {
+      double[] pixels = new double[fftWidth * fftHeight];
+      for (SpotData spot : spots) {
+         int x = (int) (factor * spot.getXCenter());
+         int y = (int) (factor * spot.getYCenter());
+         if (x >= 0 && x < width && y >= 0 && y < height) {
+            pixels[y * fftWidth + x] += 1.0;
+         }
+      }
+      return pixels;
+   }
+
    /**
     * I do not remember what the difference is with the other unjitter method...
     *
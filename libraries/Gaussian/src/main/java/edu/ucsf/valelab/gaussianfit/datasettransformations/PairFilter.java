@@ -95,6 +95,18 @@ public class PairFilter {
             try {
                List<SpotData> correctedData = new ArrayList<SpotData>();
 
+               // bucket the spots by frame once, rather than scanning all spots for every frame
+               List<List<SpotData>> spotsByFrame = new ArrayList<List<SpotData>>(
+                     rowData.nrFrames_);
+               for (int frame = 1; frame <= rowData.nrFrames_; frame++) {
+                  spotsByFrame.add(new ArrayList<SpotData>());
+               }
+               for (SpotData gs : rowData.spotList_) {
+                  if (gs.getFrame() >= 1 && gs.getFrame() <= rowData.nrFrames_) {
+                     spotsByFrame.get(gs.getFrame() - 1).add(gs);
+                  }
+               }
+
                for (int frame = 1; frame <= rowData.nrFrames_; frame++) {
                   ij.IJ.showProgress(frame, rowData.nrFrames_);
 
@@ -115,7 +127,7 @@ public class PairFilter {
                      xySpotsCh2.add(position - 1, new ArrayList<SpotData>());
                   }
 
-                  for (SpotData gs : rowData.spotList_) {
+                  for (SpotData gs : spotsByFrame.get(frame - 1)) {
                      if (gs.getFrame() == frame) {
                         if (gs.getChannel() == 1) {
                            int yOffset = (int) Math.floor(gs.getYCenter() / qSize);
@@ -184,26 +196,20 @@ public class PairFilter {
                            SpotData gs = (SpotData) it2.next();
                            Point2D.Double pCh1 = new Point2D.Double(gs.getXCenter(),
                                    gs.getYCenter());
-                           Point2D.Double pCh2 = npsByPosition.get(gs.getPosition() - 1)
-                                   .findKDWSE(pCh1);
-                           if (pCh2 != null) {
+                           // xySpotsCh2 and xyPointsCh2 are filled in the same order
+                           int ch2Index = npsByPosition.get(gs.getPosition() - 1)
+                                   .findIndex(pCh1);
+                           if (ch2Index >= 0) {
+                              Point2D.Double pCh2 = xyPointsCh2.get(gs.getPosition() - 1)
+                                      .get(ch2Index);
                               double d2 = NearestPoint2D.distance2(pCh1, pCh2);
                               double d = Math.sqrt(d2);
                               // we can possibly add the same criterium for orientation
                               if (d > distAvg - deviationMax * distStd
                                       && d < distAvg + deviationMax * distStd) {
                                  correctedData.add(gs);
-                                 // we have to find the matching spot in channel 2!
-                                 for (SpotData gsCh2 : xySpotsCh2.get(gs.getPosition() - 1)) {
-                                    if (gsCh2.getFrame() == frame) {
-                                       if (gsCh2.getChannel() == 2) {
-                                          if (gsCh2.getXCenter() == pCh2.x
-                                                  && gsCh2.getYCenter() == pCh2.y) {
-                                             correctedData.add(gsCh2);
-                                          }
-                                       }
-                                    }
-                                 }
+                                 correctedData.add(
+                                       xySpotsCh2.get(gs.getPosition() - 1).get(ch2Index));
                               }
                            }
                         }
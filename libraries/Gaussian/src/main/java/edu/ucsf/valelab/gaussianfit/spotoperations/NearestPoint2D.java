@@ -31,16 +31,14 @@
 
 package edu.ucsf.valelab.gaussianfit.spotoperations;
 
-import ags.utils.KdTree;
-import ags.utils.KdTree.Entry;
-import ags.utils.KdTree.SqrEuclid;
 import java.awt.geom.Point2D;
 import java.util.List;
 
 /**
  * Class that finds the closest by point in a point collection given a single point.
  *
- * <p>The method findKDWSE uses a kd tree approach based written by Rednaxela
+ * <p>The method findKDWSE uses a uniform grid with cells the size of the maximum distance
+ * (see {@link SpatialGridIndex}).
  *
  * @author nico
  */
@@ -48,8 +46,7 @@ public class NearestPoint2D {
 
    private final List<Point2D.Double> theList_;
    private final double maxDistance_;
-   private final double maxDistanceSquared_;
-   private KdTree<Integer> we_;
+   private SpatialGridIndex grid_;
 
    //private final ArrayList<Point2D.Double> sortedByX_;
    //private final ArrayList<Point2D.Double> sortedByY_;
@@ -57,41 +54,46 @@ public class NearestPoint2D {
    public NearestPoint2D(List<Point2D.Double> unsorted, double maxDistance) {
       theList_ = unsorted;
       maxDistance_ = maxDistance;
-      maxDistanceSquared_ = maxDistance * maxDistance;
    }
 
    /**
-    * method to find the nearest point in the collection of Points Uses Squared Euclidian distance
-    * method from Rednaxela
+    * method to find the nearest point in the collection of Points.  The spatial index is built
+    * on first use and reused for all subsequent queries.
     *
     * @param input - point for which we want to find the nearest neighbor
     * @return point found or null when it was farther away than the cutoff set in the constructor
     */
    public Point2D.Double findKDWSE(Point2D.Double input) {
-      // construct a new KD tree if needed
-      if (we_ == null) {
-         we_ = new SqrEuclid<Integer>(2, 50 * theList_.size());
-         for (int i = 0; i < theList_.size(); i++) {
-            Point2D.Double p = theList_.get(i);
-            double[] point = {p.x, p.y};
-            we_.addPoint(point, i);
-         }
+      int index = getIndex().nearest(input.x, input.y, maxDistance_);
+      if (index < 0) {
+         return null;
       }
-      double[] testPoint = {input.x, input.y};
-      List<Entry<Integer>> result = we_.nearestNeighbor(testPoint, 1, false);
-
-      if (result.size() > 0) {
-         Integer index = result.get(0).value;
-         double distance = result.get(0).distance;
+      return (Point2D.Double) theList_.get(index).clone();
+   }
 
-         Point2D.Double ret = (Point2D.Double) theList_.get(index).clone();
+   /**
+    * Variant of findKDWSE that returns the position of the nearest point in the input list,
+    * so that callers keeping data in a parallel list do not need to search for it.
+    *
+    * @param input - point for which we want to find the nearest neighbor
+    * @return index of the point found or -1 when it was farther away than the cutoff
+    */
+   public int findIndex(Point2D.Double input) {
+      return getIndex().nearest(input.x, input.y, maxDistance_);
+   }
 
-         if (distance < maxDistanceSquared_) {
-            return ret;
+   private SpatialGridIndex getIndex() {
+      if (grid_ == null) {
+         final double[] xs = new double[theList_.size()];
+         final double[] ys = new double[theList_.size()];
+         for (int i = 0; i < xs.length; i++) {
+            Point2D.Double p = theList_.get(i);
+            xs[i] = p.x;
+            ys[i] = p.y;
          }
+         grid_ = new SpatialGridIndex(xs, ys, maxDistance_);
       }
-
-      return null;
+      return grid_;
    }
 
    /**
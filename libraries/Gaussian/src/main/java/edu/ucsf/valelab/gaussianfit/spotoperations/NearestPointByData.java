@@ -31,7 +31,6 @@
 
 package edu.ucsf.valelab.gaussianfit.spotoperations;
 
-import ags.utils.KdTree;
 import edu.ucsf.valelab.gaussianfit.data.PointData;
 import java.awt.geom.Point2D;
 import java.util.List;
@@ -39,7 +38,8 @@ import java.util.List;
 /**
  * Class that finds the closest by point in a point collection given a single point.
  *
- * <p>The method findKDWSE uses a kd tree approach based written by Rednaxela
+ * <p>The method findKDWSE uses a uniform grid with cells the size of the maximum distance
+ * (see {@link SpatialGridIndex}).
  *
  * @author nico
  */
@@ -47,51 +47,43 @@ public class NearestPointByData {
 
    private final List<? extends PointData> theList_;
    private final double maxDistance_;
-   private final double maxDistanceSquared_;
-   private KdTree<Integer> we_;
+   private SpatialGridIndex grid_;
 
    public NearestPointByData(List<? extends PointData> unsorted, double maxDistance) {
       theList_ = unsorted;
       maxDistance_ = maxDistance;
-      maxDistanceSquared_ = maxDistance * maxDistance;
    }
 
    /**
-    * method to find the nearest point in the collection of Points Uses Squared Euclidian distance
-    * method from Rednaxela TODO: evaluate if the copy of the spot is actually needed.
+    * method to find the nearest point in the collection of Points.  The spatial index is built
+    * on first use and reused for all subsequent queries.
     *
     * @param input - point for which we want to find the nearest neighbor
-    * @return copy of the point found or null when it was farther away than the cutoff set in the
-    *         constructor
+    * @return the point found (not a copy) or null when it was farther away than the cutoff set
+    *         in the constructor
     */
    public PointData findKDWSE(Point2D.Double input) {
-      // construct a new KD tree if needed
-      if (we_ == null) {
-         we_ = new KdTree.SqrEuclid<Integer>(2, 50 * theList_.size());
-         for (int i = 0; i < theList_.size(); i++) {
-            Point2D.Double p = theList_.get(i).getPoint();
-            double[] point = {p.x, p.y};
-            we_.addPoint(point, i);
-         }
+      int index = getIndex().nearest(input.x, input.y, maxDistance_);
+      if (index < 0) {
+         return null;
       }
-      double[] testPoint = {input.x, input.y};
-      List<KdTree.Entry<Integer>> result = we_.nearestNeighbor(testPoint, 1, false);
-
-      if (result != null && !result.isEmpty()) {
-         Integer index = result.get(0).value;
-         double distance = result.get(0).distance;
-
-         PointData ret = theList_.get(index);
+      return theList_.get(index);
+   }
 
-         if (distance < maxDistanceSquared_) {
-            return ret;
+   private SpatialGridIndex getIndex() {
+      if (grid_ == null) {
+         final double[] xs = new double[theList_.size()];
+         final double[] ys = new double[theList_.size()];
+         for (int i = 0; i < xs.length; i++) {
+            Point2D.Double p = theList_.get(i).getPoint();
+            xs[i] = p.x;
+            ys[i] = p.y;
          }
+         grid_ = new SpatialGridIndex(xs, ys, maxDistance_);
       }
-
-      return null;
+      return grid_;
    }
 
-
    /**
     * Brute force method to find the nearest point in the collection of Points
     *
@@ -0,0 +1,269 @@
+/*
+ * Uniform grid index for fast fixed-radius nearest neighbor searches in 2D
+ * <p>
+ * <p>
+ * Copyright (c) 2012-2017, Regents of the University of California All rights reserved.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * <p>
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer. 2. Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * <p>
+ * The views and conclusions contained in the software and documentation are those of the authors
+ * and should not be interpreted as representing official policies, either expressed or implied, of
+ * the FreeBSD Project.
+ */
+
+package edu.ucsf.valelab.gaussianfit.spotoperations;
+
+import java.util.Arrays;
+
+/**
+ * Uniform grid over primitive coordinate arrays.  Points are bucketed into square cells
+ * (normally the size of the maximum search distance), so that a search for the nearest point
+ * within that distance only needs to look at the 3x3 block of cells around the query point.
+ *
+ * <p>The index is immutable once built and can therefore be queried from several threads at the
+ * same time.  Cell contents are stored in a compressed (counting sort) layout, so building
+ * the index allocates only a handful of arrays, independent of the number of cells that are
+ * occupied.
+ */
+public final class SpatialGridIndex {
+
+   /**
+    * Upper limit of the number of cells per point.  Sparse data sets spread out over a large
+    * area with a small cell size would otherwise result in huge, mostly empty, arrays.
+    */
+   private static final int MAX_CELLS_PER_POINT = 4;
+
+   private final double[] xs_;
+   private final double[] ys_;
+   private final int size_;
+   private final double cellSize_;
+   private final double minX_;
+   private final double minY_;
+   private final int nrCellsX_;
+   private final int nrCellsY_;
+   // cellStart_[c] .. cellStart_[c + 1] are the positions in cellPoints_ of points in cell c
+   private final int[] cellStart_;
+   private final int[] cellPoints_;
+
+   /**
+    * Builds the index.  The coordinate arrays are not copied and should not be changed while
+    * the index is in use.
+    *
+    * @param xs       x coordinates of the points
+    * @param ys       y coordinates of the points
+    * @param size     number of points (only the first size entries of xs and ys are used)
+    * @param cellSize desired size of a grid cell, normally the maximum search distance
+    */
+   public SpatialGridIndex(double[] xs, double[] ys, int size, double cellSize) {
+      if (xs.length < size || ys.length < size) {
+         throw new IllegalArgumentException("Coordinate arrays are shorter than size");
+      }
+      xs_ = xs;
+      ys_ = ys;
+      size_ = size;
+
+      double minX = Double.MAX_VALUE;
+      double minY = Double.MAX_VALUE;
+      double maxX = -Double.MAX_VALUE;
+      double maxY = -Double.MAX_VALUE;
+      for (int i = 0; i < size; i++) {
+         minX = Math.min(minX, xs[i]);
+         maxX = Math.max(maxX, xs[i]);
+         minY = Math.min(minY, ys[i]);
+         maxY = Math.max(maxY, ys[i]);
+      }
+      if (size == 0) {
+         minX = maxX = minY = maxY = 0.0;
+      }
+      minX_ = minX;
+      minY_ = minY;
+
+      double cell = cellSize > 0.0 && !Double.isInfinite(cellSize) ? cellSize : 1.0;
+      final double width = maxX - minX;
+      final double height = maxY - minY;
+      final long maxCells = Math.max(1L, (long) MAX_CELLS_PER_POINT * size);
+      while (((long) (width / cell) + 1) * ((long) (height / cell) + 1) > maxCells) {
+         cell *= 2.0;
+      }
+      cellSize_ = cell;
+      nrCellsX_ = (int) (width / cell) + 1;
+      nrCellsY_ = (int) (height / cell) + 1;
+
+      final int nrCells = nrCellsX_ * nrCellsY_;
+      final int[] cellOfPoint = new int[size];
+      cellStart_ = new int[nrCells + 1];
+      for (int i = 0; i < size; i++) {
+         int c = cellIndex(cellX(xs[i]), cellY(ys[i]));
+         cellOfPoint[i] = c;
+         cellStart_[c + 1]++;
+      }
+      for (int c = 0; c < nrCells; c++) {
+         cellStart_[c + 1] += cellStart_[c];
+      }
+      cellPoints_ = new int[size];
+      final int[] fill = Arrays.copyOf(cellStart_, nrCells);
+      for (int i = 0; i < size; i++) {
+         cellPoints_[fill[cellOfPoint[i]]++] = i;
+      }
+   }
+
+   public SpatialGridIndex(double[] xs, double[] ys, double cellSize) {
+      this(xs, ys, Math.min(xs.length, ys.length), cellSize);
+   }
+
+   public int size() {
+      return size_;
+   }
+
+   public double getX(int index) {
+      return xs_[index];
+   }
+
+   public double getY(int index) {
+      return ys_[index];
+   }
+
+   /**
+    * Cell size actually used, which can be larger than requested for sparse data.
+    */
+   double getCellSize() {
+      return cellSize_;
+   }
+
+   /**
+    * Finds the point closest to (x, y) that is less than maxDistance away.  When several points
+    * are at exactly the same distance, the one with the lowest index is returned, so that
+    * results do not depend on the layout of the grid.
+    *
+    * @param x           x coordinate of the query point
+    * @param y           y coordinate of the query point
+    * @param maxDistance only points closer than this distance are considered
+    * @return index of the nearest point, or -1 when no point is close enough
+    */
+   public int nearest(double x, double y, double maxDistance) {
+      if (size_ == 0) {
+         return -1;
+      }
+      final double maxDistanceSquared = maxDistance * maxDistance;
+      final int xStart = firstCell(x - maxDistance, minX_);
+      final int xEnd = lastCell(x + maxDistance, minX_, nrCellsX_);
+      final int yStart = firstCell(y - maxDistance, minY_);
+      final int yEnd = lastCell(y + maxDistance, minY_, nrCellsY_);
+
+      int best = -1;
+      double bestDistanceSquared = maxDistanceSquared;
+      for (int gy = yStart; gy <= yEnd; gy++) {
+         for (int gx = xStart; gx <= xEnd; gx++) {
+            final int c = cellIndex(gx, gy);
+            for (int k = cellStart_[c]; k < cellStart_[c + 1]; k++) {
+               final int i = cellPoints_[k];
+               final double dx = xs_[i] - x;
+               final double dy = ys_[i] - y;
+               final double d2 = dx * dx + dy * dy;
+               if (d2 < bestDistanceSquared || (d2 == bestDistanceSquared && best > i)) {
+                  bestDistanceSquared = d2;
+                  best = i;
+               }
+            }
+         }
+      }
+      return best;
+   }
+
+   /**
+    * Finds all points that are less than maxDistance away from (x, y).
+    *
+    * @param x           x coordinate of the query point
+    * @param y           y coordinate of the query point
+    * @param maxDistance only points closer than this distance are returned
+    * @return indices of the points found, in ascending order of distance
+    */
+   public int[] withinDistance(double x, double y, double maxDistance) {
+      if (size_ == 0) {
+         return new int[0];
+      }
+      final double maxDistanceSquared = maxDistance * maxDistance;
+      final int xStart = firstCell(x - maxDistance, minX_);
+      final int xEnd = lastCell(x + maxDistance, minX_, nrCellsX_);
+      final int yStart = firstCell(y - maxDistance, minY_);
+      final int yEnd = lastCell(y + maxDistance, minY_, nrCellsY_);
+
+      int[] found = new int[16];
+      double[] distances = new double[16];
+      int nrFound = 0;
+      for (int gy = yStart; gy <= yEnd; gy++) {
+         for (int gx = xStart; gx <= xEnd; gx++) {
+            final int c = cellIndex(gx, gy);
+            for (int k = cellStart_[c]; k < cellStart_[c + 1]; k++) {
+               final int i = cellPoints_[k];
+               final double dx = xs_[i] - x;
+               final double dy = ys_[i] - y;
+               final double d2 = dx * dx + dy * dy;
+               if (d2 < maxDistanceSquared) {
+                  if (nrFound == found.length) {
+                     found = Arrays.copyOf(found, 2 * nrFound);
+                     distances = Arrays.copyOf(distances, 2 * nrFound);
+                  }
+                  // insertion sort, the number of hits is normally small
+                  int pos = nrFound;
+                  while (pos > 0 && (distances[pos - 1] > d2
+                        || (distances[pos - 1] == d2 && found[pos - 1] > i))) {
+                     distances[pos] = distances[pos - 1];
+                     found[pos] = found[pos - 1];
+                     pos--;
+                  }
+                  distances[pos] = d2;
+                  found[pos] = i;
+                  nrFound++;
+               }
+            }
+         }
+      }
+      return Arrays.copyOf(found, nrFound);
+   }
+
+   /**
+    * First cell along an axis that can hold points at coordinate start or higher.  Works in
+    * doubles so that far away or infinite bounds are clamped instead of overflowing.
+    */
+   private int firstCell(double start, double min) {
+      final double c = Math.floor((start - min) / cellSize_);
+      return c > 0.0 ? (int) c : 0;
+   }
+
+   /**
+    * Last cell along an axis that can hold points at coordinate end or lower.
+    */
+   private int lastCell(double end, double min, int nrCells) {
+      final double c = Math.floor((end - min) / cellSize_);
+      return c < nrCells - 1 ? (int) c : nrCells - 1;
+   }
+
+   private int cellX(double x) {
+      return Math.min(nrCellsX_ - 1, Math.max(0, (int) ((x - minX_) / cellSize_)));
+   }
+
+   private int cellY(double y) {
+      return Math.min(nrCellsY_ - 1, Math.max(0, (int) ((y - minY_) / cellSize_)));
+   }
+
+   private int cellIndex(int cellX, int cellY) {
+      return cellY * nrCellsX_ + cellX;
+   }
+
+}
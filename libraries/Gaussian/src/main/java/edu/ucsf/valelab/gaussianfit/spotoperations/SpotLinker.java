@@ -31,7 +31,6 @@ package edu.ucsf.valelab.gaussianfit.spotoperations;
 import static edu.ucsf.valelab.gaussianfit.DataCollectionForm.getInstance;
 
 import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
-import edu.ucsf.valelab.gaussianfit.data.GsSpotPair;
 import edu.ucsf.valelab.gaussianfit.data.RowData;
 import edu.ucsf.valelab.gaussianfit.data.SpotData;
 import edu.ucsf.valelab.gaussianfit.data.TrackData;
@@ -40,8 +39,15 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.swing.JOptionPane;
 
 /**
@@ -66,81 +72,36 @@ public class SpotLinker {
     * @param rowData
     * @param maxDistance
     */
-   public static void link(RowData rowData, double maxDistance) {
+   public static void link(final RowData rowData, final double maxDistance) {
       try {
          ij.IJ.showStatus("Linking spotData...");
-         boolean useFrames = rowData.nrFrames_ > rowData.nrSlices_;
-         int nr = rowData.nrSlices_;
-         if (useFrames) {
-            nr = rowData.nrFrames_;
-         }
+         final boolean useFrames = rowData.nrFrames_ > rowData.nrSlices_;
 
-         // linked spots go here:
-         List<SpotData> destList = new ArrayList<SpotData>();
-         // maintain active tracks here
-         List<List<SpotData>> tracks =
-               new ArrayList<List<SpotData>>();
+         // every position/channel/slice combination is linked independently
+         List<Callable<List<SpotData>>> jobs = new ArrayList<Callable<List<SpotData>>>();
          for (int pos = 1; pos <= rowData.nrPositions_; pos++) {
             for (int ch = 1; ch <= rowData.nrChannels_; ch++) {
                for (int s = 1; s <= rowData.nrSlices_; s++) {
-                  for (int f = 1; f <= rowData.nrFrames_; f++) {
-                     List<SpotData> spots = rowData.get(f, s, ch, pos);
-                     if (spots != null) {
-                        // keep track of spots in this frame added to tracks 
-                        List<SpotData> markedSpots = new ArrayList<SpotData>();
-                        // go through all tracks to see if they can be extended
-                        if (tracks.size() > 0) {
-                           ArrayList<GsSpotPair> gsSpots = new ArrayList<GsSpotPair>();
-                           for (SpotData spot : spots) {
-                              gsSpots.add(new GsSpotPair(spot, null,
-                                    new Point2D.Double(spot.getXCenter(), spot.getYCenter()),
-                                    new Point2D.Double(0.0, 0.0)));
-                           }
-                           NearestPointByData nsp = new NearestPointByData(gsSpots, maxDistance);
-                           List<List<SpotData>> removedTracks =
-                                 new ArrayList<List<SpotData>>();
-                           for (List<SpotData> track : tracks) {
-                              SpotData tSpot = track.get(track.size() - 1);
-                              // TODO: do we really need a copy here?
-                              GsSpotPair newSpot = ((GsSpotPair) nsp.findKDWSE(new Point2D.Double(
-                                    tSpot.getXCenter(), tSpot.getYCenter()))).copy();
-                              if (newSpot == null) {
-                                 // track could not be extended, finalize it
-                                 linkSpots(track, destList, useFrames);
-                                 // and remove from the list of tracks
-                                 // to avoid a concurrent modification exception
-                                 // the removal needs to be a two step process
-                                 removedTracks.add(track);
-                              } else {
-                                 track.add(newSpot.getFirstSpot());
-                                 markedSpots.add(newSpot.getFirstSpot());
-                              }
-                           }
-                           // second part of removing tracks
-                           for (List<SpotData> track : removedTracks) {
-                              tracks.remove(track);
-                           }
-                        }
-                        // go through spots and start a new track with any spot 
-                        // that was not part of a track
-                        for (SpotData spot : spots) {
-                           if (!markedSpots.contains(spot)) {
-                              List<SpotData> track = new ArrayList<SpotData>();
-                              track.add(spot);
-                              tracks.add(track);
-                           }
-                        }
+                  final int position = pos;
+                  final int channel = ch;
+                  final int slice = s;
+                  jobs.add(new Callable<List<SpotData>>() {
+                     @Override
+                     public List<SpotData> call() {
+                        return linkSeries(rowData, position, channel, slice, maxDistance,
+                              useFrames);
                      }
-                  }
-                  // add tracks that made it to the end to destination list
-                  for (List<SpotData> track : tracks) {
-                     linkSpots(track, destList, useFrames);
-                  }
-                  tracks.clear();
+                  });
                }
             }
          }
 
+         // linked spots go here, in the same order as they would be found sequentially:
+         List<SpotData> destList = new ArrayList<SpotData>();
+         for (List<SpotData> linked : runInParallel(jobs)) {
+            destList.addAll(linked);
+         }
+
          // Add destList to rowData
          RowData.Builder builder = rowData.copy();
          builder.setName(rowData.getName() + " Linked")
@@ -153,6 +114,94 @@ public class SpotLinker {
       }
    }
 
+   /**
+    * Links spots through all frames of a single position, channel and slice.
+    *
+    * @return list with one (averaged) spot for every track that was found
+    */
+   private static List<SpotData> linkSeries(RowData rowData, int pos, int ch, int s,
+         double maxDistance, boolean useFrames) {
+      List<SpotData> destList = new ArrayList<SpotData>();
+      // maintain active tracks here
+      List<List<SpotData>> tracks = new ArrayList<List<SpotData>>();
+      for (int f = 1; f <= rowData.nrFrames_; f++) {
+         List<SpotData> spots = rowData.get(f, s, ch, pos);
+         if (spots != null) {
+            // keep track of spots in this frame added to tracks
+            Set<SpotData> markedSpots = Collections.newSetFromMap(
+                  new IdentityHashMap<SpotData, Boolean>());
+            // go through all tracks to see if they can be extended
+            if (tracks.size() > 0) {
+               NearestPointByData nsp = new NearestPointByData(spots, maxDistance);
+               List<List<SpotData>> keptTracks = new ArrayList<List<SpotData>>(tracks.size());
+               for (List<SpotData> track : tracks) {
+                  SpotData tSpot = track.get(track.size() - 1);
+                  SpotData newSpot = (SpotData) nsp.findKDWSE(new Point2D.Double(
+                        tSpot.getXCenter(), tSpot.getYCenter()));
+                  if (newSpot == null) {
+                     // track could not be extended, finalize it
+                     linkSpots(track, destList, useFrames);
+                  } else {
+                     track.add(newSpot);
+                     markedSpots.add(newSpot);
+                     keptTracks.add(track);
+                  }
+               }
+               tracks = keptTracks;
+            }
+            // go through spots and start a new track with any spot
+            // that was not part of a track
+            for (SpotData spot : spots) {
+               if (!markedSpots.contains(spot)) {
+                  List<SpotData> track = new ArrayList<SpotData>();
+                  track.add(spot);
+                  tracks.add(track);
+               }
+            }
+         }
+      }
+      // add tracks that made it to the end to destination list
+      for (List<SpotData> track : tracks) {
+         linkSpots(track, destList, useFrames);
+      }
+      return destList;
+   }
+
+   /**
+    * Runs the given jobs on a thread pool sized to the number of processors, and returns their
+    * results in the order of the input list.
+    */
+   private static <T> List<T> runInParallel(List<Callable<T>> jobs) {
+      List<T> results = new ArrayList<T>(jobs.size());
+      if (jobs.size() == 1) {
+         try {
+            results.add(jobs.get(0).call());
+            return results;
+         } catch (Exception ex) {
+            throw new RuntimeException(ex);
+         }
+      }
+      final int nrThreads = Math.max(1, Math.min(jobs.size(),
+            Runtime.getRuntime().availableProcessors()));
+      ExecutorService executor = Executors.newFixedThreadPool(nrThreads);
+      try {
+         for (Future<T> future : executor.invokeAll(jobs)) {
+            results.add(future.get());
+         }
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException(ie);
+      } catch (ExecutionException ee) {
+         if (ee.getCause() instanceof OutOfMemoryError) {
+            throw (OutOfMemoryError) ee.getCause();
+         }
+         throw new RuntimeException(ee.getCause());
+      } finally {
+         executor.shutdownNow();
+      }
+      return results;
+   }
+
    /**
     * Given a list of linked spots, create a single spot entry that will be added to the destination
     * list
@@ -261,76 +310,41 @@ public class SpotLinker {
       try {
          ij.IJ.showStatus("Extracting tracks...");
 
-         // maintain active tracks here
+         // every position/channel/slice combination is tracked independently
          List<Integer> trackIndex;
-         Map<List<Integer>, List<TrackData>> trackMap = new HashMap<>();
+         List<List<Integer>> seriesIndices = new ArrayList<List<Integer>>();
+         List<Callable<List<List<TrackData>>>> jobs =
+               new ArrayList<Callable<List<List<TrackData>>>>();
          for (int pos = 1; pos <= rowData.nrPositions_; pos++) {
             for (int ch = 1; ch <= rowData.nrChannels_; ch++) {
                for (int s = 1; s <= rowData.nrSlices_; s++) {
-                  trackIndex = Collections.unmodifiableList(Arrays.asList(pos, ch, s));
-                  List<TrackData> tracks =
-                        new ArrayList<TrackData>();
-                  for (int f = 1; f <= rowData.nrFrames_; f++) {
-                     List<SpotData> spots = rowData.get(f, s, ch, pos);
-                     if (spots != null) {
-                        // keep track of spots in this frame added to tracks 
-                        List<SpotData> markedSpots = new ArrayList<SpotData>();
-                        // go through all tracks to see if they can be extended
-                        if (tracks.size() > 0) {
-                           NearestPointByData nsp = new NearestPointByData(spots, maxDistance);
-                           List<TrackData> removedTracks =
-                                 new ArrayList<TrackData>();
-                           for (TrackData track : tracks) {
-                              SpotData tSpot = track.get(track.size() - 1);
-                              // TODO: do we really need a copy here?
-                              SpotData newSpot = (SpotData) nsp.findKDWSE(new Point2D.Double(
-                                    tSpot.getXCenter(), tSpot.getYCenter()));
-                              if (newSpot == null || markedSpots.contains(newSpot)) {
-                                 track.addMissing();
-                                 if (track.missingMoreThan(nrMissing)) {
-                                    // track could not be extended, finalize it
-                                    // Write out the track:
-                                    if (track.size() > minNr
-                                            && track.get(0).distance(track.get(track.size() - 1))
-                                                > minTotalDistance) {
-                                       writeTrack(rowData, track.getList(), trackNr);
-                                       trackNr++;
-                                       // and remove from the list of tracks
-                                       // to avoid a concurrent modification exception
-                                       // the removal needs to be a two step process
-                                       removedTracks.add(track);
-                                    }
-                                 }
-                              } else {
-                                 track.resetMissing();
-                                 track.add(newSpot);
-                                 markedSpots.add(newSpot);
-                              }
-                           }
-                           // second part of removing tracks
-                           for (TrackData track : removedTracks) {
-                              tracks.remove(track);
-                           }
-                        }
-                        // go through spots and start a new track with any spot 
-                        // that was not part of a previous track
-                        for (SpotData spot : spots) {
-                           if (!markedSpots.contains(spot)) {
-                              TrackData track = new TrackData();
-                              track.add(spot);
-                              tracks.add(track);
-                           }
-                        }
+                  seriesIndices.add(Collections.unmodifiableList(Arrays.asList(pos, ch, s)));
+                  final int position = pos;
+                  final int channel = ch;
+                  final int slice = s;
+                  jobs.add(new Callable<List<List<TrackData>>>() {
+                     @Override
+                     public List<List<TrackData>> call() {
+                        return trackSeries(rowData, position, channel, slice, minNr,
+                              nrMissing, maxDistance, minTotalDistance);
                      }
-                  }
-
-                  // add tracks that made it to the end to destination list 
-                  trackMap.put(trackIndex, tracks);
-
+                  });
                }
             }
          }
 
+         // write out finished tracks in the order in which a sequential pass would find them,
+         // and keep the tracks that made it to the end
+         Map<List<Integer>, List<TrackData>> trackMap = new HashMap<>();
+         List<List<List<TrackData>>> results = runInParallel(jobs);
+         for (int i = 0; i < results.size(); i++) {
+            for (TrackData track : results.get(i).get(0)) {
+               writeTrack(rowData, track.getList(), trackNr);
+               trackNr++;
+            }
+            trackMap.put(seriesIndices.get(i), results.get(i).get(1));
+         }
+
          // take average position of track in first channel
          // if average position of closest track in another channel is within
          // maxPairDistance, combine the tracks 
@@ -398,6 +412,66 @@ public class SpotLinker {
       return trackNr;
    }
 
+   /**
+    * Finds tracks through all frames of a single position, channel and slice.
+    *
+    * @return list with two entries: tracks that were finished (and should be written out) and
+    *         tracks that were still active in the last frame
+    */
+   private static List<List<TrackData>> trackSeries(RowData rowData, int pos, int ch, int s,
+         int minNr, int nrMissing, double maxDistance, double minTotalDistance) {
+      List<TrackData> finishedTracks = new ArrayList<TrackData>();
+      List<TrackData> tracks = new ArrayList<TrackData>();
+      for (int f = 1; f <= rowData.nrFrames_; f++) {
+         List<SpotData> spots = rowData.get(f, s, ch, pos);
+         if (spots != null) {
+            // keep track of spots in this frame added to tracks
+            Set<SpotData> markedSpots = Collections.newSetFromMap(
+                  new IdentityHashMap<SpotData, Boolean>());
+            // go through all tracks to see if they can be extended
+            if (tracks.size() > 0) {
+               NearestPointByData nsp = new NearestPointByData(spots, maxDistance);
+               List<TrackData> keptTracks = new ArrayList<TrackData>(tracks.size());
+               for (TrackData track : tracks) {
+                  SpotData tSpot = track.get(track.size() - 1);
+                  SpotData newSpot = (SpotData) nsp.findKDWSE(new Point2D.Double(
+                        tSpot.getXCenter(), tSpot.getYCenter()));
+                  if (newSpot == null || markedSpots.contains(newSpot)) {
+                     track.addMissing();
+                     if (track.missingMoreThan(nrMissing)
+                           && track.size() > minNr
+                           && track.get(0).distance(track.get(track.size() - 1))
+                           > minTotalDistance) {
+                        // track could not be extended, finalize it
+                        finishedTracks.add(track);
+                        continue;
+                     }
+                  } else {
+                     track.resetMissing();
+                     track.add(newSpot);
+                     markedSpots.add(newSpot);
+                  }
+                  keptTracks.add(track);
+               }
+               tracks = keptTracks;
+            }
+            // go through spots and start a new track with any spot
+            // that was not part of a previous track
+            for (SpotData spot : spots) {
+               if (!markedSpots.contains(spot)) {
+                  TrackData track = new TrackData();
+                  track.add(spot);
+                  tracks.add(track);
+               }
+            }
+         }
+      }
+      List<List<TrackData>> result = new ArrayList<List<TrackData>>(2);
+      result.add(finishedTracks);
+      result.add(tracks);
+      return result;
+   }
+
    private static void writeTrack(RowData rowData, List<SpotData> track, int trackNr) {
       RowData.Builder builder = rowData.copy();
       builder.setName(rowData.getName() + " Track " + trackNr)
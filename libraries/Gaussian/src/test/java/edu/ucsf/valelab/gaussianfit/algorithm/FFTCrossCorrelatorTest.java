@@ -0,0 +1,56 @@
+package edu.ucsf.valelab.gaussianfit.algorithm;
+
+import java.awt.geom.Point2D;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class FFTCrossCorrelatorTest {
+
+   private static final double[][] SPOTS = {
+         {20.0, 18.0, 1000.0}, {40.5, 25.2, 700.0}, {31.3, 44.8, 1200.0}, {15.7, 50.1, 500.0},
+         {47.2, 12.6, 900.0}};
+
+   /*
+    * Image of Gaussian spots on a background, with all spots moved by (dx, dy).
+    */
+   static double[] spots(int width, int height, double dx, double dy) {
+      final double sigma = 2.0;
+      double[] image = new double[width * height];
+      for (int y = 0; y < height; y++) {
+         for (int x = 0; x < width; x++) {
+            double value = 100.0;
+            for (double[] spot : SPOTS) {
+               final double ex = x - spot[0] - dx;
+               final double ey = y - spot[1] - dy;
+               value += spot[2] * Math.exp(-(ex * ex + ey * ey) / (2 * sigma * sigma));
+            }
+            image[y * width + x] = value;
+         }
+      }
+      return image;
+   }
+
+   @Test
+   public void findsSubPixelShift() {
+      FFTCrossCorrelator correlator = new FFTCrossCorrelator(spots(64, 64, 0.0, 0.0), 64, 64);
+      final double[][] shifts = {{0.0, 0.0}, {1.3, -2.6}, {-4.5, 3.25}, {0.4, 0.8}, {-7.8, -6.1}};
+      for (double[] shift : shifts) {
+         Point2D.Double found = correlator.getShift(spots(64, 64, shift[0], shift[1]), 16);
+         assertEquals(shift[0], found.x, 0.1);
+         assertEquals(shift[1], found.y, 0.1);
+      }
+   }
+
+   @Test
+   public void ignoresShiftsBeyondMaximum() {
+      FFTCrossCorrelator correlator = new FFTCrossCorrelator(spots(64, 64, 0.0, 0.0), 64, 64);
+      Point2D.Double found = correlator.getShift(spots(64, 64, 10.0, 0.0), 4);
+      assertTrue(Math.abs(found.x) <= 5.0);
+      assertTrue(Math.abs(found.y) <= 5.0);
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void rejectsSizesThatAreNoPowerOf2() {
+      new FFTCrossCorrelator(new double[48 * 64], 48, 64);
+   }
+}
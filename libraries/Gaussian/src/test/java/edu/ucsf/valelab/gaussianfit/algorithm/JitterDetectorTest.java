@@ -0,0 +1,38 @@
+package edu.ucsf.valelab.gaussianfit.algorithm;
+
+import ij.process.FloatProcessor;
+import java.awt.geom.Point2D;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class JitterDetectorTest {
+
+   private static FloatProcessor image(int width, int height, double dx, double dy) {
+      double[] pixels = FFTCrossCorrelatorTest.spots(width, height, dx, dy);
+      float[] floats = new float[pixels.length];
+      for (int i = 0; i < pixels.length; i++) {
+         floats[i] = (float) pixels[i];
+      }
+      return new FloatProcessor(width, height, floats);
+   }
+
+   @Test
+   public void displacementIsDifferenceOfPeakPositions() {
+      // not a power of 2, so that the images are padded
+      final int width = 60;
+      final int height = 58;
+      JitterDetector detector = new JitterDetector(image(width, height, 0.0, 0.0));
+      Point2D.Double reference = new Point2D.Double();
+      detector.getJitter(image(width, height, 0.0, 0.0), reference);
+      assertEquals(32.0, reference.x, 1e-6);
+      assertEquals(32.0, reference.y, 1e-6);
+
+      final double[][] shifts = {{1.3, -2.6}, {-3.7, 0.45}, {2.8, 1.6}};
+      for (double[] shift : shifts) {
+         Point2D.Double com = new Point2D.Double();
+         detector.getJitter(image(width, height, shift[0], shift[1]), com);
+         assertEquals(shift[0], reference.x - com.x, 0.1);
+         assertEquals(shift[1], reference.y - com.y, 0.1);
+      }
+   }
+}
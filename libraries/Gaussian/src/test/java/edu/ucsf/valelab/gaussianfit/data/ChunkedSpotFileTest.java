@@ -0,0 +1,166 @@
+package edu.ucsf.valelab.gaussianfit.data;
+
+import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
+import java.awt.geom.Rectangle2D;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ChunkedSpotFileTest {
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   private static final int NR_SPOTS = 25;
+   private static final int CHUNK_SIZE = 10;
+
+   /*
+    * Spot with a distinct value in every field.  All spots have key "a",
+    * even spots have key "b", and every third spot has key "nan", set to NaN.
+    */
+   private static SpotData spot(int i) {
+      SpotData spot = new SpotData(null, i % 2, i % 3, i, i % 4, i + 100, 2 * i, 3 * i);
+      spot.setData(1000.0 + i, 10.0 + i, 50.0 * i, 70.0 * i, 0.0, 200.0 + i,
+            1.0 + i / 100.0, 0.5 + i / 100.0, 5.0 + i);
+      spot.setZCenter(-20.0 * i);
+      spot.setOriginalPosition(1.5 * i, 2.5 * i, 3.5 * i);
+      spot.nrLinks_ = i + 1;
+      spot.originalFrame_ = i / 2;
+      spot.addKeyValue("a", i * 0.25);
+      if (i % 2 == 0) {
+         spot.addKeyValue("b", -i);
+      }
+      if (i % 3 == 0) {
+         spot.addKeyValue("nan", Double.NaN);
+      }
+      return spot;
+   }
+
+   private static RowData rowData() {
+      List<SpotData> spots = new ArrayList<SpotData>();
+      for (int i = 0; i < NR_SPOTS; i++) {
+         spots.add(spot(i));
+      }
+      return new RowData.Builder().setName("spots").setTitle("title").setWidth(512)
+            .setHeight(256).setPixelSizeNm(106.5f).setZStackStepSizeNm(50.0f).setShape(2)
+            .setHalfSize(5).setNrChannels(2).setNrFrames(NR_SPOTS).setNrSlices(3)
+            .setNrPositions(4).setCoordinate(DataCollectionForm.Coordinates.PIXELS)
+            .setHasZ(true).setSpotList(spots).setMaxNrSpots(NR_SPOTS).build();
+   }
+
+   private static void assertSameSpot(SpotData expected, SpotData actual) {
+      assertEquals(expected.getFrame(), actual.getFrame());
+      assertEquals(expected.getSlice(), actual.getSlice());
+      assertEquals(expected.getChannel(), actual.getChannel());
+      assertEquals(expected.getPosition(), actual.getPosition());
+      assertEquals(expected.getNr(), actual.getNr());
+      assertEquals(expected.getX(), actual.getX());
+      assertEquals(expected.getY(), actual.getY());
+      assertEquals(expected.nrLinks_, actual.nrLinks_);
+      assertEquals(expected.originalFrame_, actual.originalFrame_);
+      assertEquals(expected.getIntensity(), actual.getIntensity(), 0.0);
+      assertEquals(expected.getBackground(), actual.getBackground(), 0.0);
+      assertEquals(expected.getXCenter(), actual.getXCenter(), 0.0);
+      assertEquals(expected.getYCenter(), actual.getYCenter(), 0.0);
+      assertEquals(expected.getZCenter(), actual.getZCenter(), 0.0);
+      assertEquals(expected.getXOri(), actual.getXOri(), 0.0);
+      assertEquals(expected.geYOri(), actual.geYOri(), 0.0);
+      assertEquals(expected.getZOri(), actual.getZOri(), 0.0);
+      assertEquals(expected.getWidth(), actual.getWidth(), 0.0);
+      assertEquals(expected.getA(), actual.getA(), 0.0);
+      assertEquals(expected.getTheta(), actual.getTheta(), 0.0);
+      assertEquals(expected.getSigma(), actual.getSigma(), 0.0);
+      String[] expectedKeys = expected.getKeys();
+      String[] actualKeys = actual.getKeys();
+      Arrays.sort(expectedKeys);
+      Arrays.sort(actualKeys);
+      assertArrayEquals(expectedKeys, actualKeys);
+      for (String key : expectedKeys) {
+         // assertEquals treats two NaNs as equal
+         assertEquals(expected.getValue(key), actual.getValue(key), 0.0);
+      }
+   }
+
+   private void roundTrip(boolean compress) throws Exception {
+      RowData rowData = rowData();
+      File file = folder.newFile("spots" + ChunkedSpotFile.EXTENSION);
+      ChunkedSpotFile.write(rowData, file, CHUNK_SIZE, compress, 2);
+
+      ChunkedSpotFile.Index index = ChunkedSpotFile.readIndex(file);
+      assertEquals(3, index.chunks.size());
+      assertEquals(NR_SPOTS, index.nrSpots);
+      assertEquals(compress, index.chunks.get(0).compressed);
+      assertEquals(20, index.chunks.get(2).minFrame);
+      assertEquals(24, index.chunks.get(2).maxFrame);
+
+      RowData read = ChunkedSpotFile.read(file, 3).build();
+      assertEquals("spots", read.getName());
+      assertEquals("title", read.title_);
+      assertEquals(512, read.width_);
+      assertEquals(256, read.height_);
+      assertEquals(106.5f, read.pixelSizeNm_, 0.0f);
+      assertEquals(50.0f, read.zStackStepSizeNm_, 0.0f);
+      assertEquals(2, read.shape_);
+      assertEquals(5, read.halfSize_);
+      assertEquals(2, read.nrChannels_);
+      assertEquals(NR_SPOTS, read.nrFrames_);
+      assertEquals(3, read.nrSlices_);
+      assertEquals(4, read.nrPositions_);
+      assertEquals(DataCollectionForm.Coordinates.PIXELS, read.coordinate_);
+      assertTrue(read.hasZ_);
+      assertEquals(-20.0 * (NR_SPOTS - 1), read.minZ_, 0.0);
+      assertEquals(0.0, read.maxZ_, 0.0);
+      assertEquals(NR_SPOTS, read.spotList_.size());
+      for (int i = 0; i < NR_SPOTS; i++) {
+         assertSameSpot(rowData.spotList_.get(i), read.spotList_.get(i));
+      }
+   }
+
+   @Test
+   public void roundTripsUncompressedChunks() throws Exception {
+      roundTrip(false);
+   }
+
+   @Test
+   public void roundTripsCompressedChunks() throws Exception {
+      roundTrip(true);
+   }
+
+   @Test
+   public void keepsNaNValuesApartFromMissingKeys() throws Exception {
+      File file = folder.newFile("nan" + ChunkedSpotFile.EXTENSION);
+      ChunkedSpotFile.write(rowData(), file, CHUNK_SIZE, true, 1);
+      List<SpotData> spots = ChunkedSpotFile.read(file, 1).build().spotList_;
+      for (SpotData spot : spots) {
+         int i = spot.getFrame();
+         assertEquals(i % 3 == 0, spot.hasKey("nan"));
+         if (i % 3 == 0) {
+            assertTrue(Double.isNaN(spot.getValue("nan")));
+         }
+         assertEquals(i % 2 == 0, spot.hasKey("b"));
+      }
+   }
+
+   @Test
+   public void readsOnlyRequestedFramesAndRegion() throws Exception {
+      File file = folder.newFile("subset" + ChunkedSpotFile.EXTENSION);
+      ChunkedSpotFile.write(rowData(), file, CHUNK_SIZE, false, 2);
+      List<SpotData> frames = ChunkedSpotFile.read(file, 5, 14, null, 2).build().spotList_;
+      assertEquals(10, frames.size());
+      assertEquals(5, frames.get(0).getFrame());
+      assertEquals(14, frames.get(9).getFrame());
+
+      // x = 50 i, y = 70 i
+      Rectangle2D roi = new Rectangle2D.Double(90.0, 0.0, 200.0, 1000.0);
+      List<SpotData> region = ChunkedSpotFile.read(file, Integer.MIN_VALUE,
+            Integer.MAX_VALUE, roi, 2).build().spotList_;
+      assertEquals(4, region.size());
+      assertEquals(2, region.get(0).getFrame());
+      assertEquals(5, region.get(3).getFrame());
+   }
+}
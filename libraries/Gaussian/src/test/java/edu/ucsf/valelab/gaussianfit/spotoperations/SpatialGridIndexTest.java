@@ -0,0 +1,158 @@
+package edu.ucsf.valelab.gaussianfit.spotoperations;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class SpatialGridIndexTest {
+
+   private static int bruteNearest(double[] xs, double[] ys, double x, double y,
+         double maxDistance) {
+      int best = -1;
+      double bestDistanceSquared = maxDistance * maxDistance;
+      for (int i = 0; i < xs.length; i++) {
+         double dx = xs[i] - x;
+         double dy = ys[i] - y;
+         double d2 = dx * dx + dy * dy;
+         // strict comparison keeps the lowest index on ties
+         if (d2 < bestDistanceSquared) {
+            bestDistanceSquared = d2;
+            best = i;
+         }
+      }
+      return best;
+   }
+
+   private static int[] bruteWithin(final double[] xs, final double[] ys, final double x,
+         final double y, double maxDistance) {
+      List<Integer> found = new ArrayList<>();
+      for (int i = 0; i < xs.length; i++) {
+         double dx = xs[i] - x;
+         double dy = ys[i] - y;
+         if (dx * dx + dy * dy < maxDistance * maxDistance) {
+            found.add(i);
+         }
+      }
+      Collections.sort(found, (a, b) -> {
+         double da = (xs[a] - x) * (xs[a] - x) + (ys[a] - y) * (ys[a] - y);
+         double db = (xs[b] - x) * (xs[b] - x) + (ys[b] - y) * (ys[b] - y);
+         int c = Double.compare(da, db);
+         return c != 0 ? c : Integer.compare(a, b);
+      });
+      int[] result = new int[found.size()];
+      for (int i = 0; i < result.length; i++) {
+         result[i] = found.get(i);
+      }
+      return result;
+   }
+
+   private static void compare(double[] xs, double[] ys, double cellSize, double[] distances,
+         double minQ, double maxQ, int nrQueries, long seed) {
+      SpatialGridIndex index = new SpatialGridIndex(xs, ys, cellSize);
+      Random random = new Random(seed);
+      for (int q = 0; q < nrQueries; q++) {
+         // snap half of the queries onto existing points to hit zero distances
+         double x;
+         double y;
+         if (q % 2 == 0 && xs.length > 0) {
+            int p = random.nextInt(xs.length);
+            x = xs[p];
+            y = ys[p];
+         } else {
+            x = minQ + random.nextDouble() * (maxQ - minQ);
+            y = minQ + random.nextDouble() * (maxQ - minQ);
+         }
+         for (double d : distances) {
+            assertEquals("nearest(" + x + ", " + y + ", " + d + ")",
+                  bruteNearest(xs, ys, x, y, d), index.nearest(x, y, d));
+            assertArrayEquals("withinDistance(" + x + ", " + y + ", " + d + ")",
+                  bruteWithin(xs, ys, x, y, d), index.withinDistance(x, y, d));
+         }
+      }
+   }
+
+   @Test
+   public void randomPointsMatchBruteForce() {
+      Random random = new Random(1);
+      int n = 500;
+      double[] xs = new double[n];
+      double[] ys = new double[n];
+      for (int i = 0; i < n; i++) {
+         xs[i] = random.nextDouble() * 100.0;
+         ys[i] = random.nextDouble() * 100.0;
+      }
+      // queries also fall outside the bounding box of the points
+      compare(xs, ys, 5.0, new double[] {0.5, 5.0, 12.0, 300.0, Double.POSITIVE_INFINITY},
+            -20.0, 120.0, 400, 2);
+   }
+
+   @Test
+   public void duplicatesAndTiesReturnLowestIndex() {
+      // points on an integer lattice, each occurring twice, so that many queries
+      // have several points at exactly the same distance
+      int side = 10;
+      double[] xs = new double[2 * side * side];
+      double[] ys = new double[2 * side * side];
+      for (int i = 0; i < side * side; i++) {
+         xs[i] = xs[i + side * side] = i % side;
+         ys[i] = ys[i + side * side] = i / side;
+      }
+      SpatialGridIndex index = new SpatialGridIndex(xs, ys, 1.0);
+      assertEquals(23, index.nearest(3.0, 2.0, 1.0));
+      // equidistant from (3, 2), (4, 2), (3, 3) and (4, 3)
+      assertEquals(23, index.nearest(3.5, 2.5, 1.0));
+      assertArrayEquals(new int[] {23, 24, 33, 34, 123, 124, 133, 134},
+            index.withinDistance(3.5, 2.5, 1.0));
+      // maxDistance is exclusive
+      assertEquals(-1, index.nearest(3.5, 2.0, 0.5));
+
+      double[] lattice = new double[41];
+      for (int i = 0; i < lattice.length; i++) {
+         lattice[i] = 0.25 * i;
+      }
+      for (double x : lattice) {
+         for (double y : lattice) {
+            for (double d : new double[] {0.5, 1.0, 1.5, 3.0}) {
+               assertEquals(bruteNearest(xs, ys, x, y, d), index.nearest(x, y, d));
+               assertArrayEquals(bruteWithin(xs, ys, x, y, d), index.withinDistance(x, y, d));
+            }
+         }
+      }
+   }
+
+   @Test
+   public void sparsePointsDoubleTheCellSize() {
+      Random random = new Random(3);
+      int n = 50;
+      double[] xs = new double[n];
+      double[] ys = new double[n];
+      for (int i = 0; i < n; i++) {
+         xs[i] = random.nextDouble() * 1.0e5;
+         ys[i] = random.nextDouble() * 1.0e5;
+      }
+      SpatialGridIndex index = new SpatialGridIndex(xs, ys, 0.1);
+      assertTrue(index.getCellSize() > 0.1);
+      compare(xs, ys, 0.1, new double[] {0.05, 0.1, 5000.0, 2.0e4, Double.POSITIVE_INFINITY},
+            -1.0e4, 1.1e5, 300, 4);
+   }
+
+   @Test
+   public void degenerateInput() {
+      SpatialGridIndex empty = new SpatialGridIndex(new double[0], new double[0], 1.0);
+      assertEquals(-1, empty.nearest(0.0, 0.0, Double.POSITIVE_INFINITY));
+      assertEquals(0, empty.withinDistance(0.0, 0.0, Double.POSITIVE_INFINITY).length);
+
+      // all points at the same position
+      double[] xs = {7.0, 7.0, 7.0};
+      double[] ys = {-3.0, -3.0, -3.0};
+      SpatialGridIndex single = new SpatialGridIndex(xs, ys, 1.0);
+      assertEquals(0, single.nearest(7.5, -3.0, 1.0));
+      assertArrayEquals(new int[] {0, 1, 2}, single.withinDistance(7.0, -3.0, 0.1));
+      assertEquals(-1, single.nearest(100.0, 100.0, 10.0));
+      assertEquals(0, single.nearest(100.0, 100.0, Double.POSITIVE_INFINITY));
+   }
+
+}
@@ -0,0 +1,232 @@
+package org.micromanager.imageprocessing;
+
+import ij.gui.Roi;
+import ij.plugin.filter.GaussianBlur;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.micromanager.imageprocessing.ImgSharpnessAnalysis.Method;
+
+/**
+ * Compares the speed and the accuracy of the focus metrics on synthetic
+ * defocus stacks.
+ *
+ * <p>Every slice of a stack is the same random texture, blurred in proportion
+ * to its distance from a focal plane that lies between two slices, with
+ * shot noise added.  For each metric, the benchmark measures the time per
+ * image and how far the peak of the focus curve, refined with a parabola
+ * through the best slice and its neighbours, is from the true focus.  The
+ * metrics are computed by {@link ImgSharpnessAnalysis} as a reference and by
+ * {@link FocusMetricEngine} on the whole image, with a stride of 2, and
+ * within a centered ROI of half the image size.</p>
+ *
+ * <p>Usage: {@code FocusMetricBenchmark [size] [slices] [repeats]}</p>
+ */
+public final class FocusMetricBenchmark {
+
+   public static final double STEP_UM = 1.0;
+   // blur, in pixels, per micrometer of defocus
+   private static final double BLUR_PER_UM = 1.5;
+
+   /**
+    * Speed and accuracy of one metric computed one way.
+    */
+   public static final class Result {
+      private final Method method_;
+      private final String variant_;
+      private final double msPerImage_;
+      private final double errorUm_;
+
+      private Result(Method method, String variant, double msPerImage, double errorUm) {
+         method_ = method;
+         variant_ = variant;
+         msPerImage_ = msPerImage;
+         errorUm_ = errorUm;
+      }
+
+      public Method getMethod() {
+         return method_;
+      }
+
+      public String getVariant() {
+         return variant_;
+      }
+
+      public double getMsPerImage() {
+         return msPerImage_;
+      }
+
+      /**
+       * Distance between the estimated and the true focus, in micrometers.
+       */
+      public double getErrorUm() {
+         return errorUm_;
+      }
+
+      @Override
+      public String toString() {
+         return String.format("%-18s %-10s %10.3f ms %8.3f um", method_.name(), variant_,
+               msPerImage_, errorUm_);
+      }
+   }
+
+   private FocusMetricBenchmark() {
+   }
+
+   /**
+    * Creates a 16-bit defocus stack, with slices STEP_UM apart.
+    *
+    * @param size Width and height of the images.
+    * @param slices Number of slices.
+    * @param focusUm Position of the focal plane, relative to the first slice.
+    * @param seed Seed of the texture and of the noise.
+    * @return The slices, starting at the lowest position.
+    */
+   public static ImageProcessor[] defocusStack(int size, int slices, double focusUm,
+                                               long seed) {
+      Random random = new Random(seed);
+      float[] texture = new float[size * size];
+      for (int i = 0; i < texture.length; i++) {
+         texture[i] = random.nextFloat() < 0.05f ? 4000f : 0f;
+      }
+      GaussianBlur blur = new GaussianBlur();
+      ImageProcessor[] stack = new ImageProcessor[slices];
+      for (int s = 0; s < slices; s++) {
+         FloatProcessor slice = new FloatProcessor(size, size, texture.clone());
+         double sigma = 0.5 + BLUR_PER_UM * Math.abs(s * STEP_UM - focusUm);
+         blur.blurGaussian(slice, sigma);
+         float[] pixels = (float[]) slice.getPixels();
+         for (int i = 0; i < pixels.length; i++) {
+            double value = 100.0 + pixels[i];
+            pixels[i] = (float) Math.max(0.0,
+                  value + Math.sqrt(value) * random.nextGaussian());
+         }
+         stack[s] = slice.convertToShort(false);
+      }
+      return stack;
+   }
+
+   /**
+    * Estimates the position of the maximum of a focus curve, in micrometers
+    * from the first slice.
+    */
+   public static double peakUm(double[] scores) {
+      int best = 0;
+      for (int s = 1; s < scores.length; s++) {
+         if (scores[s] > scores[best]) {
+            best = s;
+         }
+      }
+      double offset = 0.0;
+      if (best > 0 && best < scores.length - 1) {
+         double curvature = scores[best - 1] - 2 * scores[best] + scores[best + 1];
+         if (curvature < 0) {
+            offset = 0.5 * (scores[best - 1] - scores[best + 1]) / curvature;
+         }
+      }
+      return (best + offset) * STEP_UM;
+   }
+
+   /**
+    * Runs the benchmark.
+    *
+    * @param size Width and height of the images.
+    * @param slices Number of slices per stack.
+    * @param repeats Number of times each metric is computed on the stack.
+    * @return Results, per metric and variant.
+    */
+   public static List<Result> run(int size, int slices, int repeats) {
+      final double focusUm = (slices / 2 + 0.3) * STEP_UM;
+      ImageProcessor[] stack = defocusStack(size, slices, focusUm, 42);
+      ImgSharpnessAnalysis reference = new ImgSharpnessAnalysis();
+      FocusMetricEngine engine = new FocusMetricEngine();
+      FocusMetricEngine strided = new FocusMetricEngine();
+      strided.setStride(2);
+      Roi center = new Roi(size / 4, size / 4, size / 2, size / 2);
+
+      List<Result> results = new ArrayList<>();
+      for (Method method : Method.values()) {
+         reference.setComputationMethod(method);
+         results.add(measure(method, "reference", stack, repeats, focusUm,
+               reference::compute));
+         results.add(measure(method, "tiled", stack, repeats, focusUm,
+               proc -> engine.compute(proc, null, method)));
+         results.add(measure(method, "stride 2", stack, repeats, focusUm,
+               proc -> strided.compute(proc, null, method)));
+         results.add(measure(method, "roi 1/2", stack, repeats, focusUm,
+               proc -> engine.compute(proc, center, method)));
+      }
+      return results;
+   }
+
+   /**
+    * Time per image to compute all pixel metrics, one after the other and
+    * in a single pass.
+    *
+    * @return Milliseconds per image, separately and in a single pass.
+    */
+   public static double[] runSinglePass(int size, int slices, int repeats) {
+      ImageProcessor[] stack = defocusStack(size, slices, slices / 2 * STEP_UM, 42);
+      EnumSet<Method> methods = EnumSet.complementOf(EnumSet.of(Method.SharpEdges,
+            Method.MedianEdges, Method.FFTBandpass));
+      FocusMetricEngine engine = new FocusMetricEngine();
+      long separateNs = 0;
+      long singleNs = 0;
+      for (int r = 0; r < repeats; r++) {
+         for (ImageProcessor proc : stack) {
+            long start = System.nanoTime();
+            for (Method method : methods) {
+               engine.compute(proc, null, method);
+            }
+            long middle = System.nanoTime();
+            Map<Method, Double> values = engine.compute(proc, null, methods);
+            singleNs += System.nanoTime() - middle;
+            separateNs += middle - start;
+            if (values.size() != methods.size()) {
+               throw new AssertionError("Missing metrics");
+            }
+         }
+      }
+      double images = (double) repeats * slices;
+      return new double[] {separateNs / 1e6 / images, singleNs / 1e6 / images};
+   }
+
+   private interface Metric {
+      double compute(ImageProcessor proc);
+   }
+
+   private static Result measure(Method method, String variant, ImageProcessor[] stack,
+                                 int repeats, double focusUm, Metric metric) {
+      double[] scores = new double[stack.length];
+      // warm up
+      for (int s = 0; s < stack.length; s++) {
+         scores[s] = metric.compute(stack[s]);
+      }
+      long start = System.nanoTime();
+      for (int r = 0; r < repeats; r++) {
+         for (int s = 0; s < stack.length; s++) {
+            scores[s] = metric.compute(stack[s]);
+         }
+      }
+      double msPerImage = (System.nanoTime() - start) / 1e6 / ((double) repeats * stack.length);
+      return new Result(method, variant, msPerImage, Math.abs(peakUm(scores) - focusUm));
+   }
+
+   public static void main(String[] args) {
+      int size = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+      int slices = args.length > 1 ? Integer.parseInt(args[1]) : 11;
+      int repeats = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+      System.out.println(String.format("%d x %d pixels, %d slices, %d cores", size, size,
+            slices, Runtime.getRuntime().availableProcessors()));
+      for (Result result : run(size, slices, repeats)) {
+         System.out.println(result);
+      }
+      double[] singlePass = runSinglePass(size, slices, repeats);
+      System.out.println(String.format("All pixel metrics: %.3f ms separately, "
+            + "%.3f ms in a single pass", singlePass[0], singlePass[1]));
+   }
+}
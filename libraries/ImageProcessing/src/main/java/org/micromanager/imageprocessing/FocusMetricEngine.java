@@ -0,0 +1,376 @@
+package org.micromanager.imageprocessing;
+
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.IntStream;
+import org.micromanager.imageprocessing.ImgSharpnessAnalysis.Method;
+
+/**
+ * Computes the sharpness metrics of {@link ImgSharpnessAnalysis} over bands of
+ * rows in parallel, and can compute several metrics in a single pass over the
+ * pixels.
+ *
+ * <p>Metrics are computed within a software ROI, which gives the same result as
+ * cropping the camera to the bounds of the ROI.  Pixels outside the mask of a
+ * non-rectangular ROI are skipped.  With a stride larger than 1, only every
+ * n-th pixel of every n-th row is evaluated; gradients are still taken between
+ * neighbouring pixels.  Metrics that are sums over the image are scaled by the
+ * square of the stride, so that they estimate the full resolution value.</p>
+ *
+ * <p>Pixel metrics (Edges, StdDev, Mean, NormalizedVariance, Redondo, Volath,
+ * Volath5 and Tenengrad) are computed in floating point, without the clipping
+ * of ImageJ's integer filters, so their values can differ a little from the
+ * ones of ImgSharpnessAnalysis.  SharpEdges, MedianEdges and FFTBandpass need
+ * whole-image filters; they are computed with ImgSharpnessAnalysis on a copy of
+ * the ROI bounds, without stride and concurrently with the pixel pass.</p>
+ */
+public class FocusMetricEngine {
+
+   private static final Set<Method> GRADIENT_METHODS = EnumSet.of(Method.Edges,
+         Method.Tenengrad);
+   private static final Set<Method> WHOLE_IMAGE_METHODS = EnumSet.of(Method.SharpEdges,
+         Method.MedianEdges, Method.FFTBandpass);
+
+   private int stride_ = 1;
+   private int bandRows_ = 32;
+   private boolean parallel_ = true;
+   private double fftLowerCutoff_ = 2.5;
+   private double fftUpperCutoff_ = 14;
+
+   /**
+    * Only evaluate every n-th pixel of every n-th row.
+    *
+    * @param stride Sampling step in pixels, 1 evaluates all pixels.
+    */
+   public void setStride(int stride) {
+      if (stride < 1) {
+         throw new IllegalArgumentException("Stride must be at least 1");
+      }
+      stride_ = stride;
+   }
+
+   public int getStride() {
+      return stride_;
+   }
+
+   /**
+    * Sets the number of evaluated rows that one thread handles at a time.
+    *
+    * @param rows Number of rows per band.
+    */
+   public void setBandRows(int rows) {
+      if (rows < 1) {
+         throw new IllegalArgumentException("A band needs at least one row");
+      }
+      bandRows_ = rows;
+   }
+
+   public int getBandRows() {
+      return bandRows_;
+   }
+
+   /**
+    * Whether bands and whole-image metrics are computed on multiple threads.
+    */
+   public void setParallel(boolean parallel) {
+      parallel_ = parallel;
+   }
+
+   public boolean isParallel() {
+      return parallel_;
+   }
+
+   /**
+    * These parameters are only used for method: FFTBandpass.
+    *
+    * @param fftLowerCutoff Frequencies below this will be filtered out
+    * @param fftUpperCutoff Frequencies above this will be filtered out
+    */
+   public void setFFTCutoff(double fftLowerCutoff, double fftUpperCutoff) {
+      fftLowerCutoff_ = fftLowerCutoff;
+      fftUpperCutoff_ = fftUpperCutoff;
+   }
+
+   /**
+    * Computes a single metric.
+    *
+    * @param proc Input image, will not be modified.
+    * @param roi Region to evaluate, or null for the whole image.
+    * @param method Metric to compute.
+    * @return The sharpness value.
+    */
+   public double compute(ImageProcessor proc, Roi roi, Method method) {
+      return compute(proc, roi, EnumSet.of(method)).get(method);
+   }
+
+   /**
+    * Computes several metrics, reading every pixel only once for all pixel
+    * metrics.
+    *
+    * @param proc Input image, will not be modified.
+    * @param roi Region to evaluate, or null for the whole image.
+    * @param methods Metrics to compute.
+    * @return Value of each of the requested metrics.
+    */
+   public Map<Method, Double> compute(ImageProcessor proc, Roi roi, Set<Method> methods) {
+      final Rectangle frame = roi == null
+            ? new Rectangle(0, 0, proc.getWidth(), proc.getHeight())
+            : roi.getBounds().intersection(
+                  new Rectangle(0, 0, proc.getWidth(), proc.getHeight()));
+      if (frame.isEmpty()) {
+         throw new IllegalArgumentException("ROI does not overlap the image");
+      }
+      Map<Method, CompletableFuture<Double>> wholeImage = new EnumMap<>(Method.class);
+      for (Method method : methods) {
+         if (WHOLE_IMAGE_METHODS.contains(method)) {
+            final ImageProcessor crop = crop(proc, frame);
+            if (parallel_) {
+               wholeImage.put(method, CompletableFuture.supplyAsync(
+                     () -> computeWholeImage(crop, method)));
+            } else {
+               wholeImage.put(method, CompletableFuture.completedFuture(
+                     computeWholeImage(crop, method)));
+            }
+         }
+      }
+
+      Map<Method, Double> result = new EnumMap<>(Method.class);
+      if (!WHOLE_IMAGE_METHODS.containsAll(methods)) {
+         Sums sums = pixelPass(proc, roi, frame, methods);
+         for (Method method : methods) {
+            if (!WHOLE_IMAGE_METHODS.contains(method)) {
+               result.put(method, sums.value(method, (double) stride_ * stride_));
+            }
+         }
+      }
+      for (Map.Entry<Method, CompletableFuture<Double>> entry : wholeImage.entrySet()) {
+         result.put(entry.getKey(), entry.getValue().join());
+      }
+      return result;
+   }
+
+   private double computeWholeImage(ImageProcessor proc, Method method) {
+      switch (method) {
+         case SharpEdges:
+            return ImgSharpnessAnalysis.computeSharpEdges(proc, true);
+         case MedianEdges:
+            return ImgSharpnessAnalysis.computeMedianEdges(proc, true);
+         case FFTBandpass:
+            return ImgSharpnessAnalysis.computeFFTBandpass(proc, fftLowerCutoff_,
+                  fftUpperCutoff_);
+         default:
+            throw new AssertionError(method.name());
+      }
+   }
+
+   /**
+    * Copies the pixels within the frame, without touching the ROI of the
+    * input, which may be shared with other threads.
+    */
+   private static ImageProcessor crop(ImageProcessor proc, Rectangle frame) {
+      ImageProcessor crop = proc.createProcessor(frame.width, frame.height);
+      Object src = proc.getPixels();
+      Object dst = crop.getPixels();
+      for (int y = 0; y < frame.height; y++) {
+         System.arraycopy(src, (frame.y + y) * proc.getWidth() + frame.x,
+               dst, y * frame.width, frame.width);
+      }
+      return crop;
+   }
+
+   private Sums pixelPass(ImageProcessor proc, Roi roi, Rectangle frame,
+                          Set<Method> methods) {
+      final Pass pass = new Pass(proc, roi, frame, stride_, methods);
+      final int sampledRows = (frame.height + stride_ - 1) / stride_;
+      final int bands = (sampledRows + bandRows_ - 1) / bandRows_;
+      IntStream indices = IntStream.range(0, bands);
+      if (parallel_ && bands > 1) {
+         indices = indices.parallel();
+      }
+      return indices.mapToObj(band -> pass.run(band * bandRows_,
+                  Math.min(sampledRows, (band + 1) * bandRows_)))
+            .reduce(new Sums(), Sums::add);
+   }
+
+   /**
+    * Accumulated sums, added up over bands.
+    */
+   private static final class Sums {
+      private long n_;
+      private double sum_;
+      private double sumSq_;
+      private double edges_;
+      private double tenengrad_;
+      private double volath1_;
+      private double volath2_;
+      private double volath5_;
+      private long volath5N_;
+      private double redondo_;
+
+      private Sums add(Sums other) {
+         Sums total = new Sums();
+         total.n_ = n_ + other.n_;
+         total.sum_ = sum_ + other.sum_;
+         total.sumSq_ = sumSq_ + other.sumSq_;
+         total.edges_ = edges_ + other.edges_;
+         total.tenengrad_ = tenengrad_ + other.tenengrad_;
+         total.volath1_ = volath1_ + other.volath1_;
+         total.volath2_ = volath2_ + other.volath2_;
+         total.volath5_ = volath5_ + other.volath5_;
+         total.volath5N_ = volath5N_ + other.volath5N_;
+         total.redondo_ = redondo_ + other.redondo_;
+         return total;
+      }
+
+      private double value(Method method, double scale) {
+         double mean = sum_ / n_;
+         // sample variance, as ImageJ computes it
+         double variance = n_ > 1 ? (sumSq_ - sum_ * mean) / (n_ - 1) : 0.0;
+         switch (method) {
+            case Mean:
+               return mean;
+            case StdDev:
+               return Math.sqrt(variance) / mean;
+            case NormalizedVariance:
+               return variance / mean;
+            case Edges:
+               return (edges_ / n_) / mean;
+            case Tenengrad:
+               return tenengrad_ * scale;
+            case Volath:
+               return (volath1_ - volath2_) * scale;
+            case Volath5:
+               return (volath5_ - volath5N_ * mean * mean) * scale;
+            case Redondo:
+               return redondo_ * scale;
+            default:
+               throw new AssertionError(method.name());
+         }
+      }
+   }
+
+   /**
+    * One pass over the pixels of a frame.  Neighbours outside the frame are
+    * replaced by the closest pixel within it, as ImageJ does at the image
+    * edges.
+    */
+   private static final class Pass {
+      private final Object pixels_;
+      private final int imageWidth_;
+      private final Rectangle frame_;
+      private final int stride_;
+      private final byte[] mask_;
+      private final Rectangle maskBounds_;
+      private final boolean gradients_;
+      private final boolean volath_;
+      private final boolean redondo_;
+
+      private Pass(ImageProcessor proc, Roi roi, Rectangle frame, int stride,
+                   Set<Method> methods) {
+         pixels_ = proc.getPixels();
+         imageWidth_ = proc.getWidth();
+         frame_ = frame;
+         stride_ = stride;
+         ImageProcessor mask = roi == null ? null : roi.getMask();
+         mask_ = mask == null ? null : (byte[]) mask.getPixels();
+         maskBounds_ = roi == null ? null : roi.getBounds();
+         gradients_ = !Collections.disjoint(methods, GRADIENT_METHODS);
+         volath_ = methods.contains(Method.Volath) || methods.contains(Method.Volath5);
+         redondo_ = methods.contains(Method.Redondo);
+      }
+
+      /**
+       * Evaluates the sampled rows from (inclusive) to to (exclusive).
+       */
+      private Sums run(int from, int to) {
+         final int w = frame_.width;
+         final int h = frame_.height;
+         float[] up = new float[w];
+         float[] row = new float[w];
+         float[] down = new float[w];
+         Sums sums = new Sums();
+         for (int k = from; k < to; k++) {
+            final int j = k * stride_;
+            final int y = frame_.y + j;
+            readRow(Math.max(j - 1, 0), up);
+            readRow(j, row);
+            readRow(Math.min(j + 1, h - 1), down);
+            for (int i = 0; i < w; i += stride_) {
+               if (mask_ != null && mask_[(y - maskBounds_.y) * maskBounds_.width
+                     + frame_.x + i - maskBounds_.x] == 0) {
+                  continue;
+               }
+               final int left = Math.max(i - 1, 0);
+               final int right = Math.min(i + 1, w - 1);
+               final double c = row[i];
+               sums.n_++;
+               sums.sum_ += c;
+               sums.sumSq_ += c * c;
+               if (gradients_) {
+                  double gx = (up[right] + 2.0 * row[right] + down[right])
+                        - (up[left] + 2.0 * row[left] + down[left]);
+                  double gy = (down[left] + 2.0 * down[i] + down[right])
+                        - (up[left] + 2.0 * up[i] + up[right]);
+                  double g2 = gx * gx + gy * gy;
+                  sums.edges_ += Math.sqrt(g2);
+                  sums.tenengrad_ += g2;
+               }
+               if (volath_) {
+                  if (i >= 1 && i <= w - 2) {
+                     sums.volath1_ += c * row[i + 1];
+                  }
+                  if (i <= w - 3) {
+                     sums.volath2_ += c * row[i + 2];
+                  }
+                  if (i <= w - 2) {
+                     sums.volath5_ += c * row[i + 1];
+                     sums.volath5N_++;
+                  }
+               }
+               if (redondo_ && i >= 1 && i <= w - 2 && j >= 1 && j <= h - 2) {
+                  // same semi-Laplacian as ImgSharpnessAnalysis.computeRedondo
+                  double p = row[left] + row[right] + up[i] + down[i] - 4.0 * row[left];
+                  sums.redondo_ += p * p;
+               }
+            }
+         }
+         return sums;
+      }
+
+      /**
+       * Reads one row of the frame as floats.
+       */
+      private void readRow(int j, float[] row) {
+         final int offset = (frame_.y + j) * imageWidth_ + frame_.x;
+         if (pixels_ instanceof byte[]) {
+            byte[] pixels = (byte[]) pixels_;
+            for (int i = 0; i < row.length; i++) {
+               row[i] = pixels[offset + i] & 0xff;
+            }
+         } else if (pixels_ instanceof short[]) {
+            short[] pixels = (short[]) pixels_;
+            for (int i = 0; i < row.length; i++) {
+               row[i] = pixels[offset + i] & 0xffff;
+            }
+         } else if (pixels_ instanceof float[]) {
+            System.arraycopy(pixels_, offset, row, 0, row.length);
+         } else if (pixels_ instanceof int[]) {
+            // RGB, unweighted average of the components
+            int[] pixels = (int[]) pixels_;
+            for (int i = 0; i < row.length; i++) {
+               int c = pixels[offset + i];
+               row[i] = (((c >> 16) & 0xff) + ((c >> 8) & 0xff) + (c & 0xff)) / 3.0f;
+            }
+         } else {
+            throw new IllegalArgumentException("Unsupported pixel type");
+         }
+      }
+   }
+}
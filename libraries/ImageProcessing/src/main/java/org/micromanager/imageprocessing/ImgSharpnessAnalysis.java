@@ -264,7 +264,7 @@ public class ImgSharpnessAnalysis {
       int[] ken1 = {-1, 0, 1, -2, 0, 2, -1, 0, 1};
       int[] ken2 = {1, 2, 1, 0, 0, 0, -1, -2, -1};
       ImageProcessor proc1 = proc;
-      if (allowInPlaceModification) {
+      if (!allowInPlaceModification) {
          proc1 = proc.duplicate();
       }
 
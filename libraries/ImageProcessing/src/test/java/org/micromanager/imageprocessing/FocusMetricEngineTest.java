@@ -0,0 +1,99 @@
+package org.micromanager.imageprocessing;
+
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Random;
+import org.micromanager.imageprocessing.ImgSharpnessAnalysis.Method;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class FocusMetricEngineTest {
+
+   private static final int WIDTH = 64;
+   private static final int HEIGHT = 48;
+
+   // metrics that the engine computes exactly like ImgSharpnessAnalysis
+   private static final Method[] EXACT = {Method.Mean, Method.StdDev,
+         Method.NormalizedVariance, Method.Volath, Method.Volath5, Method.Redondo};
+
+   /*
+    * Smooth gradient with random texture, so that every metric is non-zero.
+    */
+   private static ImageProcessor image() {
+      Random random = new Random(3);
+      short[] pixels = new short[WIDTH * HEIGHT];
+      for (int y = 0; y < HEIGHT; y++) {
+         for (int x = 0; x < WIDTH; x++) {
+            pixels[y * WIDTH + x] = (short) (1000 + 20 * x + 10 * y + random.nextInt(500));
+         }
+      }
+      return new ShortProcessor(WIDTH, HEIGHT, pixels, null);
+   }
+
+   private static double reference(Method method, ImageProcessor proc) {
+      ImgSharpnessAnalysis analysis = new ImgSharpnessAnalysis();
+      analysis.setComputationMethod(method);
+      return analysis.compute(proc);
+   }
+
+   private static void assertClose(double expected, double actual) {
+      assertEquals(expected, actual, 1e-9 * Math.abs(expected));
+   }
+
+   private static FocusMetricEngine engine(boolean parallel) {
+      FocusMetricEngine engine = new FocusMetricEngine();
+      engine.setParallel(parallel);
+      // several bands, the last one shorter than the others
+      engine.setBandRows(7);
+      return engine;
+   }
+
+   @Test
+   public void matchesImgSharpnessAnalysis() {
+      ImageProcessor proc = image();
+      for (boolean parallel : new boolean[] {false, true}) {
+         FocusMetricEngine engine = engine(parallel);
+         for (Method method : EXACT) {
+            assertClose(reference(method, proc), engine.compute(proc, null, method));
+         }
+      }
+   }
+
+   @Test
+   public void singlePassMatchesSeparateMetrics() {
+      ImageProcessor proc = image();
+      FocusMetricEngine engine = engine(true);
+      Map<Method, Double> values = engine.compute(proc, null, EnumSet.of(EXACT[0], EXACT));
+      assertEquals(EXACT.length, values.size());
+      for (Method method : EXACT) {
+         assertClose(reference(method, proc), values.get(method));
+      }
+   }
+
+   @Test
+   public void rectangularRoiMatchesCrop() {
+      ImageProcessor proc = image();
+      Roi roi = new Roi(10, 7, 30, 21);
+      proc.setRoi(roi);
+      ImageProcessor crop = proc.crop();
+      proc.resetRoi();
+      FocusMetricEngine engine = engine(true);
+      for (Method method : EXACT) {
+         final double cropped = engine.compute(crop, null, method);
+         assertClose(reference(method, crop), cropped);
+         assertClose(cropped, engine.compute(proc, roi, method));
+      }
+   }
+
+   @Test
+   public void tenengradLeavesImageAlone() {
+      ImageProcessor proc = image();
+      short[] before = ((short[]) proc.getPixels()).clone();
+      final double first = ImgSharpnessAnalysis.computeTenengrad(proc, false);
+      assertArrayEquals(before, (short[]) proc.getPixels());
+      assertEquals(first, ImgSharpnessAnalysis.computeTenengrad(proc, false), 0.0);
+   }
+}
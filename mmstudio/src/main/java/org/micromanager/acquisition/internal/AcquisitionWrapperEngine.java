@@ -52,6 +52,10 @@ public final class AcquisitionWrapperEngine implements AcquisitionEngine,
    protected JSONObject summaryMetadataJSON_;
    private Datastore curStore_;
    private Pipeline curPipeline_;
+   private DefaultTaggedImageSink curSink_;
+   // pause requested through setPause(), and hold while the sink catches up
+   private boolean pauseRequested_ = false;
+   private boolean throttled_ = false;
 
    public AcquisitionWrapperEngine() {
       sequenceSettings_ = (new SequenceSettings.Builder()).build();
@@ -86,6 +90,17 @@ public final class AcquisitionWrapperEngine implements AcquisitionEngine,
       return curStore_;
    }
 
+   /**
+    * Returns the state of the sink that stores the images of the current or
+    * last acquisition: queue depth, bytes in flight and time per stage.
+    *
+    * @return Metrics of the sink, or null if nothing was acquired yet.
+    */
+   public DefaultTaggedImageSink.Metrics getImageSinkMetrics() {
+      DefaultTaggedImageSink sink = curSink_;
+      return sink == null ? null : sink.getMetrics();
+   }
+
    /**
     *  Will notify registered AcqSettingsListeners that the settings have changed.
     */
@@ -203,6 +218,10 @@ public final class AcquisitionWrapperEngine implements AcquisitionEngine,
          if (!studio_.core().debugLogEnabled()) {
             studio_.logs().logMessage(acquisitionSettings.toString());
          }
+         synchronized (this) {
+            pauseRequested_ = false;
+            throttled_ = false;
+         }
          final BlockingQueue<TaggedImage> engineOutputQueue = getAcquisitionEngine2010().run(
                acquisitionSettings, true, posListToUse,
                studio_.getAutofocusManager().getAutofocusMethod());
@@ -230,9 +249,10 @@ public final class AcquisitionWrapperEngine implements AcquisitionEngine,
                this, acquisitionSettings));
 
          // Start pumping images through the pipeline and into the datastore.
-         DefaultTaggedImageSink sink = new DefaultTaggedImageSink(
+         curSink_ = new DefaultTaggedImageSink(
                engineOutputQueue, curPipeline_, curStore_, this, studio_.events());
-         sink.start(() -> getAcquisitionEngine2010().stop());
+         curSink_.setEngineThrottle(this::setThrottled);
+         curSink_.start(() -> getAcquisitionEngine2010().stop());
 
          return curStore_;
 
@@ -432,8 +452,22 @@ public final class AcquisitionWrapperEngine implements AcquisitionEngine,
    }
 
    @Override
-   public void setPause(boolean state) {
-      if (state) {
+   public synchronized void setPause(boolean state) {
+      pauseRequested_ = state;
+      updatePause();
+   }
+
+   /*
+    * Holds the engine back while the image sink catches up, independent of
+    * the pause requested by the user.
+    */
+   private synchronized void setThrottled(boolean throttled) {
+      throttled_ = throttled;
+      updatePause();
+   }
+
+   private void updatePause() {
+      if (pauseRequested_ || throttled_) {
          acquisitionEngine2010_.pause();
       } else {
          acquisitionEngine2010_.resume();
@@ -794,8 +828,9 @@ public final class AcquisitionWrapperEngine implements AcquisitionEngine,
    }
 
    @Override
-   public boolean isPaused() {
-      return acquisitionEngine2010_.isPaused();
+   public synchronized boolean isPaused() {
+      // a hold by the image sink alone is not a pause
+      return acquisitionEngine2010_.isPaused() && (pauseRequested_ || !throttled_);
    }
 
    protected boolean isFocusStageAvailable() {
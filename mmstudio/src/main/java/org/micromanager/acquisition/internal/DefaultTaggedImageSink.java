@@ -1,10 +1,21 @@
 package org.micromanager.acquisition.internal;
 
+import com.google.common.eventbus.Subscribe;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
 import mmcorej.TaggedImage;
+import org.micromanager.data.Coords;
+import org.micromanager.data.DataProviderHasNewImageEvent;
 import org.micromanager.data.Datastore;
 import org.micromanager.data.Pipeline;
 import org.micromanager.data.PipelineErrorException;
@@ -21,16 +32,228 @@ import org.micromanager.internal.utils.ReportingUtils;
  * Functionally this is just glue code between the old acquisition engine and
  * the 2.0 API.
  *
+ * <p>The sink counts the bytes of the images it took from the engine that
+ * are not yet stored, i.e. the images waiting for the pipeline, inside the
+ * pipeline, and on their way to the storage.  When these bytes would exceed
+ * the high watermark, the sink either writes new images to a temporary file
+ * until the bytes in flight dropped to the low watermark, or stops taking
+ * images from the engine until then (see {@link OverflowPolicy}).  Spilled
+ * images are read back and stored in the order they were acquired.</p>
+ *
  * @author arthur, modified by Chris Weisiger
  */
 public final class DefaultTaggedImageSink {
 
+   /**
+    * What the sink does with new images while the bytes in flight are above
+    * the high watermark.
+    */
+   public enum OverflowPolicy {
+      /**
+       * Keep taking images from the engine, and write them to a temporary
+       * file until they can be stored.
+       */
+      SPILL_TO_DISK,
+      /**
+       * Stop taking images from the engine, and hold the engine back (see
+       * {@link #setEngineThrottle}).  A producer that writes to a bounded
+       * queue is held back until the bytes in flight dropped to the low
+       * watermark.
+       */
+      THROTTLE
+   }
+
+   /**
+    * Snapshot of the state of the sink, for monitoring while the acquisition
+    * runs.
+    */
+   public static final class Metrics {
+      private final int queueDepth_;
+      private final long bytesInFlight_;
+      private final long peakBytesInFlight_;
+      private final long imagesReceived_;
+      private final long imagesStored_;
+      private final long imagesSpilled_;
+      private final int imagesOnDisk_;
+      private final boolean overHighWatermark_;
+      private final double throttledMs_;
+      private final double meanConvertMs_;
+      private final double meanInsertMs_;
+      private final double meanStoreMs_;
+      private final double meanSpillMs_;
+
+      private Metrics(DefaultTaggedImageSink sink) {
+         queueDepth_ = sink.imageProducingQueue_.size() + sink.handoff_.size();
+         bytesInFlight_ = sink.budget_.getInFlightBytes();
+         peakBytesInFlight_ = sink.budget_.getPeakBytes();
+         imagesReceived_ = sink.received_.get();
+         imagesStored_ = sink.stored_.get();
+         imagesSpilled_ = sink.spilled_.get();
+         imagesOnDisk_ = sink.onDisk_.get();
+         overHighWatermark_ = sink.budget_.isFull();
+         throttledMs_ = sink.throttledNs_.get() / 1e6;
+         long converted = Math.max(1, sink.converted_.get());
+         meanConvertMs_ = sink.convertNs_.get() / 1e6 / converted;
+         meanInsertMs_ = sink.insertNs_.get() / 1e6 / converted;
+         meanStoreMs_ = sink.storeNs_.get() / 1e6 / Math.max(1, imagesStored_);
+         meanSpillMs_ = sink.spillNs_.get() / 1e6 / Math.max(1, imagesSpilled_);
+      }
+
+      /**
+       * Images waiting in the engine queue and in the sink.
+       */
+      public int getQueueDepth() {
+         return queueDepth_;
+      }
+
+      /**
+       * Bytes of the images taken from the engine that are held in memory
+       * and not yet stored.
+       */
+      public long getBytesInFlight() {
+         return bytesInFlight_;
+      }
+
+      public long getPeakBytesInFlight() {
+         return peakBytesInFlight_;
+      }
+
+      public long getImagesReceived() {
+         return imagesReceived_;
+      }
+
+      public long getImagesStored() {
+         return imagesStored_;
+      }
+
+      /**
+       * Number of images that were written to the spill file so far.
+       */
+      public long getImagesSpilled() {
+         return imagesSpilled_;
+      }
+
+      /**
+       * Number of images in the spill file that are not yet read back.
+       */
+      public int getImagesOnDisk() {
+         return imagesOnDisk_;
+      }
+
+      /**
+       * True while the bytes in flight did not yet drop to the low watermark
+       * after exceeding the high watermark.
+       */
+      public boolean isOverHighWatermark() {
+         return overHighWatermark_;
+      }
+
+      /**
+       * Time the sink did not take images from the engine.
+       */
+      public double getThrottledMs() {
+         return throttledMs_;
+      }
+
+      /**
+       * Mean time to turn a TaggedImage into an Image.
+       */
+      public double getMeanConvertMs() {
+         return meanConvertMs_;
+      }
+
+      /**
+       * Mean time the pipeline took to accept an image.
+       */
+      public double getMeanInsertMs() {
+         return meanInsertMs_;
+      }
+
+      /**
+       * Mean time from handing an image to the pipeline until it was stored.
+       */
+      public double getMeanStoreMs() {
+         return meanStoreMs_;
+      }
+
+      /**
+       * Mean time to write a spilled image to disk and read it back.
+       */
+      public double getMeanSpillMs() {
+         return meanSpillMs_;
+      }
+
+      @Override
+      public String toString() {
+         return String.format("%d images received, %d stored, %d spilled to disk (%d on disk), "
+                     + "%d queued, %.1f MB in flight (peak %.1f MB), throttled %.0f ms; "
+                     + "mean ms per image: convert %.2f, insert %.2f, store %.2f, spill %.2f",
+               imagesReceived_, imagesStored_, imagesSpilled_, imagesOnDisk_, queueDepth_,
+               bytesInFlight_ / 1e6, peakBytesInFlight_ / 1e6, throttledMs_,
+               meanConvertMs_, meanInsertMs_, meanStoreMs_, meanSpillMs_);
+      }
+   }
+
+   // Time without any stored image after which the sink assumes that the
+   // pipeline dropped the images it still counts as in flight.
+   private static final long STALL_MS = 10000;
+
+   /*
+    * An image taken from the engine, in memory or in the spill file.
+    */
+   private static final class Entry {
+      private final TaggedImage tagged_;
+      private final long bytes_;
+
+      private Entry(TaggedImage tagged, long bytes) {
+         tagged_ = tagged;
+         bytes_ = bytes;
+      }
+   }
+
+   private static final Entry END = new Entry(null, 0);
+
+   /*
+    * An image in the pipeline, released when the datastore stored it.
+    */
+   private static final class InFlight {
+      private final Coords coords_;
+      private final long bytes_;
+      private final long insertNs_;
+
+      private InFlight(Coords coords, long bytes, long insertNs) {
+         coords_ = coords;
+         bytes_ = bytes;
+         insertNs_ = insertNs;
+      }
+   }
+
    private final BlockingQueue<TaggedImage> imageProducingQueue_;
    private final Datastore store_;
    private final Pipeline pipeline_;
    private final AcquisitionEngine engine_;
    private final EventManager studioEvents_;
 
+   private OverflowPolicy overflowPolicy_ = OverflowPolicy.SPILL_TO_DISK;
+   private File spillDirectory_ = new File(System.getProperty("java.io.tmpdir"));
+   private Consumer<Boolean> engineThrottle_ = null;
+   private volatile ImageMemoryBudget budget_;
+   private final BlockingQueue<Entry> handoff_ = new LinkedBlockingQueue<>();
+   private final ArrayDeque<InFlight> inPipeline_ = new ArrayDeque<>();
+   private ImageSpillFile spillFile_;
+   private volatile boolean stopped_ = false;
+
+   private final AtomicLong received_ = new AtomicLong();
+   private final AtomicLong converted_ = new AtomicLong();
+   private final AtomicLong stored_ = new AtomicLong();
+   private final AtomicLong spilled_ = new AtomicLong();
+   private final AtomicInteger onDisk_ = new AtomicInteger();
+   private final AtomicLong throttledNs_ = new AtomicLong();
+   private final AtomicLong convertNs_ = new AtomicLong();
+   private final AtomicLong insertNs_ = new AtomicLong();
+   private final AtomicLong storeNs_ = new AtomicLong();
+   private final AtomicLong spillNs_ = new AtomicLong();
+
    public DefaultTaggedImageSink(BlockingQueue<TaggedImage> queue,
                                  Pipeline pipeline,
                                  Datastore store,
@@ -41,6 +264,54 @@ public final class DefaultTaggedImageSink {
       store_ = store;
       engine_ = engine;
       studioEvents_ = studioEvents;
+      long maxMemory = Runtime.getRuntime().maxMemory();
+      budget_ = new ImageMemoryBudget(maxMemory / 4, maxMemory / 8);
+   }
+
+   /**
+    * Sets the bytes in flight above which new images are spilled or
+    * throttled, and the bytes in flight at which this stops.  Defaults to a
+    * quarter and an eighth of the maximum heap size.  Call before start().
+    *
+    * @param highBytes High watermark, in bytes.
+    * @param lowBytes Low watermark, in bytes, at most highBytes.
+    */
+   public void setWatermarks(long highBytes, long lowBytes) {
+      budget_ = new ImageMemoryBudget(highBytes, lowBytes);
+   }
+
+   /**
+    * Sets what to do with new images above the high watermark.  Call before
+    * start().
+    */
+   public void setOverflowPolicy(OverflowPolicy policy) {
+      overflowPolicy_ = policy;
+   }
+
+   /**
+    * Sets where the spill file is created.  Defaults to the temporary
+    * directory.  Call before start().
+    */
+   public void setSpillDirectory(File directory) {
+      spillDirectory_ = directory;
+   }
+
+   /**
+    * Sets how to hold back the engine while the sink throttles, and let it
+    * continue afterwards.  It is called with true when throttling starts and
+    * with false when it ends, and must leave a pause requested by the user in
+    * place.  Without it, only a bounded engine queue holds the engine back.
+    * Call before start().
+    */
+   public void setEngineThrottle(Consumer<Boolean> throttle) {
+      engineThrottle_ = throttle;
+   }
+
+   /**
+    * Returns the current state of the sink.  Can be called from any thread.
+    */
+   public Metrics getMetrics() {
+      return new Metrics(this);
    }
 
    public void start() {
@@ -50,6 +321,9 @@ public final class DefaultTaggedImageSink {
    // sinkFullCallback is a way to stop production of images when/if the sink
    // can no longer accept images.
    public void start(final Runnable sinkFullCallback) {
+      store_.registerForEvents(this);
+      final Thread intakeThread = new Thread(() -> intake(sinkFullCallback),
+            "TaggedImage sink intake thread");
       Thread savingThread = new Thread("TaggedImage sink thread") {
 
          @Override
@@ -58,18 +332,33 @@ public final class DefaultTaggedImageSink {
             int imageCount = 0;
             try {
                while (true) {
-                  TaggedImage tagged = imageProducingQueue_.poll(1, TimeUnit.SECONDS);
-                  if (tagged != null) {
-                     if (TaggedImageQueue.isPoison(tagged)) {
-                        // Acquisition has ended. Clean up under "finally"                        
+                  Entry entry = handoff_.poll(1, TimeUnit.SECONDS);
+                  if (entry != null) {
+                     if (entry == END) {
+                        // Acquisition has ended. Clean up under "finally"
                         break;
                      }
                      try {
+                        TaggedImage tagged = entry.tagged_;
+                        if (tagged == null) {
+                           tagged = readSpilled(entry.bytes_);
+                        }
                         ++imageCount;
+                        long start = System.nanoTime();
                         DefaultImage image = new DefaultImage(tagged);
+                        long converted = System.nanoTime();
+                        convertNs_.addAndGet(converted - start);
+                        converted_.incrementAndGet();
+                        InFlight inFlight = new InFlight(image.getCoords(), entry.bytes_,
+                              converted);
+                        synchronized (inPipeline_) {
+                           inPipeline_.add(inFlight);
+                        }
                         try {
                            pipeline_.insertImage(image);
+                           insertNs_.addAndGet(System.nanoTime() - converted);
                         } catch (PipelineErrorException e) {
+                           release(inFlight);
                            // TODO: make showing the dialog optional.
                            MMStudio.getInstance().logs().logError(e,
                                  "There was an error processing images.");
@@ -94,17 +383,178 @@ public final class DefaultTaggedImageSink {
             } catch (Exception ex2) {
                ReportingUtils.logError(ex2);
             } finally {
+               stopped_ = true;
+               intakeThread.interrupt();
                pipeline_.halt();
+               store_.unregisterForEvents(DefaultTaggedImageSink.this);
+               try {
+                  intakeThread.join();
+               } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+               }
+               if (spillFile_ != null) {
+                  spillFile_.delete();
+               }
                studioEvents_.post(
                      new DefaultAcquisitionEndedEvent(store_, engine_));
             }
             long t2 = System.currentTimeMillis();
             ReportingUtils.logMessage(imageCount + " images stored in " + (t2 - t1) + " ms.");
+            ReportingUtils.logMessage("Image sink: " + getMetrics());
          }
       };
+      intakeThread.start();
       savingThread.start();
    }
 
+   /*
+    * Takes images from the engine as fast as it delivers them, and hands
+    * them to the sink thread in memory or through the spill file.  Runs on
+    * its own thread so that images are spilled while the sink thread is
+    * blocked by the pipeline.
+    */
+   private void intake(Runnable sinkFullCallback) {
+      boolean throttling = false;
+      try {
+         while (!stopped_) {
+            TaggedImage tagged = imageProducingQueue_.poll(1, TimeUnit.SECONDS);
+            if (tagged == null) {
+               continue;
+            }
+            if (TaggedImageQueue.isPoison(tagged)) {
+               break;
+            }
+            received_.incrementAndGet();
+            long bytes = ImageSpillFile.sizeOf(tagged.pix);
+            if (overflowPolicy_ == OverflowPolicy.THROTTLE) {
+               if (!budget_.tryReserve(bytes)) {
+                  long start = System.nanoTime();
+                  ReportingUtils.logMessage("Image sink above high watermark, throttling: "
+                        + getMetrics());
+                  if (engineThrottle_ != null) {
+                     engineThrottle_.accept(true);
+                     throttling = true;
+                  }
+                  reserve(bytes);
+                  if (throttling) {
+                     engineThrottle_.accept(false);
+                     throttling = false;
+                  }
+                  throttledNs_.addAndGet(System.nanoTime() - start);
+               }
+               handoff_.put(new Entry(tagged, bytes));
+            } else if (onDisk_.get() == 0 && budget_.tryReserve(bytes)) {
+               handoff_.put(new Entry(tagged, bytes));
+            } else {
+               // Once images are on disk, all images go there until the sink
+               // caught up, so that images in memory never wait behind
+               // images that can not be read back.
+               if (spillFile_ == null) {
+                  spillFile_ = new ImageSpillFile(spillDirectory_);
+                  ReportingUtils.logMessage("Image sink above high watermark, spilling to "
+                        + spillDirectory_.getPath() + ": " + getMetrics());
+               }
+               long start = System.nanoTime();
+               spillFile_.write(tagged);
+               spillNs_.addAndGet(System.nanoTime() - start);
+               spilled_.incrementAndGet();
+               onDisk_.incrementAndGet();
+               handoff_.put(new Entry(null, bytes));
+            }
+         }
+      } catch (InterruptedException e) {
+         // The sink thread stopped.
+      } catch (IOException e) {
+         ReportingUtils.logError(e, "Unable to spill images to disk");
+         if (sinkFullCallback != null) {
+            sinkFullCallback.run();
+         }
+      } catch (OutOfMemoryError e) {
+         handleOutOfMemory(e, sinkFullCallback);
+      } finally {
+         if (throttling) {
+            engineThrottle_.accept(false);
+         }
+         handoff_.offer(END);
+      }
+   }
+
+   private TaggedImage readSpilled(long bytes) throws IOException, InterruptedException {
+      reserve(bytes);
+      long start = System.nanoTime();
+      TaggedImage tagged = spillFile_.read();
+      spillNs_.addAndGet(System.nanoTime() - start);
+      onDisk_.decrementAndGet();
+      return tagged;
+   }
+
+   /*
+    * Waits until the bytes fit in the budget.  Images that a processor
+    * dropped or renamed are only released when later images are stored, so
+    * when nothing is stored for a long time, the remaining images are
+    * considered gone.
+    */
+   private void reserve(long bytes) throws InterruptedException {
+      while (!budget_.reserve(bytes, STALL_MS)) {
+         ReportingUtils.logMessage("Image sink: no image stored for " + STALL_MS
+               + " ms, no longer counting the images in the pipeline");
+         synchronized (inPipeline_) {
+            while (!inPipeline_.isEmpty()) {
+               budget_.release(inPipeline_.poll().bytes_);
+            }
+         }
+      }
+   }
+
+   private void release(InFlight inFlight) {
+      synchronized (inPipeline_) {
+         if (inPipeline_.remove(inFlight)) {
+            budget_.release(inFlight.bytes_);
+         }
+      }
+   }
+
+   /**
+    * Releases the bytes of images the datastore stored.  Images leave the
+    * pipeline in the order they entered it, so images ahead of the stored
+    * one were dropped by a processor.  An image with coordinates that never
+    * entered the pipeline was made by a processor, and stands in for the
+    * oldest image.
+    *
+    * @param event Announcement of a new image in the datastore.
+    */
+   @Subscribe
+   public void onNewImage(DataProviderHasNewImageEvent event) {
+      long now = System.nanoTime();
+      Coords coords = event.getCoords();
+      synchronized (inPipeline_) {
+         InFlight stored = null;
+         for (InFlight inFlight : inPipeline_) {
+            if (inFlight.coords_.equals(coords)) {
+               stored = inFlight;
+               break;
+            }
+         }
+         if (stored == null) {
+            stored = inPipeline_.peek();
+         }
+         if (stored == null) {
+            return;
+         }
+         Iterator<InFlight> it = inPipeline_.iterator();
+         while (it.hasNext()) {
+            InFlight inFlight = it.next();
+            it.remove();
+            budget_.release(inFlight.bytes_);
+            if (inFlight == stored) {
+               break;
+            }
+         }
+         stored_.incrementAndGet();
+         storeNs_.addAndGet(now - stored.insertNs_);
+      }
+   }
+
    // Never called from EDT
    private void handleOutOfMemory(final OutOfMemoryError e,
                                   Runnable sinkFullCallback) {
@@ -0,0 +1,104 @@
+package org.micromanager.acquisition.internal;
+
+/**
+ * Counts the bytes of image data that were taken from the acquisition engine
+ * but are not yet stored, and decides when new images may be held in memory.
+ *
+ * <p>Once the bytes in flight would exceed the high watermark, no more bytes
+ * can be reserved until the bytes in flight dropped to the low watermark, so
+ * that the caller does not flip between holding images and spilling or
+ * throttling them on every image.  A single image is always accepted when
+ * nothing else is in flight, even if it is larger than the high watermark.</p>
+ */
+final class ImageMemoryBudget {
+   private final long highBytes_;
+   private final long lowBytes_;
+   private long inFlightBytes_ = 0;
+   private long peakBytes_ = 0;
+   private boolean full_ = false;
+   private long releases_ = 0;
+
+   /**
+    * @param highBytes Bytes in flight above which nothing more is reserved.
+    * @param lowBytes Bytes in flight at which reservations resume.
+    */
+   ImageMemoryBudget(long highBytes, long lowBytes) {
+      if (highBytes <= 0 || lowBytes < 0 || lowBytes > highBytes) {
+         throw new IllegalArgumentException("Watermarks must satisfy 0 <= low <= high, "
+               + "with high > 0, got low " + lowBytes + " and high " + highBytes);
+      }
+      highBytes_ = highBytes;
+      lowBytes_ = lowBytes;
+   }
+
+   /**
+    * Reserves bytes for an image, unless that would exceed the high
+    * watermark or the budget has not yet dropped back to the low watermark.
+    *
+    * @return true if the bytes were reserved.
+    */
+   synchronized boolean tryReserve(long bytes) {
+      if (inFlightBytes_ > 0 && (full_ || inFlightBytes_ + bytes > highBytes_)) {
+         full_ = true;
+         return false;
+      }
+      full_ = false;
+      inFlightBytes_ += bytes;
+      peakBytes_ = Math.max(peakBytes_, inFlightBytes_);
+      return true;
+   }
+
+   /**
+    * Waits until the bytes can be reserved, and reserves them.
+    *
+    * @param stallMs Time to wait without any bytes being released before
+    *                giving up.
+    * @return false if nothing was released for stallMs, the bytes are then
+    *     not reserved.
+    */
+   synchronized boolean reserve(long bytes, long stallMs) throws InterruptedException {
+      long lastRelease = releases_;
+      long deadline = System.currentTimeMillis() + stallMs;
+      while (!tryReserve(bytes)) {
+         if (releases_ != lastRelease) {
+            lastRelease = releases_;
+            deadline = System.currentTimeMillis() + stallMs;
+         }
+         long remainingMs = deadline - System.currentTimeMillis();
+         if (remainingMs <= 0) {
+            return false;
+         }
+         wait(remainingMs);
+      }
+      return true;
+   }
+
+   synchronized void release(long bytes) {
+      releases_++;
+      inFlightBytes_ = Math.max(0, inFlightBytes_ - bytes);
+      if (inFlightBytes_ <= lowBytes_) {
+         full_ = false;
+      }
+      notifyAll();
+   }
+
+   synchronized boolean isFull() {
+      return full_;
+   }
+
+   synchronized long getInFlightBytes() {
+      return inFlightBytes_;
+   }
+
+   synchronized long getPeakBytes() {
+      return peakBytes_;
+   }
+
+   long getHighBytes() {
+      return highBytes_;
+   }
+
+   long getLowBytes() {
+      return lowBytes_;
+   }
+}
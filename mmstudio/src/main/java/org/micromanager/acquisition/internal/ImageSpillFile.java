@@ -0,0 +1,191 @@
+package org.micromanager.acquisition.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import mmcorej.TaggedImage;
+import mmcorej.org.json.JSONException;
+import mmcorej.org.json.JSONObject;
+
+/**
+ * Temporary file that holds images the sink can not keep in memory.  Images
+ * are read back in the order they were written.  One thread may write while
+ * another one reads, as long as an image is only read after its write
+ * returned.  Whenever all images written were read back, the file is emptied,
+ * so that it only grows as far as the sink falls behind.
+ */
+final class ImageSpillFile {
+   private static final int CHUNK_BYTES = 64 * 1024;
+   private static final byte BYTE_PIXELS = 1;
+   private static final byte SHORT_PIXELS = 2;
+   private static final byte INT_PIXELS = 4;
+
+   private final File file_;
+   private final byte[] writeChunk_ = new byte[CHUNK_BYTES];
+   private final byte[] readChunk_ = new byte[CHUNK_BYTES];
+   // replaced when the file is emptied, guarded by this
+   private DataOutputStream out_;
+   private DataInputStream in_;
+   // images written, or being written, that were not read back
+   private int unread_ = 0;
+   private volatile long writtenBytes_ = 0;
+
+   ImageSpillFile(File directory) throws IOException {
+      file_ = File.createTempFile("mm_image_spill", ".bin", directory);
+      file_.deleteOnExit();
+      open();
+   }
+
+   /*
+    * Opens the file from its start, dropping its contents.
+    */
+   private void open() throws IOException {
+      out_ = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(file_), CHUNK_BYTES));
+      in_ = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(file_), CHUNK_BYTES));
+   }
+
+   /**
+    * Returns the number of bytes the pixels of an image take in memory.
+    */
+   static long sizeOf(Object pixels) {
+      if (pixels instanceof byte[]) {
+         return ((byte[]) pixels).length;
+      } else if (pixels instanceof short[]) {
+         return 2L * ((short[]) pixels).length;
+      } else if (pixels instanceof int[]) {
+         return 4L * ((int[]) pixels).length;
+      }
+      return 0;
+   }
+
+   void write(TaggedImage tagged) throws IOException {
+      final DataOutputStream out;
+      synchronized (this) {
+         // counted before it is written, so the file is not emptied meanwhile
+         unread_++;
+         out = out_;
+      }
+      byte[] tags = tagged.tags.toString().getBytes(StandardCharsets.UTF_8);
+      out.writeInt(tags.length);
+      out.write(tags);
+      Object pixels = tagged.pix;
+      if (pixels instanceof byte[]) {
+         byte[] data = (byte[]) pixels;
+         out.writeByte(BYTE_PIXELS);
+         out.writeInt(data.length);
+         out.write(data);
+      } else if (pixels instanceof short[]) {
+         short[] data = (short[]) pixels;
+         out.writeByte(SHORT_PIXELS);
+         out.writeInt(data.length);
+         ByteBuffer buffer = ByteBuffer.wrap(writeChunk_);
+         for (int offset = 0; offset < data.length; offset += CHUNK_BYTES / 2) {
+            int count = Math.min(CHUNK_BYTES / 2, data.length - offset);
+            buffer.asShortBuffer().put(data, offset, count);
+            out.write(writeChunk_, 0, count * 2);
+         }
+      } else if (pixels instanceof int[]) {
+         int[] data = (int[]) pixels;
+         out.writeByte(INT_PIXELS);
+         out.writeInt(data.length);
+         ByteBuffer buffer = ByteBuffer.wrap(writeChunk_);
+         for (int offset = 0; offset < data.length; offset += CHUNK_BYTES / 4) {
+            int count = Math.min(CHUNK_BYTES / 4, data.length - offset);
+            buffer.asIntBuffer().put(data, offset, count);
+            out.write(writeChunk_, 0, count * 4);
+         }
+      } else {
+         throw new IOException("Can not spill pixels of type "
+               + (pixels == null ? "null" : pixels.getClass().getName()));
+      }
+      // make the image visible to the reading thread
+      out.flush();
+      writtenBytes_ += 4 + tags.length + 5 + sizeOf(pixels);
+   }
+
+   TaggedImage read() throws IOException {
+      final DataInputStream in;
+      synchronized (this) {
+         in = in_;
+      }
+      byte[] tags = new byte[in.readInt()];
+      in.readFully(tags);
+      byte type = in.readByte();
+      int length = in.readInt();
+      Object pixels;
+      if (type == BYTE_PIXELS) {
+         byte[] data = new byte[length];
+         in.readFully(data);
+         pixels = data;
+      } else if (type == SHORT_PIXELS) {
+         short[] data = new short[length];
+         for (int offset = 0; offset < length; offset += CHUNK_BYTES / 2) {
+            int count = Math.min(CHUNK_BYTES / 2, length - offset);
+            in.readFully(readChunk_, 0, count * 2);
+            ByteBuffer.wrap(readChunk_).asShortBuffer().get(data, offset, count);
+         }
+         pixels = data;
+      } else if (type == INT_PIXELS) {
+         int[] data = new int[length];
+         for (int offset = 0; offset < length; offset += CHUNK_BYTES / 4) {
+            int count = Math.min(CHUNK_BYTES / 4, length - offset);
+            in.readFully(readChunk_, 0, count * 4);
+            ByteBuffer.wrap(readChunk_).asIntBuffer().get(data, offset, count);
+         }
+         pixels = data;
+      } else {
+         throw new IOException("Corrupt spill file " + file_.getPath());
+      }
+      TaggedImage tagged;
+      try {
+         tagged = new TaggedImage(pixels,
+               new JSONObject(new String(tags, StandardCharsets.UTF_8)));
+      } catch (JSONException e) {
+         throw new IOException("Corrupt spill file " + file_.getPath(), e);
+      }
+      synchronized (this) {
+         unread_--;
+         if (unread_ == 0) {
+            out_.close();
+            in_.close();
+            open();
+         }
+      }
+      return tagged;
+   }
+
+   /**
+    * Number of bytes written to disk so far.
+    */
+   long getWrittenBytes() {
+      return writtenBytes_;
+   }
+
+   /**
+    * Current size of the file, in bytes.
+    */
+   long getFileBytes() {
+      return file_.length();
+   }
+
+   synchronized void delete() {
+      try {
+         out_.close();
+         in_.close();
+      } catch (IOException e) {
+         // Nothing left to do with the file.
+      }
+      if (!file_.delete()) {
+         file_.deleteOnExit();
+      }
+   }
+}
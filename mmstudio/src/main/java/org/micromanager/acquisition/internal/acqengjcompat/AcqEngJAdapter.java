@@ -24,10 +24,12 @@ package org.micromanager.acquisition.internal.acqengjcompat;
 import com.google.common.eventbus.Subscribe;
 import java.awt.Component;
 import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -52,7 +54,6 @@ import org.micromanager.acqj.internal.Engine;
 import org.micromanager.acqj.main.AcqEngMetadata;
 import org.micromanager.acqj.main.Acquisition;
 import org.micromanager.acqj.main.AcquisitionEvent;
-import org.micromanager.acqj.util.AcquisitionEventIterator;
 import org.micromanager.acquisition.AcquisitionEndedEvent;
 import org.micromanager.acquisition.ChannelSpec;
 import org.micromanager.acquisition.SequenceSettings;
@@ -62,6 +63,7 @@ import org.micromanager.acquisition.internal.DefaultAcquisitionSettingsChangedEv
 import org.micromanager.acquisition.internal.DefaultAcquisitionStartedEvent;
 import org.micromanager.acquisition.internal.MMAcquisition;
 import org.micromanager.acquisition.internal.MMAcquistionControlCallbacks;
+import org.micromanager.data.Annotation;
 import org.micromanager.data.DataProvider;
 import org.micromanager.data.Datastore;
 import org.micromanager.data.Pipeline;
@@ -94,6 +96,7 @@ import org.micromanager.internal.utils.ReportingUtils;
 public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCallbacks {
 
    public static final String ACQ_IDENTIFIER = "Acq_Identifier";
+   public static final String TIMELAPSE_TIMING_ANNOTATION = "timelapse_timing.txt";
    private static final SimpleDateFormat DATE_FORMATTER =
             new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS Z");
    private Acquisition currentAcquisition_;
@@ -108,6 +111,10 @@ public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCal
    private Pipeline curPipeline_;
    private long nextWakeTime_ = -1;
    private ArrayList<RunnablePlusIndices> runnables_ = new ArrayList<>();
+   private TimelapseScheduler.OverrunPolicy overrunPolicy_ =
+         TimelapseScheduler.OverrunPolicy.CATCH_UP;
+   private TimelapseScheduler timelapseScheduler_;
+   private AcquisitionTracer tracer_ = null;
 
    private class RunnablePlusIndices {
       int channel_;
@@ -241,8 +248,26 @@ public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCal
          currentAcquisition_ = new Acquisition(sink);
          currentAcquisition_.setDebugMode(core_.debugLogEnabled());
 
+         final AcquisitionTracer tracer = tracer_;
+         if (tracer != null) {
+            tracer.start();
+            tracer.addFirstHooks(currentAcquisition_);
+            sink.setTracer(tracer);
+         }
+
          loadRunnables(acquisitionSettings);
 
+         // Time points are scheduled against the start of the acquisition when time is the
+         // outer loop.  Position-first orders restart the time lapse at every position, which
+         // is handled by the timeLapseHook.
+         timelapseScheduler_ = null;
+         if (acquisitionSettings.useFrames()
+               && (acquisitionSettings.acqOrderMode() == AcqOrderMode.TIME_POS_SLICE_CHANNEL
+               || acquisitionSettings.acqOrderMode() == AcqOrderMode.TIME_POS_CHANNEL_SLICE)) {
+            timelapseScheduler_ = new TimelapseScheduler(acquisitionSettings, overrunPolicy_,
+                  TimelapseScheduler.SYSTEM_CLOCK);
+         }
+
          summaryMetadataJSON_ = currentAcquisition_.getSummaryMetadata();
          addMMSummaryMetadata(summaryMetadataJSON_, sequenceSettings, posList_, studio_);
          SummaryMetadata summaryMetadata =  DefaultSummaryMetadata.fromPropertyMap(
@@ -253,6 +278,14 @@ public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCal
          if (posListToUse != null) {
             smb.stagePositions(posListToUse.getPositions());
          }
+         if (timelapseScheduler_ != null) {
+            // the measured start times are added to an annotation when the acquisition ends
+            smb.userData(summaryMetadata.getUserData().copyBuilder()
+                  .putEnumAsString("TimelapseOverrunPolicy", overrunPolicy_)
+                  .putLongList("TimelapsePlannedStartMs",
+                        TimelapseScheduler.plannedStartTimesMs(acquisitionSettings))
+                  .build());
+         }
          summaryMetadata = smb.build();
          MMAcquisition acq = new MMAcquisition(studio_, summaryMetadata, this,
                acquisitionSettings);
@@ -260,6 +293,9 @@ public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCal
          curPipeline_ = acq.getPipeline();
          sink.setDatastore(curStore_);
          sink.setPipeline(curPipeline_);
+         if (tracer != null) {
+            tracer.attach(curStore_);
+         }
 
          zStage_ = core_.getFocusDevice();
 
@@ -363,6 +399,13 @@ public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCal
             currentAcquisition_.addHook(updateNextWakeHook(acquisitionSettings),
                   AcquisitionAPI.AFTER_HARDWARE_HOOK);
          }
+         if (timelapseScheduler_ != null) {
+            currentAcquisition_.addHook(timelapseStartHook(timelapseScheduler_),
+                  AcquisitionAPI.BEFORE_HARDWARE_HOOK);
+         }
+         if (tracer != null) {
+            tracer.addLastHooks(currentAcquisition_);
+         }
 
          // Read for events
          currentAcquisition_.start();
@@ -567,133 +610,103 @@ public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCal
       ;
    }
 
+   /**
+    * Predicts the duration, memory use and storage load of an acquisition
+    * with the given settings and the current position list, without running it.
+    *
+    * @param acquisitionSettings Settings of the acquisition to predict.
+    * @param model Timing of the hardware, image pipeline and storage.
+    * @return Predicted timeline and load of each stage.
+    * @throws Exception when the current Z position can not be read.
+    */
+   public AcquisitionDryRun.Report dryRun(SequenceSettings acquisitionSettings,
+                                          AcquisitionDryRun.TimingModel model)
+         throws Exception {
+      return AcquisitionDryRun.run(acquisitionSettings, posList_, core_, model);
+   }
+
    /**
     * This function converts acquisitionSettings to a lazy sequence (i.e. an iterator) of
-    * AcquisitionEvents.
+    * AcquisitionEvents.  The events are compiled into a plan up front, so that the hardware
+    * is queried once rather than for every event.
     */
    private Iterator<AcquisitionEvent> createAcqEventIterator(SequenceSettings acquisitionSettings)
          throws Exception {
-      // Select channels that we are actually using
-      List<ChannelSpec> chSpecs = new ArrayList<>();
-      for (ChannelSpec chSpec : acquisitionSettings.channels()) {
-         if (chSpec.useChannel()) {
-            chSpecs.add(chSpec);
-         }
+      MDAEventPlan plan = MDAEventPlan.compile(acquisitionSettings, posList_, null, core_);
+      AcquisitionEvent baseEvent = new AcquisitionEvent(currentAcquisition_);
+      Function<AcquisitionEvent, AcquisitionEvent> monitor = acqEventMonitor(acquisitionSettings);
+      final TimelapseScheduler scheduler = timelapseScheduler_;
+      if (scheduler != null) {
+         // ask the scheduler when each time point starts while events are generated
+         final Function<AcquisitionEvent, AcquisitionEvent> next = monitor;
+         monitor = event -> {
+            if (event.getTIndex() != null) {
+               event.setMinimumStartTime(scheduler.getStartTimeMs(event.getTIndex()));
+            }
+            return next == null ? event : next.apply(event);
+         };
       }
-
-      Function<AcquisitionEvent, Iterator<AcquisitionEvent>> zStack = null;
-      if (acquisitionSettings.useSlices()) {
-         double origin = acquisitionSettings.slices().get(0);
-         if (acquisitionSettings.relativeZSlice()) {
-            origin = studio_.core().getPosition() + acquisitionSettings.slices().get(0);
-         }
-         zStack = MDAAcqEventModules.zStack(0,
-               acquisitionSettings.slices().size() - 1,
-               acquisitionSettings.sliceZStepUm(),
-               origin,
-               chSpecs,
-               null);
-      } else if (acquisitionSettings.useChannels() && !chSpecs.isEmpty()) {
-         boolean hasZOffsets = chSpecs.stream().anyMatch(t -> t.zOffset() != 0);
-         if (hasZOffsets) {
-            // add a fake z stack so that the channel z-offsets are handles correctly
-            zStack = MDAAcqEventModules.zStack(0,
-                  0,
-                  0.1,
-                  studio_.core().getPosition(),
-                  chSpecs,
-                  null);
-         }
+      final AcquisitionTracer tracer = tracer_;
+      if (tracer != null) {
+         final Function<AcquisitionEvent, AcquisitionEvent> next = monitor;
+         monitor = event -> {
+            tracer.eventGenerated(event);
+            return next == null ? event : next.apply(event);
+         };
       }
+      return plan.iterator(baseEvent, monitor);
+   }
 
-      Function<AcquisitionEvent, Iterator<AcquisitionEvent>> channels = null;
-      if (acquisitionSettings.useChannels()) {
-         if (chSpecs.size() > 0) {
-            Integer middleSliceIndex = (acquisitionSettings.slices().size() - 1) / 2;
-            channels = MDAAcqEventModules.channels(chSpecs, middleSliceIndex, null);
-         }
-      }
+   /**
+    * Sets what happens with time points that start after their scheduled time,
+    * used by acquisitions that start after this call.
+    *
+    * @param policy Either catch up with the schedule, or skip the missed intervals.
+    */
+   public void setTimelapseOverrunPolicy(TimelapseScheduler.OverrunPolicy policy) {
+      overrunPolicy_ = policy;
+   }
 
-      Function<AcquisitionEvent, Iterator<AcquisitionEvent>> positions = null;
-      if (acquisitionSettings.usePositionList()) {
-         positions = MDAAcqEventModules.positions(posList_, null, core_);
-         // TODO: is acq engine supposed to move multiple stages?
-         // Yes: when moving to a new position, all stages in the MultiStagePosition instance
-         // should be moved to the desired location
-         // TODO: What about Z positions in position list
-         // Yes: First move all stages in the MSP to their desired location, then do
-         // whatever is asked to do.
-      }
+   public TimelapseScheduler.OverrunPolicy getTimelapseOverrunPolicy() {
+      return overrunPolicy_;
+   }
 
-      Function<AcquisitionEvent, Iterator<AcquisitionEvent>> timelapse = null;
-      if (acquisitionSettings.useFrames()) {
-         timelapse = MDAAcqEventModules.timelapse(acquisitionSettings.numFrames(),
-               acquisitionSettings.intervalMs(), null);
-         // TODO custom time intervals
-      }
+   /**
+    * Returns the scheduler of the current or last time lapse, with the planned and
+    * actual start times of its time points, or null if there was none.
+    */
+   public TimelapseScheduler getTimelapseScheduler() {
+      return timelapseScheduler_;
+   }
 
-      ArrayList<Function<AcquisitionEvent, Iterator<AcquisitionEvent>>> acqFunctions
-              = new ArrayList<>();
-      if (acquisitionSettings.acqOrderMode() == AcqOrderMode.POS_TIME_CHANNEL_SLICE) {
-         if (acquisitionSettings.usePositionList()) {
-            acqFunctions.add(positions);
-         }
-         if (acquisitionSettings.useFrames()) {
-            acqFunctions.add(timelapse);
-         }
-         if (acquisitionSettings.useChannels()) {
-            acqFunctions.add(channels);
-         }
-         if (zStack != null) {
-            acqFunctions.add(zStack);
-         }
-      } else if (acquisitionSettings.acqOrderMode() == AcqOrderMode.POS_TIME_SLICE_CHANNEL) {
-         if (acquisitionSettings.usePositionList()) {
-            acqFunctions.add(positions);
-         }
-         if (acquisitionSettings.useFrames()) {
-            acqFunctions.add(timelapse);
-         }
-         if (zStack != null) {
-            acqFunctions.add(zStack);
-         }
-         if (acquisitionSettings.useChannels()) {
-            acqFunctions.add(channels);
-         }
-      } else if (acquisitionSettings.acqOrderMode() == AcqOrderMode.TIME_POS_CHANNEL_SLICE) {
-         if (acquisitionSettings.useFrames()) {
-            acqFunctions.add(timelapse);
-         }
-         if (acquisitionSettings.usePositionList()) {
-            acqFunctions.add(positions);
-         }
-         if (acquisitionSettings.useChannels()) {
-            acqFunctions.add(channels);
-         }
-         if (zStack != null) {
-            acqFunctions.add(zStack);
-         }
-      } else if (acquisitionSettings.acqOrderMode() == AcqOrderMode.TIME_POS_SLICE_CHANNEL) {
-         if (acquisitionSettings.useFrames()) {
-            acqFunctions.add(timelapse);
-         }
-         if (acquisitionSettings.usePositionList()) {
-            acqFunctions.add(positions);
-         }
-         if (zStack != null) {
-            acqFunctions.add(zStack);
-         }
-         if (acquisitionSettings.useChannels()) {
-            acqFunctions.add(channels);
-         }
-      } else {
-         throw new RuntimeException("Unknown acquisition order");
-      }
+   /**
+    * Traces every event of acquisitions that start after this call, from its
+    * generation until its image is stored.
+    *
+    * @param tracer Tracer that keeps the records, or null to stop tracing.
+    */
+   public void setTracer(AcquisitionTracer tracer) {
+      tracer_ = tracer;
+   }
 
-      AcquisitionEvent baseEvent = new AcquisitionEvent(currentAcquisition_);
-      return new AcquisitionEventIterator(baseEvent, acqFunctions,
-            acqEventMonitor(acquisitionSettings));
+   public AcquisitionTracer getTracer() {
+      return tracer_;
+   }
 
+   private AcquisitionHook timelapseStartHook(final TimelapseScheduler scheduler) {
+      return new AcquisitionHook() {
+         @Override
+         public AcquisitionEvent run(AcquisitionEvent event) {
+            if (!event.isAcquisitionFinishedEvent() && event.getTIndex() != null) {
+               scheduler.frameStarted(event.getTIndex());
+            }
+            return event;
+         }
+
+         @Override
+         public void close() {
+         }
+      };
    }
 
    protected Function<AcquisitionEvent, AcquisitionEvent> acqEventMonitor(
@@ -1810,6 +1823,9 @@ public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCal
    @Subscribe
    public void onAcquisitionEnded(AcquisitionEndedEvent event) {
       if (event.getStore().equals(curStore_)) {
+         if (timelapseScheduler_ != null) {
+            storeTimelapseTiming(curStore_, timelapseScheduler_);
+         }
          curStore_ = null;
          curPipeline_ = null;
          if (currentAcquisition_ != null) {
@@ -1825,6 +1841,27 @@ public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCal
       }
    }
 
+   /*
+    * Summary metadata can not change once images were stored, so the measured start
+    * times of the time points go in an annotation next to the data.
+    */
+   private void storeTimelapseTiming(Datastore store, TimelapseScheduler scheduler) {
+      studio_.logs().logMessage("Time lapse start time histogram (upper edges "
+            + Arrays.toString(TimelapseScheduler.getHistogramEdgesMs()) + " ms): "
+            + Arrays.toString(scheduler.getJitterHistogram()) + ", skipped intervals: "
+            + scheduler.getSkippedIntervals());
+      if (store.getSavePath() == null) {
+         return;
+      }
+      try {
+         Annotation annotation = store.getAnnotation(TIMELAPSE_TIMING_ANNOTATION);
+         annotation.setGeneralAnnotation(scheduler.toPropertyMap());
+         annotation.save();
+      } catch (IOException ioe) {
+         studio_.logs().logError(ioe, "Failed to save time lapse timing");
+      }
+   }
+
    @Subscribe
    public void onNewPositionListEvent(NewPositionListEvent newPositionListEvent) {
       posList_ = newPositionListEvent.getPositionList();
@@ -41,6 +41,7 @@ public final class AcqEngJMDADataSink implements AcqEngJDataSink {
    private final EventManager studioEvents_;
    private boolean somethingAcquired_ = false;
    private boolean finished_ = false;
+   private AcquisitionTracer tracer_ = null;
    private AcqEngJAdapter engine_;
 
    public AcqEngJMDADataSink(EventManager studioEvents, AcqEngJAdapter engine) {
@@ -56,6 +57,15 @@ public final class AcqEngJMDADataSink implements AcqEngJDataSink {
       store_ = store;
    }
 
+   /**
+    * Records when images arrive and when they were handed to the pipeline.
+    *
+    * @param tracer Tracer of the acquisition, or null to not trace.
+    */
+   public void setTracer(AcquisitionTracer tracer) {
+      tracer_ = tracer;
+   }
+
    // Never called from EDT
    private void handleOutOfMemory(final OutOfMemoryError e) {
       ReportingUtils.logError(e);
@@ -91,6 +101,7 @@ public final class AcqEngJMDADataSink implements AcqEngJDataSink {
 
    @Override
    public Object putImage(TaggedImage tagged) {
+      final long receivedNs = System.nanoTime();
       somethingAcquired_ = true;
       if (finished_) {
          return null;
@@ -137,9 +148,16 @@ public final class AcqEngJMDADataSink implements AcqEngJDataSink {
             }
          }
          image = (DefaultImage) image.copyAtCoords(cb.build());
+         if (tracer_ != null) {
+            tracer_.mark(AcquisitionTracer.Stage.IMAGE_RECEIVED, image.getCoords(), receivedNs);
+         }
 
          try {
             pipeline_.insertImage(image);
+            if (tracer_ != null) {
+               tracer_.mark(AcquisitionTracer.Stage.IMAGE_QUEUED, image.getCoords(),
+                     System.nanoTime());
+            }
          } catch (PipelineErrorException e) {
             // These TODOs inherited from DefaultTaggedImageSink
             // TODO: make showing the dialog optional.
@@ -0,0 +1,463 @@
+package org.micromanager.acquisition.internal.acqengjcompat;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import mmcorej.CMMCore;
+import org.micromanager.PositionList;
+import org.micromanager.acquisition.SequenceSettings;
+
+/**
+ * Predicts how a multi-dimensional acquisition will run without touching
+ * any hardware.
+ *
+ * <p>The events of an {@link MDAEventPlan} are replayed against a timing
+ * model of the microscope.  Every event waits for its minimum start time,
+ * moves the stages, switches channels, opens the shutter, exposes and reads
+ * out the camera.  The synthetic images that come out of the camera then
+ * pass through two queues: processing (the image pipeline) and storage
+ * (writing to disk).  Each of the three stages works on one image at a time,
+ * so the report shows which stage limits the acquisition, how deep the
+ * queues get, and how much memory the images waiting in them take.</p>
+ */
+public final class AcquisitionDryRun {
+
+   /**
+    * Stages that images pass through.
+    */
+   public enum Stage {
+      HARDWARE, PROCESSING, STORAGE
+   }
+
+   /**
+    * Latencies and throughputs of the microscope, the image pipeline and the
+    * disk.  All times are in milliseconds.
+    */
+   public static final class TimingModel {
+      private final double defaultExposureMs_;
+      private final double readoutMs_;
+      private final double xyStageSpeedUmPerS_;
+      private final double xyStageSettleMs_;
+      private final double zStageSpeedUmPerS_;
+      private final double zStageSettleMs_;
+      private final double shutterMs_;
+      private final double configSwitchMs_;
+      private final double processingMs_;
+      private final double diskMBPerS_;
+      private final long bufferBytes_;
+      private final int imageWidth_;
+      private final int imageHeight_;
+      private final int bytesPerPixel_;
+
+      /**
+       * Builder for the timing model.  Defaults are those of a typical
+       * scientific CMOS camera writing to a local SSD.
+       */
+      public static final class Builder {
+         private double defaultExposureMs_ = 10.0;
+         private double readoutMs_ = 10.0;
+         private double xyStageSpeedUmPerS_ = 5000.0;
+         private double xyStageSettleMs_ = 50.0;
+         private double zStageSpeedUmPerS_ = 1000.0;
+         private double zStageSettleMs_ = 10.0;
+         private double shutterMs_ = 5.0;
+         private double configSwitchMs_ = 20.0;
+         private double processingMs_ = 1.0;
+         private double diskMBPerS_ = 500.0;
+         private long bufferBytes_ = 1L << 30;
+         private int imageWidth_ = 2048;
+         private int imageHeight_ = 2048;
+         private int bytesPerPixel_ = 2;
+
+         /**
+          * Exposure of events that do not set one (acquisitions without channels).
+          */
+         public Builder defaultExposureMs(double exposureMs) {
+            defaultExposureMs_ = exposureMs;
+            return this;
+         }
+
+         public Builder readoutMs(double readoutMs) {
+            readoutMs_ = readoutMs;
+            return this;
+         }
+
+         public Builder xyStage(double speedUmPerS, double settleMs) {
+            xyStageSpeedUmPerS_ = speedUmPerS;
+            xyStageSettleMs_ = settleMs;
+            return this;
+         }
+
+         public Builder zStage(double speedUmPerS, double settleMs) {
+            zStageSpeedUmPerS_ = speedUmPerS;
+            zStageSettleMs_ = settleMs;
+            return this;
+         }
+
+         /**
+          * Time to open and close the shutter around one exposure.
+          */
+         public Builder shutterMs(double shutterMs) {
+            shutterMs_ = shutterMs;
+            return this;
+         }
+
+         /**
+          * Time to apply the configuration of another channel.
+          */
+         public Builder configSwitchMs(double configSwitchMs) {
+            configSwitchMs_ = configSwitchMs;
+            return this;
+         }
+
+         /**
+          * Time the image pipeline (processors, display) spends on each image.
+          */
+         public Builder processingMs(double processingMs) {
+            processingMs_ = processingMs;
+            return this;
+         }
+
+         /**
+          * Sustained write speed of the storage, in megabytes (10^6 bytes) per second.
+          */
+         public Builder diskMBPerS(double diskMBPerS) {
+            diskMBPerS_ = diskMBPerS;
+            return this;
+         }
+
+         /**
+          * Memory available for images waiting to be processed or stored.
+          */
+         public Builder bufferBytes(long bufferBytes) {
+            bufferBytes_ = bufferBytes;
+            return this;
+         }
+
+         /**
+          * Size of the synthetic images coming out of the camera.
+          */
+         public Builder image(int width, int height, int bytesPerPixel) {
+            imageWidth_ = width;
+            imageHeight_ = height;
+            bytesPerPixel_ = bytesPerPixel;
+            return this;
+         }
+
+         public TimingModel build() {
+            return new TimingModel(this);
+         }
+      }
+
+      private TimingModel(Builder builder) {
+         if (builder.xyStageSpeedUmPerS_ <= 0.0 || builder.zStageSpeedUmPerS_ <= 0.0
+               || builder.diskMBPerS_ <= 0.0) {
+            throw new IllegalArgumentException("Stage and disk speeds should be positive");
+         }
+         defaultExposureMs_ = builder.defaultExposureMs_;
+         readoutMs_ = builder.readoutMs_;
+         xyStageSpeedUmPerS_ = builder.xyStageSpeedUmPerS_;
+         xyStageSettleMs_ = builder.xyStageSettleMs_;
+         zStageSpeedUmPerS_ = builder.zStageSpeedUmPerS_;
+         zStageSettleMs_ = builder.zStageSettleMs_;
+         shutterMs_ = builder.shutterMs_;
+         configSwitchMs_ = builder.configSwitchMs_;
+         processingMs_ = builder.processingMs_;
+         diskMBPerS_ = builder.diskMBPerS_;
+         bufferBytes_ = builder.bufferBytes_;
+         imageWidth_ = builder.imageWidth_;
+         imageHeight_ = builder.imageHeight_;
+         bytesPerPixel_ = builder.bytesPerPixel_;
+      }
+
+      public long getImageBytes() {
+         return (long) imageWidth_ * imageHeight_ * bytesPerPixel_;
+      }
+
+      /**
+       * Time needed to write one image.
+       */
+      public double getWriteMs() {
+         return getImageBytes() / (diskMBPerS_ * 1000.0);
+      }
+   }
+
+   /**
+    * Outcome of a dry run.
+    */
+   public static final class Report {
+      private final double[] startMs_;
+      private final double[] storedMs_;
+      private final long imageBytes_;
+      private final double acquisitionEndMs_;
+      private final long bufferBytes_;
+      private final double diskMBPerS_;
+      private final Map<Stage, Double> busyMs_;
+      private final long peakMemoryBytes_;
+      private final int maxProcessingQueue_;
+      private final int maxStorageQueue_;
+
+      private Report(double[] startMs, double[] storedMs, double acquisitionEndMs,
+                     TimingModel model, Map<Stage, Double> busyMs, int peakImages,
+                     int maxProcessingQueue, int maxStorageQueue) {
+         startMs_ = startMs;
+         storedMs_ = storedMs;
+         acquisitionEndMs_ = acquisitionEndMs;
+         imageBytes_ = model.getImageBytes();
+         bufferBytes_ = model.bufferBytes_;
+         diskMBPerS_ = model.diskMBPerS_;
+         busyMs_ = busyMs;
+         peakMemoryBytes_ = peakImages * imageBytes_;
+         maxProcessingQueue_ = maxProcessingQueue;
+         maxStorageQueue_ = maxStorageQueue;
+      }
+
+      public int getNumberOfImages() {
+         return startMs_.length;
+      }
+
+      /**
+       * Time from the start of the acquisition until the last image is stored.
+       */
+      public double getDurationMs() {
+         return storedMs_.length == 0 ? 0.0 : storedMs_[storedMs_.length - 1];
+      }
+
+      /**
+       * Time at which the hardware starts to work on the given event.
+       */
+      public double getEventStartMs(int event) {
+         return startMs_[event];
+      }
+
+      /**
+       * Time at which the image of the given event has been written.
+       */
+      public double getImageStoredMs(int event) {
+         return storedMs_[event];
+      }
+
+      /**
+       * Time the given stage spends working, excluding time waiting for
+       * images or for the next time point.
+       */
+      public double getBusyMs(Stage stage) {
+         return busyMs_.get(stage);
+      }
+
+      /**
+       * The stage that is busy for the largest part of the acquisition.
+       */
+      public Stage getBottleneck() {
+         Stage bottleneck = Stage.HARDWARE;
+         for (Stage stage : Stage.values()) {
+            if (busyMs_.get(stage) > busyMs_.get(bottleneck)) {
+               bottleneck = stage;
+            }
+         }
+         return bottleneck;
+      }
+
+      /**
+       * Largest amount of memory taken by images that were acquired, but not
+       * yet stored.
+       */
+      public long getPeakMemoryBytes() {
+         return peakMemoryBytes_;
+      }
+
+      /**
+       * Largest number of images waiting for, or in, the image pipeline.
+       */
+      public int getMaxProcessingQueueDepth() {
+         return maxProcessingQueue_;
+      }
+
+      /**
+       * Largest number of images waiting to be, or being, written.
+       */
+      public int getMaxStorageQueueDepth() {
+         return maxStorageQueue_;
+      }
+
+      /**
+       * Write speed needed to store images as fast as the hardware acquires
+       * them, in megabytes per second.
+       */
+      public double getRequiredDiskMBPerS() {
+         return acquisitionEndMs_ <= 0.0 ? 0.0
+               : imageBytes_ * (double) startMs_.length / (acquisitionEndMs_ * 1000.0);
+      }
+
+      /**
+       * True when the images waiting for storage always fit in the buffer.
+       */
+      public boolean storageKeepsUp() {
+         return peakMemoryBytes_ <= bufferBytes_;
+      }
+
+      @Override
+      public String toString() {
+         return String.format("%d images in %.1f s, bottleneck: %s%n"
+                     + "busy: hardware %.1f s, processing %.1f s, storage %.1f s%n"
+                     + "max queue depth: processing %d, storage %d, peak memory %.1f MB%n"
+                     + "disk: %.1f MB/s needed, %.1f MB/s available, %s",
+               getNumberOfImages(), getDurationMs() / 1000.0, getBottleneck(),
+               getBusyMs(Stage.HARDWARE) / 1000.0, getBusyMs(Stage.PROCESSING) / 1000.0,
+               getBusyMs(Stage.STORAGE) / 1000.0,
+               maxProcessingQueue_, maxStorageQueue_, peakMemoryBytes_ / 1e6,
+               getRequiredDiskMBPerS(), diskMBPerS_,
+               storageKeepsUp() ? "storage keeps up" : "buffer overflows");
+      }
+   }
+
+   private AcquisitionDryRun() {
+   }
+
+   /**
+    * Predicts the duration, memory use and storage load of an acquisition,
+    * without running it.  Used by the acquisition engines to offer a dry run
+    * of the acquisition they would start with the same settings.
+    *
+    * @param settings Settings of the acquisition to predict.
+    * @param positionList Positions the acquisition would visit.
+    * @param core Core, used to read the current Z position and the XY stage.
+    * @param model Timing of the hardware, image pipeline and storage.
+    * @return Predicted timeline and load of each stage.
+    * @throws Exception when the current Z position can not be read.
+    */
+   public static Report run(SequenceSettings settings, PositionList positionList,
+                            CMMCore core, TimingModel model) throws Exception {
+      return run(MDAEventPlan.compile(settings, positionList, null, core), settings, model);
+   }
+
+   /**
+    * Replays all events of the plan against the timing model.
+    *
+    * @param plan Events of the acquisition.
+    * @param settings Settings the plan was compiled from, used for the
+    *                 shutter options.
+    * @param model Timing of the hardware, the image pipeline and the storage.
+    * @return Predicted timeline and load of each stage.
+    */
+   public static Report run(MDAEventPlan plan, SequenceSettings settings, TimingModel model) {
+      final int n = plan.getNumberOfEvents();
+      final double writeMs = model.getWriteMs();
+      double[] startMs = new double[n];
+      double[] storedMs = new double[n];
+      // time at which each image leaves the pipeline
+      double[] processedMs = new double[n];
+
+      double now = 0.0;
+      double hardwareBusy = 0.0;
+      double processingFree = 0.0;
+      double storageFree = 0.0;
+      double lastX = Double.NaN;
+      double lastY = Double.NaN;
+      double lastZ = Double.NaN;
+      int lastPosition = -1;
+      int lastChannel = -1;
+      // last known position of stages other than the XY stage
+      Map<String, Double> lastStagePositions = new HashMap<>();
+      int processingDone = 0;
+      int storageDone = 0;
+      int maxProcessingQueue = 0;
+      int maxStorageQueue = 0;
+      int peakImages = 0;
+      for (int e = 0; e < n; e++) {
+         now = Math.max(now, plan.getMinimumStartTimeMs(e));
+         startMs[e] = now;
+         double hardwareMs = 0.0;
+
+         final int position = plan.getPositionIndex(e);
+         if (position != lastPosition && position >= 0) {
+            final double x = plan.getX(e);
+            final double y = plan.getY(e);
+            if (!Double.isNaN(x) && !Double.isNaN(lastX)) {
+               double distance = Math.max(Math.abs(x - lastX), Math.abs(y - lastY));
+               hardwareMs += 1000.0 * distance / model.xyStageSpeedUmPerS_
+                     + model.xyStageSettleMs_;
+            }
+            lastX = x;
+            lastY = y;
+            // other stages of the position, only when they actually move
+            double stageMs = 0.0;
+            for (int s = 0; s < plan.getNumberOfStages(e); s++) {
+               final double target = plan.getStagePosition(e, s);
+               final Double previous = lastStagePositions.put(plan.getStageLabel(e, s), target);
+               if (previous == null) {
+                  stageMs = Math.max(stageMs, model.zStageSettleMs_);
+               } else if (previous != target) {
+                  stageMs = Math.max(stageMs, 1000.0 * Math.abs(target - previous)
+                        / model.zStageSpeedUmPerS_ + model.zStageSettleMs_);
+               }
+            }
+            hardwareMs += stageMs;
+         }
+         final double z = plan.getZPosition(e);
+         if (!Double.isNaN(z) && z != lastZ) {
+            if (!Double.isNaN(lastZ)) {
+               hardwareMs += 1000.0 * Math.abs(z - lastZ) / model.zStageSpeedUmPerS_;
+            }
+            hardwareMs += model.zStageSettleMs_;
+            lastZ = z;
+         }
+         final int channel = plan.getChannelIndex(e);
+         if (channel != lastChannel && channel >= 0) {
+            hardwareMs += model.configSwitchMs_;
+         }
+         if (!shutterStaysOpen(plan, settings, e)) {
+            hardwareMs += model.shutterMs_;
+         }
+         final double exposure = plan.getExposureMs(e);
+         hardwareMs += (Double.isNaN(exposure) ? model.defaultExposureMs_ : exposure)
+               + model.readoutMs_;
+         lastPosition = position;
+         lastChannel = channel;
+
+         now += hardwareMs;
+         hardwareBusy += hardwareMs;
+         final double acquired = now;
+
+         // the pipeline and the storage each handle one image at a time
+         processingFree = Math.max(processingFree, acquired) + model.processingMs_;
+         processedMs[e] = processingFree;
+         storageFree = Math.max(storageFree, processingFree) + writeMs;
+         storedMs[e] = storageFree;
+
+         // queues as seen by the image that just arrived
+         while (processingDone < e && processedMs[processingDone] <= acquired) {
+            processingDone++;
+         }
+         while (storageDone < e && storedMs[storageDone] <= acquired) {
+            storageDone++;
+         }
+         maxProcessingQueue = Math.max(maxProcessingQueue, e + 1 - processingDone);
+         maxStorageQueue = Math.max(maxStorageQueue, processingDone - storageDone);
+         peakImages = Math.max(peakImages, e + 1 - storageDone);
+      }
+
+      Map<Stage, Double> busy = new EnumMap<>(Stage.class);
+      busy.put(Stage.HARDWARE, hardwareBusy);
+      busy.put(Stage.PROCESSING, n * model.processingMs_);
+      busy.put(Stage.STORAGE, n * writeMs);
+      return new Report(startMs, storedMs, now, model, busy, peakImages, maxProcessingQueue,
+            maxStorageQueue);
+   }
+
+   /*
+    * The shutter stays open between events that only differ in slice (or
+    * channel) when the settings ask for it.
+    */
+   private static boolean shutterStaysOpen(MDAEventPlan plan, SequenceSettings settings,
+                                           int e) {
+      if (e == 0 || plan.getPositionIndex(e) != plan.getPositionIndex(e - 1)
+            || plan.getTimeIndex(e) != plan.getTimeIndex(e - 1)) {
+         return false;
+      }
+      final boolean sameChannel = plan.getChannelIndex(e) == plan.getChannelIndex(e - 1);
+      final boolean sameSlice = plan.getSliceIndex(e) == plan.getSliceIndex(e - 1);
+      return (sameChannel && settings.keepShutterOpenSlices())
+            || (sameSlice && settings.keepShutterOpenChannels());
+   }
+}
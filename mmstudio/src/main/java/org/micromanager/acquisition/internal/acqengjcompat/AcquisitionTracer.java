@@ -0,0 +1,494 @@
+package org.micromanager.acquisition.internal.acqengjcompat;
+
+import com.google.common.eventbus.Subscribe;
+import com.google.gson.stream.JsonWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import org.micromanager.acqj.api.AcquisitionAPI;
+import org.micromanager.acqj.api.AcquisitionHook;
+import org.micromanager.acqj.main.AcqEngMetadata;
+import org.micromanager.acqj.main.Acquisition;
+import org.micromanager.acqj.main.AcquisitionEvent;
+import org.micromanager.data.Coords;
+import org.micromanager.data.DataProviderHasNewImageEvent;
+import org.micromanager.data.Datastore;
+
+/**
+ * Records when each acquisition event reaches each stage on its way from
+ * the event generator to storage, so that it is possible to see where the
+ * time of a slow acquisition goes.
+ *
+ * <p>Records are kept in a ring buffer that is allocated up front.  When
+ * more events are traced than fit, the oldest records are overwritten.
+ * Events and images are matched by their time point, position, channel and
+ * slice index, through an open-addressing hash table from these indices to
+ * the newest record.  The table is allocated together with the ring buffer,
+ * so tracing an event or marking a stage does not allocate.</p>
+ *
+ * <p>The tracer is opt-in: hand it to the acquisition engine with
+ * {@code setTracer()} before starting an acquisition.  Afterwards, the
+ * records can be exported in the Chrome trace-event format (open in
+ * chrome://tracing or https://ui.perfetto.dev) and summarized per stage.</p>
+ */
+public final class AcquisitionTracer {
+
+   /**
+    * Moments in the life of an acquisition event, in the order in which
+    * they normally happen.
+    */
+   public enum Stage {
+      EVENT_GENERATED(""),
+      HOOKS_STARTED("Waiting for the engine"),
+      HARDWARE_STARTED("Before-hardware hooks"),
+      Z_HOOKS_STARTED("Hardware"),
+      Z_DRIVE_STARTED("Before-Z-drive hooks"),
+      HARDWARE_DONE("Z drive"),
+      EXPOSURE_DONE("After-hardware hooks and exposure"),
+      IMAGE_RECEIVED("Readout and image transfer queue"),
+      IMAGE_QUEUED("Data sink"),
+      IMAGE_STORED("Pipeline and storage");
+
+      private final String interval_;
+
+      Stage(String interval) {
+         interval_ = interval;
+      }
+
+      /**
+       * What happens between the previous stage and this one.
+       */
+      public String getInterval() {
+         return interval_;
+      }
+   }
+
+   public static final int DEFAULT_CAPACITY = 1 << 16;
+
+   private static final Stage[] STAGES = Stage.values();
+   private static final int NUM_STAGES = STAGES.length;
+   private static final long UNSET = Long.MIN_VALUE;
+   private static final int FREE = -1;
+   private static final double[] PERCENTILES = {50.0, 90.0, 99.0, 100.0};
+
+   private final int capacity_;
+   // t, p, c and z index of each record
+   private final int[] indices_;
+   // time of each stage of each record, in ns since the start
+   private final long[] times_;
+   // hash table, with linear probing, from the packed indices of a record
+   // to the slot of the newest record with these indices.  At most half of
+   // the entries are used, since there are at most capacity_ records.
+   private final long[] tableKeys_;
+   private final int[] tableSlots_;
+   private final int tableMask_;
+   private long count_ = 0;
+   private long originNs_ = System.nanoTime();
+
+   public AcquisitionTracer() {
+      this(DEFAULT_CAPACITY);
+   }
+
+   /**
+    * Creates a tracer.
+    *
+    * @param capacity Number of events to keep.
+    */
+   public AcquisitionTracer(int capacity) {
+      if (capacity < 1) {
+         throw new IllegalArgumentException("Capacity must be at least 1");
+      }
+      capacity_ = capacity;
+      indices_ = new int[capacity * 4];
+      times_ = new long[capacity * NUM_STAGES];
+      Arrays.fill(times_, UNSET);
+      final int tableSize = Integer.highestOneBit(2 * capacity - 1) << 1;
+      tableKeys_ = new long[tableSize];
+      tableSlots_ = new int[tableSize];
+      tableMask_ = tableSize - 1;
+      Arrays.fill(tableSlots_, FREE);
+   }
+
+   /**
+    * Forgets all records, and restarts the clock.  Called by the acquisition
+    * engine when an acquisition starts.
+    */
+   public synchronized void start() {
+      Arrays.fill(times_, UNSET);
+      Arrays.fill(tableSlots_, FREE);
+      count_ = 0;
+      originNs_ = System.nanoTime();
+   }
+
+   /**
+    * Adds the hooks that have to run before all other hooks of their kind.
+    * Call before adding any other hook to the acquisition.
+    *
+    * @param acquisition Acquisition to trace.
+    */
+   public void addFirstHooks(Acquisition acquisition) {
+      acquisition.addHook(hook(Stage.HOOKS_STARTED), AcquisitionAPI.BEFORE_HARDWARE_HOOK);
+      acquisition.addHook(hook(Stage.Z_HOOKS_STARTED), AcquisitionAPI.BEFORE_Z_DRIVE_HOOK);
+      acquisition.addHook(hook(Stage.HARDWARE_DONE), AcquisitionAPI.AFTER_HARDWARE_HOOK);
+      acquisition.addHook(hook(Stage.EXPOSURE_DONE), AcquisitionAPI.AFTER_EXPOSURE_HOOK);
+   }
+
+   /**
+    * Adds the hooks that have to run after all other hooks of their kind.
+    * Call after adding all other hooks to the acquisition.
+    *
+    * @param acquisition Acquisition to trace.
+    */
+   public void addLastHooks(Acquisition acquisition) {
+      acquisition.addHook(hook(Stage.HARDWARE_STARTED), AcquisitionAPI.BEFORE_HARDWARE_HOOK);
+      acquisition.addHook(hook(Stage.Z_DRIVE_STARTED), AcquisitionAPI.BEFORE_Z_DRIVE_HOOK);
+   }
+
+   private AcquisitionHook hook(final Stage stage) {
+      return new AcquisitionHook() {
+         @Override
+         public AcquisitionEvent run(AcquisitionEvent event) {
+            if (!event.isAcquisitionFinishedEvent()) {
+               mark(stage, event);
+            }
+            return event;
+         }
+
+         @Override
+         public void close() {
+            // nothing to clean up
+         }
+      };
+   }
+
+   /**
+    * Starts a record for a newly generated event.
+    *
+    * @param event Event that was just generated.
+    */
+   public synchronized void eventGenerated(AcquisitionEvent event) {
+      if (event == null || event.isAcquisitionFinishedEvent()) {
+         return;
+      }
+      final int slot = (int) (count_ % capacity_);
+      final int i = slot * 4;
+      if (count_ >= capacity_) {
+         // forget the overwritten record, unless a newer one has its indices
+         final int entry = find(indices_[i], indices_[i + 1], indices_[i + 2], indices_[i + 3]);
+         if (entry != FREE && tableSlots_[entry] == slot) {
+            removeEntry(entry);
+         }
+      }
+      Arrays.fill(times_, slot * NUM_STAGES, (slot + 1) * NUM_STAGES, UNSET);
+      indices_[i] = index(event.getTIndex());
+      indices_[i + 1] = index(event.getAxisPosition(MDAAcqEventModules.POSITION_AXIS));
+      indices_[i + 2] = index(event.getAxisPosition(AcqEngMetadata.CHANNEL_AXIS));
+      indices_[i + 3] = index(event.getZIndex());
+      put(indices_[i], indices_[i + 1], indices_[i + 2], indices_[i + 3], slot);
+      times_[slot * NUM_STAGES] = System.nanoTime() - originNs_;
+      count_++;
+   }
+
+   /**
+    * Records that the given event reached the given stage.  For sequenced
+    * events, every event in the sequence is marked.
+    *
+    * @param stage Stage that was reached.
+    * @param event Event, as seen by an acquisition hook.
+    */
+   public void mark(Stage stage, AcquisitionEvent event) {
+      final long now = System.nanoTime();
+      List<AcquisitionEvent> sequence = event.getSequence();
+      if (sequence != null) {
+         for (int i = 0; i < sequence.size(); i++) {
+            markEvent(stage, sequence.get(i), now);
+         }
+      } else {
+         markEvent(stage, event, now);
+      }
+   }
+
+   private void markEvent(Stage stage, AcquisitionEvent event, long nowNs) {
+      markIndices(stage, index(event.getTIndex()),
+            index(event.getAxisPosition(MDAAcqEventModules.POSITION_AXIS)),
+            index(event.getAxisPosition(AcqEngMetadata.CHANNEL_AXIS)),
+            index(event.getZIndex()), nowNs);
+   }
+
+   /**
+    * Records that the image at the given coordinates reached the given stage
+    * at the given time.
+    *
+    * @param stage Stage that was reached.
+    * @param coords Coordinates of the image.
+    * @param nowNs Time as given by System.nanoTime().
+    */
+   public void mark(Stage stage, Coords coords, long nowNs) {
+      markIndices(stage, coords.getT(), coords.getP(), coords.getC(), coords.getZ(), nowNs);
+   }
+
+   /*
+    * Marks the newest record with these indices, unless it already reached
+    * the stage.
+    */
+   private synchronized void markIndices(Stage stage, int t, int p, int c, int z, long nowNs) {
+      final int entry = find(t, p, c, z);
+      if (entry == FREE) {
+         return;
+      }
+      final int s = tableSlots_[entry] * NUM_STAGES + stage.ordinal();
+      if (times_[s] == UNSET) {
+         times_[s] = nowNs - originNs_;
+      }
+   }
+
+   /*
+    * Indices packed into a single key, 16 bits each.  Indices that do not
+    * fit in 16 bits can give equal keys, so matches are confirmed against
+    * the indices of the record.
+    */
+   private static long pack(int t, int p, int c, int z) {
+      return ((long) (t & 0xFFFF) << 48) | ((long) (p & 0xFFFF) << 32)
+            | ((long) (c & 0xFFFF) << 16) | (z & 0xFFFF);
+   }
+
+   private int home(long key) {
+      return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & tableMask_;
+   }
+
+   /*
+    * Table entry of the newest record with these indices, or FREE.
+    */
+   private int find(int t, int p, int c, int z) {
+      final long key = pack(t, p, c, z);
+      for (int e = home(key); tableSlots_[e] != FREE; e = (e + 1) & tableMask_) {
+         if (tableKeys_[e] == key) {
+            final int i = tableSlots_[e] * 4;
+            if (indices_[i] == t && indices_[i + 1] == p && indices_[i + 2] == c
+                  && indices_[i + 3] == z) {
+               return e;
+            }
+         }
+      }
+      return FREE;
+   }
+
+   /*
+    * Points the indices at the given slot.  Expects that the indices of the
+    * slot were already set.
+    */
+   private void put(int t, int p, int c, int z, int slot) {
+      int e = find(t, p, c, z);
+      if (e == FREE) {
+         final long key = pack(t, p, c, z);
+         e = home(key);
+         while (tableSlots_[e] != FREE) {
+            e = (e + 1) & tableMask_;
+         }
+         tableKeys_[e] = key;
+      }
+      tableSlots_[e] = slot;
+   }
+
+   /*
+    * Removes an entry, and moves later entries of the same probe sequence
+    * back so that lookups do not stop early at the hole.
+    */
+   private void removeEntry(int entry) {
+      int hole = entry;
+      tableSlots_[hole] = FREE;
+      for (int e = (hole + 1) & tableMask_; tableSlots_[e] != FREE; e = (e + 1) & tableMask_) {
+         // the entry can fill the hole unless its home lies between the hole and itself
+         if (((e - home(tableKeys_[e])) & tableMask_) >= ((e - hole) & tableMask_)) {
+            tableKeys_[hole] = tableKeys_[e];
+            tableSlots_[hole] = tableSlots_[e];
+            tableSlots_[e] = FREE;
+            hole = e;
+         }
+      }
+   }
+
+   private static int index(Object index) {
+      return index instanceof Integer ? (Integer) index : 0;
+   }
+
+   /**
+    * Marks images as stored when the datastore announces them.
+    *
+    * @param store Datastore of the acquisition.
+    */
+   public void attach(Datastore store) {
+      store.registerForEvents(this);
+   }
+
+   @Subscribe
+   public void onNewImage(DataProviderHasNewImageEvent event) {
+      mark(Stage.IMAGE_STORED, event.getCoords(), System.nanoTime());
+   }
+
+   /**
+    * Number of events that can be kept.
+    */
+   public int getCapacity() {
+      return capacity_;
+   }
+
+   /**
+    * Number of events traced since the start, including the ones that were
+    * overwritten.
+    */
+   public synchronized long getNumberOfEvents() {
+      return count_;
+   }
+
+   /**
+    * Time at which the given record reached the given stage.
+    *
+    * @param record Index of the record, 0 is the oldest one still kept.
+    * @param stage Stage of interest.
+    * @return Time in ms since the start of tracing, or NaN if the stage was
+    *     not reached.
+    */
+   public synchronized double getTimeMs(int record, Stage stage) {
+      long time = times_[slotOf(record) * NUM_STAGES + stage.ordinal()];
+      return time == UNSET ? Double.NaN : time / 1e6;
+   }
+
+   private int slotOf(int record) {
+      return (int) ((Math.max(0, count_ - capacity_) + record) % capacity_);
+   }
+
+   private int numberOfRecords() {
+      return (int) Math.min(count_, capacity_);
+   }
+
+   /**
+    * Time spent on the way to the given stage, i.e. since the previous stage
+    * that was reached, over all kept records that reached it.
+    *
+    * @param stage Stage of interest.
+    * @return 50th, 90th and 99th percentile and maximum in ms, NaN if no
+    *     record reached the stage.
+    */
+   public synchronized double[] getLatencyPercentilesMs(Stage stage) {
+      long[] latencies = new long[numberOfRecords()];
+      int n = 0;
+      for (int r = 0; r < latencies.length; r++) {
+         final int base = slotOf(r) * NUM_STAGES;
+         if (times_[base + stage.ordinal()] == UNSET) {
+            continue;
+         }
+         for (int s = stage.ordinal() - 1; s >= 0; s--) {
+            if (times_[base + s] != UNSET) {
+               latencies[n++] = times_[base + stage.ordinal()] - times_[base + s];
+               break;
+            }
+         }
+      }
+      Arrays.sort(latencies, 0, n);
+      double[] result = new double[PERCENTILES.length];
+      for (int p = 0; p < PERCENTILES.length; p++) {
+         result[p] = n == 0 ? Double.NaN
+               : latencies[Math.max(0, (int) Math.ceil(PERCENTILES[p] / 100.0 * n) - 1)] / 1e6;
+      }
+      return result;
+   }
+
+   /**
+    * Latency distribution of every stage, one line per stage.
+    */
+   public String summary() {
+      StringBuilder sb = new StringBuilder();
+      sb.append(String.format("%-36s %10s %10s %10s %10s%n", "Stage (ms)", "p50", "p90",
+            "p99", "max"));
+      for (int s = 1; s < NUM_STAGES; s++) {
+         double[] p = getLatencyPercentilesMs(STAGES[s]);
+         sb.append(String.format("%-36s %10.3f %10.3f %10.3f %10.3f%n",
+               STAGES[s].getInterval(), p[0], p[1], p[2], p[3]));
+      }
+      return sb.toString();
+   }
+
+   /**
+    * Writes all kept records in the Chrome trace-event format.  Everything
+    * up to the end of the exposure happens in the acquisition engine one
+    * event after the other, and is written as complete events.  The image
+    * side overlaps between events, and is written as async events.
+    *
+    * @param file File to write to.
+    * @throws IOException when the file can not be written.
+    */
+   public void writeChromeTrace(File file) throws IOException {
+      try (Writer writer = new FileWriter(file)) {
+         writeChromeTrace(writer);
+      }
+   }
+
+   /**
+    * Writes all kept records in the Chrome trace-event format.
+    *
+    * @param out Destination, not closed by this method.
+    * @throws IOException when writing fails.
+    */
+   public synchronized void writeChromeTrace(Writer out) throws IOException {
+      JsonWriter json = new JsonWriter(out);
+      json.beginObject();
+      json.name("displayTimeUnit").value("ms");
+      json.name("traceEvents").beginArray();
+      json.beginObject().name("name").value("thread_name").name("ph").value("M")
+            .name("pid").value(1).name("tid").value(1)
+            .name("args").beginObject().name("name").value("Acquisition engine").endObject()
+            .endObject();
+      final int records = numberOfRecords();
+      for (int r = 0; r < records; r++) {
+         final int slot = slotOf(r);
+         final int base = slot * NUM_STAGES;
+         int previous = 0;
+         for (int s = 1; s < NUM_STAGES; s++) {
+            if (times_[base + s] == UNSET) {
+               continue;
+            }
+            if (times_[base + previous] != UNSET) {
+               final double start = times_[base + previous] / 1e3;
+               final double end = times_[base + s] / 1e3;
+               if (s <= Stage.EXPOSURE_DONE.ordinal()) {
+                  beginTraceEvent(json, STAGES[s], "X", start, slot);
+                  json.name("dur").value(end - start);
+                  json.endObject();
+               } else {
+                  beginTraceEvent(json, STAGES[s], "b", start, slot);
+                  json.name("id").value(r);
+                  json.endObject();
+                  beginTraceEvent(json, STAGES[s], "e", end, slot);
+                  json.name("id").value(r);
+                  json.endObject();
+               }
+            }
+            previous = s;
+         }
+      }
+      json.endArray();
+      json.endObject();
+      json.flush();
+   }
+
+   private void beginTraceEvent(JsonWriter json, Stage stage, String phase, double tsUs,
+                                int slot) throws IOException {
+      json.beginObject();
+      json.name("name").value(stage.getInterval());
+      json.name("cat").value("acquisition");
+      json.name("ph").value(phase);
+      json.name("ts").value(tsUs);
+      json.name("pid").value(1);
+      json.name("tid").value(1);
+      json.name("args").beginObject()
+            .name("t").value(indices_[slot * 4])
+            .name("p").value(indices_[slot * 4 + 1])
+            .name("c").value(indices_[slot * 4 + 2])
+            .name("z").value(indices_[slot * 4 + 3])
+            .endObject();
+   }
+}
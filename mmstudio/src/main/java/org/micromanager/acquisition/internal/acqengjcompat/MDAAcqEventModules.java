@@ -5,7 +5,6 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import mmcorej.CMMCore;
 import org.micromanager.MultiStagePosition;
@@ -140,6 +139,8 @@ public class MDAAcqEventModules {
    public static Function<AcquisitionEvent, Iterator<AcquisitionEvent>> channels(
          List<ChannelSpec> channelList, Integer middleSliceIndex,
          HashMap<String, String> extraTags) {
+      // the same for every event, so work it out once
+      final boolean hasZOffsets = channelList.stream().anyMatch(t -> t.zOffset() != 0);
       return (AcquisitionEvent event) -> {
          return new Iterator<AcquisitionEvent>() {
             int index = 0;
@@ -173,8 +174,6 @@ public class MDAAcqEventModules {
                channelEvent.setConfigGroup(channelList.get(index).channelGroup());
                channelEvent.setConfigPreset(channelList.get(index).config());
                channelEvent.setAxisPosition(AcqEngMetadata.CHANNEL_AXIS, index);
-               boolean hasZOffsets = channelList.stream().map(t -> t.zOffset())
-                           .filter(t -> t != 0).collect(Collectors.toList()).size() > 0;
                Double zPos;
                if (event.getZPosition() == null) {
                   if (hasZOffsets) {
@@ -216,6 +215,20 @@ public class MDAAcqEventModules {
     */
    public static Function<AcquisitionEvent, Iterator<AcquisitionEvent>> positions(
          PositionList positionList, HashMap<String, String> extraTags, CMMCore core) {
+      return positions(positionList, extraTags, core.getXYStageDevice());
+   }
+
+   /**
+    * Iterate over an arbitrary list of positions, as above, without asking the
+    * core for the XY stage for every event.
+    *
+    * @param positionList MM PositionList used in this acquisition
+    * @param extraTags - Key Value pairs that will be added to Image Metadata
+    * @param xyStage Label of the XY stage that the events move
+    * @return Function with AcquisitionEvent and Iterator
+    */
+   public static Function<AcquisitionEvent, Iterator<AcquisitionEvent>> positions(
+         PositionList positionList, HashMap<String, String> extraTags, String xyStage) {
       return (AcquisitionEvent event) -> {
          Stream.Builder<AcquisitionEvent> builder = Stream.builder();
          if (positionList == null || positionList.getNumberOfPositions() == 0) {
@@ -230,7 +243,7 @@ public class MDAAcqEventModules {
                   if (sp.is2DStagePosition()) {
                      // we will run into trouble when there is more than 1 XY stage.
                      // for now, assume it is always the core XY stage
-                     if (sp.getStageDeviceLabel().equals(core.getXYStageDevice())) {
+                     if (sp.getStageDeviceLabel().equals(xyStage)) {
                         posEvent.setX(sp.get2DPositionX());
                         posEvent.setY(sp.get2DPositionY());
                      } else {
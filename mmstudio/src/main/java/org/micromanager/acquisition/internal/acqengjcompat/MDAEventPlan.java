@@ -0,0 +1,550 @@
+package org.micromanager.acquisition.internal.acqengjcompat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+import mmcorej.CMMCore;
+import org.micromanager.MultiStagePosition;
+import org.micromanager.PositionList;
+import org.micromanager.StagePosition;
+import org.micromanager.acqj.main.AcqEngMetadata;
+import org.micromanager.acqj.main.AcquisitionEvent;
+import org.micromanager.acquisition.ChannelSpec;
+import org.micromanager.acquisition.SequenceSettings;
+import org.micromanager.internal.utils.AcqOrderMode;
+
+/**
+ * All events of a multi-dimensional acquisition, worked out once before the
+ * acquisition starts.
+ *
+ * <p>Produces the same events, in the same order, as combining the
+ * {@link MDAAcqEventModules} functions the way AcqEngJAdapter does, but the
+ * channel, slice and skip frame rules are evaluated while compiling, and
+ * device state (the current Z position and the XY stage label) is read only
+ * once.  Each event is stored as a few array entries.  Events that the
+ * modules would skip (channels that do not acquire at this time point or
+ * slice) are left out of the plan altogether.  Time points start at fixed
+ * or custom intervals, see {@link TimelapseScheduler#plannedStartTimesMs}.
+ * Iterating the plan only copies the base event and fills in values that were
+ * already computed.</p>
+ *
+ * <p>Instances are immutable, and can be iterated more than once.</p>
+ */
+public final class MDAEventPlan {
+
+   /**
+    * Loops of the acquisition, outermost first.
+    */
+   enum Level {
+      POSITION, TIME, CHANNEL, SLICE
+   }
+
+   private static final int NONE = -1;
+
+   private final Level[] levels_;
+   private final HashMap<String, String> extraTags_;
+   // an empty position list passes events through without tagging them
+   private final boolean tagsAllEvents_;
+   // minimum start time of each time point
+   private final long[] frameStartMs_;
+
+   // per channel
+   private final String[] channelGroups_;
+   private final String[] channelConfigs_;
+   private final double[] exposures_;
+
+   // per position, NaN when the position does not move the XY stage
+   private final double[] xs_;
+   private final double[] ys_;
+   private final String[][] stageLabels_;
+   private final double[][] stagePositions_;
+   private final String[] positionLabels_;
+
+   // per event, NONE (or NaN) when the event does not have that axis
+   private final int[] timeIndices_;
+   private final int[] positionIndices_;
+   private final int[] channelIndices_;
+   private final int[] sliceIndices_;
+   private final double[] zPositions_;
+
+   private MDAEventPlan(Compiler compiler) {
+      levels_ = compiler.levels_.toArray(new Level[0]);
+      extraTags_ = compiler.extraTags_ == null ? null : new HashMap<>(compiler.extraTags_);
+      tagsAllEvents_ = compiler.levels_.stream().anyMatch(level -> level != Level.POSITION);
+      frameStartMs_ = compiler.frameStartMs_;
+      channelGroups_ = compiler.channelGroups_;
+      channelConfigs_ = compiler.channelConfigs_;
+      exposures_ = compiler.exposures_;
+      xs_ = compiler.xs_;
+      ys_ = compiler.ys_;
+      stageLabels_ = compiler.stageLabels_;
+      stagePositions_ = compiler.stagePositions_;
+      positionLabels_ = compiler.positionLabels_;
+      int n = compiler.size_;
+      timeIndices_ = Arrays.copyOf(compiler.timeIndices_, n);
+      positionIndices_ = Arrays.copyOf(compiler.positionIndices_, n);
+      channelIndices_ = Arrays.copyOf(compiler.channelIndices_, n);
+      sliceIndices_ = Arrays.copyOf(compiler.sliceIndices_, n);
+      zPositions_ = Arrays.copyOf(compiler.zPositions_, n);
+   }
+
+   /**
+    * Compiles the plan, reading the current Z position and the XY stage
+    * label from the core once.
+    *
+    * @param settings Acquisition settings.
+    * @param positionList Positions to visit, only used when the settings use
+    *                     the position list.
+    * @param extraTags Key value pairs added to the tags of every event, or null.
+    * @param core Core, used to read the current state of the hardware.
+    * @return The plan.
+    * @throws Exception when the core can not report the Z position.
+    */
+   public static MDAEventPlan compile(SequenceSettings settings, PositionList positionList,
+                                      HashMap<String, String> extraTags, CMMCore core)
+         throws Exception {
+      return compile(settings, positionList, extraTags, core.getXYStageDevice(),
+            core.getPosition());
+   }
+
+   /**
+    * Compiles the plan from the given hardware state.
+    *
+    * @param settings Acquisition settings.
+    * @param positionList Positions to visit, only used when the settings use
+    *                     the position list.
+    * @param extraTags Key value pairs added to the tags of every event, or null.
+    * @param xyStage Label of the XY stage that acquisition events move.
+    * @param currentZ Current position of the focus drive, the origin of
+    *                 relative Z stacks and channel offsets.
+    * @return The plan.
+    */
+   public static MDAEventPlan compile(SequenceSettings settings, PositionList positionList,
+                                      HashMap<String, String> extraTags, String xyStage,
+                                      double currentZ) {
+      Compiler compiler = new Compiler(settings, positionList, extraTags, xyStage, currentZ);
+      compiler.run(0, NONE, NONE, NONE, NONE, Double.NaN);
+      return new MDAEventPlan(compiler);
+   }
+
+   public int getNumberOfEvents() {
+      return timeIndices_.length;
+   }
+
+   /**
+    * Time point of the given event, or -1 when the acquisition has no time axis.
+    */
+   public int getTimeIndex(int event) {
+      return timeIndices_[event];
+   }
+
+   /**
+    * Index in the position list of the given event, or -1 when the
+    * acquisition does not use the position list.
+    */
+   public int getPositionIndex(int event) {
+      return positionIndices_[event];
+   }
+
+   /**
+    * Index of the given event in the list of channels in use, or -1 when the
+    * acquisition has no channels.
+    */
+   public int getChannelIndex(int event) {
+      return channelIndices_[event];
+   }
+
+   /**
+    * Slice of the given event, or -1 when the acquisition has no Z axis.
+    */
+   public int getSliceIndex(int event) {
+      return sliceIndices_[event];
+   }
+
+   /**
+    * Z position of the given event, or NaN when the event does not move the
+    * focus drive.
+    */
+   public double getZPosition(int event) {
+      return zPositions_[event];
+   }
+
+   /**
+    * Earliest start of the given event in milliseconds after the start of the
+    * acquisition, 0 when the acquisition has no time axis.
+    */
+   public long getMinimumStartTimeMs(int event) {
+      final int t = timeIndices_[event];
+      return t == NONE ? 0 : frameStartMs_[t];
+   }
+
+   /**
+    * Exposure time of the given event in milliseconds, or NaN when the event
+    * does not set the exposure.
+    */
+   public double getExposureMs(int event) {
+      final int c = channelIndices_[event];
+      return c == NONE ? Double.NaN : exposures_[c];
+   }
+
+   /**
+    * X position of the XY stage for the given event, or NaN when the event
+    * does not move the XY stage.
+    */
+   public double getX(int event) {
+      final int p = positionIndices_[event];
+      return p == NONE ? Double.NaN : xs_[p];
+   }
+
+   /**
+    * Y position of the XY stage for the given event, or NaN when the event
+    * does not move the XY stage.
+    */
+   public double getY(int event) {
+      final int p = positionIndices_[event];
+      return p == NONE ? Double.NaN : ys_[p];
+   }
+
+   /**
+    * Number of stages other than the XY stage that the given event moves to
+    * the values stored in its position, 0 when the acquisition does not use
+    * the position list.
+    */
+   public int getNumberOfStages(int event) {
+      final int p = positionIndices_[event];
+      return p == NONE ? 0 : stageLabels_[p].length;
+   }
+
+   /**
+    * Label of one of the stages moved by the given event.
+    *
+    * @param event Index of the event in the plan.
+    * @param stage Index between 0 and {@link #getNumberOfStages}.
+    */
+   public String getStageLabel(int event, int stage) {
+      return stageLabels_[positionIndices_[event]][stage];
+   }
+
+   /**
+    * Position that one of the stages is moved to by the given event.
+    *
+    * @param event Index of the event in the plan.
+    * @param stage Index between 0 and {@link #getNumberOfStages}.
+    */
+   public double getStagePosition(int event, int stage) {
+      return stagePositions_[positionIndices_[event]][stage];
+   }
+
+   /**
+    * Creates the acquisition event at the given index of the plan.
+    *
+    * @param baseEvent Event that is copied, and then filled in.
+    * @param event Index of the event in the plan.
+    * @return New acquisition event.
+    */
+   public AcquisitionEvent createEvent(AcquisitionEvent baseEvent, int event) {
+      AcquisitionEvent acqEvent = baseEvent.copy();
+      final int p = positionIndices_[event];
+      final int c = channelIndices_[event];
+      final int z = sliceIndices_[event];
+      // apply the loops in the same order as the module functions would
+      for (Level level : levels_) {
+         switch (level) {
+            case POSITION:
+               if (p == NONE) {
+                  break;
+               }
+               if (!Double.isNaN(xs_[p])) {
+                  acqEvent.setX(xs_[p]);
+                  acqEvent.setY(ys_[p]);
+               }
+               for (int s = 0; s < stageLabels_[p].length; s++) {
+                  acqEvent.setStageCoordinate(stageLabels_[p][s], stagePositions_[p][s]);
+               }
+               acqEvent.setAxisPosition(MDAAcqEventModules.POSITION_AXIS, p);
+               break;
+            case TIME:
+               final int t = timeIndices_[event];
+               acqEvent.setMinimumStartTime(frameStartMs_[t]);
+               acqEvent.setTimeIndex(t);
+               break;
+            case CHANNEL:
+               acqEvent.setConfigGroup(channelGroups_[c]);
+               acqEvent.setConfigPreset(channelConfigs_[c]);
+               acqEvent.setAxisPosition(AcqEngMetadata.CHANNEL_AXIS, c);
+               acqEvent.setExposure(exposures_[c]);
+               setZ(acqEvent, z, zPositions_[event]);
+               break;
+            case SLICE:
+               setZ(acqEvent, z, zPositions_[event]);
+               break;
+            default:
+               break;
+         }
+      }
+      if (p != NONE || (extraTags_ != null && tagsAllEvents_)) {
+         HashMap<String, String> tags = acqEvent.getTags();
+         if (p != NONE) {
+            tags.put(AcqEngMetadata.POS_NAME, positionLabels_[p]);
+         }
+         if (extraTags_ != null) {
+            tags.putAll(extraTags_);
+         }
+         acqEvent.setTags(tags);
+      }
+      return acqEvent;
+   }
+
+   private static void setZ(AcquisitionEvent acqEvent, int z, double zPosition) {
+      acqEvent.setZ(z == NONE ? null : z, Double.isNaN(zPosition) ? null : zPosition);
+   }
+
+   /**
+    * Iterates over all events of the plan.
+    *
+    * @param baseEvent Event that every event of the plan starts from.
+    * @param monitor Applied to each event before it is handed out, can be null.
+    * @return Iterator, to be submitted to the acquisition.
+    */
+   public Iterator<AcquisitionEvent> iterator(final AcquisitionEvent baseEvent,
+               final Function<AcquisitionEvent, AcquisitionEvent> monitor) {
+      return new Iterator<AcquisitionEvent>() {
+         private int next_ = 0;
+
+         @Override
+         public boolean hasNext() {
+            return next_ < timeIndices_.length;
+         }
+
+         @Override
+         public AcquisitionEvent next() {
+            if (!hasNext()) {
+               throw new NoSuchElementException();
+            }
+            AcquisitionEvent event = createEvent(baseEvent, next_++);
+            return monitor == null ? event : monitor.apply(event);
+         }
+      };
+   }
+
+   /**
+    * Walks the loops of the acquisition once, and collects the events in
+    * growing arrays.
+    */
+   private static final class Compiler {
+      private final List<Level> levels_ = new ArrayList<>(4);
+      private final HashMap<String, String> extraTags_;
+      private final long[] frameStartMs_;
+      private final double currentZ_;
+
+      private final ChannelSpec[] channels_;
+      private final boolean hasZOffsets_;
+      private final int middleSliceIndex_;
+      private final String[] channelGroups_;
+      private final String[] channelConfigs_;
+      private final double[] exposures_;
+
+      private final int lastSlice_;
+      private final double zStep_;
+      private final double zOrigin_;
+
+      private final int numPositions_;
+      private final double[] xs_;
+      private final double[] ys_;
+      private final String[][] stageLabels_;
+      private final double[][] stagePositions_;
+      private final String[] positionLabels_;
+
+      private int size_ = 0;
+      private int[] timeIndices_ = new int[16];
+      private int[] positionIndices_ = new int[16];
+      private int[] channelIndices_ = new int[16];
+      private int[] sliceIndices_ = new int[16];
+      private double[] zPositions_ = new double[16];
+
+      Compiler(SequenceSettings settings, PositionList positionList,
+               HashMap<String, String> extraTags, String xyStage, double currentZ) {
+         extraTags_ = extraTags;
+         frameStartMs_ = TimelapseScheduler.plannedStartTimesMs(settings);
+         currentZ_ = currentZ;
+
+         List<ChannelSpec> chSpecs = new ArrayList<>();
+         for (ChannelSpec chSpec : settings.channels()) {
+            if (chSpec.useChannel()) {
+               chSpecs.add(chSpec);
+            }
+         }
+         channels_ = chSpecs.toArray(new ChannelSpec[0]);
+         hasZOffsets_ = chSpecs.stream().anyMatch(t -> t.zOffset() != 0);
+         middleSliceIndex_ = (settings.slices().size() - 1) / 2;
+         channelGroups_ = new String[channels_.length];
+         channelConfigs_ = new String[channels_.length];
+         exposures_ = new double[channels_.length];
+         for (int c = 0; c < channels_.length; c++) {
+            channelGroups_[c] = channels_[c].channelGroup();
+            channelConfigs_[c] = channels_[c].config();
+            exposures_[c] = channels_[c].exposure();
+         }
+         final boolean useChannels = settings.useChannels() && channels_.length > 0;
+
+         boolean useSlices = false;
+         if (settings.useSlices()) {
+            useSlices = true;
+            lastSlice_ = settings.slices().size() - 1;
+            zStep_ = settings.sliceZStepUm();
+            zOrigin_ = settings.slices().get(0)
+                  + (settings.relativeZSlice() ? currentZ : 0.0);
+         } else if (useChannels && hasZOffsets_) {
+            // a single slice, so that the channel z-offsets are handled correctly
+            useSlices = true;
+            lastSlice_ = 0;
+            zStep_ = 0.1;
+            zOrigin_ = currentZ;
+         } else {
+            lastSlice_ = NONE;
+            zStep_ = 0.0;
+            zOrigin_ = 0.0;
+         }
+
+         final boolean usePositions = settings.usePositionList() && positionList != null
+               && positionList.getNumberOfPositions() > 0;
+         numPositions_ = usePositions ? positionList.getNumberOfPositions() : 0;
+         xs_ = new double[numPositions_];
+         ys_ = new double[numPositions_];
+         stageLabels_ = new String[numPositions_][];
+         stagePositions_ = new double[numPositions_][];
+         positionLabels_ = new String[numPositions_];
+         for (int p = 0; p < numPositions_; p++) {
+            MultiStagePosition msp = positionList.getPosition(p);
+            xs_[p] = Double.NaN;
+            ys_[p] = Double.NaN;
+            List<String> labels = new ArrayList<>();
+            List<Double> positions = new ArrayList<>();
+            for (int s = 0; s < msp.size(); s++) {
+               StagePosition sp = msp.get(s);
+               if (sp.is2DStagePosition()) {
+                  // only the core XY stage can be moved by acquisition events
+                  if (sp.getStageDeviceLabel().equals(xyStage)) {
+                     xs_[p] = sp.get2DPositionX();
+                     ys_[p] = sp.get2DPositionY();
+                  }
+               } else {
+                  labels.add(sp.getStageDeviceLabel());
+                  positions.add(sp.get1DPosition());
+               }
+            }
+            stageLabels_[p] = labels.toArray(new String[0]);
+            stagePositions_[p] = new double[positions.size()];
+            for (int s = 0; s < positions.size(); s++) {
+               stagePositions_[p][s] = positions.get(s);
+            }
+            positionLabels_[p] = msp.getLabel();
+         }
+
+         final int order = settings.acqOrderMode();
+         final boolean sliceBeforeChannel = order == AcqOrderMode.POS_TIME_SLICE_CHANNEL
+               || order == AcqOrderMode.TIME_POS_SLICE_CHANNEL;
+         if (order == AcqOrderMode.POS_TIME_CHANNEL_SLICE
+               || order == AcqOrderMode.POS_TIME_SLICE_CHANNEL) {
+            addLevel(Level.POSITION, settings.usePositionList());
+            addLevel(Level.TIME, settings.useFrames());
+         } else if (order == AcqOrderMode.TIME_POS_CHANNEL_SLICE
+               || order == AcqOrderMode.TIME_POS_SLICE_CHANNEL) {
+            addLevel(Level.TIME, settings.useFrames());
+            addLevel(Level.POSITION, settings.usePositionList());
+         } else {
+            throw new RuntimeException("Unknown acquisition order");
+         }
+         if (sliceBeforeChannel) {
+            addLevel(Level.SLICE, useSlices);
+            addLevel(Level.CHANNEL, useChannels);
+         } else {
+            addLevel(Level.CHANNEL, useChannels);
+            addLevel(Level.SLICE, useSlices);
+         }
+      }
+
+      private void addLevel(Level level, boolean use) {
+         if (use) {
+            levels_.add(level);
+         }
+      }
+
+      void run(int depth, int t, int p, int c, int z, double zPos) {
+         if (depth == levels_.size()) {
+            add(t, p, c, z, zPos);
+            return;
+         }
+         final int next = depth + 1;
+         switch (levels_.get(depth)) {
+            case POSITION:
+               if (numPositions_ == 0) {
+                  run(next, t, p, c, z, zPos);
+               }
+               for (int i = 0; i < numPositions_; i++) {
+                  run(next, t, i, c, z, zPos);
+               }
+               break;
+            case TIME:
+               for (int i = 0; i < frameStartMs_.length; i++) {
+                  run(next, i, p, c, z, zPos);
+               }
+               break;
+            case CHANNEL:
+               for (int i = 0; i < channels_.length; i++) {
+                  ChannelSpec channel = channels_[i];
+                  // channels without a Z stack are only acquired at the middle slice
+                  if (!channel.doZStack() && z != NONE && z != middleSliceIndex_) {
+                     continue;
+                  }
+                  final int skip = channel.skipFactorFrame();
+                  if (skip != 0 && t != NONE && t % (skip + 1) != 0) {
+                     continue;
+                  }
+                  double channelZ;
+                  if (Double.isNaN(zPos)) {
+                     channelZ = hasZOffsets_ ? currentZ_ + channel.zOffset() : Double.NaN;
+                  } else {
+                     channelZ = zPos + channel.zOffset();
+                  }
+                  run(next, t, p, i, z, channelZ);
+               }
+               break;
+            case SLICE:
+               if (c != NONE && !channels_[c].doZStack()) {
+                  double sliceZ = zOrigin_ + (lastSlice_ / 2) * zStep_;
+                  run(next, t, p, c, 0, (Double.isNaN(zPos) ? 0.0 : zPos) + sliceZ);
+                  break;
+               }
+               for (int i = 0; i <= lastSlice_; i++) {
+                  double sliceZ = i * zStep_ + zOrigin_;
+                  run(next, t, p, c, i, (Double.isNaN(zPos) ? 0.0 : zPos) + sliceZ);
+               }
+               break;
+            default:
+               break;
+         }
+      }
+
+      private void add(int t, int p, int c, int z, double zPos) {
+         if (size_ == timeIndices_.length) {
+            int capacity = size_ + (size_ >> 1);
+            timeIndices_ = Arrays.copyOf(timeIndices_, capacity);
+            positionIndices_ = Arrays.copyOf(positionIndices_, capacity);
+            channelIndices_ = Arrays.copyOf(channelIndices_, capacity);
+            sliceIndices_ = Arrays.copyOf(sliceIndices_, capacity);
+            zPositions_ = Arrays.copyOf(zPositions_, capacity);
+         }
+         timeIndices_[size_] = t;
+         positionIndices_[size_] = p;
+         channelIndices_[size_] = c;
+         sliceIndices_[size_] = z;
+         zPositions_[size_] = zPos;
+         size_++;
+      }
+   }
+}
@@ -0,0 +1,227 @@
+package org.micromanager.acquisition.internal.acqengjcompat;
+
+import java.util.Arrays;
+import java.util.List;
+import org.micromanager.PropertyMap;
+import org.micromanager.PropertyMaps;
+import org.micromanager.acquisition.SequenceSettings;
+
+/**
+ * Decides when each time point of a time lapse starts, and keeps track of
+ * when it actually did.
+ *
+ * <p>Start times are always computed from the start of the acquisition, so
+ * that a late time point does not shift the ones after it.  When a time point
+ * starts too late, the scheduler either lets the following time points catch
+ * up with the schedule as fast as the hardware allows ({@link
+ * OverrunPolicy#CATCH_UP}), or moves the rest of the schedule forward by as
+ * many whole intervals as were missed ({@link OverrunPolicy#SKIP}).  Both
+ * decisions only depend on the clock when the time point is scheduled, so
+ * they are reproducible with a simulated {@link Clock}.</p>
+ *
+ * <p>The difference between the scheduled and the actual start of every time
+ * point is collected in a histogram, which can be stored with the data.</p>
+ */
+public final class TimelapseScheduler {
+
+   /**
+    * Source of the current time, so that the scheduler can be tested without
+    * waiting.
+    */
+   public interface Clock {
+      long currentTimeMs();
+   }
+
+   public static final Clock SYSTEM_CLOCK = System::currentTimeMillis;
+
+   /**
+    * What to do when a time point starts after its scheduled time.
+    */
+   public enum OverrunPolicy {
+      CATCH_UP, SKIP
+   }
+
+   // upper edges of the jitter histogram bins, the last bin has no upper edge
+   private static final long[] HISTOGRAM_EDGES_MS =
+         {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000};
+   private static final long NOT_SET = -1;
+
+   private final OverrunPolicy policy_;
+   private final Clock clock_;
+   private final long[] plannedMs_;
+   private final long[] scheduledMs_;
+   private final long[] actualMs_;
+   private final int[] histogram_ = new int[HISTOGRAM_EDGES_MS.length + 1];
+   private long originMs_ = NOT_SET;
+   private long shiftMs_ = 0;
+   private int skippedIntervals_ = 0;
+
+   /**
+    * Creates the scheduler for the time points of the given settings.
+    *
+    * @param settings Acquisition settings, with either a fixed or custom intervals.
+    * @param policy What to do with time points that start late.
+    * @param clock Source of the current time.
+    */
+   public TimelapseScheduler(SequenceSettings settings, OverrunPolicy policy, Clock clock) {
+      policy_ = policy;
+      clock_ = clock;
+      plannedMs_ = plannedStartTimesMs(settings);
+      scheduledMs_ = new long[plannedMs_.length];
+      actualMs_ = new long[plannedMs_.length];
+      Arrays.fill(scheduledMs_, NOT_SET);
+      Arrays.fill(actualMs_, NOT_SET);
+   }
+
+   /**
+    * Start time of each time point relative to the start of the acquisition.
+    * With custom intervals, interval i is the wait before time point i, and
+    * the last interval repeats when there are more time points than intervals.
+    *
+    * @param settings Acquisition settings.
+    * @return Planned start times in milliseconds, at least one.
+    */
+   public static long[] plannedStartTimesMs(SequenceSettings settings) {
+      long[] planned = new long[Math.max(1, settings.numFrames())];
+      List<Double> custom = settings.customIntervalsMs();
+      if (settings.useCustomIntervals() && custom != null && !custom.isEmpty()) {
+         double time = 0.0;
+         for (int t = 0; t < planned.length; t++) {
+            time += custom.get(Math.min(t, custom.size() - 1));
+            planned[t] = (long) time;
+         }
+      } else {
+         for (int t = 0; t < planned.length; t++) {
+            planned[t] = (long) (settings.intervalMs() * t);
+         }
+      }
+      return planned;
+   }
+
+   public int getNumberOfFrames() {
+      return plannedMs_.length;
+   }
+
+   public OverrunPolicy getOverrunPolicy() {
+      return policy_;
+   }
+
+   /**
+    * Returns when the given time point should start, in milliseconds after
+    * the start of the acquisition.  The first call starts the clock of the
+    * acquisition.  All events of a time point get the same answer.
+    *
+    * @param frame Time point index.
+    * @return Minimum start time of the events of this time point.
+    */
+   public synchronized long getStartTimeMs(int frame) {
+      final int t = Math.min(frame, plannedMs_.length - 1);
+      if (originMs_ == NOT_SET) {
+         originMs_ = clock_.currentTimeMs();
+      }
+      if (scheduledMs_[t] != NOT_SET) {
+         return scheduledMs_[t];
+      }
+      long start = plannedMs_[t] + shiftMs_;
+      final long now = clock_.currentTimeMs() - originMs_;
+      final long period = periodMs(t);
+      if (policy_ == OverrunPolicy.SKIP && now > start && period > 0) {
+         // move to the next slot of the schedule that is still ahead of us
+         long missed = (now - start + period - 1) / period;
+         shiftMs_ += missed * period;
+         skippedIntervals_ += (int) missed;
+         start += missed * period;
+      }
+      scheduledMs_[t] = start;
+      return start;
+   }
+
+   /*
+    * Length of the slot in the schedule that belongs to the given time point.
+    */
+   private long periodMs(int t) {
+      if (t + 1 < plannedMs_.length) {
+         return plannedMs_[t + 1] - plannedMs_[t];
+      }
+      return t > 0 ? plannedMs_[t] - plannedMs_[t - 1] : 0;
+   }
+
+   /**
+    * Records that the hardware started to work on the given time point.  Only
+    * the first call for each time point counts.
+    *
+    * @param frame Time point index.
+    */
+   public synchronized void frameStarted(int frame) {
+      final int t = Math.min(frame, plannedMs_.length - 1);
+      if (originMs_ == NOT_SET || actualMs_[t] != NOT_SET) {
+         return;
+      }
+      actualMs_[t] = clock_.currentTimeMs() - originMs_;
+      long jitter = actualMs_[t] - (scheduledMs_[t] == NOT_SET ? plannedMs_[t] : scheduledMs_[t]);
+      int bin = 0;
+      while (bin < HISTOGRAM_EDGES_MS.length && jitter >= HISTOGRAM_EDGES_MS[bin]) {
+         bin++;
+      }
+      histogram_[bin]++;
+   }
+
+   public long getPlannedStartMs(int frame) {
+      return plannedMs_[frame];
+   }
+
+   /**
+    * Start time the scheduler asked for, or -1 if the time point was not
+    * scheduled yet.
+    */
+   public synchronized long getScheduledStartMs(int frame) {
+      return scheduledMs_[frame];
+   }
+
+   /**
+    * Time at which the time point actually started, or -1 if it did not start yet.
+    */
+   public synchronized long getActualStartMs(int frame) {
+      return actualMs_[frame];
+   }
+
+   /**
+    * Number of intervals that were dropped from the schedule because time
+    * points started too late.  Always 0 when catching up.
+    */
+   public synchronized int getSkippedIntervals() {
+      return skippedIntervals_;
+   }
+
+   /**
+    * Upper edges of the histogram bins in milliseconds.  The last bin counts
+    * everything at or above the last edge.
+    */
+   public static long[] getHistogramEdgesMs() {
+      return HISTOGRAM_EDGES_MS.clone();
+   }
+
+   /**
+    * Number of time points per bin of delay between the scheduled and the
+    * actual start.
+    */
+   public synchronized int[] getJitterHistogram() {
+      return histogram_.clone();
+   }
+
+   /**
+    * Everything the scheduler knows, in a form that can be stored as
+    * metadata.
+    */
+   public synchronized PropertyMap toPropertyMap() {
+      return PropertyMaps.builder()
+            .putEnumAsString("TimelapseOverrunPolicy", policy_)
+            .putLongList("TimelapsePlannedStartMs", plannedMs_)
+            .putLongList("TimelapseScheduledStartMs", scheduledMs_)
+            .putLongList("TimelapseActualStartMs", actualMs_)
+            .putInteger("TimelapseSkippedIntervals", skippedIntervals_)
+            .putLongList("TimelapseJitterHistogramEdgesMs", HISTOGRAM_EDGES_MS)
+            .putIntegerList("TimelapseJitterHistogram", histogram_)
+            .build();
+   }
+}
@@ -33,6 +33,7 @@ import java.util.ArrayList;
 import java.util.List;
 import javax.swing.DefaultComboBoxModel;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JFormattedTextField;
 import javax.swing.JFrame;
@@ -74,10 +75,12 @@ public class MultiMDAFrame extends JFrame {
    private static final String NR_ACQ_SETTINGS = "NumberOfSettings";
    private static final String ACQ_PATHS = "AcquisitionPaths";
    private static final String POSITION_LIST_PATHS = "PositionListPaths";
+   private static final String INTERLEAVE = "Interleave";
    private final JSpinner nrSpinner_;
    private final CheckBoxPanel framesPanel_;
    private final CheckBoxPanel autoFocusPanel_;
    private final CheckBoxPanel presetPanel_;
+   private final JCheckBox interleaveCheckBox_;
    private static final Font DEFAULT_FONT = new Font("Arial", Font.PLAIN, 10);
    private JSpinner numFrames_;
    private JFormattedTextField interval_;
@@ -176,7 +179,12 @@ public class MultiMDAFrame extends JFrame {
          }
          super.pack();
       });
-      super.add(refreshButton, "span, split 3, align left, gapx 10, gapy 5");
+      super.add(refreshButton, "span, split 4, align left, gapx 10, gapy 5");
+      interleaveCheckBox_ = new JCheckBox("Interleave acquisitions");
+      interleaveCheckBox_.setFont(DEFAULT_FONT);
+      interleaveCheckBox_.setToolTipText("Merge the acquisitions of each time point "
+            + "into one order that minimizes stage movements and preset changes");
+      super.add(interleaveCheckBox_, "gapx 10");
       super.add(new JLabel(""), "growx");
 
       // Run an acquisition using the current MDA parameters.
@@ -189,6 +197,7 @@ public class MultiMDAFrame extends JFrame {
             @Override
             public void run() {
                final MultiAcqEngJAdapter acqj = new MultiAcqEngJAdapter(studio_);
+               acqj.setInterleaved(interleaveCheckBox_.isSelected());
                SequenceSettings.Builder sb = new SequenceSettings.Builder();
                double multiplier = 1;
                String token = (String) timeUnitCombo_.getSelectedItem();
@@ -226,6 +235,7 @@ public class MultiMDAFrame extends JFrame {
       framesPanel_.setSelected(settings.getBoolean(USE_TIME_POINTS, false));
       autoFocusPanel_.setSelected(settings.getBoolean(USE_AUTOFOCUS, false));
       presetPanel_.setSelected(settings.getBoolean(USE_PRESET, false));
+      interleaveCheckBox_.setSelected(settings.getBoolean(INTERLEAVE, false));
       int nrAcquisitions = settings.getInteger(NR_ACQ_SETTINGS, 0);
       if (nrAcquisitions > 0) {
          List<String> acqPaths = settings.getStringList(ACQ_PATHS);
@@ -558,6 +568,7 @@ public class MultiMDAFrame extends JFrame {
       settings.putBoolean(USE_TIME_POINTS, framesPanel_.isSelected());
       settings.putBoolean(USE_AUTOFOCUS, autoFocusPanel_.isSelected());
       settings.putBoolean(USE_PRESET, presetPanel_.isSelected());
+      settings.putBoolean(INTERLEAVE, interleaveCheckBox_.isSelected());
 
       List<String> acqPaths = new ArrayList<>(acqs_.size());
       List<String> posListPaths = new ArrayList<>(acqs_.size());
@@ -0,0 +1,419 @@
+package org.micromanager.acquisition.internal.acqengjcompat.multimda.acqengj;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.micromanager.acqj.main.AcquisitionEvent;
+import org.micromanager.acquisition.internal.acqengjcompat.MDAAcqEventModules;
+
+/**
+ * Merges the events of all acquisitions of one Multi-MDA time point into a
+ * single order with less stage travel and fewer configuration changes than
+ * running the acquisitions one after the other.
+ *
+ * <p>The events of every acquisition are cut into blocks, one for each
+ * position it visits.  Blocks are executed as they are, so that Z stacks,
+ * channel order and the hooks that rely on them behave exactly as in a
+ * sequential run.  The blocks of all acquisitions are ordered with a nearest
+ * neighbour tour that is then improved with 2-opt moves, using the transition
+ * times predicted by a {@link CostModel}.  The preset event of an acquisition
+ * is only repeated when its configuration group was changed in between.  When
+ * the merged order is not estimated to be faster, the sequential order is
+ * kept.</p>
+ *
+ * <p>Events keep their tags, so every image still ends up in the Datastore of
+ * the acquisition it belongs to.</p>
+ */
+public final class InterleavedEventScheduler {
+
+   // 2-opt costs O(n^3) per pass; above this number of blocks the nearest
+   // neighbour tour is used as is
+   private static final int MAX_TWO_OPT_BLOCKS = 400;
+   private static final int MAX_TWO_OPT_PASSES = 10;
+
+   /**
+    * Predicts how long the hardware needs to go from one event to the next.
+    * All speeds are in micrometers per millisecond.
+    */
+   public static final class CostModel {
+      private final double xyUmPerMs_;
+      private final double xySettleMs_;
+      private final double zUmPerMs_;
+      private final double zSettleMs_;
+      private final double configSwitchMs_;
+
+      private CostModel(Builder builder) {
+         xyUmPerMs_ = builder.xyUmPerMs_;
+         xySettleMs_ = builder.xySettleMs_;
+         zUmPerMs_ = builder.zUmPerMs_;
+         zSettleMs_ = builder.zSettleMs_;
+         configSwitchMs_ = builder.configSwitchMs_;
+      }
+
+      /**
+       * Builder for the cost model.  The defaults describe a motorized
+       * stage moving at 10 mm/s and a focus drive moving at 1 mm/s.
+       */
+      public static final class Builder {
+         private double xyUmPerMs_ = 10.0;
+         private double xySettleMs_ = 50.0;
+         private double zUmPerMs_ = 1.0;
+         private double zSettleMs_ = 10.0;
+         private double configSwitchMs_ = 50.0;
+
+         public Builder xyStage(double umPerMs, double settleMs) {
+            xyUmPerMs_ = umPerMs;
+            xySettleMs_ = settleMs;
+            return this;
+         }
+
+         public Builder zStage(double umPerMs, double settleMs) {
+            zUmPerMs_ = umPerMs;
+            zSettleMs_ = settleMs;
+            return this;
+         }
+
+         public Builder configSwitchMs(double ms) {
+            configSwitchMs_ = ms;
+            return this;
+         }
+
+         public CostModel build() {
+            if (!(xyUmPerMs_ > 0) || !(zUmPerMs_ > 0)) {
+               throw new IllegalArgumentException("Stage speeds must be positive");
+            }
+            return new CostModel(this);
+         }
+      }
+
+      /**
+       * Estimates the time spent moving the hardware while executing the
+       * given events in order, starting from an unknown stage position.
+       *
+       * @param events Events in the order they will be executed
+       * @return Estimated transition time in milliseconds
+       */
+      public double estimateMs(List<AcquisitionEvent> events) {
+         State state = new State();
+         double ms = 0.0;
+         for (AcquisitionEvent event : events) {
+            ms += state.apply(event, this);
+         }
+         return ms;
+      }
+
+      private double xyMs(double dx, double dy) {
+         double distance = Math.sqrt(dx * dx + dy * dy);
+         return distance == 0.0 ? 0.0 : distance / xyUmPerMs_ + xySettleMs_;
+      }
+
+      private double zMs(double dz) {
+         return dz == 0.0 ? 0.0 : Math.abs(dz) / zUmPerMs_ + zSettleMs_;
+      }
+   }
+
+   /**
+    * Hardware state as far as events can tell.  Stage positions that were
+    * never set are unknown, and moving away from them is free.
+    */
+   private static final class State {
+      private Double x_;
+      private Double y_;
+      private Double z_;
+      private final Map<String, String> configs_ = new HashMap<>();
+
+      private State() {
+      }
+
+      private State(State other) {
+         x_ = other.x_;
+         y_ = other.y_;
+         z_ = other.z_;
+         configs_.putAll(other.configs_);
+      }
+
+      private boolean hasConfig(String group, String preset) {
+         return preset.equals(configs_.get(group));
+      }
+
+      /**
+       * Moves to the given event and returns how long that takes.
+       */
+      private double apply(AcquisitionEvent event, CostModel model) {
+         double ms = 0.0;
+         Double x = event.getXPosition();
+         Double y = event.getYPosition();
+         if (x != null && y != null) {
+            if (x_ != null && y_ != null) {
+               ms += model.xyMs(x - x_, y - y_);
+            }
+            x_ = x;
+            y_ = y;
+         }
+         Double z = event.getZPosition();
+         if (z != null) {
+            if (z_ != null) {
+               ms += model.zMs(z - z_);
+            }
+            z_ = z;
+         }
+         String group = event.getConfigGroup();
+         String preset = event.getConfigPreset();
+         if (group != null && preset != null) {
+            if (!hasConfig(group, preset)) {
+               ms += model.configSwitchMs_;
+            }
+            configs_.put(group, preset);
+         }
+         return ms;
+      }
+   }
+
+   /**
+    * Events of one acquisition at one position.
+    */
+   private static final class Block {
+      private final AcquisitionEvent preset_;
+      private final List<AcquisitionEvent> events_ = new ArrayList<>();
+      // first stage positions and configurations the block needs
+      private Double firstX_;
+      private Double firstY_;
+      private Double firstZ_;
+      private final Map<String, String> firstConfigs_ = new HashMap<>();
+      // state when the block is done
+      private State exit_;
+
+      private Block(AcquisitionEvent preset) {
+         preset_ = preset;
+      }
+
+      private void summarize(CostModel model) {
+         State state = new State();
+         if (preset_ != null) {
+            firstConfigs_.put(preset_.getConfigGroup(), preset_.getConfigPreset());
+            state.apply(preset_, model);
+         }
+         for (AcquisitionEvent event : events_) {
+            if (firstX_ == null && event.getXPosition() != null
+                  && event.getYPosition() != null) {
+               firstX_ = event.getXPosition();
+               firstY_ = event.getYPosition();
+            }
+            if (firstZ_ == null) {
+               firstZ_ = event.getZPosition();
+            }
+            if (event.getConfigGroup() != null && event.getConfigPreset() != null
+                  && !firstConfigs_.containsKey(event.getConfigGroup())) {
+               firstConfigs_.put(event.getConfigGroup(), event.getConfigPreset());
+            }
+            state.apply(event, model);
+         }
+         exit_ = state;
+      }
+
+      /**
+       * Time needed to get from the end of this block to the start of the
+       * next one.
+       */
+      private double transitionMs(Block next, CostModel model) {
+         double ms = 0.0;
+         if (next.firstX_ != null && exit_.x_ != null) {
+            ms += model.xyMs(next.firstX_ - exit_.x_, next.firstY_ - exit_.y_);
+         }
+         if (next.firstZ_ != null && exit_.z_ != null) {
+            ms += model.zMs(next.firstZ_ - exit_.z_);
+         }
+         for (Map.Entry<String, String> config : next.firstConfigs_.entrySet()) {
+            if (!exit_.hasConfig(config.getKey(), config.getValue())) {
+               ms += model.configSwitchMs_;
+            }
+         }
+         return ms;
+      }
+   }
+
+   private final CostModel model_;
+   private final List<Block> blocks_ = new ArrayList<>();
+   private final List<AcquisitionEvent> sequential_ = new ArrayList<>();
+   private double sequentialMs_ = Double.NaN;
+   private double interleavedMs_ = Double.NaN;
+   private boolean interleaved_;
+
+   public InterleavedEventScheduler(CostModel model) {
+      model_ = model;
+   }
+
+   /**
+    * Adds the events of one acquisition for this time point, in the order in
+    * which a sequential run would execute them.
+    *
+    * @param preset Event that sets the preset of the acquisition, or null
+    * @param events Events of the acquisition
+    */
+   public void add(AcquisitionEvent preset, Iterator<AcquisitionEvent> events) {
+      if (preset != null) {
+         sequential_.add(preset);
+      }
+      Block block = null;
+      Object lastPosition = null;
+      while (events.hasNext()) {
+         AcquisitionEvent event = events.next();
+         if (event == null) {
+            continue;
+         }
+         Object position = event.getAxisPosition(MDAAcqEventModules.POSITION_AXIS);
+         if (block == null || (position != null && !position.equals(lastPosition))) {
+            block = new Block(preset);
+            blocks_.add(block);
+         }
+         lastPosition = position;
+         block.events_.add(event);
+         sequential_.add(event);
+      }
+   }
+
+   /**
+    * Orders the events of all acquisitions that were added.
+    *
+    * @return Events, including preset events, in the order to execute them
+    */
+   public List<AcquisitionEvent> schedule() {
+      sequentialMs_ = model_.estimateMs(sequential_);
+      List<AcquisitionEvent> merged = merge(order());
+      interleavedMs_ = model_.estimateMs(merged);
+      interleaved_ = interleavedMs_ < sequentialMs_;
+      if (!interleaved_) {
+         interleavedMs_ = sequentialMs_;
+         return new ArrayList<>(sequential_);
+      }
+      return merged;
+   }
+
+   /**
+    * Whether the last call to {@link #schedule()} changed the order of the
+    * events.
+    */
+   public boolean isInterleaved() {
+      return interleaved_;
+   }
+
+   public int getNumberOfBlocks() {
+      return blocks_.size();
+   }
+
+   /**
+    * Estimated hardware transition time when the acquisitions run one after
+    * the other, or NaN before {@link #schedule()} was called.
+    */
+   public double getSequentialMs() {
+      return sequentialMs_;
+   }
+
+   /**
+    * Estimated hardware transition time of the scheduled order, or NaN
+    * before {@link #schedule()} was called.
+    */
+   public double getScheduledMs() {
+      return interleavedMs_;
+   }
+
+   public double getEstimatedSavingMs() {
+      return sequentialMs_ - interleavedMs_;
+   }
+
+   private int[] order() {
+      int n = blocks_.size();
+      int[] order = new int[n];
+      if (n == 0) {
+         return order;
+      }
+      for (Block block : blocks_) {
+         block.summarize(model_);
+      }
+      double[][] cost = new double[n][n];
+      for (int i = 0; i < n; i++) {
+         for (int j = 0; j < n; j++) {
+            cost[i][j] = i == j ? 0.0 : blocks_.get(i).transitionMs(blocks_.get(j), model_);
+         }
+      }
+      // start where the sequential run starts, and always go to the closest
+      // block that is left.  Ties go to the block that comes first in the
+      // sequential order.
+      boolean[] done = new boolean[n];
+      done[0] = true;
+      for (int k = 1; k < n; k++) {
+         int current = order[k - 1];
+         int best = -1;
+         for (int j = 0; j < n; j++) {
+            if (!done[j] && (best < 0 || cost[current][j] < cost[current][best])) {
+               best = j;
+            }
+         }
+         order[k] = best;
+         done[best] = true;
+      }
+      if (n <= MAX_TWO_OPT_BLOCKS) {
+         twoOpt(order, cost);
+      }
+      return order;
+   }
+
+   /**
+    * Reverses stretches of the tour as long as that makes it shorter.  The
+    * costs are not symmetric, so every reversed stretch is re-evaluated.
+    */
+   private static void twoOpt(int[] order, double[][] cost) {
+      int n = order.length;
+      boolean improved = true;
+      for (int pass = 0; improved && pass < MAX_TWO_OPT_PASSES; pass++) {
+         improved = false;
+         for (int i = 1; i < n - 1; i++) {
+            for (int j = i + 1; j < n; j++) {
+               double before = 0.0;
+               double after = cost[order[i - 1]][order[j]];
+               for (int k = i - 1; k < j; k++) {
+                  before += cost[order[k]][order[k + 1]];
+               }
+               for (int k = j; k > i; k--) {
+                  after += cost[order[k]][order[k - 1]];
+               }
+               if (j + 1 < n) {
+                  before += cost[order[j]][order[j + 1]];
+                  after += cost[order[i]][order[j + 1]];
+               }
+               if (after < before - 1e-9) {
+                  for (int a = i, b = j; a < b; a++, b--) {
+                     int tmp = order[a];
+                     order[a] = order[b];
+                     order[b] = tmp;
+                  }
+                  improved = true;
+               }
+            }
+         }
+      }
+   }
+
+   private List<AcquisitionEvent> merge(int[] order) {
+      List<AcquisitionEvent> merged = new ArrayList<>(sequential_.size());
+      State state = new State();
+      for (int index : order) {
+         Block block = blocks_.get(index);
+         AcquisitionEvent preset = block.preset_;
+         if (preset != null && !state.hasConfig(preset.getConfigGroup(),
+               preset.getConfigPreset())) {
+            // the same preset event may be needed more than once
+            AcquisitionEvent copy = preset.copy();
+            merged.add(copy);
+            state.apply(copy, model_);
+         }
+         for (AcquisitionEvent event : block.events_) {
+            merged.add(event);
+            state.apply(event, model_);
+         }
+      }
+      return merged;
+   }
+}
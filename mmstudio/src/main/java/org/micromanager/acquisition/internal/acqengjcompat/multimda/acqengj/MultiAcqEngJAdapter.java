@@ -97,6 +97,12 @@ public class MultiAcqEngJAdapter extends AcqEngJAdapter {
 
    private long nextWakeTime_ = -1;
 
+   private boolean interleaved_ = false;
+   private InterleavedEventScheduler.CostModel costModel_ =
+         new InterleavedEventScheduler.CostModel.Builder().build();
+   // only written by the thread that generates events
+   private volatile double estimatedSavingMs_ = 0.0;
+
    private ArrayList<RunnablePlusIndices> runnables_ = new ArrayList<>();
 
    private class RunnablePlusIndices {
@@ -279,7 +285,24 @@ public class MultiAcqEngJAdapter extends AcqEngJAdapter {
          if (timeLapseSettings_.useFrames()) {
             nrFrames = timeLapseSettings_.numFrames();
          }
+         estimatedSavingMs_ = 0.0;
          for (int t = 0; t < nrFrames; t++) {
+            if (interleaved_ && sequenceSettings.size() > 1) {
+               List<AcquisitionEvent> presetEvents = new ArrayList<>(acqs.size());
+               List<Iterator<AcquisitionEvent>> acqEvents = new ArrayList<>(acqs.size());
+               for (int i = 0; i < sequenceSettings.size(); i++) {
+                  presetEvents.add(presetEvent(acqs.get(i)));
+                  acqEvents.add(createAcqEventIterator(
+                        sequenceSettings.get(i),
+                        positionLists.get(i),
+                        i,
+                        t,
+                        (long) (t * timeLapseSettings_.intervalMs())));
+               }
+               currentMultiMDA_.submitEventIterator(
+                     interleavedEvents(presetEvents, acqEvents, t));
+               continue;
+            }
             for (int i = 0; i < sequenceSettings.size(); i++) {
                Iterator<AcquisitionEvent> presetEvent = createPresetEvent(acqs.get(i));
                if (presetEvent != null) {
@@ -437,6 +460,17 @@ public class MultiAcqEngJAdapter extends AcqEngJAdapter {
    }
 
    private Iterator<AcquisitionEvent> createPresetEvent(MDASettingData acq) throws Exception {
+      AcquisitionEvent event = presetEvent(acq);
+      if (event == null) {
+         return null;
+      }
+      List<AcquisitionEvent> eventList = new ArrayList<>(1);
+      eventList.add(event);
+
+      return eventList.iterator();
+   }
+
+   private AcquisitionEvent presetEvent(MDASettingData acq) {
       if (acq.getPresetGroup() == null || acq.getPresetGroup().isEmpty()
             || acq.getPresetName() == null || acq.getPresetName().isEmpty()) {
          return null;
@@ -444,10 +478,79 @@ public class MultiAcqEngJAdapter extends AcqEngJAdapter {
       AcquisitionEvent event = new AcquisitionEvent(currentMultiMDA_);
       event.setConfigGroup(acq.getPresetGroup());
       event.setConfigPreset(acq.getPresetName());
-      List<AcquisitionEvent> eventList = new ArrayList<>(1);
-      eventList.add(event);
+      return event;
+   }
 
-      return eventList.iterator();
+   /**
+    * Merges the events of all acquisitions of one time point.  The merge is
+    * done when the engine gets to this time point, so that events are not
+    * generated long before they are needed.
+    */
+   private Iterator<AcquisitionEvent> interleavedEvents(
+         final List<AcquisitionEvent> presetEvents,
+         final List<Iterator<AcquisitionEvent>> acqEvents, final int timeIndex) {
+      return new Iterator<AcquisitionEvent>() {
+         private Iterator<AcquisitionEvent> merged_;
+
+         private Iterator<AcquisitionEvent> merged() {
+            if (merged_ == null) {
+               InterleavedEventScheduler scheduler = new InterleavedEventScheduler(costModel_);
+               for (int i = 0; i < acqEvents.size(); i++) {
+                  scheduler.add(presetEvents.get(i), acqEvents.get(i));
+               }
+               merged_ = scheduler.schedule().iterator();
+               estimatedSavingMs_ += scheduler.getEstimatedSavingMs();
+               studio_.logs().logMessage(String.format(
+                     "Multi-MDA time point %d: %s order of %d blocks, estimated "
+                           + "transitions %.0f ms instead of %.0f ms",
+                     timeIndex, scheduler.isInterleaved() ? "interleaved" : "sequential",
+                     scheduler.getNumberOfBlocks(), scheduler.getScheduledMs(),
+                     scheduler.getSequentialMs()));
+            }
+            return merged_;
+         }
+
+         @Override
+         public boolean hasNext() {
+            return merged().hasNext();
+         }
+
+         @Override
+         public AcquisitionEvent next() {
+            return merged().next();
+         }
+      };
+   }
+
+   /**
+    * Lets acquisitions that start after this call merge the events of all
+    * acquisitions of a time point into one order with less stage travel and
+    * fewer configuration changes, instead of running them one after the other.
+    *
+    * @param interleaved True to merge the acquisitions of each time point
+    */
+   public void setInterleaved(boolean interleaved) {
+      interleaved_ = interleaved;
+   }
+
+   public boolean isInterleaved() {
+      return interleaved_;
+   }
+
+   /**
+    * Sets the stage speeds and switch times used to order interleaved
+    * acquisitions.
+    */
+   public void setTransitionCostModel(InterleavedEventScheduler.CostModel costModel) {
+      costModel_ = costModel;
+   }
+
+   /**
+    * Returns the hardware transition time that interleaving saved so far in the
+    * current or last acquisition, as estimated by the cost model.
+    */
+   public double getEstimatedSavingMs() {
+      return estimatedSavingMs_;
    }
 
    private SequenceSettings calculateSlices(SequenceSettings sequenceSettings) {
@@ -0,0 +1,672 @@
+package org.micromanager.acquisition.internal.acqengjcompat.speedtest;
+
+import com.google.gson.JsonObject;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+import mmcorej.TaggedImage;
+import mmcorej.org.json.JSONException;
+import mmcorej.org.json.JSONObject;
+import org.micromanager.acqj.main.AcqEngMetadata;
+import org.micromanager.acquisition.internal.acqengjcompat.AcqEngJMDADataSink;
+import org.micromanager.data.Coordinates;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Image;
+import org.micromanager.data.Processor;
+import org.micromanager.data.ProcessorContext;
+import org.micromanager.data.Storage;
+import org.micromanager.data.SummaryMetadata;
+import org.micromanager.data.internal.DefaultDatastore;
+import org.micromanager.data.internal.DefaultSummaryMetadata;
+import org.micromanager.data.internal.PixelType;
+import org.micromanager.data.internal.PropertyKey;
+import org.micromanager.data.internal.StorageRAM;
+import org.micromanager.data.internal.StorageSinglePlaneTiffSeries;
+import org.micromanager.data.internal.multipagetiff.StorageMultipageTiff;
+import org.micromanager.data.internal.pipeline.DefaultPipeline;
+import org.micromanager.events.EventManager;
+
+/**
+ * Measures how fast images move from the acquisition engine to storage,
+ * without hardware and without the application.
+ *
+ * <p>A synthetic camera produces frames at a fixed rate into a bounded
+ * buffer, like the circular buffer of the core.  A second thread takes them
+ * out and hands them to {@link AcqEngJMDADataSink}, like the image saving
+ * thread of the acquisition engine.  From there they go through an
+ * asynchronous {@link DefaultPipeline} into a {@link DefaultDatastore} backed
+ * by one of the storage implementations.  Frames that arrive while the
+ * buffer is full are dropped, as the camera would overwrite them.</p>
+ *
+ * <p>Every run reports sustained frames/s and MB/s, latency percentiles of
+ * each stage and the number of dropped frames as one line of JSON, so that
+ * the results of different versions can be compared by a script.</p>
+ *
+ * <p>Usage: AcquisitionThroughputBenchmark [frames] [width] [height]
+ * [bytesPerPixel] [framesPerSecond] [outputFile]</p>
+ */
+public final class AcquisitionThroughputBenchmark {
+
+   /**
+    * Storage implementations that can be benchmarked.
+    */
+   public enum StorageType {
+      RAM, MULTIPAGE_TIFF, SINGLEPLANE_TIFF
+   }
+
+   /**
+    * Stages of the way from the camera to storage.
+    */
+   public enum Stage {
+      /** Waiting in the camera buffer. */
+      BUFFER,
+      /** Conversion in the data sink, up to the first pipeline processor. */
+      SINK,
+      /** Rest of the pipeline and the datastore, up to the storage. */
+      PIPELINE,
+      /** Handing the image to the storage. */
+      STORAGE,
+      /** From the camera to the storage. */
+      TOTAL
+   }
+
+   private static final double[] PERCENTILES = {50.0, 90.0, 99.0, 100.0};
+   private static final TaggedImage POISON = new TaggedImage(null, null);
+
+   /**
+    * What to benchmark.
+    */
+   public static final class Settings {
+      private final int frames_;
+      private final int width_;
+      private final int height_;
+      private final int bytesPerPixel_;
+      private final double framesPerSecond_;
+      private final int bufferFrames_;
+      private final File directory_;
+
+      private Settings(Builder builder) {
+         frames_ = builder.frames_;
+         width_ = builder.width_;
+         height_ = builder.height_;
+         bytesPerPixel_ = builder.bytesPerPixel_;
+         framesPerSecond_ = builder.framesPerSecond_;
+         bufferFrames_ = builder.bufferFrames_;
+         directory_ = builder.directory_;
+      }
+
+      public int getFrames() {
+         return frames_;
+      }
+
+      public long getFrameBytes() {
+         return (long) width_ * height_ * bytesPerPixel_;
+      }
+
+      /**
+       * Builds the settings of a benchmark run.
+       */
+      public static final class Builder {
+         private int frames_ = 300;
+         private int width_ = 512;
+         private int height_ = 512;
+         private int bytesPerPixel_ = 2;
+         private double framesPerSecond_ = 0.0;
+         private int bufferFrames_ = 100;
+         private File directory_ = null;
+
+         public Builder frames(int frames) {
+            frames_ = frames;
+            return this;
+         }
+
+         /**
+          * Size of the synthetic frames.
+          *
+          * @param width Width in pixels.
+          * @param height Height in pixels.
+          * @param bytesPerPixel 1 or 2.
+          * @return this builder
+          */
+         public Builder frameSize(int width, int height, int bytesPerPixel) {
+            if (bytesPerPixel != 1 && bytesPerPixel != 2) {
+               throw new IllegalArgumentException("Only 8 and 16 bit frames are supported");
+            }
+            width_ = width;
+            height_ = height;
+            bytesPerPixel_ = bytesPerPixel;
+            return this;
+         }
+
+         /**
+          * Rate of the synthetic camera.  At 0 or less the camera waits for
+          * room in the buffer instead of dropping frames, which measures the
+          * highest rate the Java side can sustain.
+          *
+          * @param framesPerSecond frames per second
+          * @return this builder
+          */
+         public Builder framesPerSecond(double framesPerSecond) {
+            framesPerSecond_ = framesPerSecond;
+            return this;
+         }
+
+         public Builder bufferFrames(int bufferFrames) {
+            bufferFrames_ = bufferFrames;
+            return this;
+         }
+
+         /**
+          * Directory in which the disk based storages write their data.  It
+          * is created when needed, and the data are removed after each run.
+          * A temporary directory is used when not set.
+          *
+          * @param directory directory for the data
+          * @return this builder
+          */
+         public Builder directory(File directory) {
+            directory_ = directory;
+            return this;
+         }
+
+         public Settings build() {
+            return new Settings(this);
+         }
+      }
+   }
+
+   /**
+    * Outcome of one benchmark run.
+    */
+   public static final class Result {
+      private final StorageType storageType_;
+      private final Settings settings_;
+      private final int storedFrames_;
+      private final int droppedFrames_;
+      private final int lostFrames_;
+      private final long durationNs_;
+      private final Map<Stage, double[]> percentilesMs_;
+
+      private Result(StorageType storageType, Settings settings, int storedFrames,
+                     int droppedFrames, int lostFrames, long durationNs,
+                     Map<Stage, double[]> percentilesMs) {
+         storageType_ = storageType;
+         settings_ = settings;
+         storedFrames_ = storedFrames;
+         droppedFrames_ = droppedFrames;
+         lostFrames_ = lostFrames;
+         durationNs_ = durationNs;
+         percentilesMs_ = percentilesMs;
+      }
+
+      public StorageType getStorageType() {
+         return storageType_;
+      }
+
+      public int getStoredFrames() {
+         return storedFrames_;
+      }
+
+      /**
+       * Frames the camera could not put in the full buffer.
+       */
+      public int getDroppedFrames() {
+         return droppedFrames_;
+      }
+
+      /**
+       * Frames that were handed to the data sink, but never reached storage.
+       */
+      public int getLostFrames() {
+         return lostFrames_;
+      }
+
+      public double getDurationMs() {
+         return durationNs_ / 1e6;
+      }
+
+      /**
+       * Stored frames per second, from the first frame of the camera until
+       * the datastore is frozen and everything is written.
+       */
+      public double getFramesPerSecond() {
+         return storedFrames_ / (durationNs_ / 1e9);
+      }
+
+      public double getMBPerSecond() {
+         return getFramesPerSecond() * settings_.getFrameBytes() / 1e6;
+      }
+
+      /**
+       * Latency of the given stage in milliseconds, at the 50th, 90th and
+       * 99th percentile and the maximum.
+       */
+      public double[] getLatencyPercentilesMs(Stage stage) {
+         return percentilesMs_.get(stage).clone();
+      }
+
+      /**
+       * All results as a single line of JSON.
+       */
+      public String toJson() {
+         JsonObject json = new JsonObject();
+         json.addProperty("storage", storageType_.name());
+         json.addProperty("frames", settings_.frames_);
+         json.addProperty("width", settings_.width_);
+         json.addProperty("height", settings_.height_);
+         json.addProperty("bytesPerPixel", settings_.bytesPerPixel_);
+         json.addProperty("targetFramesPerSecond", settings_.framesPerSecond_);
+         json.addProperty("bufferFrames", settings_.bufferFrames_);
+         json.addProperty("storedFrames", storedFrames_);
+         json.addProperty("droppedFrames", droppedFrames_);
+         json.addProperty("lostFrames", lostFrames_);
+         json.addProperty("durationMs", getDurationMs());
+         json.addProperty("framesPerSecond", getFramesPerSecond());
+         json.addProperty("MBPerSecond", getMBPerSecond());
+         JsonObject latencies = new JsonObject();
+         for (Stage stage : Stage.values()) {
+            JsonObject percentiles = new JsonObject();
+            double[] values = percentilesMs_.get(stage);
+            for (int i = 0; i < PERCENTILES.length; i++) {
+               percentiles.addProperty(PERCENTILES[i] == 100.0 ? "max"
+                     : "p" + (int) PERCENTILES[i], values[i]);
+            }
+            latencies.add(stage.name(), percentiles);
+         }
+         json.add("latencyMs", latencies);
+         json.addProperty("javaVersion", System.getProperty("java.version"));
+         return json.toString();
+      }
+
+      @Override
+      public String toString() {
+         return toJson();
+      }
+   }
+
+   public static void main(String[] args) throws IOException, InterruptedException {
+      Settings.Builder builder = new Settings.Builder();
+      if (args.length > 0) {
+         builder.frames(Integer.parseInt(args[0]));
+      }
+      if (args.length > 3) {
+         builder.frameSize(Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+               Integer.parseInt(args[3]));
+      }
+      if (args.length > 4) {
+         builder.framesPerSecond(Double.parseDouble(args[4]));
+      }
+      Settings settings = builder.build();
+      List<Result> results = new ArrayList<>();
+      for (StorageType type : StorageType.values()) {
+         // the first run only warms up the JIT
+         run(type, settings);
+         Result result = run(type, settings);
+         System.out.println(result.toJson());
+         results.add(result);
+      }
+      if (args.length > 5) {
+         try (Writer writer = new FileWriter(args[5], true)) {
+            for (Result result : results) {
+               writer.write(result.toJson());
+               writer.write(System.lineSeparator());
+            }
+         }
+      }
+   }
+
+   /**
+    * Runs the benchmark once.
+    *
+    * @param storageType Storage to write to.
+    * @param settings What to benchmark.
+    * @return Measured throughput and latencies.
+    * @throws IOException when the storage can not be created.
+    * @throws InterruptedException when interrupted while waiting for the threads.
+    */
+   public static Result run(StorageType storageType, Settings settings)
+         throws IOException, InterruptedException {
+      return new AcquisitionThroughputBenchmark(settings).run(storageType);
+   }
+
+   private final Settings settings_;
+   private final AtomicLongArray createdNs_;
+   private final AtomicLongArray takenNs_;
+   private final AtomicLongArray processedNs_;
+   private final AtomicLongArray storageStartNs_;
+   private final AtomicLongArray storedNs_;
+   private volatile int droppedFrames_ = 0;
+   private volatile int sentFrames_ = 0;
+
+   private AcquisitionThroughputBenchmark(Settings settings) {
+      settings_ = settings;
+      createdNs_ = new AtomicLongArray(settings.frames_);
+      takenNs_ = new AtomicLongArray(settings.frames_);
+      processedNs_ = new AtomicLongArray(settings.frames_);
+      storageStartNs_ = new AtomicLongArray(settings.frames_);
+      storedNs_ = new AtomicLongArray(settings.frames_);
+   }
+
+   private Result run(StorageType storageType) throws IOException, InterruptedException {
+      boolean temporary = settings_.directory_ == null;
+      File root = temporary
+            ? Files.createTempDirectory("mm-throughput").toFile() : settings_.directory_;
+      File dir = new File(root, storageType.name() + "_" + System.nanoTime());
+      try {
+         return run(storageType, dir);
+      } finally {
+         delete(temporary ? root : dir);
+      }
+   }
+
+   private Result run(StorageType storageType, File dir)
+         throws IOException, InterruptedException {
+      DefaultDatastore store = new DefaultDatastore(null);
+      Storage storage = createStorage(storageType, store, dir.getAbsolutePath());
+      store.setStorage(new TimedStorage(storage));
+      List<Processor> processors = new ArrayList<>();
+      processors.add(new TimingProcessor());
+      DefaultPipeline pipeline = new DefaultPipeline(processors, store, false);
+      pipeline.insertSummaryMetadata(summaryMetadata());
+
+      AcqEngJMDADataSink sink = new AcqEngJMDADataSink(new NoEvents(), null);
+      sink.setDatastore(store);
+      sink.setPipeline(pipeline);
+
+      BlockingQueue<TaggedImage> buffer = new ArrayBlockingQueue<>(settings_.bufferFrames_);
+      Thread saving = new Thread(() -> {
+         try {
+            while (true) {
+               TaggedImage tagged = buffer.take();
+               if (tagged == POISON) {
+                  return;
+               }
+               int frame = tagged.tags.getInt(PropertyKey.FRAME_INDEX.key());
+               takenNs_.set(frame, System.nanoTime());
+               sink.putImage(tagged);
+               sentFrames_++;
+            }
+         } catch (InterruptedException | JSONException e) {
+            Thread.currentThread().interrupt();
+         }
+      }, "Throughput benchmark saving thread");
+      saving.start();
+
+      final long startNs = System.nanoTime();
+      produce(buffer, startNs);
+      buffer.put(POISON);
+      saving.join();
+      // halts the pipeline after all images went through
+      sink.finish();
+      store.freeze();
+      final long durationNs = System.nanoTime() - startNs;
+
+      int stored = storage.getNumImages();
+      storage.close();
+      return new Result(storageType, settings_, stored, droppedFrames_,
+            sentFrames_ - stored, durationNs, percentiles());
+   }
+
+   /*
+    * The synthetic camera.
+    */
+   private void produce(BlockingQueue<TaggedImage> buffer, long startNs)
+         throws InterruptedException {
+      final Object pixels = templatePixels();
+      final long periodNs = settings_.framesPerSecond_ > 0
+            ? (long) (1e9 / settings_.framesPerSecond_) : 0;
+      for (int frame = 0; frame < settings_.frames_; frame++) {
+         if (periodNs > 0) {
+            long waitNs = startNs + frame * periodNs - System.nanoTime();
+            while (waitNs > 0) {
+               LockSupport.parkNanos(waitNs);
+               waitNs = startNs + frame * periodNs - System.nanoTime();
+            }
+         }
+         createdNs_.set(frame, System.nanoTime());
+         TaggedImage tagged = createFrame(frame, pixels);
+         if (periodNs > 0) {
+            if (!buffer.offer(tagged)) {
+               droppedFrames_++;
+            }
+         } else {
+            buffer.put(tagged);
+         }
+      }
+   }
+
+   private Object templatePixels() {
+      int size = settings_.width_ * settings_.height_;
+      if (settings_.bytesPerPixel_ == 1) {
+         byte[] pixels = new byte[size];
+         for (int i = 0; i < size; i++) {
+            pixels[i] = (byte) (i % settings_.width_ + i / settings_.width_);
+         }
+         return pixels;
+      }
+      short[] pixels = new short[size];
+      for (int i = 0; i < size; i++) {
+         pixels[i] = (short) ((i % settings_.width_ + i / settings_.width_) & 0xfff);
+      }
+      return pixels;
+   }
+
+   /*
+    * A new frame, with its own copy of the pixels like the core would give us.
+    */
+   private TaggedImage createFrame(int frame, Object template) {
+      Object pixels = template instanceof byte[]
+            ? ((byte[]) template).clone() : ((short[]) template).clone();
+      JSONObject tags = new JSONObject();
+      try {
+         AcqEngMetadata.setAxisPosition(tags, AcqEngMetadata.TIME_AXIS, frame);
+         tags.put(PropertyKey.WIDTH.key(), settings_.width_);
+         tags.put(PropertyKey.HEIGHT.key(), settings_.height_);
+         tags.put(PropertyKey.PIXEL_TYPE.key(), settings_.bytesPerPixel_ == 1
+               ? PixelType.GRAY8.name() : PixelType.GRAY16.name());
+         tags.put(PropertyKey.BIT_DEPTH.key(), settings_.bytesPerPixel_ * 8);
+         tags.put(PropertyKey.FRAME_INDEX.key(), frame);
+      } catch (JSONException e) {
+         throw new RuntimeException(e);
+      }
+      return new TaggedImage(pixels, tags);
+   }
+
+   private SummaryMetadata summaryMetadata() {
+      return new DefaultSummaryMetadata.Builder()
+            .prefix("throughput")
+            .channelNames("Synthetic")
+            .axisOrder(Coords.T, Coords.P, Coords.Z, Coords.C)
+            .intendedDimensions(Coordinates.builder()
+                  .t(settings_.frames_).p(1).z(1).c(1).build())
+            .imageWidth(settings_.width_)
+            .imageHeight(settings_.height_)
+            .build();
+   }
+
+   private static Storage createStorage(StorageType type, DefaultDatastore store, String dir)
+         throws IOException {
+      switch (type) {
+         case MULTIPAGE_TIFF:
+            return new StorageMultipageTiff(null, store, dir, true, true, false);
+         case SINGLEPLANE_TIFF:
+            return new StorageSinglePlaneTiffSeries(store, dir, true);
+         default:
+            return new StorageRAM(store);
+      }
+   }
+
+   private Map<Stage, double[]> percentiles() {
+      Map<Stage, double[]> result = new EnumMap<>(Stage.class);
+      result.put(Stage.BUFFER, percentiles(createdNs_, takenNs_));
+      result.put(Stage.SINK, percentiles(takenNs_, processedNs_));
+      result.put(Stage.PIPELINE, percentiles(processedNs_, storageStartNs_));
+      result.put(Stage.STORAGE, percentiles(storageStartNs_, storedNs_));
+      result.put(Stage.TOTAL, percentiles(createdNs_, storedNs_));
+      return result;
+   }
+
+   /*
+    * Percentiles in ms of the time between two events, over all frames that
+    * saw both.
+    */
+   private static double[] percentiles(AtomicLongArray from, AtomicLongArray to) {
+      long[] latencies = new long[from.length()];
+      int n = 0;
+      for (int i = 0; i < from.length(); i++) {
+         if (from.get(i) != 0 && to.get(i) != 0) {
+            latencies[n++] = to.get(i) - from.get(i);
+         }
+      }
+      Arrays.sort(latencies, 0, n);
+      double[] result = new double[PERCENTILES.length];
+      for (int p = 0; p < PERCENTILES.length; p++) {
+         if (n > 0) {
+            int index = (int) Math.ceil(PERCENTILES[p] / 100.0 * n) - 1;
+            result[p] = latencies[Math.max(0, index)] / 1e6;
+         } else {
+            result[p] = Double.NaN;
+         }
+      }
+      return result;
+   }
+
+   private static void delete(File dir) throws IOException {
+      if (!dir.exists()) {
+         return;
+      }
+      try (Stream<Path> paths = Files.walk(dir.toPath())) {
+         for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+            Files.delete(path);
+         }
+      }
+   }
+
+   /*
+    * Pass-through processor that notes when an image enters the pipeline.
+    */
+   private final class TimingProcessor implements Processor {
+      @Override
+      public void processImage(Image image, ProcessorContext context) {
+         processedNs_.set(image.getCoords().getT(), System.nanoTime());
+         context.outputImage(image);
+      }
+   }
+
+   /*
+    * Notes when the datastore hands an image to the storage and when the
+    * storage returns.
+    */
+   private final class TimedStorage implements Storage {
+      private final Storage storage_;
+
+      TimedStorage(Storage storage) {
+         storage_ = storage;
+      }
+
+      @Override
+      public void putImage(Image image) throws IOException {
+         int frame = image.getCoords().getT();
+         storageStartNs_.set(frame, System.nanoTime());
+         storage_.putImage(image);
+         storedNs_.set(frame, System.nanoTime());
+      }
+
+      @Override
+      public void freeze() throws IOException {
+         storage_.freeze();
+      }
+
+      @Override
+      public Image getImage(Coords coords) throws IOException {
+         return storage_.getImage(coords);
+      }
+
+      @Override
+      public boolean hasImage(Coords coords) {
+         return storage_.hasImage(coords);
+      }
+
+      @Override
+      public Image getAnyImage() {
+         return storage_.getAnyImage();
+      }
+
+      @Override
+      public Iterable<Coords> getUnorderedImageCoords() {
+         return storage_.getUnorderedImageCoords();
+      }
+
+      @Override
+      public List<Image> getImagesMatching(Coords coords) throws IOException {
+         return storage_.getImagesMatching(coords);
+      }
+
+      @Override
+      public List<Image> getImagesIgnoringAxes(Coords coords, String... ignoreTheseAxes)
+            throws IOException {
+         return storage_.getImagesIgnoringAxes(coords, ignoreTheseAxes);
+      }
+
+      @Override
+      public int getMaxIndex(String axis) {
+         return storage_.getMaxIndex(axis);
+      }
+
+      @Override
+      public List<String> getAxes() {
+         return storage_.getAxes();
+      }
+
+      @Override
+      public Coords getMaxIndices() {
+         return storage_.getMaxIndices();
+      }
+
+      @Override
+      public SummaryMetadata getSummaryMetadata() {
+         return storage_.getSummaryMetadata();
+      }
+
+      @Override
+      public int getNumImages() {
+         return storage_.getNumImages();
+      }
+
+      @Override
+      public void close() throws IOException {
+         storage_.close();
+      }
+   }
+
+   /*
+    * There is no application to tell that the acquisition ended.
+    */
+   private static final class NoEvents implements EventManager {
+      @Override
+      public void registerForEvents(Object obj) {
+      }
+
+      @Override
+      public void unregisterForEvents(Object obj) {
+      }
+
+      @Override
+      public void post(Object event) {
+      }
+   }
+}
@@ -0,0 +1,162 @@
+package org.micromanager.acquisition.internal.acqengjcompat.speedtest;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Function;
+import org.micromanager.MultiStagePosition;
+import org.micromanager.PositionList;
+import org.micromanager.acqj.main.Acquisition;
+import org.micromanager.acqj.main.AcquisitionEvent;
+import org.micromanager.acqj.util.AcquisitionEventIterator;
+import org.micromanager.acquisition.ChannelSpec;
+import org.micromanager.acquisition.SequenceSettings;
+import org.micromanager.acquisition.internal.acqengjcompat.MDAAcqEventModules;
+import org.micromanager.acquisition.internal.acqengjcompat.MDAEventPlan;
+import org.micromanager.internal.utils.AcqOrderMode;
+
+/**
+ * Measures how fast acquisition events are generated, without hardware.
+ * Compares the module functions combined by AcquisitionEventIterator with
+ * the compiled MDAEventPlan, reporting events per second and bytes allocated
+ * per event.
+ *
+ * <p>Usage: EventPlanBenchmark [positions] [frames] [channels] [slices]</p>
+ */
+public class EventPlanBenchmark {
+   private static final String XY_STAGE = "XY";
+   private static final String Z_STAGE = "Z";
+
+   public static void main(String[] args) {
+      int positions = args.length > 0 ? Integer.parseInt(args[0]) : 96;
+      int frames = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+      int channels = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+      int slices = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+      System.out.println(run(positions, frames, channels, slices));
+   }
+
+   /**
+    * Runs the benchmark.  Each method runs twice, only the second run is
+    * reported so that the JIT has warmed up.
+    *
+    * @return Human readable report.
+    */
+   public static String run(int positions, int frames, int channels, int slices) {
+      SequenceSettings settings = settings(frames, channels, slices);
+      PositionList positionList = positionList(positions);
+      AcquisitionEvent baseEvent = new AcquisitionEvent((Acquisition) null);
+      ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+      StringBuilder report = new StringBuilder();
+      report.append(String.format("%d positions, %d frames, %d channels, %d slices%n",
+            positions, frames, channels, slices));
+      for (int pass = 0; pass < 2; pass++) {
+         long bytes = allocatedBytes(bean);
+         long start = System.nanoTime();
+         long legacyCount = drain(legacyIterator(settings, positionList, baseEvent));
+         long legacyNs = System.nanoTime() - start;
+         long legacyBytes = allocatedBytes(bean) - bytes;
+
+         bytes = allocatedBytes(bean);
+         start = System.nanoTime();
+         MDAEventPlan plan = MDAEventPlan.compile(settings, positionList, null, XY_STAGE, 0.0);
+         long compileNs = System.nanoTime() - start;
+         long compileBytes = allocatedBytes(bean) - bytes;
+
+         bytes = allocatedBytes(bean);
+         start = System.nanoTime();
+         long planCount = drain(plan.iterator(baseEvent, null));
+         long planNs = System.nanoTime() - start;
+         long planBytes = allocatedBytes(bean) - bytes;
+
+         if (pass == 0) {
+            continue;
+         }
+         report.append(line("Modules", legacyCount, legacyNs, legacyBytes));
+         report.append(String.format("Plan compile: %d events in %.1f ms, %.1f bytes/event%n",
+               plan.getNumberOfEvents(), compileNs / 1e6,
+               compileBytes / (double) Math.max(1, plan.getNumberOfEvents())));
+         report.append(line("Plan", planCount, planNs, planBytes));
+      }
+      return report.toString();
+   }
+
+   private static String line(String name, long count, long ns, long bytes) {
+      return String.format("%s: %d events in %.1f ms, %.0f events/s, %s bytes/event%n",
+            name, count, ns / 1e6, count / (ns / 1e9),
+            bytes < 0 ? "n/a" : String.format("%.1f", bytes / (double) Math.max(1, count)));
+   }
+
+   /*
+    * Bytes allocated by this thread so far, or -1 when the JVM can not tell.
+    */
+   private static long allocatedBytes(ThreadMXBean bean) {
+      if (bean instanceof com.sun.management.ThreadMXBean) {
+         return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+               Thread.currentThread().getId());
+      }
+      return -1;
+   }
+
+   private static long drain(Iterator<AcquisitionEvent> events) {
+      long count = 0;
+      while (events.hasNext()) {
+         if (events.next() != null) {
+            count++;
+         }
+      }
+      return count;
+   }
+
+   private static Iterator<AcquisitionEvent> legacyIterator(SequenceSettings settings,
+               PositionList positionList, AcquisitionEvent baseEvent) {
+      List<ChannelSpec> chSpecs = settings.channels();
+      ArrayList<Function<AcquisitionEvent, Iterator<AcquisitionEvent>>> acqFunctions =
+            new ArrayList<>();
+      acqFunctions.add(MDAAcqEventModules.positions(positionList, null, XY_STAGE));
+      acqFunctions.add(MDAAcqEventModules.timelapse(settings.numFrames(),
+            settings.intervalMs(), null));
+      acqFunctions.add(MDAAcqEventModules.channels(chSpecs,
+            (settings.slices().size() - 1) / 2, null));
+      acqFunctions.add(MDAAcqEventModules.zStack(0, settings.slices().size() - 1,
+            settings.sliceZStepUm(), settings.slices().get(0), chSpecs, null));
+      return new AcquisitionEventIterator(baseEvent, acqFunctions, e -> e);
+   }
+
+   private static SequenceSettings settings(int frames, int channels, int slices) {
+      ArrayList<ChannelSpec> chSpecs = new ArrayList<>();
+      for (int c = 0; c < channels; c++) {
+         chSpecs.add(new ChannelSpec.Builder().channelGroup("Channel").config("Ch" + c)
+               .exposure(10.0).build());
+      }
+      ArrayList<Double> sliceList = new ArrayList<>();
+      for (int z = 0; z < slices; z++) {
+         sliceList.add(z * 0.5);
+      }
+      return new SequenceSettings.Builder()
+            .numFrames(frames)
+            .intervalMs(100.0)
+            .useFrames(true)
+            .channels(chSpecs)
+            .useChannels(true)
+            .slices(sliceList)
+            .sliceZStepUm(0.5)
+            .useSlices(true)
+            .usePositionList(true)
+            .acqOrderMode(AcqOrderMode.POS_TIME_CHANNEL_SLICE)
+            .build();
+   }
+
+   private static PositionList positionList(int positions) {
+      PositionList positionList = new PositionList();
+      for (int p = 0; p < positions; p++) {
+         MultiStagePosition msp = new MultiStagePosition(XY_STAGE, p * 1000.0, p * 500.0,
+               Z_STAGE, 10.0);
+         msp.setLabel("Pos" + p);
+         positionList.addPosition(msp);
+      }
+      return positionList;
+   }
+}
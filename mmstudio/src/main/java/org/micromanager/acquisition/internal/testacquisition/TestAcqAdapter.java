@@ -47,7 +47,6 @@ import org.micromanager.acqj.internal.Engine;
 import org.micromanager.acqj.main.AcqEngMetadata;
 import org.micromanager.acqj.main.Acquisition;
 import org.micromanager.acqj.main.AcquisitionEvent;
-import org.micromanager.acqj.util.AcquisitionEventIterator;
 import org.micromanager.acquisition.AcquisitionEndedEvent;
 import org.micromanager.acquisition.ChannelSpec;
 import org.micromanager.acquisition.SequenceSettings;
@@ -56,7 +55,10 @@ import org.micromanager.acquisition.internal.DefaultAcquisitionEndedEvent;
 import org.micromanager.acquisition.internal.DefaultAcquisitionSettingsChangedEvent;
 import org.micromanager.acquisition.internal.DefaultAcquisitionStartedEvent;
 import org.micromanager.acquisition.internal.MMAcquistionControlCallbacks;
+import org.micromanager.acquisition.internal.acqengjcompat.AcquisitionDryRun;
+import org.micromanager.acquisition.internal.acqengjcompat.AcquisitionTracer;
 import org.micromanager.acquisition.internal.acqengjcompat.MDAAcqEventModules;
+import org.micromanager.acquisition.internal.acqengjcompat.MDAEventPlan;
 import org.micromanager.data.DataProvider;
 import org.micromanager.data.Datastore;
 import org.micromanager.data.Pipeline;
@@ -111,6 +113,7 @@ public class TestAcqAdapter extends DataViewerListener implements
    private DisplayWindow displayWindow_;
    private Pipeline curPipeline_;
    private long nextWakeTime_ = -1;
+   private AcquisitionTracer tracer_ = null;
    private final ArrayList<RunnablePlusIndices> runnables_ = new ArrayList<>();
 
    @Override
@@ -215,6 +218,13 @@ public class TestAcqAdapter extends DataViewerListener implements
          currentAcquisition_ = new Acquisition(sink);
          currentAcquisition_.setDebugMode(core_.debugLogEnabled());
 
+         final AcquisitionTracer tracer = tracer_;
+         if (tracer != null) {
+            tracer.start();
+            tracer.addFirstHooks(currentAcquisition_);
+            sink.setTracer(tracer);
+         }
+
          loadRunnables(acquisitionSettings);
 
          summaryMetadataJSON_ = currentAcquisition_.getSummaryMetadata();
@@ -276,6 +286,9 @@ public class TestAcqAdapter extends DataViewerListener implements
 
          sink.setDatastore(curStore_);
          sink.setPipeline(curPipeline_);
+         if (tracer != null) {
+            tracer.attach(curStore_);
+         }
 
          zStage_ = core_.getFocusDevice();
 
@@ -331,6 +344,9 @@ public class TestAcqAdapter extends DataViewerListener implements
             currentAcquisition_.addHook(restoreChannelHook(channelGroup, channel),
                     AcquisitionAPI.AFTER_HARDWARE_HOOK);
          }
+         if (tracer != null) {
+            tracer.addLastHooks(currentAcquisition_);
+         }
 
          // Read for events
          currentAcquisition_.start();
@@ -502,121 +518,53 @@ public class TestAcqAdapter extends DataViewerListener implements
    }
 
    /**
-    * This function converts acquisitionSettings to a lazy sequence (i.e. an iterator) of
-    * AcquisitionEvents.
+    * Traces every event of acquisitions that start after this call, from its
+    * generation until its image is stored.
+    *
+    * @param tracer Tracer that keeps the records, or null to stop tracing.
     */
-   private Iterator<AcquisitionEvent> createAcqEventIterator(SequenceSettings acquisitionSettings)
-           throws Exception {
-      // Select channels that we are actually using
-      List<ChannelSpec> chSpecs = new ArrayList<>();
-      for (ChannelSpec chSpec : acquisitionSettings.channels()) {
-         if (chSpec.useChannel()) {
-            chSpecs.add(chSpec);
-         }
-      }
-
-      Function<AcquisitionEvent, Iterator<AcquisitionEvent>> zStack = null;
-      if (acquisitionSettings.useSlices()) {
-         double origin = acquisitionSettings.slices().get(0);
-         if (acquisitionSettings.relativeZSlice()) {
-            origin = studio_.core().getPosition() + acquisitionSettings.slices().get(0);
-         }
-         zStack = MDAAcqEventModules.zStack(0,
-                 acquisitionSettings.slices().size() - 1,
-                 acquisitionSettings.sliceZStepUm(),
-                 origin,
-                 chSpecs,
-                 null);
-      }
-
-      Function<AcquisitionEvent, Iterator<AcquisitionEvent>> channels = null;
-      if (acquisitionSettings.useChannels()) {
-         if (chSpecs.size() > 0) {
-            Integer middleSliceIndex = (acquisitionSettings.slices().size() - 1) / 2;
-            channels = MDAAcqEventModules.channels(chSpecs, middleSliceIndex, null);
-         }
-      }
-
-      Function<AcquisitionEvent, Iterator<AcquisitionEvent>> positions = null;
-      if (acquisitionSettings.usePositionList()) {
-         positions = MDAAcqEventModules.positions(posList_, null, core_);
-         // TODO: is acq engine supposed to move multiple stages?
-         // Yes: when moving to a new position, all stages in the MultiStagePosition instance
-         // should be moved to the desired location
-         // TODO: What about Z positions in position list
-         // Yes: First move all stages in the MSP to their desired location, then do
-         // whatever is asked to do.
-      }
+   public void setTracer(AcquisitionTracer tracer) {
+      tracer_ = tracer;
+   }
 
-      Function<AcquisitionEvent, Iterator<AcquisitionEvent>> timelapse = null;
-      if (acquisitionSettings.useFrames()) {
-         timelapse = MDAAcqEventModules.timelapse(acquisitionSettings.numFrames(),
-                 acquisitionSettings.intervalMs(), null);
-         // TODO custom time intervals
-      }
+   public AcquisitionTracer getTracer() {
+      return tracer_;
+   }
 
-      ArrayList<Function<AcquisitionEvent, Iterator<AcquisitionEvent>>> acqFunctions
-              = new ArrayList<>();
-      if (acquisitionSettings.acqOrderMode() == AcqOrderMode.POS_TIME_CHANNEL_SLICE) {
-         if (acquisitionSettings.usePositionList()) {
-            acqFunctions.add(positions);
-         }
-         if (acquisitionSettings.useFrames()) {
-            acqFunctions.add(timelapse);
-         }
-         if (acquisitionSettings.useChannels()) {
-            acqFunctions.add(channels);
-         }
-         if (acquisitionSettings.useSlices()) {
-            acqFunctions.add(zStack);
-         }
-      } else if (acquisitionSettings.acqOrderMode() == AcqOrderMode.POS_TIME_SLICE_CHANNEL) {
-         if (acquisitionSettings.usePositionList()) {
-            acqFunctions.add(positions);
-         }
-         if (acquisitionSettings.useFrames()) {
-            acqFunctions.add(timelapse);
-         }
-         if (acquisitionSettings.useSlices()) {
-            acqFunctions.add(zStack);
-         }
-         if (acquisitionSettings.useChannels()) {
-            acqFunctions.add(channels);
-         }
-      } else if (acquisitionSettings.acqOrderMode() == AcqOrderMode.TIME_POS_CHANNEL_SLICE) {
-         if (acquisitionSettings.useFrames()) {
-            acqFunctions.add(timelapse);
-         }
-         if (acquisitionSettings.usePositionList()) {
-            acqFunctions.add(positions);
-         }
-         if (acquisitionSettings.useChannels()) {
-            acqFunctions.add(channels);
-         }
-         if (acquisitionSettings.useSlices()) {
-            acqFunctions.add(zStack);
-         }
-      } else if (acquisitionSettings.acqOrderMode() == AcqOrderMode.TIME_POS_SLICE_CHANNEL) {
-         if (acquisitionSettings.useFrames()) {
-            acqFunctions.add(timelapse);
-         }
-         if (acquisitionSettings.usePositionList()) {
-            acqFunctions.add(positions);
-         }
-         if (acquisitionSettings.useSlices()) {
-            acqFunctions.add(zStack);
-         }
-         if (acquisitionSettings.useChannels()) {
-            acqFunctions.add(channels);
-         }
-      } else {
-         throw new RuntimeException("Unknown acquisition order");
-      }
+   /**
+    * Predicts the duration, memory use and storage load of an acquisition
+    * with the given settings and the current position list, without running it.
+    *
+    * @param acquisitionSettings Settings of the acquisition to predict.
+    * @param model Timing of the hardware, image pipeline and storage.
+    * @return Predicted timeline and load of each stage.
+    * @throws Exception when the current Z position can not be read.
+    */
+   public AcquisitionDryRun.Report dryRun(SequenceSettings acquisitionSettings,
+                                          AcquisitionDryRun.TimingModel model)
+           throws Exception {
+      return AcquisitionDryRun.run(acquisitionSettings, posList_, core_, model);
+   }
 
+   /**
+    * This function converts acquisitionSettings to a lazy sequence (i.e. an iterator) of
+    * AcquisitionEvents.  The events come from the same plan as those of AcqEngJAdapter
+    * and of the dry run.
+    */
+   private Iterator<AcquisitionEvent> createAcqEventIterator(SequenceSettings acquisitionSettings)
+           throws Exception {
+      MDAEventPlan plan = MDAEventPlan.compile(acquisitionSettings, posList_, null, core_);
       AcquisitionEvent baseEvent = new AcquisitionEvent(currentAcquisition_);
-      return new AcquisitionEventIterator(baseEvent, acqFunctions,
-              acqEventMonitor(acquisitionSettings));
-
+      Function<AcquisitionEvent, AcquisitionEvent> monitor = acqEventMonitor(acquisitionSettings);
+      final AcquisitionTracer tracer = tracer_;
+      if (tracer != null) {
+         final Function<AcquisitionEvent, AcquisitionEvent> next = monitor;
+         monitor = event -> {
+            tracer.eventGenerated(event);
+            return next.apply(event);
+         };
+      }
+      return plan.iterator(baseEvent, monitor);
    }
 
    /**
@@ -15,6 +15,7 @@ import org.micromanager.acqj.internal.Engine;
 import org.micromanager.acqj.main.AcqEngMetadata;
 import org.micromanager.acqj.main.Acquisition;
 import org.micromanager.acquisition.internal.DefaultAcquisitionEndedEvent;
+import org.micromanager.acquisition.internal.acqengjcompat.AcquisitionTracer;
 import org.micromanager.data.Coords;
 import org.micromanager.data.Datastore;
 import org.micromanager.data.Pipeline;
@@ -42,6 +43,7 @@ public final class TestAcqDataSink implements AcqEngJDataSink {
    private final EventManager studioEvents_;
    private boolean somethingAcquired_ = false;
    private boolean finished_ = false;
+   private AcquisitionTracer tracer_ = null;
    private final TestAcqAdapter engine_;
 
    public TestAcqDataSink(EventManager studioEvents, TestAcqAdapter engine) {
@@ -57,6 +59,15 @@ public final class TestAcqDataSink implements AcqEngJDataSink {
       store_ = store;
    }
 
+   /**
+    * Records when images arrive and when they were handed to the pipeline.
+    *
+    * @param tracer Tracer of the acquisition, or null to not trace.
+    */
+   public void setTracer(AcquisitionTracer tracer) {
+      tracer_ = tracer;
+   }
+
    // Never called from EDT
    private void handleOutOfMemory(final OutOfMemoryError e) {
       ReportingUtils.logError(e);
@@ -92,6 +103,7 @@ public final class TestAcqDataSink implements AcqEngJDataSink {
 
    @Override
    public Object putImage(TaggedImage tagged) {
+      final long receivedNs = System.nanoTime();
       somethingAcquired_ = true;
       if (finished_) {
          return null;
@@ -117,9 +129,16 @@ public final class TestAcqDataSink implements AcqEngJDataSink {
             cb.index(axisName, (Integer) AcqEngMetadata.getAxes(tagged.tags).get(axisName));
          }
          image = (DefaultImage) image.copyAtCoords(cb.build());
+         if (tracer_ != null) {
+            tracer_.mark(AcquisitionTracer.Stage.IMAGE_RECEIVED, image.getCoords(), receivedNs);
+         }
 
          try {
             pipeline_.insertImage(image);
+            if (tracer_ != null) {
+               tracer_.mark(AcquisitionTracer.Stage.IMAGE_QUEUED, image.getCoords(),
+                     System.nanoTime());
+            }
          } catch (PipelineErrorException e) {
             // These TODOs inherited from DefaultTaggedImageSink
             // TODO: make showing the dialog optional.
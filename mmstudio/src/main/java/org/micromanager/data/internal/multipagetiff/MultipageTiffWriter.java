@@ -57,6 +57,7 @@ import org.micromanager.data.internal.DefaultSummaryMetadata;
 import org.micromanager.data.internal.PropertyKey;
 import org.micromanager.display.ChannelDisplaySettings;
 import org.micromanager.display.DisplaySettings;
+import org.micromanager.display.internal.DefaultChannelDisplaySettings;
 import org.micromanager.display.internal.DefaultDisplaySettings;
 import org.micromanager.display.internal.RememberedDisplaySettings;
 import org.micromanager.internal.MMStudio;
@@ -904,8 +905,7 @@ public final class MultipageTiffWriter {
       if (ds == null) {
          for (int ch = 0; ch < numChannels; ch++) {
             String name = summary.getSafeChannelName(ch);
-            ChannelDisplaySettings cds = RememberedDisplaySettings.loadChannel(
-                  MMStudio.getInstance(), channelGroup, name, null);
+            ChannelDisplaySettings cds = loadChannelSettings(channelGroup, name);
             // Display Ranges: For each channel, write min then max
             // TODO: doesn't handle multi-component images.
             mdBuffer.putDouble(bufferPosition, (double)
@@ -932,8 +932,7 @@ public final class MultipageTiffWriter {
          Color color;
          if (ds == null) {
             String name = summary.getSafeChannelName(ch);
-            color = RememberedDisplaySettings.loadChannel(
-                  MMStudio.getInstance(), channelGroup, name, null).getColor();
+            color = loadChannelSettings(channelGroup, name).getColor();
          } else {
             color = ds.getChannelColor(ch);
          }
@@ -958,6 +957,20 @@ public final class MultipageTiffWriter {
       filePosition_ += mdBufferSize;
    }
 
+   /*
+    * Remembered settings for a channel, or defaults when the application is
+    * not running (e.g. when storage is driven from a benchmark).
+    */
+   private static ChannelDisplaySettings loadChannelSettings(String channelGroup,
+                                                             String name) {
+      if (MMStudio.getInstance() == null) {
+         return DefaultChannelDisplaySettings.builder().groupName(channelGroup)
+               .name(name).component(1).build();
+      }
+      return RememberedDisplaySettings.loadChannel(
+            MMStudio.getInstance(), channelGroup, name, null);
+   }
+
    private void writeImageDescription(String text, long imageDescriptionTagOffset) {
       byte[] bytes = getBytesFromString(text + " ");
       // Null-terminate string
@@ -28,6 +28,7 @@ import java.lang.reflect.Type;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import org.micromanager.PropertyMap;
@@ -847,15 +848,88 @@ public final class PropertyMapJSONSerializer {
    }
 
    private static Gson makeGson() {
+      return makeGson(new PropertyMapSerDes());
+   }
+
+   private static Gson makeGson(PropertyMapSerDes propertyMapSerDes) {
       return new GsonBuilder()
             .setPrettyPrinting()
             .disableHtmlEscaping()
             .serializeSpecialFloatingPointValues()
             .registerTypeAdapter(TypeAndValue.class, new ValueSerDes())
-            .registerTypeHierarchyAdapter(PropertyMap.class, new PropertyMapSerDes())
+            .registerTypeHierarchyAdapter(PropertyMap.class, propertyMapSerDes)
             .create();
    }
 
+   /**
+    * Serializer that reuses the JSON trees of nested property maps that have
+    * not changed since the previous call.
+    *
+    * <p>Property maps are immutable, and editing one entry of a map of maps
+    * (such as a user profile, which contains one map per owner class) leaves
+    * the other nested maps untouched. Repeatedly serializing successive
+    * versions of such a map therefore only needs to encode the nested maps
+    * that were replaced. Maps are matched by identity, not by equality.
+    *
+    * <p>The output is identical to that of {@link #toJSON(PropertyMap)}.
+    * Only the trees used by the most recent call are retained.
+    */
+   public static final class IncrementalSerializer {
+      private Map<PropertyMap, JsonElement> previous_ = new IdentityHashMap<>();
+      private Map<PropertyMap, JsonElement> current_;
+      private int reusedCount_;
+      private int encodedCount_;
+
+      private final Gson gson_ = makeGson(new PropertyMapSerDes() {
+         @Override
+         public JsonElement serialize(PropertyMap t, Type type,
+                                      JsonSerializationContext context) {
+            JsonElement ret = current_.get(t);
+            if (ret == null) {
+               ret = previous_.get(t);
+               if (ret != null) {
+                  reusedCount_++;
+               } else {
+                  ret = super.serialize(t, type, context);
+                  encodedCount_++;
+               }
+               current_.put(t, ret);
+            }
+            return ret;
+         }
+      });
+
+      public synchronized String toJSON(PropertyMap map) {
+         current_ = new IdentityHashMap<>();
+         reusedCount_ = 0;
+         encodedCount_ = 0;
+         try {
+            return gson_.toJson(new VersionedMap(map));
+         } finally {
+            previous_ = current_;
+            current_ = null;
+         }
+      }
+
+      /**
+       * Number of property maps that were taken from the previous call.
+       *
+       * @return count for the most recent call to {@code toJSON}
+       */
+      public synchronized int getReusedCount() {
+         return reusedCount_;
+      }
+
+      /**
+       * Number of property maps that had to be encoded.
+       *
+       * @return count for the most recent call to {@code toJSON}
+       */
+      public synchronized int getEncodedCount() {
+         return encodedCount_;
+      }
+   }
+
    /**
     * Deserialize from a Gson JsonElement.
     *
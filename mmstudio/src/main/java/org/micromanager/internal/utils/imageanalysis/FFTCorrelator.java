@@ -0,0 +1,588 @@
+package org.micromanager.internal.utils.imageanalysis;
+
+import java.awt.geom.Point2D;
+import java.util.Arrays;
+
+/**
+ * Finds where a template (a rectangular region of a reference image) went in
+ * a target image, using zero-normalized cross-correlation calculated with
+ * FFTs on a coarse-to-fine image pyramid.
+ *
+ * <p>Normalized cross-correlation is used rather than phase correlation:
+ * whitening the spectrum of a template that is much smaller than the search
+ * window amplifies the edges of the template and window, while normalized
+ * scores are directly comparable between positions and between images.
+ *
+ * <p>The full search range is only covered at the coarsest pyramid level,
+ * where images are small.  Each finer level then only refines the estimate
+ * of the level above it by a few pixels, so that the cost depends little on
+ * the search range.  At the finest level used, the location of the
+ * correlation peak is refined to sub-pixel precision.
+ *
+ * <p>Images are passed as float arrays stored row by row (see
+ * {@link #toFloatArray(Object)}).  Instances hold no state between calls
+ * and can be shared between threads.
+ *
+ * <p>The FFT and sub-pixel peak fit are public, so that other correlation
+ * code (e.g. drift correction in the Gaussian library) uses the same engine.
+ */
+public class FFTCorrelator {
+
+   // the coarsest level should leave at most this many pixels to search
+   private static final int COARSE_RANGE = 8;
+   // search range (in pixels of that level) at all but the coarsest level
+   private static final int REFINE_RANGE = 2;
+   // the template is never downsampled below this size
+   private static final int MIN_TEMPLATE_SIZE = 16;
+   private static final int MAX_LEVELS = 5;
+   // number of peaks at the coarsest level that are followed to full resolution
+   private static final int CANDIDATES = 4;
+
+   private final int templateWidth_;
+   private final int templateHeight_;
+   private final int maxShift_;
+   private final int coarsestLevel_;
+   private final int finestLevel_;
+   // distance between the template and the edge of the target crop, in full-res pixels
+   private final int margin_;
+
+   /**
+    * Result of a correlation.
+    */
+   public static class Result {
+      private final Point2D.Double shift_;
+      private final double peak_;
+      private final float[] surface_;
+      private final int surfaceSize_;
+
+      Result(Point2D.Double shift, double peak, float[] surface, int surfaceSize) {
+         shift_ = shift;
+         peak_ = peak;
+         surface_ = surface;
+         surfaceSize_ = surfaceSize;
+      }
+
+      /**
+       * @return displacement, in pixels, of the template in the target image
+       *         relative to the expected position
+       */
+      public Point2D.Double getShift() {
+         return shift_;
+      }
+
+      /**
+       * @return normalized cross-correlation at the best match, between -1 and 1.
+       *         Low values mean that the match is unreliable.
+       */
+      public double getPeak() {
+         return peak_;
+      }
+
+      /**
+       * @return normalized cross-correlation at the coarsest level for all displacements
+       *         in the search range, stored row by row, for display
+       */
+      public float[] getSurface() {
+         return surface_;
+      }
+
+      public int getSurfaceSize() {
+         return surfaceSize_;
+      }
+   }
+
+   /**
+    * @param templateWidth  width of the region that is tracked
+    * @param templateHeight height of the region that is tracked
+    * @param maxShift       largest displacement (in x and y) that will be searched
+    * @param resolution     required precision of the result in pixels, before sub-pixel
+    *                       refinement.  Values larger than 1 allow skipping the finest
+    *                       pyramid levels.
+    */
+   public FFTCorrelator(int templateWidth, int templateHeight, int maxShift, int resolution) {
+      if (templateWidth < 1 || templateHeight < 1) {
+         throw new IllegalArgumentException("Template should be at least one pixel in size");
+      }
+      templateWidth_ = templateWidth;
+      templateHeight_ = templateHeight;
+      maxShift_ = Math.max(0, maxShift);
+      int level = 0;
+      while (level < MAX_LEVELS && (maxShift_ >> level) > COARSE_RANGE
+            && (templateWidth >> (level + 1)) >= MIN_TEMPLATE_SIZE
+            && (templateHeight >> (level + 1)) >= MIN_TEMPLATE_SIZE) {
+         level++;
+      }
+      coarsestLevel_ = level;
+      int finest = 0;
+      while ((2 << finest) <= resolution && finest < coarsestLevel_) {
+         finest++;
+      }
+      finestLevel_ = finest;
+      margin_ = maxShift_ + ((REFINE_RANGE + 1) << coarsestLevel_);
+   }
+
+   public int getCoarsestLevel() {
+      return coarsestLevel_;
+   }
+
+   /**
+    * @return width and height of the correlation surface returned in each Result
+    */
+   public int getSurfaceSize() {
+      return 2 * coarseRange() + 1;
+   }
+
+   /**
+    * Correlates the template at (refX, refY) in the reference image with the
+    * target image around (targetX, targetY).  Parts of the search area
+    * outside the target image are treated as featureless.
+    *
+    * @param reference   reference image
+    * @param refWidth    width of the reference image
+    * @param refX        x of the top left corner of the template in the reference
+    * @param refY        y of the top left corner of the template in the reference
+    * @param target      target image
+    * @param targetWidth width of the target image
+    * @param targetX     x where the top left corner of the template is expected in the target
+    * @param targetY     y where the top left corner of the template is expected in the target
+    * @return displacement relative to (targetX, targetY) at which the template fits best
+    */
+   public Result correlate(float[] reference, int refWidth, int refX, int refY,
+         float[] target, int targetWidth, int targetX, int targetY) {
+      final int levels = coarsestLevel_ + 1;
+      float[][] templates = new float[levels][];
+      float[][] targets = new float[levels][];
+      int[] templateWidths = new int[levels];
+      int[] templateHeights = new int[levels];
+      int[] targetWidths = new int[levels];
+      int[] targetHeights = new int[levels];
+
+      templateWidths[0] = templateWidth_;
+      templateHeights[0] = templateHeight_;
+      templates[0] = crop(reference, refWidth, reference.length / refWidth,
+            refX, refY, templateWidth_, templateHeight_);
+      targetWidths[0] = templateWidth_ + 2 * margin_;
+      targetHeights[0] = templateHeight_ + 2 * margin_;
+      targets[0] = crop(target, targetWidth, target.length / targetWidth,
+            targetX - margin_, targetY - margin_, targetWidths[0], targetHeights[0]);
+      for (int level = 1; level < levels; level++) {
+         templateWidths[level] = templateWidths[level - 1] / 2;
+         templateHeights[level] = templateHeights[level - 1] / 2;
+         templates[level] = downsample(templates[level - 1], templateWidths[level - 1],
+               templateHeights[level - 1]);
+         targetWidths[level] = targetWidths[level - 1] / 2;
+         targetHeights[level] = targetHeights[level - 1] / 2;
+         targets[level] = downsample(targets[level - 1], targetWidths[level - 1],
+               targetHeights[level - 1]);
+      }
+
+      // Search the full range at the coarsest level.  Repetitive structures
+      // can give several similar peaks there, so follow the best few down
+      // the pyramid and keep the one that matches best at full resolution.
+      final int range = coarseRange();
+      final int size = 2 * range + 1;
+      final int coarseScale = 1 << coarsestLevel_;
+      final int coarseWindowX = margin_ / coarseScale - range;
+      final int coarseWindowY = margin_ / coarseScale - range;
+      double[] scores = scores(templates[coarsestLevel_], templateWidths[coarsestLevel_],
+            templateHeights[coarsestLevel_], targets[coarsestLevel_],
+            targetWidths[coarsestLevel_], targetHeights[coarsestLevel_],
+            coarseWindowX, coarseWindowY, range);
+      float[] surface = new float[scores.length];
+      for (int i = 0; i < scores.length; i++) {
+         surface[i] = (float) scores[i];
+      }
+
+      Point2D.Double best = null;
+      double bestPeak = Double.NEGATIVE_INFINITY;
+      for (int candidate : localMaxima(scores, size, CANDIDATES)) {
+         double[] estimate = {
+               (coarseWindowX + candidate % size) * (double) coarseScale - margin_,
+               (coarseWindowY + candidate / size) * (double) coarseScale - margin_,
+               scores[candidate]};
+         if (coarsestLevel_ == finestLevel_) {
+            addSubPixelOffset(scores, size, candidate, coarseScale, estimate);
+         }
+         for (int level = coarsestLevel_ - 1; level >= finestLevel_; level--) {
+            refine(templates[level], templateWidths[level], templateHeights[level],
+                  targets[level], targetWidths[level], targetHeights[level], level,
+                  level == finestLevel_, estimate);
+         }
+         if (estimate[2] > bestPeak) {
+            bestPeak = estimate[2];
+            best = new Point2D.Double(
+                  Math.max(-maxShift_, Math.min(maxShift_, estimate[0])),
+                  Math.max(-maxShift_, Math.min(maxShift_, estimate[1])));
+         }
+      }
+      return new Result(best, bestPeak, surface, size);
+   }
+
+   /**
+    * Searches REFINE_RANGE pixels around the estimate at the given level and
+    * updates the estimate (x, y, score) with the best match found.
+    */
+   private void refine(float[] template, int tw, int th, float[] target, int targetWidth,
+         int targetHeight, int level, boolean subPixel, double[] estimate) {
+      final int scale = 1 << level;
+      final int range = REFINE_RANGE;
+      final int size = 2 * range + 1;
+      final int windowX = (int) Math.round((margin_ + estimate[0]) / scale) - range;
+      final int windowY = (int) Math.round((margin_ + estimate[1]) / scale) - range;
+      double[] scores = scores(template, tw, th, target, targetWidth, targetHeight,
+            windowX, windowY, range);
+      int peak = 0;
+      for (int i = 1; i < scores.length; i++) {
+         if (scores[i] > scores[peak]) {
+            peak = i;
+         }
+      }
+      estimate[0] = (windowX + peak % size) * (double) scale - margin_;
+      estimate[1] = (windowY + peak / size) * (double) scale - margin_;
+      estimate[2] = scores[peak];
+      if (subPixel) {
+         addSubPixelOffset(scores, size, peak, scale, estimate);
+      }
+   }
+
+   private static void addSubPixelOffset(double[] scores, int size, int peak, int scale,
+         double[] estimate) {
+      final int x = peak % size;
+      final int y = peak / size;
+      if (x > 0 && x < size - 1) {
+         estimate[0] += scale * subPixelOffset(scores[peak - 1], scores[peak], scores[peak + 1]);
+      }
+      if (y > 0 && y < size - 1) {
+         estimate[1] += scale * subPixelOffset(scores[peak - size], scores[peak],
+               scores[peak + size]);
+      }
+   }
+
+   /**
+    * @return indices of at most maxCount local maxima, highest first
+    */
+   private static int[] localMaxima(double[] scores, int size, int maxCount) {
+      int[] result = new int[maxCount];
+      int found = 0;
+      for (int y = 0; y < size; y++) {
+         for (int x = 0; x < size; x++) {
+            final int i = y * size + x;
+            boolean isMax = true;
+            for (int dy = -1; dy <= 1 && isMax; dy++) {
+               for (int dx = -1; dx <= 1; dx++) {
+                  final int nx = x + dx;
+                  final int ny = y + dy;
+                  if ((dx != 0 || dy != 0) && nx >= 0 && nx < size && ny >= 0 && ny < size
+                        && scores[ny * size + nx] > scores[i]) {
+                     isMax = false;
+                     break;
+                  }
+               }
+            }
+            if (!isMax || (found == maxCount && scores[i] <= scores[result[found - 1]])) {
+               continue;
+            }
+            int pos = found < maxCount ? found++ : maxCount - 1;
+            while (pos > 0 && scores[result[pos - 1]] < scores[i]) {
+               result[pos] = result[pos - 1];
+               pos--;
+            }
+            result[pos] = i;
+         }
+      }
+      return Arrays.copyOf(result, Math.max(found, 1));
+   }
+
+   /**
+    * Zero-normalized cross-correlation of the template with every position
+    * within range pixels of the center of a window of the target.  The sums
+    * of template times target are calculated for all positions at once with
+    * FFTs, the normalization uses summed area tables of the window.
+    *
+    * @return scores between -1 and 1 for (2 * range + 1)^2 positions, row by row
+    */
+   private static double[] scores(float[] template, int tw, int th, float[] target,
+         int targetWidth, int targetHeight, int windowX, int windowY, int range) {
+      final int ww = tw + 2 * range;
+      final int wh = th + 2 * range;
+      final int fftWidth = nextPowerOf2(ww);
+      final int fftHeight = nextPowerOf2(wh);
+
+      // window of the target that is searched, featureless outside the image
+      double[] window = new double[ww * wh];
+      fill(target, targetWidth, targetHeight, windowX, windowY, ww, wh, window);
+      double[] tpl = new double[tw * th];
+      fill(template, tw, th, 0, 0, tw, th, tpl);
+      double tplSumSquares = 0.0;
+      for (double value : tpl) {
+         tplSumSquares += value * value;
+      }
+
+      double[] tplRe = new double[fftWidth * fftHeight];
+      double[] tplIm = new double[tplRe.length];
+      double[] tgtRe = new double[tplRe.length];
+      double[] tgtIm = new double[tplRe.length];
+      for (int y = 0; y < th; y++) {
+         System.arraycopy(tpl, y * tw, tplRe, y * fftWidth, tw);
+      }
+      for (int y = 0; y < wh; y++) {
+         System.arraycopy(window, y * ww, tgtRe, y * fftWidth, ww);
+      }
+      fft2D(tplRe, tplIm, fftWidth, fftHeight, false);
+      fft2D(tgtRe, tgtIm, fftWidth, fftHeight, false);
+      // conj(template) * target gives the cross-correlation
+      for (int i = 0; i < tplRe.length; i++) {
+         final double re = tplRe[i] * tgtRe[i] + tplIm[i] * tgtIm[i];
+         final double im = tplRe[i] * tgtIm[i] - tplIm[i] * tgtRe[i];
+         tgtRe[i] = re;
+         tgtIm[i] = im;
+      }
+      fft2D(tgtRe, tgtIm, fftWidth, fftHeight, true);
+
+      final int sw = ww + 1;
+      double[] sum = new double[sw * (wh + 1)];
+      double[] sumSquares = new double[sum.length];
+      for (int y = 0; y < wh; y++) {
+         double rowSum = 0.0;
+         double rowSumSquares = 0.0;
+         for (int x = 0; x < ww; x++) {
+            final double value = window[y * ww + x];
+            rowSum += value;
+            rowSumSquares += value * value;
+            sum[(y + 1) * sw + x + 1] = sum[y * sw + x + 1] + rowSum;
+            sumSquares[(y + 1) * sw + x + 1] = sumSquares[y * sw + x + 1] + rowSumSquares;
+         }
+      }
+      final int size = 2 * range + 1;
+      final int n = tw * th;
+      double[] scores = new double[size * size];
+      for (int py = 0; py < size; py++) {
+         for (int px = 0; px < size; px++) {
+            final int a = py * sw + px;
+            final int b = py * sw + px + tw;
+            final int c = (py + th) * sw + px;
+            final int d = (py + th) * sw + px + tw;
+            final double s1 = sum[d] - sum[b] - sum[c] + sum[a];
+            final double s2 = sumSquares[d] - sumSquares[b] - sumSquares[c] + sumSquares[a];
+            final double variance = s2 - s1 * s1 / n;
+            final double denominator = Math.sqrt(tplSumSquares * Math.max(variance, 0.0));
+            scores[py * size + px] = denominator > 0.0
+                  ? tgtRe[py * fftWidth + px] / denominator : 0.0;
+         }
+      }
+      return scores;
+   }
+
+   /**
+    * Converts an array of byte, short (both unsigned) or float pixels to floats.
+    *
+    * @param pixels pixel array, e.g. from an ImageProcessor or TaggedImage
+    * @return float copy of the pixels
+    */
+   public static float[] toFloatArray(Object pixels) {
+      if (pixels instanceof byte[]) {
+         byte[] bytes = (byte[]) pixels;
+         float[] result = new float[bytes.length];
+         for (int i = 0; i < bytes.length; i++) {
+            result[i] = bytes[i] & 0xff;
+         }
+         return result;
+      } else if (pixels instanceof short[]) {
+         short[] shorts = (short[]) pixels;
+         float[] result = new float[shorts.length];
+         for (int i = 0; i < shorts.length; i++) {
+            result[i] = shorts[i] & 0xffff;
+         }
+         return result;
+      } else if (pixels instanceof float[]) {
+         return ((float[]) pixels).clone();
+      }
+      throw new IllegalArgumentException("Unsupported pixel type");
+   }
+
+   private int coarseRange() {
+      return (maxShift_ + (1 << coarsestLevel_) - 1) >> coarsestLevel_;
+   }
+
+   /**
+    * Copies a rectangle out of an image.  Pixels outside the image are NaN.
+    */
+   private static float[] crop(float[] image, int width, int height, int x0, int y0,
+         int cropWidth, int cropHeight) {
+      float[] result = new float[cropWidth * cropHeight];
+      for (int y = 0; y < cropHeight; y++) {
+         final int sy = y0 + y;
+         for (int x = 0; x < cropWidth; x++) {
+            final int sx = x0 + x;
+            result[y * cropWidth + x] = (sx >= 0 && sx < width && sy >= 0 && sy < height)
+                  ? image[sy * width + sx] : Float.NaN;
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Halves an image in size by averaging 2x2 blocks, ignoring NaN pixels.
+    */
+   private static float[] downsample(float[] image, int width, int height) {
+      final int w = width / 2;
+      final int h = height / 2;
+      float[] result = new float[w * h];
+      for (int y = 0; y < h; y++) {
+         final int row0 = 2 * y * width;
+         final int row1 = row0 + width;
+         for (int x = 0; x < w; x++) {
+            float sum = 0;
+            int n = 0;
+            final float[] values = {image[row0 + 2 * x], image[row0 + 2 * x + 1],
+                  image[row1 + 2 * x], image[row1 + 2 * x + 1]};
+            for (float value : values) {
+               if (!Float.isNaN(value)) {
+                  sum += value;
+                  n++;
+               }
+            }
+            result[y * w + x] = n > 0 ? sum / n : Float.NaN;
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Copies a window of an image, with its mean subtracted, into dest.
+    * NaN pixels (outside the image) are set to 0, i.e. the mean.
+    */
+   private static void fill(float[] image, int width, int height, int x0, int y0,
+         int w, int h, double[] dest) {
+      double sum = 0.0;
+      int n = 0;
+      for (int y = 0; y < h; y++) {
+         for (int x = 0; x < w; x++) {
+            final float value = pixel(image, width, height, x0 + x, y0 + y);
+            if (!Float.isNaN(value)) {
+               sum += value;
+               n++;
+            }
+         }
+      }
+      final double mean = n > 0 ? sum / n : 0.0;
+      for (int y = 0; y < h; y++) {
+         for (int x = 0; x < w; x++) {
+            final float value = pixel(image, width, height, x0 + x, y0 + y);
+            dest[y * w + x] = Float.isNaN(value) ? 0.0 : value - mean;
+         }
+      }
+   }
+
+   private static float pixel(float[] image, int width, int height, int x, int y) {
+      if (x < 0 || x >= width || y < 0 || y >= height) {
+         return Float.NaN;
+      }
+      return image[y * width + x];
+   }
+
+   /**
+    * Fits a curve through three equally spaced values around a maximum: a
+    * Gaussian when all values are positive, a parabola otherwise.
+    *
+    * @return position of the maximum relative to the center value, in [-0.5, 0.5]
+    */
+   public static double subPixelOffset(double minus, double center, double plus) {
+      double offset;
+      if (minus > 0 && center > 0 && plus > 0) {
+         final double lm = Math.log(minus);
+         final double lc = Math.log(center);
+         final double lp = Math.log(plus);
+         final double denominator = 2.0 * (lm - 2.0 * lc + lp);
+         offset = denominator != 0.0 ? (lm - lp) / denominator : 0.0;
+      } else {
+         final double denominator = 2.0 * (minus - 2.0 * center + plus);
+         offset = denominator != 0.0 ? (minus - plus) / denominator : 0.0;
+      }
+      if (Double.isNaN(offset)) {
+         return 0.0;
+      }
+      return Math.max(-0.5, Math.min(0.5, offset));
+   }
+
+   /**
+    * @return smallest power of 2 that is at least n
+    */
+   public static int nextPowerOf2(int n) {
+      int result = 1;
+      while (result < n) {
+         result <<= 1;
+      }
+      return result;
+   }
+
+   /**
+    * In-place 2D FFT of an image stored row by row; width and height must be
+    * powers of 2.  The inverse transform is scaled by 1 / (width * height).
+    */
+   public static void fft2D(double[] re, double[] im, int width, int height, boolean inverse) {
+      for (int y = 0; y < height; y++) {
+         fft1D(re, im, y * width, 1, width, inverse);
+      }
+      for (int x = 0; x < width; x++) {
+         fft1D(re, im, x, width, height, inverse);
+      }
+      if (inverse) {
+         final double scale = 1.0 / (width * height);
+         for (int i = 0; i < re.length; i++) {
+            re[i] *= scale;
+            im[i] *= scale;
+         }
+      }
+   }
+
+   /**
+    * In-place iterative radix-2 FFT of n elements starting at offset, stride
+    * apart; n must be a power of 2.  The inverse transform is not scaled.
+    */
+   public static void fft1D(double[] re, double[] im, int offset, int stride, int n,
+         boolean inverse) {
+      // bit reversal permutation
+      for (int i = 1, j = 0; i < n; i++) {
+         int bit = n >> 1;
+         for (; (j & bit) != 0; bit >>= 1) {
+            j ^= bit;
+         }
+         j ^= bit;
+         if (i < j) {
+            final int a = offset + i * stride;
+            final int b = offset + j * stride;
+            double t = re[a];
+            re[a] = re[b];
+            re[b] = t;
+            t = im[a];
+            im[a] = im[b];
+            im[b] = t;
+         }
+      }
+      for (int len = 2; len <= n; len <<= 1) {
+         final double angle = 2.0 * Math.PI / len * (inverse ? 1 : -1);
+         final double wRe = Math.cos(angle);
+         final double wIm = Math.sin(angle);
+         for (int i = 0; i < n; i += len) {
+            double curRe = 1.0;
+            double curIm = 0.0;
+            for (int j = 0; j < len / 2; j++) {
+               final int a = offset + (i + j) * stride;
+               final int b = offset + (i + j + len / 2) * stride;
+               final double uRe = re[a];
+               final double uIm = im[a];
+               final double vRe = re[b] * curRe - im[b] * curIm;
+               final double vIm = re[b] * curIm + im[b] * curRe;
+               re[a] = uRe + vRe;
+               im[a] = uIm + vIm;
+               re[b] = uRe - vRe;
+               im[b] = uIm - vIm;
+               final double nextRe = curRe * wRe - curIm * wIm;
+               curIm = curRe * wIm + curIm * wRe;
+               curRe = nextRe;
+            }
+         }
+      }
+   }
+}
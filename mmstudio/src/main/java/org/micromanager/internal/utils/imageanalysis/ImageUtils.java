@@ -59,22 +59,7 @@ public final class ImageUtils {
    public static ImageProcessor makeProcessor(CMMCore core, Object imgArray) {
       int w = (int) core.getImageWidth();
       int h = (int) core.getImageHeight();
-      int bpp = (int) core.getBytesPerPixel();
-      int type;
-      switch (bpp) {
-         case 1:
-            type = ImagePlus.GRAY8;
-            break;
-         case 2:
-            type = ImagePlus.GRAY16;
-            break;
-         case 4:
-            type = ImagePlus.COLOR_RGB;
-            break;
-         default:
-            type = 0;
-      }
-      return makeProcessor(type, w, h, imgArray);
+      return makeProcessor(bppToImageType(core.getBytesPerPixel()), w, h, imgArray);
    }
 
    public static ImageProcessor makeProcessor(int type, int w, int h, Object imgArray) {
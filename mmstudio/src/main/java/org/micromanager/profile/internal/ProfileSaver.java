@@ -14,12 +14,26 @@ import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 /**
+ * Writes a profile to disk some time after it has been modified.
+ *
+ * <p>Modifications are coalesced: the first change after a save schedules
+ * the next save, and further changes made before that save runs are included
+ * in it without rescheduling. Dialogs that update their settings on every UI
+ * event therefore cause at most one write per save interval, and a profile
+ * that is modified continuously is still saved regularly.
+ *
  * @author Mark A. Tsuchida
  */
 final class ProfileSaver {
    // Saver is created upon the first modification made to the profile
    private final ScheduledExecutorService saver_;
-   private ScheduledFuture<?> scheduledSave_;
+   private ScheduledFuture<?> scheduledSave_; // Guarded by this
+   private boolean dirty_; // Guarded by this
+
+   // Held while writing, so that a scheduled save and syncToDisk() never
+   // write the same file at the same time. Separate from the monitor of this
+   // object so that modifications do not wait for a (slow) write to finish.
+   private final Object saveLock_ = new Object();
 
    private long saveIntervalSeconds_ = 30;
 
@@ -32,7 +46,7 @@ final class ProfileSaver {
       return instance;
    }
 
-   private ProfileSaver(Runnable save, ScheduledExecutorService saverExecutor) {
+   ProfileSaver(Runnable save, ScheduledExecutorService saverExecutor) {
       save_ = save;
       saver_ = saverExecutor;
    }
@@ -46,12 +60,14 @@ final class ProfileSaver {
       return saveIntervalSeconds_;
    }
 
-   public synchronized void syncToDisk() {
-      if (scheduledSave_ == null) {
-         // Save not scheduled, i.e. profile hasn't been modified.
-         return;
+   public void syncToDisk() {
+      synchronized (this) {
+         if (scheduledSave_ != null) {
+            scheduledSave_.cancel(false);
+            scheduledSave_ = null;
+         }
       }
-      save_.run();
+      saveIfModified();
    }
 
    @Subscribe
@@ -60,22 +76,39 @@ final class ProfileSaver {
    }
 
    private synchronized void scheduleSave() {
+      dirty_ = true;
       if (scheduledSave_ != null) {
-         scheduledSave_.cancel(false);
+         // Already pending; this change will be included
+         return;
       }
       try {
-         scheduledSave_ = saver_.schedule(save_,
-               saveIntervalSeconds_, TimeUnit.SECONDS);
+         scheduledSave_ = saver_.schedule(() -> {
+            synchronized (ProfileSaver.this) {
+               scheduledSave_ = null;
+            }
+            saveIfModified();
+         }, saveIntervalSeconds_, TimeUnit.SECONDS);
       } catch (RejectedExecutionException e) {
          // Saving has been shut down; nothing to do
       }
    }
 
-   public synchronized void stop() throws InterruptedException {
-      syncToDisk();
-      if (scheduledSave_ != null) {
-         scheduledSave_.cancel(false);
-         scheduledSave_ = null;
+   private void saveIfModified() {
+      synchronized (saveLock_) {
+         synchronized (this) {
+            if (!dirty_) {
+               // Profile hasn't been modified since the last save.
+               return;
+            }
+            // Cleared before saving, so that changes made during the write
+            // schedule another save
+            dirty_ = false;
+         }
+         save_.run();
       }
    }
-}
\ No newline at end of file
+
+   public void stop() throws InterruptedException {
+      syncToDisk();
+   }
+}
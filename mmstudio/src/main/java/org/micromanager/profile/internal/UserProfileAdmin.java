@@ -15,7 +15,10 @@ import java.awt.Color;
 import java.beans.ExceptionListener;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -33,9 +36,12 @@ import org.micromanager.PropertyMap;
 import org.micromanager.PropertyMaps;
 import org.micromanager.UserProfile;
 import org.micromanager.internal.propertymap.MM1JSONSerializer;
+import org.micromanager.internal.propertymap.PropertyMapJSONSerializer;
 import org.micromanager.internal.utils.JavaUtils;
 import org.micromanager.internal.utils.ReportingUtils;
 import org.micromanager.internal.utils.ThreadFactoryFactory;
+import org.micromanager.internal.utils.performance.PerformanceMonitor;
+import org.micromanager.internal.utils.performance.WallTimer;
 import org.micromanager.profile.internal.UserProfileFileFormat.Index;
 import org.micromanager.profile.internal.UserProfileFileFormat.IndexEntry;
 import org.micromanager.profile.internal.UserProfileFileFormat.Profile;
@@ -66,6 +72,9 @@ public final class UserProfileAdmin {
 
    public static final String READ_ONLY = "ReadOnly";
 
+   // Saves taking longer than this are logged
+   private static final double SLOW_SAVE_MS = 1000.0;
+
    private final ProfileWriteLock writeLock_;
 
    private final ScheduledExecutorService saverExecutor_ =
@@ -73,6 +82,9 @@ public final class UserProfileAdmin {
                ThreadFactoryFactory.createThreadFactory(
                      "User Profile Saver"));
 
+   private final PerformanceMonitor perfMon_ =
+         PerformanceMonitor.createWithTimeConstantMs(60000.0);
+
    private boolean didMigrateLegacy_ = false;
 
    private Index virtualIndex_ = new Index();
@@ -334,6 +346,9 @@ public final class UserProfileAdmin {
             }
             uProfile.setFallbackProfile(getNonSavingGlobalProfile());
             if (autosaving) {
+               // Only owner sections changed since the last save are re-encoded
+               final PropertyMapJSONSerializer.IncrementalSerializer serializer =
+                     new PropertyMapJSONSerializer.IncrementalSerializer();
                uProfile.setSaver(
                      ProfileSaver.create(
                            uProfile,
@@ -341,7 +356,7 @@ public final class UserProfileAdmin {
                               Profile profile1;
                               profile1 = Profile.fromSettings(uProfile.toPropertyMap());
                               try {
-                                 writeFile(filename, profile1, false);
+                                 writeFile(filename, profile1, false, serializer);
                               } catch (IOException e) {
                                  if (errorHandler != null) {
                                     errorHandler.exceptionThrown(e);
@@ -528,7 +543,7 @@ public final class UserProfileAdmin {
          virtualIndex_ = index;
          return;
       }
-      index.toPropertyMap().saveJSON(getModernIndexFile(), true, true);
+      writeJSONAtomically(getModernIndexFile(), index.toPropertyMap().toJSON());
    }
 
    private Profile readFile(String filename) throws IOException {
@@ -564,6 +579,12 @@ public final class UserProfileAdmin {
     */
    private void writeFile(String filename, Profile profile, boolean ignoreProfileReadOnly)
          throws IOException {
+      writeFile(filename, profile, ignoreProfileReadOnly, null);
+   }
+
+   private void writeFile(String filename, Profile profile, boolean ignoreProfileReadOnly,
+                          PropertyMapJSONSerializer.IncrementalSerializer serializer)
+         throws IOException {
       boolean readOnly;
       if (ignoreProfileReadOnly) {
          readOnly = false;
@@ -574,7 +595,69 @@ public final class UserProfileAdmin {
          virtualProfiles_.put(filename, profile);
          return;
       }
-      profile.toPropertyMap().saveJSON(getModernFile(filename), true, true);
+      WallTimer timer = WallTimer.createStarted();
+      String json = serializer == null ? profile.toPropertyMap().toJSON() :
+            serializer.toJSON(profile.toPropertyMap());
+      double serializeMs = timer.getMs();
+      writeJSONAtomically(getModernFile(filename), json);
+      double totalMs = timer.getMs();
+
+      perfMon_.sample("Profile save serialize (ms)", serializeMs);
+      perfMon_.sample("Profile save write (ms)", totalMs - serializeMs);
+      perfMon_.sample("Profile save total (ms)", totalMs);
+      if (serializer != null) {
+         perfMon_.sample("Profile save sections reused", serializer.getReusedCount());
+         perfMon_.sample("Profile save sections encoded", serializer.getEncodedCount());
+      }
+      if (totalMs > SLOW_SAVE_MS) {
+         ReportingUtils.logMessage(String.format(
+               "Saving user profile %s took %.0f ms (serialize %.0f ms, write %.0f ms)",
+               filename, totalMs, serializeMs, totalMs - serializeMs));
+      }
+   }
+
+   /**
+    * Replaces a file with the given JSON text.
+    *
+    * <p>The text is written to a temporary file next to the target. The
+    * current version of the target is copied to a backup (with "~" appended
+    * to the name), after which the temporary file is renamed over the
+    * target in a single step. Where the file system supports atomic
+    * renames, the target therefore always holds either the complete old or
+    * the complete new text; otherwise the rename falls back to a plain
+    * replace.
+    *
+    * @param file the file to write
+    * @param json the content
+    * @throws IOException if the file could not be written
+    */
+   static void writeJSONAtomically(File file, String json) throws IOException {
+      File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+      try (FileOutputStream out = new FileOutputStream(temp)) {
+         out.write(json.getBytes(Charsets.UTF_8));
+         out.getFD().sync();
+      }
+      if (file.exists()) {
+         File backup = new File(file.getParentFile(), file.getName() + "~");
+         java.nio.file.Files.copy(file.toPath(), backup.toPath(),
+               StandardCopyOption.REPLACE_EXISTING);
+      }
+      try {
+         java.nio.file.Files.move(temp.toPath(), file.toPath(),
+               StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+         java.nio.file.Files.move(temp.toPath(), file.toPath(),
+               StandardCopyOption.REPLACE_EXISTING);
+      }
+   }
+
+   /**
+    * Statistics on the duration of profile saves.
+    *
+    * @return the performance monitor to which save durations are reported
+    */
+   public PerformanceMonitor getPerformanceMonitor() {
+      return perfMon_;
    }
 
    private void deleteFile(String filename) throws IOException {
@@ -0,0 +1,159 @@
+package org.micromanager.acquisition.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import mmcorej.TaggedImage;
+import mmcorej.org.json.JSONException;
+import mmcorej.org.json.JSONObject;
+import org.micromanager.data.Coordinates;
+import org.micromanager.data.Image;
+import org.micromanager.data.Processor;
+import org.micromanager.data.internal.DefaultDatastore;
+import org.micromanager.data.internal.DefaultSummaryMetadata;
+import org.micromanager.data.internal.PixelType;
+import org.micromanager.data.internal.PropertyKey;
+import org.micromanager.data.internal.StorageRAM;
+import org.micromanager.data.internal.pipeline.DefaultPipeline;
+import org.micromanager.events.EventManager;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class DefaultTaggedImageSinkTest {
+
+   private static final int SIZE = 128;
+   private static final int FRAMES = 200;
+   private static final long IMAGE_BYTES = 2L * SIZE * SIZE;
+   private static final long HIGH_BYTES = 16 * IMAGE_BYTES;
+   private static final long LOW_BYTES = 8 * IMAGE_BYTES;
+
+   /*
+    * Counts down when the sink announces the end of the acquisition.
+    */
+   private static final class EndedLatch implements EventManager {
+      private final CountDownLatch latch_ = new CountDownLatch(1);
+
+      @Override
+      public void registerForEvents(Object obj) {
+      }
+
+      @Override
+      public void unregisterForEvents(Object obj) {
+      }
+
+      @Override
+      public void post(Object event) {
+         if (event instanceof DefaultAcquisitionEndedEvent) {
+            latch_.countDown();
+         }
+      }
+   }
+
+   private static TaggedImage image(int frame) throws JSONException {
+      short[] pixels = new short[SIZE * SIZE];
+      pixels[0] = (short) frame;
+      JSONObject tags = new JSONObject();
+      tags.put(PropertyKey.WIDTH.key(), SIZE);
+      tags.put(PropertyKey.HEIGHT.key(), SIZE);
+      tags.put(PropertyKey.PIXEL_TYPE.key(), PixelType.GRAY16.name());
+      tags.put(PropertyKey.BIT_DEPTH.key(), 16);
+      tags.put(PropertyKey.FRAME_INDEX.key(), frame);
+      return new TaggedImage(pixels, tags);
+   }
+
+   /*
+    * Feeds FRAMES images as fast as the queue takes them into a sink whose
+    * pipeline stores about one image per millisecond, and checks that all
+    * images were stored.
+    */
+   private static DefaultTaggedImageSink.Metrics run(
+         DefaultTaggedImageSink.OverflowPolicy policy, BlockingQueue<TaggedImage> queue,
+         File spillDirectory, Consumer<Boolean> throttle) throws Exception {
+      DefaultDatastore store = new DefaultDatastore(null);
+      store.setStorage(new StorageRAM(store));
+      List<Processor> processors = new ArrayList<>();
+      processors.add((image, context) -> {
+         try {
+            Thread.sleep(1);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         context.outputImage(image);
+      });
+      DefaultPipeline pipeline = new DefaultPipeline(processors, store, false);
+      pipeline.insertSummaryMetadata(new DefaultSummaryMetadata.Builder()
+            .prefix("sink").imageWidth(SIZE).imageHeight(SIZE).build());
+
+      EndedLatch events = new EndedLatch();
+      DefaultTaggedImageSink sink = new DefaultTaggedImageSink(queue, pipeline, store,
+            null, events);
+      sink.setWatermarks(HIGH_BYTES, LOW_BYTES);
+      sink.setOverflowPolicy(policy);
+      sink.setSpillDirectory(spillDirectory);
+      sink.setEngineThrottle(throttle);
+      sink.start();
+      for (int frame = 0; frame < FRAMES; frame++) {
+         queue.put(image(frame));
+      }
+      queue.put(TaggedImageQueue.POISON);
+      assertTrue(events.latch_.await(60, TimeUnit.SECONDS));
+
+      assertEquals(FRAMES, store.getNumImages());
+      for (int frame = 0; frame < FRAMES; frame++) {
+         Image image = store.getImage(Coordinates.builder().t(frame).build());
+         assertEquals(frame, image.getIntensityAt(0, 0));
+      }
+      DefaultTaggedImageSink.Metrics metrics = sink.getMetrics();
+      assertEquals(FRAMES, metrics.getImagesReceived());
+      assertEquals(0, metrics.getImagesOnDisk());
+      assertTrue(metrics.getPeakBytesInFlight() <= HIGH_BYTES);
+      return metrics;
+   }
+
+   private static File spillDirectory() throws IOException {
+      File directory = Files.createTempDirectory("sinktest").toFile();
+      directory.deleteOnExit();
+      return directory;
+   }
+
+   @Test
+   public void spillsFastProducerToDisk() throws Exception {
+      File directory = spillDirectory();
+      DefaultTaggedImageSink.Metrics metrics = run(
+            DefaultTaggedImageSink.OverflowPolicy.SPILL_TO_DISK,
+            new LinkedBlockingQueue<>(), directory, null);
+      assertTrue(metrics.getImagesSpilled() > 0);
+      assertEquals(0.0, metrics.getThrottledMs(), 0.0);
+      // the spill file is gone with the acquisition
+      assertEquals(0, directory.list().length);
+      assertTrue(directory.delete());
+   }
+
+   @Test
+   public void throttlesBoundedProducer() throws Exception {
+      File directory = spillDirectory();
+      final List<Boolean> throttled = Collections.synchronizedList(new ArrayList<>());
+      DefaultTaggedImageSink.Metrics metrics = run(
+            DefaultTaggedImageSink.OverflowPolicy.THROTTLE,
+            new ArrayBlockingQueue<>(4), directory, throttled::add);
+      assertEquals(0, metrics.getImagesSpilled());
+      assertTrue(metrics.getThrottledMs() > 0.0);
+      // every hold on the engine is let go again
+      assertFalse(throttled.isEmpty());
+      for (int i = 0; i < throttled.size(); i++) {
+         assertEquals(i % 2 == 0, throttled.get(i));
+      }
+      assertEquals(0, throttled.size() % 2);
+      assertEquals(0, directory.list().length);
+      assertTrue(directory.delete());
+   }
+}
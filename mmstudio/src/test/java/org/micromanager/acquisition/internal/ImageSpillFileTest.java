@@ -0,0 +1,55 @@
+package org.micromanager.acquisition.internal;
+
+import java.io.File;
+import java.nio.file.Files;
+import mmcorej.TaggedImage;
+import mmcorej.org.json.JSONObject;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class ImageSpillFileTest {
+
+   private static TaggedImage image(int frame) throws Exception {
+      short[] pixels = new short[100000];
+      pixels[0] = (short) frame;
+      pixels[pixels.length - 1] = (short) -frame;
+      JSONObject tags = new JSONObject();
+      tags.put("Frame", frame);
+      return new TaggedImage(pixels, tags);
+   }
+
+   private static void assertImage(int frame, TaggedImage tagged) throws Exception {
+      short[] pixels = (short[]) tagged.pix;
+      assertEquals(frame, pixels[0]);
+      assertEquals(-frame, pixels[pixels.length - 1]);
+      assertEquals(frame, tagged.tags.getInt("Frame"));
+   }
+
+   @Test
+   public void emptiesWhenAllImagesWereRead() throws Exception {
+      File directory = Files.createTempDirectory("spilltest").toFile();
+      ImageSpillFile spill = new ImageSpillFile(directory);
+      try {
+         spill.write(image(0));
+         spill.write(image(1));
+         assertImage(0, spill.read());
+         spill.write(image(2));
+         assertImage(1, spill.read());
+         assertTrue(spill.getFileBytes() > 0);
+         assertImage(2, spill.read());
+         assertEquals(0, spill.getFileBytes());
+
+         // the emptied file is written and read from its start
+         spill.write(image(3));
+         final long oneImage = spill.getFileBytes();
+         assertTrue(oneImage > 0);
+         assertImage(3, spill.read());
+         assertEquals(0, spill.getFileBytes());
+         assertEquals(4 * oneImage, spill.getWrittenBytes());
+      } finally {
+         spill.delete();
+      }
+      assertEquals(0, directory.list().length);
+      assertTrue(directory.delete());
+   }
+}
@@ -0,0 +1,120 @@
+package org.micromanager.acquisition.internal.acqengjcompat;
+
+import java.util.ArrayList;
+import org.micromanager.MultiStagePosition;
+import org.micromanager.PositionList;
+import org.micromanager.acquisition.ChannelSpec;
+import org.micromanager.acquisition.SequenceSettings;
+import org.micromanager.internal.utils.AcqOrderMode;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class AcquisitionDryRunTest {
+
+   private static SequenceSettings timelapse(int frames, double intervalMs) {
+      return new SequenceSettings.Builder()
+            .acqOrderMode(AcqOrderMode.TIME_POS_SLICE_CHANNEL)
+            .numFrames(frames)
+            .intervalMs(intervalMs)
+            .useFrames(true)
+            .build();
+   }
+
+   private static AcquisitionDryRun.Report run(SequenceSettings settings,
+                                               AcquisitionDryRun.TimingModel model) {
+      MDAEventPlan plan = MDAEventPlan.compile(settings, null, null, "XY", 0.0);
+      return AcquisitionDryRun.run(plan, settings, model);
+   }
+
+   @Test
+   public void slowTimelapseFollowsTheInterval() {
+      AcquisitionDryRun.TimingModel model = new AcquisitionDryRun.TimingModel.Builder()
+            .defaultExposureMs(10.0).readoutMs(5.0).shutterMs(5.0).processingMs(1.0)
+            .image(512, 512, 2).diskMBPerS(500.0).build();
+      AcquisitionDryRun.Report report = run(timelapse(10, 1000.0), model);
+      assertEquals(10, report.getNumberOfImages());
+      for (int e = 0; e < 10; e++) {
+         assertEquals(1000.0 * e, report.getEventStartMs(e), 1e-6);
+      }
+      // last frame: 20 ms of hardware, 1 ms processing, then the write
+      assertEquals(9000.0 + 20.0 + 1.0 + model.getWriteMs(), report.getDurationMs(), 1e-6);
+      assertEquals(20.0 * 10, report.getBusyMs(AcquisitionDryRun.Stage.HARDWARE), 1e-6);
+      assertEquals(1, report.getMaxProcessingQueueDepth());
+      assertTrue(report.storageKeepsUp());
+   }
+
+   @Test
+   public void findsSlowStorage() {
+      // 8 MB images at 50 images per second need 400 MB/s
+      AcquisitionDryRun.TimingModel model = new AcquisitionDryRun.TimingModel.Builder()
+            .defaultExposureMs(10.0).readoutMs(10.0).shutterMs(0.0).processingMs(0.0)
+            .image(2000, 2000, 2).diskMBPerS(100.0).bufferBytes(1000000000L).build();
+      AcquisitionDryRun.Report report = run(timelapse(1000, 0.0), model);
+      assertEquals(AcquisitionDryRun.Stage.STORAGE, report.getBottleneck());
+      assertEquals(400.0, report.getRequiredDiskMBPerS(), 1e-6);
+      // the disk writes an image every 80 ms
+      assertEquals(20.0 + 1000 * 80.0, report.getDurationMs(), 1e-6);
+      assertTrue(report.getMaxStorageQueueDepth() > 500);
+      assertTrue(report.getPeakMemoryBytes() > 1000000000L);
+      assertFalse(report.storageKeepsUp());
+   }
+
+   @Test
+   public void findsSlowProcessing() {
+      AcquisitionDryRun.TimingModel model = new AcquisitionDryRun.TimingModel.Builder()
+            .defaultExposureMs(10.0).readoutMs(10.0).shutterMs(0.0).processingMs(40.0)
+            .image(512, 512, 1).diskMBPerS(1000.0).build();
+      AcquisitionDryRun.Report report = run(timelapse(100, 0.0), model);
+      assertEquals(AcquisitionDryRun.Stage.PROCESSING, report.getBottleneck());
+      assertTrue(report.getMaxProcessingQueueDepth() > 40);
+      assertTrue(report.getMaxStorageQueueDepth() <= 1);
+   }
+
+   @Test
+   public void countsChannelSwitchesAndShutter() {
+      ArrayList<ChannelSpec> channels = new ArrayList<>();
+      channels.add(new ChannelSpec.Builder().config("A").exposure(10.0).build());
+      channels.add(new ChannelSpec.Builder().config("B").exposure(30.0).build());
+      SequenceSettings settings = new SequenceSettings.Builder()
+            .acqOrderMode(AcqOrderMode.TIME_POS_SLICE_CHANNEL)
+            .channels(channels)
+            .useChannels(true)
+            .build();
+      AcquisitionDryRun.TimingModel model = new AcquisitionDryRun.TimingModel.Builder()
+            .readoutMs(0.0).shutterMs(5.0).configSwitchMs(20.0).build();
+      AcquisitionDryRun.Report report = run(settings, model);
+      assertEquals(2, report.getNumberOfImages());
+      assertEquals(0.0, report.getEventStartMs(0), 1e-6);
+      assertEquals(20.0 + 5.0 + 10.0, report.getEventStartMs(1), 1e-6);
+      assertEquals(2 * 25.0 + 10.0 + 30.0,
+            report.getBusyMs(AcquisitionDryRun.Stage.HARDWARE), 1e-6);
+      // with the shutter kept open between channels, it only opens once
+      settings = settings.copyBuilder().keepShutterOpenChannels(true).build();
+      report = run(settings, model);
+      assertEquals(2 * 20.0 + 5.0 + 10.0 + 30.0,
+            report.getBusyMs(AcquisitionDryRun.Stage.HARDWARE), 1e-6);
+   }
+
+   @Test
+   public void settlesOnlyStagesThatMove() {
+      // all positions share the XY position, only the last one moves Z
+      PositionList positions = new PositionList();
+      for (double z : new double[] {0.0, 0.0, 10.0}) {
+         positions.addPosition(new MultiStagePosition("XY", 0.0, 0.0, "Z", z));
+      }
+      SequenceSettings settings = new SequenceSettings.Builder()
+            .acqOrderMode(AcqOrderMode.TIME_POS_SLICE_CHANNEL)
+            .usePositionList(true)
+            .build();
+      AcquisitionDryRun.TimingModel model = new AcquisitionDryRun.TimingModel.Builder()
+            .defaultExposureMs(10.0).readoutMs(0.0).shutterMs(0.0)
+            .xyStage(1000.0, 0.0).zStage(100.0, 50.0).build();
+      MDAEventPlan plan = MDAEventPlan.compile(settings, positions, null, "XY", 0.0);
+      AcquisitionDryRun.Report report = AcquisitionDryRun.run(plan, settings, model);
+      assertEquals(3, report.getNumberOfImages());
+      // Z settles at the first position, and moves 10 um before the last one
+      assertEquals(50.0 + 10.0, report.getEventStartMs(1), 1e-6);
+      assertEquals(50.0 + 3 * 10.0 + 100.0 + 50.0,
+            report.getBusyMs(AcquisitionDryRun.Stage.HARDWARE), 1e-6);
+   }
+}
@@ -0,0 +1,185 @@
+package org.micromanager.acquisition.internal.acqengjcompat;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Random;
+import org.micromanager.acqj.main.AcqEngMetadata;
+import org.micromanager.acqj.main.Acquisition;
+import org.micromanager.acqj.main.AcquisitionEvent;
+import org.micromanager.data.Coordinates;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class AcquisitionTracerTest {
+
+   private static AcquisitionEvent event(int t, int c) {
+      AcquisitionEvent event = new AcquisitionEvent((Acquisition) null);
+      event.setAxisPosition(AcqEngMetadata.TIME_AXIS, t);
+      event.setAxisPosition(AcqEngMetadata.CHANNEL_AXIS, c);
+      return event;
+   }
+
+   /*
+    * Takes an event through all stages, 1 ms apart.
+    */
+   private static void trace(AcquisitionTracer tracer, int t, int c, long startNs) {
+      AcquisitionEvent event = event(t, c);
+      tracer.eventGenerated(event);
+      long now = startNs;
+      for (AcquisitionTracer.Stage stage : AcquisitionTracer.Stage.values()) {
+         if (stage != AcquisitionTracer.Stage.EVENT_GENERATED) {
+            now += 1000000;
+            tracer.mark(stage, Coordinates.builder().t(t).c(c).build(), now);
+         }
+      }
+   }
+
+   @Test
+   public void matchesImagesToEvents() {
+      AcquisitionTracer tracer = new AcquisitionTracer(16);
+      tracer.eventGenerated(event(0, 0));
+      tracer.eventGenerated(event(0, 1));
+      tracer.mark(AcquisitionTracer.Stage.HOOKS_STARTED, event(0, 1));
+      tracer.mark(AcquisitionTracer.Stage.IMAGE_RECEIVED,
+            Coordinates.builder().t(0).c(0).build(), System.nanoTime());
+      assertEquals(2, tracer.getNumberOfEvents());
+      assertTrue(Double.isNaN(tracer.getTimeMs(0, AcquisitionTracer.Stage.HOOKS_STARTED)));
+      assertFalse(Double.isNaN(tracer.getTimeMs(0, AcquisitionTracer.Stage.IMAGE_RECEIVED)));
+      assertFalse(Double.isNaN(tracer.getTimeMs(1, AcquisitionTracer.Stage.HOOKS_STARTED)));
+      assertTrue(Double.isNaN(tracer.getTimeMs(1, AcquisitionTracer.Stage.IMAGE_RECEIVED)));
+   }
+
+   @Test
+   public void keepsTheNewestEvents() {
+      AcquisitionTracer tracer = new AcquisitionTracer(4);
+      for (int t = 0; t < 10; t++) {
+         trace(tracer, t, 0, System.nanoTime());
+      }
+      assertEquals(10, tracer.getNumberOfEvents());
+      // each stage is 1 ms after the previous one, except the first that is
+      // measured against the real clock
+      double[] percentiles = tracer.getLatencyPercentilesMs(
+            AcquisitionTracer.Stage.IMAGE_STORED);
+      for (double p : percentiles) {
+         assertEquals(1.0, p, 1e-9);
+      }
+      assertTrue(tracer.summary().contains("Pipeline and storage"));
+      // only the last 4 time points are left, oldest first
+      for (int r = 0; r < 4; r++) {
+         assertEquals(6 + r, traceArg(tracer, r, "t"));
+      }
+   }
+
+   @Test
+   public void forgetsOverwrittenEvents() {
+      AcquisitionTracer tracer = new AcquisitionTracer(4);
+      for (int t = 0; t < 10; t++) {
+         tracer.eventGenerated(event(t, 0));
+      }
+      // t = 3 was overwritten, so its image matches no record
+      tracer.mark(AcquisitionTracer.Stage.IMAGE_RECEIVED,
+            Coordinates.builder().t(3).c(0).build(), System.nanoTime());
+      for (int r = 0; r < 4; r++) {
+         assertTrue(Double.isNaN(tracer.getTimeMs(r, AcquisitionTracer.Stage.IMAGE_RECEIVED)));
+      }
+      tracer.mark(AcquisitionTracer.Stage.IMAGE_RECEIVED,
+            Coordinates.builder().t(8).c(0).build(), System.nanoTime());
+      assertFalse(Double.isNaN(tracer.getTimeMs(2, AcquisitionTracer.Stage.IMAGE_RECEIVED)));
+      // a time point that is traced again is matched to its newest record
+      tracer.eventGenerated(event(8, 0));
+      tracer.mark(AcquisitionTracer.Stage.HOOKS_STARTED, event(8, 0));
+      assertTrue(Double.isNaN(tracer.getTimeMs(1, AcquisitionTracer.Stage.HOOKS_STARTED)));
+      assertFalse(Double.isNaN(tracer.getTimeMs(3, AcquisitionTracer.Stage.HOOKS_STARTED)));
+   }
+
+   @Test
+   public void matchesTheNewestRecordOverManyEvents() {
+      final int capacity = 64;
+      final int nrEvents = 3000;
+      AcquisitionTracer tracer = new AcquisitionTracer(capacity);
+      Random random = new Random(1);
+      int[] ts = new int[nrEvents];
+      int[] cs = new int[nrEvents];
+      boolean[] marked = new boolean[nrEvents];
+      for (int n = 0; n < nrEvents; n++) {
+         // time points that differ by a multiple of 2^16 share their packed key
+         ts[n] = random.nextInt(6) * 65536 + random.nextInt(8);
+         cs[n] = random.nextInt(3);
+         tracer.eventGenerated(event(ts[n], cs[n]));
+         final int oldest = Math.max(0, n + 1 - capacity);
+
+         final int t = random.nextInt(6) * 65536 + random.nextInt(8);
+         final int c = random.nextInt(3);
+         tracer.mark(AcquisitionTracer.Stage.IMAGE_RECEIVED,
+               Coordinates.builder().t(t).c(c).build(), System.nanoTime());
+         for (int g = n; g >= oldest; g--) {
+            if (ts[g] == t && cs[g] == c) {
+               marked[g] = true;
+               break;
+            }
+         }
+         for (int g = oldest; g <= n; g++) {
+            assertEquals("event " + g + " after " + n, marked[g], !Double.isNaN(
+                  tracer.getTimeMs(g - oldest, AcquisitionTracer.Stage.IMAGE_RECEIVED)));
+         }
+      }
+   }
+
+   /*
+    * Index of the given record, as written to the Chrome trace.
+    */
+   private static int traceArg(AcquisitionTracer tracer, int record, String axis) {
+      StringWriter writer = new StringWriter();
+      try {
+         tracer.writeChromeTrace(writer);
+      } catch (IOException e) {
+         throw new AssertionError(e);
+      }
+      JsonArray events = new JsonParser().parse(writer.toString()).getAsJsonObject()
+            .getAsJsonArray("traceEvents");
+      int found = -1;
+      for (int i = 0; i < events.size(); i++) {
+         JsonObject event = events.get(i).getAsJsonObject();
+         if (event.get("ph").getAsString().equals("X") && event.get("name").getAsString()
+               .equals(AcquisitionTracer.Stage.HOOKS_STARTED.getInterval())) {
+            found++;
+            if (found == record) {
+               return event.getAsJsonObject("args").get(axis).getAsInt();
+            }
+         }
+      }
+      throw new AssertionError("No record " + record);
+   }
+
+   @Test
+   public void exportsChromeTrace() throws Exception {
+      AcquisitionTracer tracer = new AcquisitionTracer(8);
+      trace(tracer, 0, 0, System.nanoTime());
+      trace(tracer, 1, 0, System.nanoTime());
+      StringWriter writer = new StringWriter();
+      tracer.writeChromeTrace(writer);
+      JsonObject json = new JsonParser().parse(writer.toString()).getAsJsonObject();
+      JsonArray events = json.getAsJsonArray("traceEvents");
+      int complete = 0;
+      int async = 0;
+      for (int i = 0; i < events.size(); i++) {
+         String phase = events.get(i).getAsJsonObject().get("ph").getAsString();
+         if (phase.equals("X")) {
+            complete++;
+            JsonObject event = events.get(i).getAsJsonObject();
+            if (!event.get("name").getAsString().equals(
+                  AcquisitionTracer.Stage.HOOKS_STARTED.getInterval())) {
+               assertEquals(1000.0, event.get("dur").getAsDouble(), 1e-6);
+            }
+         } else if (phase.equals("b") || phase.equals("e")) {
+            async++;
+         }
+      }
+      // per event: 6 intervals in the engine, and 3 on the image side
+      assertEquals(2 * 6, complete);
+      assertEquals(2 * 3 * 2, async);
+   }
+}
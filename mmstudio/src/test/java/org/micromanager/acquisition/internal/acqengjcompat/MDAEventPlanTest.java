@@ -0,0 +1,139 @@
+package org.micromanager.acquisition.internal.acqengjcompat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.micromanager.MultiStagePosition;
+import org.micromanager.PositionList;
+import org.micromanager.acquisition.ChannelSpec;
+import org.micromanager.acquisition.SequenceSettings;
+import org.micromanager.internal.utils.AcqOrderMode;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class MDAEventPlanTest {
+   private static final double CURRENT_Z = 100.0;
+
+   private static ChannelSpec channel(String name, boolean doZStack, int skipFrames,
+                                      double zOffset) {
+      return new ChannelSpec.Builder().channelGroup("Channel").config(name)
+            .doZStack(doZStack).skipFactorFrame(skipFrames).zOffset(zOffset).build();
+   }
+
+   private static SequenceSettings.Builder settings(int order, int frames,
+                                                    ArrayList<ChannelSpec> channels,
+                                                    int slices) {
+      ArrayList<Double> sliceList = new ArrayList<>();
+      for (int z = 0; z < slices; z++) {
+         sliceList.add(-1.0 + z);
+      }
+      return new SequenceSettings.Builder()
+            .acqOrderMode(order)
+            .numFrames(frames)
+            .intervalMs(1000.0)
+            .useFrames(frames > 0)
+            .channels(channels)
+            .useChannels(!channels.isEmpty())
+            .slices(sliceList)
+            .sliceZStepUm(1.0)
+            .relativeZSlice(false)
+            .useSlices(slices > 0);
+   }
+
+   private static PositionList positions(int n) {
+      PositionList positionList = new PositionList();
+      for (int p = 0; p < n; p++) {
+         MultiStagePosition msp = new MultiStagePosition("XY", p, p, "Z", p);
+         msp.setLabel("Pos" + p);
+         positionList.addPosition(msp);
+      }
+      return positionList;
+   }
+
+   @Test
+   public void ordersPositionsThenTimeThenChannelsThenSlices() {
+      ArrayList<ChannelSpec> channels = new ArrayList<>(Arrays.asList(
+            channel("DAPI", true, 0, 0.0), channel("GFP", true, 0, 0.0)));
+      SequenceSettings s = settings(AcqOrderMode.POS_TIME_CHANNEL_SLICE, 3, channels, 4)
+            .usePositionList(true).build();
+      MDAEventPlan plan = MDAEventPlan.compile(s, positions(2), null, "XY", CURRENT_Z);
+      assertEquals(2 * 3 * 2 * 4, plan.getNumberOfEvents());
+      int e = 0;
+      for (int p = 0; p < 2; p++) {
+         for (int t = 0; t < 3; t++) {
+            for (int c = 0; c < 2; c++) {
+               for (int z = 0; z < 4; z++, e++) {
+                  assertEquals(p, plan.getPositionIndex(e));
+                  assertEquals(t, plan.getTimeIndex(e));
+                  assertEquals(c, plan.getChannelIndex(e));
+                  assertEquals(z, plan.getSliceIndex(e));
+                  assertEquals(-1.0 + z, plan.getZPosition(e), 1e-9);
+               }
+            }
+         }
+      }
+   }
+
+   @Test
+   public void leavesOutSkippedFrames() {
+      ArrayList<ChannelSpec> channels = new ArrayList<>(Arrays.asList(
+            channel("DAPI", true, 0, 0.0), channel("GFP", true, 2, 0.0)));
+      SequenceSettings s = settings(AcqOrderMode.TIME_POS_CHANNEL_SLICE, 6, channels, 0)
+            .build();
+      MDAEventPlan plan = MDAEventPlan.compile(s, null, null, "XY", CURRENT_Z);
+      // GFP only at time points 0 and 3
+      assertEquals(6 + 2, plan.getNumberOfEvents());
+      for (int e = 0; e < plan.getNumberOfEvents(); e++) {
+         if (plan.getChannelIndex(e) == 1) {
+            assertEquals(0, plan.getTimeIndex(e) % 3);
+         }
+         assertEquals(-1, plan.getPositionIndex(e));
+         assertEquals(-1, plan.getSliceIndex(e));
+         assertTrue(Double.isNaN(plan.getZPosition(e)));
+      }
+   }
+
+   @Test
+   public void takesChannelsWithoutZStackAtTheMiddleSlice() {
+      ArrayList<ChannelSpec> channels = new ArrayList<>(Arrays.asList(
+            channel("DAPI", true, 0, 0.0), channel("BF", false, 0, 0.0)));
+      // slices first: the channel is only acquired when the stack passes the middle
+      SequenceSettings s = settings(AcqOrderMode.TIME_POS_SLICE_CHANNEL, 1, channels, 5)
+            .build();
+      MDAEventPlan plan = MDAEventPlan.compile(s, null, null, "XY", CURRENT_Z);
+      assertEquals(5 + 1, plan.getNumberOfEvents());
+      assertEquals(1, plan.getChannelIndex(3));
+      assertEquals(2, plan.getSliceIndex(3));
+      // channels first: a single slice at the middle position
+      s = settings(AcqOrderMode.TIME_POS_CHANNEL_SLICE, 1, channels, 5).build();
+      plan = MDAEventPlan.compile(s, null, null, "XY", CURRENT_Z);
+      assertEquals(5 + 1, plan.getNumberOfEvents());
+      assertEquals(1, plan.getChannelIndex(5));
+      assertEquals(0, plan.getSliceIndex(5));
+      assertEquals(1.0, plan.getZPosition(5), 1e-9);
+   }
+
+   @Test
+   public void appliesChannelOffsetsToTheCurrentZPosition() {
+      ArrayList<ChannelSpec> channels = new ArrayList<>(Arrays.asList(
+            channel("DAPI", true, 0, 0.0), channel("GFP", true, 0, 1.5)));
+      SequenceSettings s = settings(AcqOrderMode.TIME_POS_SLICE_CHANNEL, 1, channels, 0)
+            .build();
+      MDAEventPlan plan = MDAEventPlan.compile(s, null, null, "XY", CURRENT_Z);
+      assertEquals(2, plan.getNumberOfEvents());
+      assertEquals(CURRENT_Z, plan.getZPosition(0), 1e-9);
+      assertEquals(CURRENT_Z + 1.5, plan.getZPosition(1), 1e-9);
+   }
+
+   @Test
+   public void startsRelativeStacksAtTheCurrentZPosition() {
+      SequenceSettings s = settings(AcqOrderMode.TIME_POS_SLICE_CHANNEL, 0,
+            new ArrayList<>(), 3).relativeZSlice(true).build();
+      MDAEventPlan plan = MDAEventPlan.compile(s, null, null, "XY", CURRENT_Z);
+      assertEquals(3, plan.getNumberOfEvents());
+      for (int e = 0; e < 3; e++) {
+         assertEquals(CURRENT_Z - 1.0 + e, plan.getZPosition(e), 1e-9);
+         assertEquals(-1, plan.getTimeIndex(e));
+         assertEquals(-1, plan.getChannelIndex(e));
+      }
+   }
+}
@@ -0,0 +1,124 @@
+package org.micromanager.acquisition.internal.acqengjcompat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.micromanager.PropertyMap;
+import org.micromanager.acquisition.SequenceSettings;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class TimelapseSchedulerTest {
+
+   /**
+    * Clock that only moves when told to.
+    */
+   private static final class SimulatedClock implements TimelapseScheduler.Clock {
+      private long now_ = 1000000;
+
+      @Override
+      public long currentTimeMs() {
+         return now_;
+      }
+
+      void advance(long ms) {
+         now_ += ms;
+      }
+
+      // waits like the acquisition engine does for the minimum start time
+      void waitUntil(long originMs, long startMs) {
+         now_ = Math.max(now_, originMs + startMs);
+      }
+   }
+
+   private static SequenceSettings fixed(int frames, double intervalMs) {
+      return new SequenceSettings.Builder().numFrames(frames).intervalMs(intervalMs)
+            .useFrames(true).build();
+   }
+
+   @Test
+   public void plansCustomIntervals() {
+      SequenceSettings settings = new SequenceSettings.Builder()
+            .numFrames(5)
+            .useFrames(true)
+            .useCustomIntervals(true)
+            .customIntervalsMs(new ArrayList<>(Arrays.asList(0.0, 100.0, 250.0)))
+            .build();
+      assertArrayEquals(new long[] {0, 100, 350, 600, 850},
+            TimelapseScheduler.plannedStartTimesMs(settings));
+      assertArrayEquals(new long[] {0, 500, 1000},
+            TimelapseScheduler.plannedStartTimesMs(fixed(3, 500.0)));
+      assertArrayEquals(new long[] {0},
+            TimelapseScheduler.plannedStartTimesMs(fixed(0, 500.0)));
+   }
+
+   @Test
+   public void lateFrameDoesNotShiftTheSchedule() {
+      SimulatedClock clock = new SimulatedClock();
+      final long origin = clock.currentTimeMs();
+      TimelapseScheduler scheduler = new TimelapseScheduler(fixed(4, 1000.0),
+            TimelapseScheduler.OverrunPolicy.CATCH_UP, clock);
+      for (int t = 0; t < 4; t++) {
+         clock.waitUntil(origin, scheduler.getStartTimeMs(t));
+         scheduler.frameStarted(t);
+         // time point 1 takes 1.5 intervals, the others 100 ms
+         clock.advance(t == 1 ? 1500 : 100);
+      }
+      assertEquals(0, scheduler.getActualStartMs(0));
+      assertEquals(1000, scheduler.getActualStartMs(1));
+      // starts late, right after time point 1 is done...
+      assertEquals(2500, scheduler.getActualStartMs(2));
+      // ...but time point 3 is back on schedule
+      assertEquals(3000, scheduler.getActualStartMs(3));
+      assertEquals(0, scheduler.getSkippedIntervals());
+      int[] histogram = scheduler.getJitterHistogram();
+      assertEquals(3, histogram[0]);
+      assertEquals(1, histogram[histogram.length - 4]);
+   }
+
+   @Test
+   public void skipsMissedIntervals() {
+      SimulatedClock clock = new SimulatedClock();
+      final long origin = clock.currentTimeMs();
+      TimelapseScheduler scheduler = new TimelapseScheduler(fixed(5, 1000.0),
+            TimelapseScheduler.OverrunPolicy.SKIP, clock);
+      for (int t = 0; t < 5; t++) {
+         clock.waitUntil(origin, scheduler.getStartTimeMs(t));
+         scheduler.frameStarted(t);
+         clock.advance(t == 1 ? 2500 : 100);
+      }
+      assertEquals(1000, scheduler.getActualStartMs(1));
+      // time point 2 could only start at 3500, so it moves to the slot at 4000
+      assertEquals(4000, scheduler.getScheduledStartMs(2));
+      assertEquals(4000, scheduler.getActualStartMs(2));
+      assertEquals(5000, scheduler.getActualStartMs(3));
+      assertEquals(6000, scheduler.getActualStartMs(4));
+      assertEquals(2, scheduler.getSkippedIntervals());
+      assertEquals(5, scheduler.getJitterHistogram()[0]);
+   }
+
+   @Test
+   public void sameStartTimeForAllEventsOfATimePoint() {
+      SimulatedClock clock = new SimulatedClock();
+      TimelapseScheduler scheduler = new TimelapseScheduler(fixed(3, 1000.0),
+            TimelapseScheduler.OverrunPolicy.SKIP, clock);
+      assertEquals(0, scheduler.getStartTimeMs(0));
+      clock.advance(5000);
+      assertEquals(0, scheduler.getStartTimeMs(0));
+      assertEquals(-1, scheduler.getActualStartMs(0));
+   }
+
+   @Test
+   public void exportsTimingAsMetadata() {
+      SimulatedClock clock = new SimulatedClock();
+      TimelapseScheduler scheduler = new TimelapseScheduler(fixed(2, 200.0),
+            TimelapseScheduler.OverrunPolicy.CATCH_UP, clock);
+      scheduler.getStartTimeMs(0);
+      clock.advance(3);
+      scheduler.frameStarted(0);
+      PropertyMap map = scheduler.toPropertyMap();
+      assertEquals("CATCH_UP", map.getString("TimelapseOverrunPolicy", null));
+      assertArrayEquals(new long[] {0, 200}, map.getLongList("TimelapsePlannedStartMs"));
+      assertArrayEquals(new long[] {3, -1}, map.getLongList("TimelapseActualStartMs"));
+      assertEquals(1, map.getIntegerList("TimelapseJitterHistogram")[2]);
+   }
+}
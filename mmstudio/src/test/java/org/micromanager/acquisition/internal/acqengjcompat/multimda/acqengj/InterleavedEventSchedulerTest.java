@@ -0,0 +1,164 @@
+package org.micromanager.acquisition.internal.acqengjcompat.multimda.acqengj;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.micromanager.acqj.main.Acquisition;
+import org.micromanager.acqj.main.AcquisitionEvent;
+import org.micromanager.acquisition.internal.acqengjcompat.AcqEngJAdapter;
+import org.micromanager.acquisition.internal.acqengjcompat.MDAAcqEventModules;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class InterleavedEventSchedulerTest {
+
+   /**
+    * Stage and configuration groups that only record what they are asked to do.
+    */
+   private static final class SimulatedMicroscope {
+      private Double x_;
+      private final Map<String, String> configs_ = new HashMap<>();
+      private double travelUm_ = 0.0;
+      private int presetEvents_ = 0;
+
+      void run(List<AcquisitionEvent> events) {
+         for (AcquisitionEvent event : events) {
+            if (event.getXPosition() != null) {
+               if (x_ != null) {
+                  travelUm_ += Math.abs(event.getXPosition() - x_);
+               }
+               x_ = event.getXPosition();
+            }
+            if (event.getConfigGroup() != null) {
+               configs_.put(event.getConfigGroup(), event.getConfigPreset());
+               if (!event.getTags().containsKey(AcqEngJAdapter.ACQ_IDENTIFIER)) {
+                  presetEvents_++;
+               }
+            }
+         }
+      }
+   }
+
+   private static AcquisitionEvent preset(String name) {
+      AcquisitionEvent event = new AcquisitionEvent((Acquisition) null);
+      event.setConfigGroup("Objective");
+      event.setConfigPreset(name);
+      return event;
+   }
+
+   /*
+    * Events of one acquisition, one channel at each of the given positions.
+    */
+   private static List<AcquisitionEvent> acquisition(int acqIndex, String channel,
+                                                     double... xs) {
+      List<AcquisitionEvent> events = new ArrayList<>();
+      for (int p = 0; p < xs.length; p++) {
+         AcquisitionEvent event = new AcquisitionEvent((Acquisition) null);
+         event.setTimeIndex(0);
+         event.setAxisPosition(MDAAcqEventModules.POSITION_AXIS, p);
+         event.setX(xs[p]);
+         event.setY(0.0);
+         event.setConfigGroup("Channel");
+         event.setConfigPreset(channel);
+         HashMap<String, String> tags = event.getTags();
+         tags.put(AcqEngJAdapter.ACQ_IDENTIFIER, String.valueOf(acqIndex));
+         event.setTags(tags);
+         events.add(event);
+      }
+      return events;
+   }
+
+   private static InterleavedEventScheduler.CostModel model(double configSwitchMs) {
+      return new InterleavedEventScheduler.CostModel.Builder()
+            .xyStage(1.0, 0.0).configSwitchMs(configSwitchMs).build();
+   }
+
+   @Test
+   public void visitsSharedPositionsOnce() {
+      List<AcquisitionEvent> dapi = acquisition(0, "DAPI", 0, 1000, 2000);
+      List<AcquisitionEvent> gfp = acquisition(1, "GFP", 0, 1000, 2000);
+      InterleavedEventScheduler scheduler = new InterleavedEventScheduler(model(10.0));
+      scheduler.add(null, dapi.iterator());
+      scheduler.add(null, gfp.iterator());
+      List<AcquisitionEvent> events = scheduler.schedule();
+
+      assertTrue(scheduler.isInterleaved());
+      assertEquals(6, scheduler.getNumberOfBlocks());
+      // every event exactly once, still tagged with its acquisition
+      assertEquals(6, events.size());
+      Set<AcquisitionEvent> all = new HashSet<>(dapi);
+      all.addAll(gfp);
+      assertEquals(all, new HashSet<>(events));
+      for (AcquisitionEvent event : events) {
+         String acq = event.getTags().get(AcqEngJAdapter.ACQ_IDENTIFIER);
+         assertEquals(event.getConfigPreset().equals("DAPI") ? "0" : "1", acq);
+      }
+
+      SimulatedMicroscope sequential = new SimulatedMicroscope();
+      List<AcquisitionEvent> sequentialOrder = new ArrayList<>(dapi);
+      sequentialOrder.addAll(gfp);
+      sequential.run(sequentialOrder);
+      SimulatedMicroscope interleaved = new SimulatedMicroscope();
+      interleaved.run(events);
+      assertEquals(6000.0, sequential.travelUm_, 1e-9);
+      assertEquals(2000.0, interleaved.travelUm_, 1e-9);
+
+      assertEquals(6010.0 + 10.0, scheduler.getSequentialMs(), 1e-9);
+      assertEquals(2030.0 + 10.0, scheduler.getScheduledMs(), 1e-9);
+      assertEquals(3980.0, scheduler.getEstimatedSavingMs(), 1e-9);
+   }
+
+   @Test
+   public void avoidsExpensivePresetChanges() {
+      InterleavedEventScheduler scheduler = new InterleavedEventScheduler(model(5000.0));
+      scheduler.add(preset("10x"), acquisition(0, "DAPI", 0, 100).iterator());
+      scheduler.add(preset("20x"), acquisition(1, "DAPI", 0, 100).iterator());
+      List<AcquisitionEvent> events = scheduler.schedule();
+      SimulatedMicroscope microscope = new SimulatedMicroscope();
+      microscope.run(events);
+      assertEquals(2, microscope.presetEvents_);
+      assertEquals("20x", microscope.configs_.get("Objective"));
+      assertTrue(scheduler.getEstimatedSavingMs() >= 0.0);
+   }
+
+   @Test
+   public void repeatsPresetsWhenTravelDominates() {
+      InterleavedEventScheduler scheduler = new InterleavedEventScheduler(model(1.0));
+      scheduler.add(preset("10x"), acquisition(0, "DAPI", 0, 100000).iterator());
+      scheduler.add(preset("20x"), acquisition(1, "DAPI", 0, 100000).iterator());
+      List<AcquisitionEvent> events = scheduler.schedule();
+      SimulatedMicroscope microscope = new SimulatedMicroscope();
+      microscope.run(events);
+      assertTrue(scheduler.isInterleaved());
+      assertEquals(3, microscope.presetEvents_);
+      assertEquals(100000.0, microscope.travelUm_, 1e-9);
+      // the preset is set right before the events of its acquisition
+      String objective = null;
+      for (AcquisitionEvent event : events) {
+         if (event.getConfigGroup().equals("Objective")) {
+            objective = event.getConfigPreset();
+         } else {
+            String acq = event.getTags().get(AcqEngJAdapter.ACQ_IDENTIFIER);
+            assertEquals(acq.equals("0") ? "10x" : "20x", objective);
+         }
+      }
+   }
+
+   @Test
+   public void keepsSequentialOrderWhenItIsBest() {
+      List<AcquisitionEvent> first = acquisition(0, "DAPI", 0, 1000);
+      List<AcquisitionEvent> second = acquisition(1, "DAPI", 2000, 3000);
+      InterleavedEventScheduler scheduler = new InterleavedEventScheduler(model(10.0));
+      scheduler.add(null, first.iterator());
+      scheduler.add(null, second.iterator());
+      List<AcquisitionEvent> events = scheduler.schedule();
+      List<AcquisitionEvent> expected = new ArrayList<>(first);
+      expected.addAll(second);
+      assertEquals(expected, events);
+      assertFalse(scheduler.isInterleaved());
+      assertEquals(0.0, scheduler.getEstimatedSavingMs(), 0.0);
+   }
+}
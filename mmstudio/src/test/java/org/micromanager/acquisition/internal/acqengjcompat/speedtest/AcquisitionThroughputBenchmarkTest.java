@@ -0,0 +1,67 @@
+package org.micromanager.acquisition.internal.acqengjcompat.speedtest;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.micromanager.acquisition.internal.acqengjcompat.speedtest.AcquisitionThroughputBenchmark.Result;
+import org.micromanager.acquisition.internal.acqengjcompat.speedtest.AcquisitionThroughputBenchmark.Settings;
+import org.micromanager.acquisition.internal.acqengjcompat.speedtest.AcquisitionThroughputBenchmark.Stage;
+import org.micromanager.acquisition.internal.acqengjcompat.speedtest.AcquisitionThroughputBenchmark.StorageType;
+import org.micromanager.internal.MMStudio;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AcquisitionThroughputBenchmarkTest {
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   private Settings settings() {
+      return new Settings.Builder().frames(20).frameSize(64, 32, 2)
+            .directory(folder.getRoot()).build();
+   }
+
+   @Test
+   public void storesEveryFrameInRam() throws Exception {
+      Result result = AcquisitionThroughputBenchmark.run(StorageType.RAM, settings());
+      assertEquals(20, result.getStoredFrames());
+      assertEquals(0, result.getDroppedFrames());
+      assertEquals(0, result.getLostFrames());
+      assertTrue(result.getFramesPerSecond() > 0);
+      double[] total = result.getLatencyPercentilesMs(Stage.TOTAL);
+      assertTrue(total[0] >= 0 && total[0] <= total[total.length - 1]);
+   }
+
+   @Test
+   public void storesEveryFrameOnDisk() throws Exception {
+      Result result = AcquisitionThroughputBenchmark.run(StorageType.SINGLEPLANE_TIFF, settings());
+      assertEquals(20, result.getStoredFrames());
+      assertEquals(0, result.getLostFrames());
+      // the data are removed after the run
+      assertEquals(0, folder.getRoot().list().length);
+   }
+
+   @Test
+   public void storesEveryFrameInMultipageTiff() throws Exception {
+      // without the application, finishing the file must not look up display
+      // settings of open viewers, and writes default channel ranges and colors
+      assertNull(MMStudio.getInstance());
+      Result result = AcquisitionThroughputBenchmark.run(StorageType.MULTIPAGE_TIFF, settings());
+      assertEquals(20, result.getStoredFrames());
+      assertEquals(0, result.getDroppedFrames());
+      assertEquals(0, result.getLostFrames());
+      assertEquals(0, folder.getRoot().list().length);
+   }
+
+   @Test
+   public void reportsJson() throws Exception {
+      Result result = AcquisitionThroughputBenchmark.run(StorageType.RAM, settings());
+      JsonObject json = new JsonParser().parse(result.toJson()).getAsJsonObject();
+      assertEquals("RAM", json.get("storage").getAsString());
+      assertEquals(20, json.get("storedFrames").getAsInt());
+      assertEquals(64 * 32 * 2 * result.getFramesPerSecond() / 1e6,
+            json.get("MBPerSecond").getAsDouble(), 1e-6);
+      assertTrue(json.getAsJsonObject("latencyMs").getAsJsonObject("STORAGE").has("p99"));
+   }
+}
@@ -166,6 +166,33 @@ public class PropertyMapJSONSerializerTest {
       assertEquals(pm, pm2);
    }
 
+   @Test
+   public void testIncrementalSerializer() throws Exception {
+      PropertyMap owner1 = PropertyMaps.builder().putString("a", "x").
+            putPropertyMap("nested", PropertyMaps.builder().putInteger("n", 1).build()).
+            build();
+      PropertyMap owner2 = PropertyMaps.builder().putDouble("b", 0.5).build();
+      PropertyMap pm = PropertyMaps.builder().
+            putPropertyMap("Owner1", owner1).
+            putPropertyMap("Owner2", owner2).
+            build();
+
+      PropertyMapJSONSerializer.IncrementalSerializer serializer =
+            new PropertyMapJSONSerializer.IncrementalSerializer();
+      assertEquals(PropertyMapJSONSerializer.toJSON(pm), serializer.toJSON(pm));
+      assertEquals(0, serializer.getReusedCount());
+      assertEquals(4, serializer.getEncodedCount());
+
+      // Replacing one owner only re-encodes that owner and the top level map
+      PropertyMap edited = pm.copyBuilder().putPropertyMap("Owner2",
+            owner2.copyBuilder().putDouble("b", 0.25).build()).build();
+      String json = serializer.toJSON(edited);
+      assertEquals(PropertyMapJSONSerializer.toJSON(edited), json);
+      assertEquals(1, serializer.getReusedCount());
+      assertEquals(2, serializer.getEncodedCount());
+      assertEquals(edited, PropertyMapJSONSerializer.fromJSON(json));
+   }
+
    @Test
    public void testLegacySerializedObject() throws Exception {
       String base64encoded =
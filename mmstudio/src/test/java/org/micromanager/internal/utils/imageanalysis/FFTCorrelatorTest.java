@@ -0,0 +1,139 @@
+package org.micromanager.internal.utils.imageanalysis;
+
+import java.awt.geom.Point2D;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class FFTCorrelatorTest {
+   private static final int SIZE = 400;
+   private static final int TEMPLATE = 64;
+   private static final int TEMPLATE_POS = (SIZE - TEMPLATE) / 2;
+
+   /**
+    * Random blobs of varying size, moved by (dx, dy).
+    */
+   private static float[] scene(double dx, double dy) {
+      Random random = new Random(7);
+      final int n = 1500;
+      double[] xs = new double[n];
+      double[] ys = new double[n];
+      double[] amplitudes = new double[n];
+      double[] variances = new double[n];
+      for (int i = 0; i < n; i++) {
+         xs[i] = random.nextDouble() * SIZE + dx;
+         ys[i] = random.nextDouble() * SIZE + dy;
+         amplitudes[i] = 500 + random.nextDouble() * 1000;
+         variances[i] = 2 + random.nextDouble() * 30;
+      }
+      float[] image = new float[SIZE * SIZE];
+      for (int y = 0; y < SIZE; y++) {
+         for (int x = 0; x < SIZE; x++) {
+            double value = 100;
+            for (int i = 0; i < n; i++) {
+               final double ex = x - xs[i];
+               final double ey = y - ys[i];
+               final double d2 = ex * ex + ey * ey;
+               if (d2 < 30 * variances[i]) {
+                  value += amplitudes[i] * Math.exp(-d2 / (2 * variances[i]));
+               }
+            }
+            image[y * SIZE + x] = (float) value;
+         }
+      }
+      return image;
+   }
+
+   private static Point2D.Double track(FFTCorrelator correlator, double dx, double dy) {
+      float[] reference = scene(0, 0);
+      float[] target = scene(dx, dy);
+      return correlator.correlate(reference, SIZE, TEMPLATE_POS, TEMPLATE_POS,
+            target, SIZE, TEMPLATE_POS, TEMPLATE_POS).getShift();
+   }
+
+   @Test
+   public void findsSmallShiftWithoutPyramid() {
+      FFTCorrelator correlator = new FFTCorrelator(TEMPLATE, TEMPLATE, 8, 1);
+      assertEquals(0, correlator.getCoarsestLevel());
+      Point2D.Double shift = track(correlator, 3, -2);
+      assertEquals(3.0, shift.x, 0.1);
+      assertEquals(-2.0, shift.y, 0.1);
+   }
+
+   @Test
+   public void findsLargeShiftOnPyramid() {
+      FFTCorrelator correlator = new FFTCorrelator(TEMPLATE, TEMPLATE, 100, 1);
+      assertTrue(correlator.getCoarsestLevel() > 0);
+      Point2D.Double shift = track(correlator, -90, 85);
+      assertEquals(-90.0, shift.x, 0.1);
+      assertEquals(85.0, shift.y, 0.1);
+      shift = track(correlator, 37.4, -61.7);
+      assertEquals(37.4, shift.x, 0.1);
+      assertEquals(-61.7, shift.y, 0.1);
+   }
+
+   @Test
+   public void refinesToSubPixel() {
+      FFTCorrelator correlator = new FFTCorrelator(TEMPLATE, TEMPLATE, 20, 1);
+      Point2D.Double shift = track(correlator, 12.5, 0.25);
+      assertEquals(12.5, shift.x, 0.1);
+      assertEquals(0.25, shift.y, 0.1);
+   }
+
+   @Test
+   public void convertsUnsignedPixels() {
+      float[] bytes = FFTCorrelator.toFloatArray(new byte[] {(byte) 0xff, 1});
+      assertEquals(255.0f, bytes[0], 0.0f);
+      float[] shorts = FFTCorrelator.toFloatArray(new short[] {(short) 0xffff, 1});
+      assertEquals(65535.0f, shorts[0], 0.0f);
+   }
+
+   @Test
+   public void fftMatchesDirectTransform() {
+      final int width = 8;
+      final int height = 4;
+      Random random = new Random(3);
+      double[] re = new double[width * height];
+      double[] im = new double[re.length];
+      for (int i = 0; i < re.length; i++) {
+         re[i] = random.nextDouble();
+         im[i] = random.nextDouble();
+      }
+      double[] fRe = re.clone();
+      double[] fIm = im.clone();
+      FFTCorrelator.fft2D(fRe, fIm, width, height, false);
+      for (int v = 0; v < height; v++) {
+         for (int u = 0; u < width; u++) {
+            double sumRe = 0.0;
+            double sumIm = 0.0;
+            for (int y = 0; y < height; y++) {
+               for (int x = 0; x < width; x++) {
+                  final double angle = -2.0 * Math.PI
+                        * ((double) u * x / width + (double) v * y / height);
+                  final int i = y * width + x;
+                  sumRe += re[i] * Math.cos(angle) - im[i] * Math.sin(angle);
+                  sumIm += re[i] * Math.sin(angle) + im[i] * Math.cos(angle);
+               }
+            }
+            assertEquals(sumRe, fRe[v * width + u], 1e-9);
+            assertEquals(sumIm, fIm[v * width + u], 1e-9);
+         }
+      }
+      FFTCorrelator.fft2D(fRe, fIm, width, height, true);
+      assertArrayEquals(re, fRe, 1e-12);
+      assertArrayEquals(im, fIm, 1e-12);
+   }
+
+   @Test
+   public void fitsPeakBetweenSamples() {
+      // samples of a Gaussian centered 0.3 to the right of the center sample
+      final double minus = Math.exp(-1.3 * 1.3 / 2);
+      final double center = Math.exp(-0.3 * 0.3 / 2);
+      final double plus = Math.exp(-0.7 * 0.7 / 2);
+      assertEquals(0.3, FFTCorrelator.subPixelOffset(minus, center, plus), 1e-9);
+      // falls back to a parabola for values that are not all positive
+      assertEquals(0.0, FFTCorrelator.subPixelOffset(-1.0, 1.0, -1.0), 0.0);
+      assertEquals(16, FFTCorrelator.nextPowerOf2(9));
+      assertEquals(16, FFTCorrelator.nextPowerOf2(16));
+   }
+}
@@ -0,0 +1,82 @@
+package org.micromanager.profile.internal;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ProfileSaverTest {
+
+   private ScheduledThreadPoolExecutor executor_;
+
+   @Before
+   public void setUp() {
+      executor_ = new ScheduledThreadPoolExecutor(1);
+      executor_.setRemoveOnCancelPolicy(true);
+   }
+
+   @After
+   public void tearDown() {
+      executor_.shutdownNow();
+   }
+
+   /*
+    * Runs the pending save now instead of waiting for the save interval.
+    */
+   private void runScheduledSave() {
+      assertEquals(1, executor_.getQueue().size());
+      Runnable save = executor_.getQueue().peek();
+      assertTrue(executor_.remove(save));
+      save.run();
+   }
+
+   @Test
+   public void coalescesChanges() {
+      final AtomicInteger saves = new AtomicInteger();
+      ProfileSaver saver = new ProfileSaver(saves::incrementAndGet, executor_);
+      for (int i = 0; i < 100; i++) {
+         saver.onEvent(UserProfileChangedEvent.create());
+      }
+      assertEquals(0, saves.get());
+      assertEquals(1, executor_.getQueue().size());
+      runScheduledSave();
+      assertEquals(1, saves.get());
+      assertEquals(0, executor_.getQueue().size());
+
+      // nothing changed since the last save
+      saver.syncToDisk();
+      assertEquals(1, saves.get());
+   }
+
+   @Test
+   public void syncToDiskReplacesScheduledSave() {
+      final AtomicInteger saves = new AtomicInteger();
+      ProfileSaver saver = new ProfileSaver(saves::incrementAndGet, executor_);
+      saver.onEvent(UserProfileChangedEvent.create());
+      saver.onEvent(UserProfileChangedEvent.create());
+      saver.syncToDisk();
+      assertEquals(1, saves.get());
+      assertEquals(0, executor_.getQueue().size());
+      saver.syncToDisk();
+      assertEquals(1, saves.get());
+   }
+
+   @Test
+   public void changeDuringSaveSchedulesAnotherSave() {
+      final AtomicInteger saves = new AtomicInteger();
+      final ProfileSaver[] saver = new ProfileSaver[1];
+      saver[0] = new ProfileSaver(() -> {
+         if (saves.incrementAndGet() == 1) {
+            saver[0].onEvent(UserProfileChangedEvent.create());
+         }
+      }, executor_);
+      saver[0].onEvent(UserProfileChangedEvent.create());
+      runScheduledSave();
+      assertEquals(1, saves.get());
+      runScheduledSave();
+      assertEquals(2, saves.get());
+      assertEquals(0, executor_.getQueue().size());
+   }
+}
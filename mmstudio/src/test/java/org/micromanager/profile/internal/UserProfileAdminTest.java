@@ -0,0 +1,61 @@
+package org.micromanager.profile.internal;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.util.Arrays;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class UserProfileAdminTest {
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   private static String read(File file) throws Exception {
+      return Files.toString(file, Charsets.UTF_8);
+   }
+
+   @Test
+   public void writesAtomicallyAndKeepsBackup() throws Exception {
+      File file = new File(folder.getRoot(), "profile.json");
+      File backup = new File(folder.getRoot(), "profile.json~");
+      File temp = new File(folder.getRoot(), "profile.json.tmp");
+
+      UserProfileAdmin.writeJSONAtomically(file, "{\"v\":1}");
+      assertEquals("{\"v\":1}", read(file));
+      assertFalse(backup.exists());
+      assertFalse(temp.exists());
+
+      UserProfileAdmin.writeJSONAtomically(file, "{\"v\":2}");
+      assertEquals("{\"v\":2}", read(file));
+      assertEquals("{\"v\":1}", read(backup));
+      assertFalse(temp.exists());
+
+      UserProfileAdmin.writeJSONAtomically(file, "{\"v\":3}");
+      assertEquals("{\"v\":3}", read(file));
+      assertEquals("{\"v\":2}", read(backup));
+      assertFalse(temp.exists());
+      assertArrayEquals(new String[] {"profile.json", "profile.json~"},
+            sortedNames(folder.getRoot()));
+   }
+
+   @Test
+   public void replacesLeftoverTemporaryFile() throws Exception {
+      // left behind by a write that was interrupted before the rename
+      File file = new File(folder.getRoot(), "profile.json");
+      File temp = new File(folder.getRoot(), "profile.json.tmp");
+      Files.write("{\"partial", temp, Charsets.UTF_8);
+      UserProfileAdmin.writeJSONAtomically(file, "{\"v\":1}");
+      assertEquals("{\"v\":1}", read(file));
+      assertFalse(temp.exists());
+   }
+
+   private static String[] sortedNames(File dir) {
+      String[] names = dir.list();
+      Arrays.sort(names);
+      return names;
+   }
+}
@@ -32,6 +32,7 @@ import org.micromanager.asidispim.data.Positions;
 import org.micromanager.asidispim.data.Prefs;
 import org.micromanager.asidispim.data.Properties;
 import org.micromanager.asidispim.utils.DevicesListenerInterface;
+import org.micromanager.asidispim.utils.ImageStorePipeline;
 import org.micromanager.asidispim.utils.ListeningJPanel;
 import org.micromanager.asidispim.utils.MyDialogUtils;
 import org.micromanager.asidispim.utils.MyNumberUtils;
@@ -2354,6 +2355,7 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
             }
 
             Datastore store = null;
+            ImageStorePipeline storePipeline = null;
 
             long extraStageScanTimeout = 0;
             if (acqSettings.isStageScanning) {
@@ -2511,6 +2513,18 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
 
                 store.setSummaryMetadata(smb.userData(pmb.build()).build());
 
+                // images are converted and written on separate threads so that
+                //   the acquisition thread only has to empty the circular buffer
+                final double zStepUm = PanelUtils.getSpinnerFloatValue(stepSize_);
+                storePipeline = new ImageStorePipeline(store, new ImageStorePipeline.Converter() {
+                    @Override
+                    public Image convert(TaggedImage taggedImg, int frame, int channel,
+                            int slice, int position, long ms) throws Exception {
+                        return createAcquisitionImage(frame, channel, slice, position,
+                                taggedImg, zStepUm);
+                    }
+                }, 0, 0);
+
                 // note that these SequenceSettings are quite incomplete
                 SequenceSettings settings = acqSettings.getSequenceSettings();
                 // TODO replace original "SetAcquisitionProperty" code!!
@@ -2785,13 +2799,13 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
                                             if (spimMode == AcquisitionModes.Keys.NO_SCAN && !acqSettings.separateTimepoints) {
                                                 // create time series for no scan
 
-                                                addImageToAcquisition(store,
+                                                storePipeline.submit(timg,
                                                         frNumber[channelIndex], channelIndex, timePoint,
-                                                        positionNum, now - acqStart, timg);
+                                                        positionNum, now - acqStart);
                                             } else { // standard, create Z-stacks
-                                                addImageToAcquisition(store, timePoint, channelIndex,
+                                                storePipeline.submit(timg, timePoint, channelIndex,
                                                         frNumber[channelIndex], positionNum,
-                                                        now - acqStart, timg);
+                                                        now - acqStart);
                                             }
 
                                             // update our counters to be ready for next image
@@ -2839,6 +2853,14 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
                                         }
                                     }
 
+                                    ReportingUtils.logDebugMessage("diSPIM image pipeline after time point "
+                                            + (timePoint + 1) + ": " + storePipeline.getStatistics());
+                                    if (core_.isBufferOverflowed()) {
+                                        ReportingUtils.logError("Circular buffer overflowed during time point "
+                                                + (timePoint + 1) + ", images were lost.");
+                                        nonfatalError = true;
+                                    }
+
                                     // update count if we stopped in the middle
                                     if (cancelAcquisition_.get()) {
                                         numTimePointsDone_--;
@@ -2943,6 +2965,17 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
             } finally {  // end of this acquisition (could be about to restart if separate viewers)
                 try {
 
+                    if (storePipeline != null) {
+                        // wait for all images to be written before freezing the datastore
+                        try {
+                            storePipeline.close();
+                        } catch (Exception ex) {
+                            MyDialogUtils.showError(ex, "Problem while storing images");
+                        }
+                        ReportingUtils.logMessage("diSPIM image pipeline "
+                                + storePipeline.getStatistics());
+                    }
+
                     if (store != null) {
                         store.freeze();
                     }
@@ -3152,28 +3185,22 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
     }
 
     /**
-     * The basic method for adding images to an existing data set. If the
-     * acquisition was not previously initialized, it will attempt to initialize
-     * it from the available image data. This version uses a blocking queue and
-     * is much faster than the one currently implemented in the ScriptInterface
-     * Eventually, this function should be replaced by the ScriptInterface
-     * version of the same.
+     * Converts an image from the core into an image with the coordinates and
+     * metadata needed for the acquisition's datastore.  Runs on the converter
+     * threads of the ImageStorePipeline, so should not touch Swing components.
      *
-     * @param store - Datastore in which the image will be inserted
      * @param frame - frame nr at which to insert the image
      * @param channel - channel at which to insert image
      * @param slice - (z) slice at which to insert image
      * @param position - position at which to insert image
-     * @param ms - Time stamp to be added to the image metadata
      * @param taggedImg - image + metadata to be added
+     * @param zStepUm - step size to record in the image metadata
+     * @return image ready to be put into the datastore
      * @throws mmcorej.org.json.JSONException
-     * @throws org.micromanager.data.DatastoreFrozenException
-     * @throws org.micromanager.data.DatastoreRewriteException
      */
-    private void addImageToAcquisition(Datastore store, int frame, int channel,
-            int slice, int position, long ms, TaggedImage taggedImg) throws
-            JSONException, DatastoreFrozenException,
-            DatastoreRewriteException, Exception {
+    private Image createAcquisitionImage(int frame, int channel,
+            int slice, int position, TaggedImage taggedImg, double zStepUm) throws
+            JSONException, Exception {
 
         CoordsBuilder cb = Coordinates.builder();
 
@@ -3182,8 +3209,7 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
         Metadata md = img.getMetadata();
         Metadata.Builder mdb = md.copyBuilderWithNewUUID();
         PropertyMap ud = md.getUserData();
-        ud = ud.copyBuilder().putDouble("Z-Step-um",
-                (double) PanelUtils.getSpinnerFloatValue(stepSize_)).build();
+        ud = ud.copyBuilder().putDouble("Z-Step-um", zStepUm).build();
         String posName = "Pos-0";
         PositionList pl = gui_.positions().getPositionList();
         if (pl != null) {
@@ -3195,9 +3221,7 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
         }
 
         md = mdb.positionName(posName).userData(ud).build();
-        img = img.copyWith(coord, md);
-
-        store.putImage(img);
+        return img.copyWith(coord, md);
 
         /*
       // create required coordinate tags
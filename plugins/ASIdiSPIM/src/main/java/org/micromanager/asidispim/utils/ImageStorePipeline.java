@@ -0,0 +1,326 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ImageStorePipeline.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     ASIdiSPIM plugin
+//-----------------------------------------------------------------------------
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.asidispim.utils;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.micromanager.data.Datastore;
+import org.micromanager.data.Image;
+import org.micromanager.internal.utils.ReportingUtils;
+
+import mmcorej.TaggedImage;
+
+/**
+ * Decouples getting images out of the core's circular buffer from converting
+ * them and writing them to the datastore.
+ *
+ * The acquisition thread only calls submit(), which hands the TaggedImage to
+ * a pool of converter threads and places the pending result in a queue.  A
+ * single writer thread takes results out of the queue in submission order
+ * and puts them into the datastore, so images arrive in the datastore in the
+ * same order as they came from the cameras even though conversion happens in
+ * parallel.
+ *
+ * The images between submit() and the datastore are on the Java heap, so
+ * the queue is limited by the number of bytes of their pixels rather than by
+ * their number.  When the writer falls behind (e.g. the disk hiccups) and the
+ * byte budget is used up, submit() blocks, which means the core's circular
+ * buffer, outside of the Java heap, starts filling instead.  The counters
+ * exposed here (bytes in flight, high water mark, number of times the buffer
+ * was full) can be used to judge how close an acquisition came to
+ * overflowing.
+ */
+public class ImageStorePipeline {
+
+   /**
+    * Converts a raw image from the core into an image ready for the datastore,
+    * e.g. by setting coordinates and adding metadata.  Called from the
+    * converter threads, so has to be thread-safe.
+    */
+   public interface Converter {
+      Image convert(TaggedImage taggedImg, int frame, int channel, int slice,
+            int position, long ms) throws Exception;
+   }
+
+   // fraction of the byte budget above which we warn that images may be lost
+   private static final double RISK_FRACTION = 0.75;
+   // fraction of the maximum heap size used when no capacity is given
+   private static final long DEFAULT_HEAP_DIVISOR = 4;
+
+   /**
+    * Image on its way to the datastore, with the bytes of its pixels.
+    */
+   private static final class Pending {
+      private final Future<Image> result_;
+      private final long bytes_;
+
+      private Pending(Future<Image> result, long bytes) {
+         result_ = result;
+         bytes_ = bytes;
+      }
+   }
+
+   private final Datastore store_;
+   private final Converter converter_;
+   private final long capacityBytes_;
+   private final BlockingQueue<Pending> queue_;
+   private final ExecutorService converters_;
+   private final Thread writer_;
+   private final AtomicLong nrSubmitted_ = new AtomicLong(0);
+   private final AtomicLong nrStored_ = new AtomicLong(0);
+   private final AtomicLong nrBufferFull_ = new AtomicLong(0);
+   // guarded by this
+   private long bytesInFlight_ = 0;
+   private long highWaterMark_ = 0;
+   private volatile Exception error_ = null;
+   private volatile boolean closed_ = false;
+   private boolean riskReported_ = false;
+
+   // sentinel telling the writer thread that no more images will come
+   private static final Pending END_OF_STREAM = new Pending(new FutureTask<Image>(
+         new Callable<Image>() {
+            @Override
+            public Image call() {
+               return null;
+            }
+         }), 0);
+
+   /**
+    * @param store - datastore that receives the images
+    * @param converter - turns TaggedImages into datastore images
+    * @param capacityBytes - maximum number of bytes of pixels in flight
+    *           between the acquisition thread and the datastore, 0 or less
+    *           for a quarter of the maximum heap size
+    * @param nrConverterThreads - number of threads used for conversion,
+    *           0 or less to use the number of processors
+    */
+   public ImageStorePipeline(Datastore store, Converter converter,
+         long capacityBytes, int nrConverterThreads) {
+      store_ = store;
+      converter_ = converter;
+      capacityBytes_ = capacityBytes > 0 ? capacityBytes
+            : Runtime.getRuntime().maxMemory() / DEFAULT_HEAP_DIVISOR;
+      queue_ = new LinkedBlockingQueue<Pending>();
+      final int nrThreads = nrConverterThreads > 0 ? nrConverterThreads
+            : Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+      converters_ = Executors.newFixedThreadPool(nrThreads, new ThreadFactory() {
+         private final AtomicInteger count_ = new AtomicInteger(0);
+         @Override
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "diSPIM image converter " + count_.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      writer_ = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            writeImages();
+         }
+      }, "diSPIM image writer");
+      writer_.setDaemon(true);
+      writer_.start();
+   }
+
+   /**
+    * Hands an image to the pipeline.  Returns immediately unless the images
+    * in flight use up the byte budget, in which case it waits until enough
+    * of them are stored.  An image larger than the budget is accepted when
+    * nothing else is in flight.
+    *
+    * @throws Exception if an earlier image could not be converted or stored
+    */
+   public void submit(final TaggedImage taggedImg, final int frame, final int channel,
+         final int slice, final int position, final long ms) throws Exception {
+      if (closed_) {
+         throw new IllegalStateException("Image pipeline was already closed");
+      }
+      rethrowError();
+      final long bytes = sizeOf(taggedImg.pix);
+      reserve(bytes);
+      Future<Image> result = converters_.submit(new Callable<Image>() {
+         @Override
+         public Image call() throws Exception {
+            return converter_.convert(taggedImg, frame, channel, slice, position, ms);
+         }
+      });
+      queue_.put(new Pending(result, bytes));
+      nrSubmitted_.incrementAndGet();
+
+      if (!riskReported_ && isAtRisk()) {
+         riskReported_ = true;
+         ReportingUtils.logMessage("diSPIM image pipeline is falling behind: "
+               + getBytesInFlight() + " of " + capacityBytes_
+               + " bytes waiting to be stored");
+      }
+   }
+
+   private synchronized void reserve(long bytes) throws Exception {
+      if (bytesInFlight_ > 0 && bytesInFlight_ + bytes > capacityBytes_) {
+         nrBufferFull_.incrementAndGet();
+         while (bytesInFlight_ > 0 && bytesInFlight_ + bytes > capacityBytes_) {
+            // the writer notifies when it stores an image or gives up
+            wait(100);
+            rethrowError();
+         }
+      }
+      bytesInFlight_ += bytes;
+      highWaterMark_ = Math.max(highWaterMark_, bytesInFlight_);
+   }
+
+   private synchronized void release(long bytes) {
+      bytesInFlight_ -= bytes;
+      notifyAll();
+   }
+
+   private static long sizeOf(Object pixels) {
+      if (pixels instanceof byte[]) {
+         return ((byte[]) pixels).length;
+      } else if (pixels instanceof short[]) {
+         return 2L * ((short[]) pixels).length;
+      } else if (pixels instanceof int[]) {
+         return 4L * ((int[]) pixels).length;
+      } else if (pixels instanceof float[]) {
+         return 4L * ((float[]) pixels).length;
+      }
+      return 0;
+   }
+
+   /**
+    * Waits until all submitted images are in the datastore and stops the
+    * worker threads.  Safe to call more than once.
+    *
+    * @throws Exception if an image could not be converted or stored
+    */
+   public void close() throws Exception {
+      if (!closed_) {
+         closed_ = true;
+         queue_.put(END_OF_STREAM);
+         writer_.join();
+         converters_.shutdown();
+         converters_.awaitTermination(1, TimeUnit.MINUTES);
+      }
+      rethrowError();
+   }
+
+   /**
+    * @return number of images waiting to be stored
+    */
+   public int getBufferFill() {
+      return queue_.size();
+   }
+
+   /**
+    * @return bytes of pixels waiting to be stored
+    */
+   public synchronized long getBytesInFlight() {
+      return bytesInFlight_;
+   }
+
+   public long getCapacityBytes() {
+      return capacityBytes_;
+   }
+
+   /**
+    * @return largest number of bytes that were waiting at the same time
+    */
+   public synchronized long getHighWaterMark() {
+      return highWaterMark_;
+   }
+
+   /**
+    * @return number of times the acquisition thread had to wait for space
+    */
+   public long getBufferFullCount() {
+      return nrBufferFull_.get();
+   }
+
+   public long getImagesSubmitted() {
+      return nrSubmitted_.get();
+   }
+
+   public long getImagesStored() {
+      return nrStored_.get();
+   }
+
+   /**
+    * @return true when the byte budget is used up to the point that the
+    *          core's circular buffer may overflow if storage does not catch up
+    */
+   public boolean isAtRisk() {
+      return getBytesInFlight() >= RISK_FRACTION * capacityBytes_;
+   }
+
+   /**
+    * @return one-line summary of the counters, for logging
+    */
+   public String getStatistics() {
+      return "stored " + nrStored_.get() + " of " + nrSubmitted_.get()
+            + " images, buffer high water mark " + getHighWaterMark() / 1024 / 1024
+            + " of " + capacityBytes_ / 1024 / 1024 + " MB, buffer full "
+            + nrBufferFull_.get() + " times";
+   }
+
+   private void writeImages() {
+      try {
+         while (true) {
+            Pending pending = queue_.take();
+            if (pending == END_OF_STREAM) {
+               return;
+            }
+            if (error_ != null) {
+               // keep draining so that the acquisition thread never blocks forever
+               pending.result_.cancel(false);
+               release(pending.bytes_);
+               continue;
+            }
+            try {
+               store_.putImage(pending.result_.get());
+               nrStored_.incrementAndGet();
+            } catch (ExecutionException ex) {
+               error_ = ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+               ReportingUtils.logError(error_, "diSPIM image pipeline could not convert image");
+            } catch (Exception ex) {
+               error_ = ex;
+               ReportingUtils.logError(ex, "diSPIM image pipeline could not store image");
+            }
+            release(pending.bytes_);
+         }
+      } catch (InterruptedException ex) {
+         error_ = ex;
+      }
+   }
+
+   private void rethrowError() throws Exception {
+      if (error_ != null) {
+         throw error_;
+      }
+   }
+
+}
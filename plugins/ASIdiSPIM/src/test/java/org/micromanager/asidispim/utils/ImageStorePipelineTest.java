@@ -0,0 +1,114 @@
+package org.micromanager.asidispim.utils;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import mmcorej.TaggedImage;
+import org.micromanager.data.Datastore;
+import org.micromanager.data.Image;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class ImageStorePipelineTest {
+
+   private static final int IMAGE_BYTES = 1000;
+
+   /*
+    * Datastore that only records the images put into it, and takes the given
+    * time to store each of them.
+    */
+   private static Datastore store(final List<Image> stored, final long storeMs) {
+      return (Datastore) Proxy.newProxyInstance(Datastore.class.getClassLoader(),
+            new Class<?>[] {Datastore.class}, (proxy, method, args) -> {
+               if (method.getName().equals("putImage")) {
+                  Thread.sleep(storeMs);
+                  stored.add((Image) args[0]);
+               }
+               return null;
+            });
+   }
+
+   private static Image image() {
+      return (Image) Proxy.newProxyInstance(Image.class.getClassLoader(),
+            new Class<?>[] {Image.class}, (proxy, method, args) -> {
+               if (method.getName().equals("equals")) {
+                  return proxy == args[0];
+               } else if (method.getName().equals("hashCode")) {
+                  return System.identityHashCode(proxy);
+               }
+               return null;
+            });
+   }
+
+   private static TaggedImage tagged() {
+      return new TaggedImage(new byte[IMAGE_BYTES], null);
+   }
+
+   @Test
+   public void storesImagesInSubmissionOrder() throws Exception {
+      final List<Image> stored = Collections.synchronizedList(new ArrayList<Image>());
+      final Map<Integer, Image> converted = new ConcurrentHashMap<Integer, Image>();
+      final Random random = new Random(1);
+      ImageStorePipeline pipeline = new ImageStorePipeline(store(stored, 0),
+            (taggedImg, frame, channel, slice, position, ms) -> {
+               // later images are often converted before earlier ones
+               Thread.sleep(random.nextInt(3));
+               Image image = image();
+               converted.put(frame, image);
+               return image;
+            }, 0, 4);
+      final int nrImages = 200;
+      for (int frame = 0; frame < nrImages; frame++) {
+         pipeline.submit(tagged(), frame, 0, 0, 0, frame);
+      }
+      pipeline.close();
+      assertEquals(nrImages, pipeline.getImagesStored());
+      assertEquals(nrImages, stored.size());
+      for (int frame = 0; frame < nrImages; frame++) {
+         assertSame(converted.get(frame), stored.get(frame));
+      }
+      assertEquals(0, pipeline.getBytesInFlight());
+   }
+
+   @Test
+   public void blocksWhenByteBudgetIsUsedUp() throws Exception {
+      final List<Image> stored = Collections.synchronizedList(new ArrayList<Image>());
+      final long capacityBytes = 4 * IMAGE_BYTES;
+      ImageStorePipeline pipeline = new ImageStorePipeline(store(stored, 2),
+            (taggedImg, frame, channel, slice, position, ms) -> image(),
+            capacityBytes, 2);
+      assertEquals(capacityBytes, pipeline.getCapacityBytes());
+      final int nrImages = 50;
+      for (int frame = 0; frame < nrImages; frame++) {
+         pipeline.submit(tagged(), frame, 0, 0, 0, frame);
+         assertTrue(pipeline.getBytesInFlight() <= capacityBytes);
+      }
+      pipeline.close();
+      assertEquals(nrImages, stored.size());
+      assertTrue(pipeline.getBufferFullCount() > 0);
+      assertEquals(capacityBytes, pipeline.getHighWaterMark());
+   }
+
+   @Test
+   public void acceptsImageLargerThanBudget() throws Exception {
+      final List<Image> stored = Collections.synchronizedList(new ArrayList<Image>());
+      ImageStorePipeline pipeline = new ImageStorePipeline(store(stored, 0),
+            (taggedImg, frame, channel, slice, position, ms) -> image(), IMAGE_BYTES / 2, 1);
+      pipeline.submit(tagged(), 0, 0, 0, 0, 0);
+      pipeline.submit(tagged(), 1, 0, 0, 0, 0);
+      pipeline.close();
+      assertEquals(2, stored.size());
+   }
+
+   @Test
+   public void defaultsToPartOfTheHeap() {
+      ImageStorePipeline pipeline = new ImageStorePipeline(store(new ArrayList<Image>(), 0),
+            (taggedImg, frame, channel, slice, position, ms) -> image(), 0, 1);
+      assertTrue(pipeline.getCapacityBytes() > 0);
+      assertTrue(pipeline.getCapacityBytes() < Runtime.getRuntime().maxMemory());
+   }
+}
@@ -1,20 +1,17 @@
 package org.micromanager.assembledata;
 
-import boofcv.abst.distort.FDistort;
-import boofcv.alg.misc.GImageMiscOps;
-import boofcv.core.image.ConvertImage;
-import boofcv.struct.border.BorderType;
-import boofcv.struct.image.GrayF32;
-import boofcv.struct.image.GrayS32;
-import boofcv.struct.image.GrayU16;
-import boofcv.struct.image.GrayU8;
-import boofcv.struct.image.ImageGray;
 import georegression.struct.affine.Affine2D_F64;
 import georegression.struct.homography.Homography2D_F64;
 import java.awt.geom.AffineTransform;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.micromanager.Studio;
 import org.micromanager.data.Coordinates;
 import org.micromanager.data.Coords;
@@ -79,16 +76,14 @@ public class AssembleDataAlgo {
          double multiPositionPixelSize = multiPositionMD.getPixelSizeUm();
          AffineTransform singlePositionAff = singlePositionMD.getPixelSizeAffine();
          AffineTransform multiPositionAff = multiPositionMD.getPixelSizeAffine();
-         double basePixelSize = singlePositionPixelSize;
-         if (multiPositionPixelSize < basePixelSize) {
-            basePixelSize = multiPositionPixelSize;
-         }
+         final double basePixelSize = Math.min(singlePositionPixelSize,
+               multiPositionPixelSize);
 
          Affine2D_F64 singlePositionAf64 = BoofCVImageConverter.convertAff(singlePositionAff);
          Affine2D_F64 singlePositionAf64I = singlePositionAf64.invert(null);
          Affine2D_F64 multiPositionAf64 = BoofCVImageConverter.convertAff(multiPositionAff);
 
-         int bytesPerPixel = singlePositionImg.getBytesPerPixel();
+         final int bytesPerPixel = singlePositionImg.getBytesPerPixel();
          if (multiPositionImg.getBytesPerPixel() != bytesPerPixel) {
             return null;
          }
@@ -144,8 +139,8 @@ public class AssembleDataAlgo {
          */
          // int widthPixels = (int) (widthUm / basePixelSize) + 1;
          // int heightPixels = (int) (heightUm / basePixelSize) + 1;
-         int widthPixels = spd.getAnyImage().getWidth();
-         int heightPixels = spd.getAnyImage().getHeight();
+         final int widthPixels = spd.getAnyImage().getWidth();
+         final int heightPixels = spd.getAnyImage().getHeight();
          
          // Not sure why, but it looks like the image will end up at the origin
          // rather then the center unless we set this translation to the center
@@ -153,154 +148,96 @@ public class AssembleDataAlgo {
          singlePositionAf64I.tx = widthPixels / 2.0 + xOffset;
          singlePositionAf64I.ty = heightPixels / 2.0 + yOffset;
 
-         //for (DataProvider data : datas) {
-         cb.t(0).c(0).p(0).z(0);
-         ImageGray newImgBoof;
-         ImageGray oldImgBoof;
-         ImageGray tmpImgBoof;
-         if (bytesPerPixel == 1) {
-            newImgBoof = new GrayU8(widthPixels, heightPixels);
-            tmpImgBoof = new GrayU8(widthPixels, heightPixels);
-         } else { // bytesPerPixel == 2
-            newImgBoof = new GrayU16(widthPixels, heightPixels);
-            tmpImgBoof = new GrayU16(widthPixels, heightPixels);
-         }
-         
-         GrayF32 tmpImgNF32 = new GrayF32(
-               mpd.getAnyImage().getWidth(), mpd.getAnyImage().getHeight());
+         // Images are read and written in order on this thread, and transformed
+         // by a pool of workers in between.  At most maxInFlight output images
+         // are being worked on, which bounds the memory used for read-ahead.
+         final int nrWorkers = Runtime.getRuntime().availableProcessors();
+         final int maxInFlight = 2 * nrWorkers;
+         ExecutorService workers = Executors.newFixedThreadPool(nrWorkers, (Runnable r) -> {
+            Thread thread = new Thread(r, "Assemble data worker");
+            thread.setDaemon(true);
+            return thread;
+         });
+         Deque<Future<Image>> inFlight = new ArrayDeque<>(maxInFlight + 1);
+         // tables are shared by the workers, and released with this assembly
+         final TransformLookup.Cache lookups = new TransformLookup.Cache();
 
-         // single position data
          final int spdTLength = test ? 1 : spd.getNextIndex(Coords.T);
          final int spdCLength = test ? 1 : spd.getNextIndex(Coords.C);
-         Metadata.Builder newMetadataB;
-         for (int t = 0; t < spdTLength; t++) {
-            for (int c = 0; c < spdCLength; c++) {
-               cb.t(t).c(c).p(0).z(0);
-               Image img = spd.getImage(cb.p(0).build());
-               if (img != null) {
-                  newMetadataB = img.getMetadata()
-                        .copyBuilderWithNewUUID().pixelSizeUm(basePixelSize);
-                  /*
-                  TODO: use stage position informatoin to correct for inaccuracies
-                  this will currently cause errors in the GImageMiscOps.copy step
-                  double pSize = img.getMetadata().getPixelSizeUm();
-                  double tmpXMinUm = img.getMetadata().getXPositionUm()
-                           - (0.5 * img.getWidth() * pSize);
-                  double tmpYMinUm = img.getMetadata().getYPositionUm()
-                           - (0.5 * img.getHeight() * pSize);
-
-                  int xMinPixel = (int) ((tmpXMinUm - xMinUm) / basePixelSize);
-                  int yMinPixel = (int) ((tmpYMinUm - yMinUm) / basePixelSize);
-                   */
-
-                  if (bytesPerPixel == 1) {
-                     GrayU8 tmp = new GrayU8(img.getWidth(), img.getHeight());
-                     tmp.setData((byte[]) img.getRawPixels());
-                     oldImgBoof = tmp;
-                  } else { // bytesPerPixel == 2
-                     GrayU16 tmp = new GrayU16(img.getWidth(), img.getHeight());
-                     tmp.setData((short[]) img.getRawPixels());
-                     oldImgBoof = tmp;
+         final int mpdTLength = test ? 1 : mpd.getNextIndex(Coords.T);
+         final int mpdCLength = test ? 1 : mpd.getNextIndex(Coords.C);
+         final int mpdPLength = mpd.getNextIndex(Coords.STAGE_POSITION);
+         final int total = spdTLength * spdCLength + mpdTLength * mpdCLength;
+         int written = 0;
+         try {
+            // single position data
+            for (int t = 0; t < spdTLength; t++) {
+               for (int c = 0; c < spdCLength; c++) {
+                  cb.t(t).c(c).p(0).z(0);
+                  final Image img = spd.getImage(cb.p(0).build());
+                  if (img != null) {
+                     final Coords coords = cb.p(targetPosition).c(c).t(t).build();
+                     final Metadata metadata = img.getMetadata().copyBuilderWithNewUUID()
+                           .pixelSizeUm(basePixelSize)
+                           .positionName("Site-" + targetPosition).build();
+                     inFlight.add(workers.submit(() -> studio.data().createImage(
+                           copyInto(img, widthPixels, heightPixels), widthPixels,
+                           heightPixels, bytesPerPixel, 1, coords, metadata)));
                   }
-                  //GImageMiscOps.copy(0, 0, xMinPixel, yMinPixel, img.getWidth(), img.getHeight(),
-                  //        oldImgBoof, newImgBoof);
-                  GImageMiscOps.copy(0, 0, 0, 0, img.getWidth(), img.getHeight(),
-                          oldImgBoof, newImgBoof);
-                  Coords coords = cb.p(targetPosition).c(c).t(t).build();
-                  System.out.println(coords.toString());
-                  newMetadataB.positionName("Site-" + targetPosition);
-                  Image newImage = BoofCVImageConverter.boofCVToMM(newImgBoof,
-                          cb.p(targetPosition).c(c).t(t).build(), newMetadataB.build());
-                  output.putImage(newImage);
-                  GImageMiscOps.fill(newImgBoof, 0.0);
+                  written += writeCompleted(output, inFlight, maxInFlight);
+                  form.setStatus(" " + (int) (100.0 * written / total) + "%");
                }
             }
-            int progress = (int) (50.0 * t / spd.getNextIndex(Coords.T));
-            form.setStatus(" " + progress + "%");
-         }
 
-         // multi position data
-         final int mpdTLength = test ? 1 : mpd.getNextIndex(Coords.T);
-         final int mpdCLenghth = test ? 1 : mpd.getNextIndex(Coords.C);
-         for (int t = 0; t < mpdTLength; t++) {
-            for (int c = 0; c < mpdCLenghth; c++) {
-               newMetadataB = null;
-               for (int p = 0; p < mpd.getNextIndex(Coords.STAGE_POSITION); p++) {
-                  Image img = mpd.getImage(cb.c(c).t(t).p(p).build());
-                  if (img != null) {
-                     newMetadataB = img.getMetadata()
-                           .copyBuilderWithNewUUID().pixelSizeUm(basePixelSize);
-                     if (bytesPerPixel == 1) {
-                        GrayU8 tmp = new GrayU8(img.getWidth(), img.getHeight());
-                        tmp.setData((byte[]) img.getRawPixels());
-                        oldImgBoof = tmp;
-                     } else { // bytesPerPixel == 2
-                        GrayU16 tmp = new GrayU16(img.getWidth(), img.getHeight());
-                        tmp.setData((short[]) img.getRawPixels());
-                        //oldImgBoof = new GrayF32(img.getWidth(), img.getHeight());
-                        ConvertImage.convert(tmp, tmpImgNF32);
-                        oldImgBoof = tmp;
-                     }
-                     double diffX = centerXUm - img.getMetadata().getXPositionUm();
-                     double diffY = centerYUm - img.getMetadata().getYPositionUm();
+            // multi position data
+            for (int t = 0; t < mpdTLength; t++) {
+               for (int c = 0; c < mpdCLength; c++) {
+                  final List<Image> images = new ArrayList<>(mpdPLength);
+                  final List<Affine2D_F64> transforms = new ArrayList<>(mpdPLength);
+                  Metadata.Builder newMetadataB = null;
+                  for (int p = 0; p < mpdPLength; p++) {
+                     Image img = mpd.getImage(cb.c(c).t(t).p(p).build());
+                     if (img != null) {
+                        newMetadataB = img.getMetadata()
+                              .copyBuilderWithNewUUID().pixelSizeUm(basePixelSize);
+                        double diffX = centerXUm - img.getMetadata().getXPositionUm();
+                        double diffY = centerYUm - img.getMetadata().getYPositionUm();
 
-                     Affine2D_F64 aff = multiPositionAf64.copy();
-
-                     aff.tx = -(diffX);
-                     aff.ty = -(diffY);
-                     //centerXUm - img.getMetadata().getXPositionUm(),.0
-                     //centerYUm - img.getMetadata().getYPositionUm());
-
-                     aff = aff.concat(singlePositionAf64I, null);
-                     //
-                     FDistort fd = new FDistort();
-                     fd.input(oldImgBoof);
-                     fd.output(tmpImgBoof);
-                     fd.affine(aff);
-                     fd.interpNN();
-                     fd.border(BorderType.SKIP);
-                     fd.apply();
-                     // GPixelMath.add(newImgBoof, tmpImgBoof, tmp2ImgBoof);
-                     // GConvertImage.convert(tmp2ImgBoof, newImgBoof);
-                     /*
-                     Affine2D_F32 a32 = new Affine2D_F32((float) aff.a11,
-                              (float) aff.a12,
-                              (float) aff.a21,
-                              (float) aff.a22,
-                              (float) aff.tx,
-                              (float) aff.ty );
-                     PixelTransformAffine_F32 model = new PixelTransformAffine_F32(a32);
-                     //PixelTransformHomography_F32 model =
-                        new PixelTransformHomography_F32();
-                     //model.set(pf);
-                     InterpolatePixelS<GrayF32> interp = FactoryInterpolation.bilinearPixelS(
-                             GrayF32.class, BorderType.ZERO);
-                     AssignPixelValue_SB.F32 f32 = new AssignPixelValue_SB.F32();
-                     ImageDistort<GrayF32, GrayF32> distort = new ImageDistortBasic_SB(
-                                    f32, interp);
-                     // ImageDistort<Planar<GrayF32>,Planar<GrayF32>> distort =
-                     //               DistortSupport.createDistortPL(
-                                          GrayF32.class, model, interp, false);
-                     distort.setModel(model);
-                     distort.setRenderAll(false);
-                     distort.apply(tmpImgNF32, tmpImgSF32);
-                     */
+                        Affine2D_F64 aff = multiPositionAf64.copy();
+                        aff.tx = -(diffX);
+                        aff.ty = -(diffY);
+                        aff = aff.concat(singlePositionAf64I, null);
+                        images.add(img);
+                        transforms.add(aff);
+                     }
                   }
-               }
-               if (newMetadataB != null) {
-                  Coords coords = cb.p(targetPosition).c(c + spdCLength).t(t).build();
-                  System.out.println(coords.toString());                  
-                  newMetadataB.positionName("Site-" + targetPosition);
-                  //GrayU16 g = new GrayU16(tmpImgSF32.width, tmpImgSF32.height);
-                  //ConvertImage.convert(tmpImgSF32, g);
-                  Image newImage = BoofCVImageConverter.boofCVToMM(tmpImgBoof, 
-                          coords, newMetadataB.build());
-                  output.putImage(newImage);
-                  GImageMiscOps.fill(tmpImgBoof, 0.0);
+                  if (newMetadataB != null) {
+                     final Coords coords = cb.p(targetPosition).c(c + spdCLength).t(t).build();
+                     final Metadata metadata = newMetadataB
+                           .positionName("Site-" + targetPosition).build();
+                     inFlight.add(workers.submit(() -> {
+                        Object pixels = bytesPerPixel == 1
+                              ? new byte[widthPixels * heightPixels]
+                              : new short[widthPixels * heightPixels];
+                        // later positions are drawn on top of earlier ones
+                        for (int i = 0; i < images.size(); i++) {
+                           Image img = images.get(i);
+                           lookups.get(img.getWidth(), img.getHeight(),
+                                 widthPixels, heightPixels, transforms.get(i))
+                                 .apply(img.getRawPixels(), pixels);
+                        }
+                        return studio.data().createImage(pixels, widthPixels, heightPixels,
+                              bytesPerPixel, 1, coords, metadata);
+                     }));
+                  }
+                  written += writeCompleted(output, inFlight, maxInFlight);
+                  form.setStatus(" " + (int) (100.0 * written / total) + "%");
                }
             }
-            int progress = (int) (50.0 + 50.0 * t / spdTLength);
-            form.setStatus(" " + progress + "%");
+            written += writeCompleted(output, inFlight, 0);
+            form.setStatus(" " + (int) (100.0 * written / total) + "%");
+         } finally {
+            workers.shutdownNow();
          }
 
          return output;
@@ -312,6 +249,43 @@ public class AssembleDataAlgo {
       return null;
    }
 
+   /**
+    * Copies the pixels of the image into the top left corner of a new array
+    * of the given size.
+    */
+   private static Object copyInto(Image img, int width, int height) {
+      Object src = img.getRawPixels();
+      Object dst = src instanceof byte[] ? new byte[width * height] : new short[width * height];
+      int copyWidth = Math.min(width, img.getWidth());
+      for (int y = 0; y < Math.min(height, img.getHeight()); y++) {
+         System.arraycopy(src, y * img.getWidth(), dst, y * width, copyWidth);
+      }
+      return dst;
+   }
+
+   /**
+    * Writes finished images to the output, in the order in which they were
+    * submitted, until no more than maxInFlight are left.
+    *
+    * @return Number of images written
+    */
+   private static int writeCompleted(Datastore output, Deque<Future<Image>> inFlight,
+                                     int maxInFlight) throws IOException {
+      int written = 0;
+      while (inFlight.size() > maxInFlight) {
+         try {
+            output.putImage(inFlight.removeFirst().get());
+         } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while assembling data", ie);
+         } catch (ExecutionException ee) {
+            throw new IOException(ee.getCause());
+         }
+         written++;
+      }
+      return written;
+   }
+
    /**
     * TODO: check if this is this used.
     *
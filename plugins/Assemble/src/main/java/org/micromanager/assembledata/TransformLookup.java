@@ -0,0 +1,163 @@
+package org.micromanager.assembledata;
+
+import georegression.struct.affine.Affine2D_F64;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Affine transform from a source image into a target image, precomputed as
+ * a lookup table that holds, for every target pixel, the index of the source
+ * pixel that ends up there.
+ *
+ * <p>The result is the same as distorting with nearest neighbour
+ * interpolation while skipping target pixels that fall outside of the
+ * source image (FDistort with interpNN() and BorderType.SKIP), but after the
+ * table has been built, applying it is a single pass over the target.  All
+ * images with the same size and transform can use the same table, which a
+ * {@link Cache} takes care of.  When positions are revisited at the same stage
+ * coordinates, every time point reuses the tables of the first.</p>
+ */
+public final class TransformLookup {
+
+   /**
+    * Tables by image sizes and transform, least recently used ones dropped
+    * first once the tables take more than a given number of bytes.  Owned by
+    * a single assembly, so that the tables are released with it.  Safe to use
+    * from multiple threads.
+    */
+   public static final class Cache {
+      // by default, use at most this fraction of the heap for cached tables
+      private static final int HEAP_FRACTION = 8;
+
+      private final long budgetBytes_;
+      // least recently used first
+      private final LinkedHashMap<List<Double>, TransformLookup> tables_ =
+            new LinkedHashMap<>(16, 0.75f, true);
+      private long bytes_ = 0;
+
+      /**
+       * Creates a cache that uses at most an eighth of the heap.
+       */
+      public Cache() {
+         this(Runtime.getRuntime().maxMemory() / HEAP_FRACTION);
+      }
+
+      /**
+       * Creates the cache.
+       *
+       * @param budgetBytes Bytes of tables above which the least recently used
+       *                    tables are dropped.  The newest table is always kept.
+       */
+      public Cache(long budgetBytes) {
+         budgetBytes_ = budgetBytes;
+      }
+
+      /**
+       * Returns the table for the given geometry, building it only if it is
+       * not in the cache.
+       */
+      public TransformLookup get(int srcWidth, int srcHeight, int dstWidth, int dstHeight,
+                                 Affine2D_F64 srcToDst) {
+         List<Double> key = Arrays.asList((double) srcWidth, (double) srcHeight,
+               (double) dstWidth, (double) dstHeight, srcToDst.a11, srcToDst.a12,
+               srcToDst.a21, srcToDst.a22, srcToDst.tx, srcToDst.ty);
+         synchronized (this) {
+            TransformLookup lookup = tables_.get(key);
+            if (lookup != null) {
+               return lookup;
+            }
+         }
+         // build outside of the lock, so that workers can build tables in parallel
+         TransformLookup lookup = new TransformLookup(srcWidth, srcHeight, dstWidth,
+               dstHeight, srcToDst);
+         synchronized (this) {
+            TransformLookup previous = tables_.get(key);
+            if (previous != null) {
+               return previous;
+            }
+            tables_.put(key, lookup);
+            bytes_ += lookup.getSizeInBytes();
+            Iterator<TransformLookup> it = tables_.values().iterator();
+            while (bytes_ > budgetBytes_ && tables_.size() > 1) {
+               bytes_ -= it.next().getSizeInBytes();
+               it.remove();
+            }
+         }
+         return lookup;
+      }
+
+      public synchronized int size() {
+         return tables_.size();
+      }
+
+      public synchronized long getSizeInBytes() {
+         return bytes_;
+      }
+   }
+
+   // index of the source pixel for every target pixel, -1 if outside the source
+   private final int[] sourceIndex_;
+
+   /**
+    * Builds the table.
+    *
+    * @param srcWidth Width of the source image
+    * @param srcHeight Height of the source image
+    * @param dstWidth Width of the target image
+    * @param dstHeight Height of the target image
+    * @param srcToDst Transform from source to target pixel coordinates
+    */
+   public TransformLookup(int srcWidth, int srcHeight, int dstWidth, int dstHeight,
+                          Affine2D_F64 srcToDst) {
+      Affine2D_F64 dstToSrc = srcToDst.invert(null);
+      final double maxX = srcWidth - 1;
+      final double maxY = srcHeight - 1;
+      sourceIndex_ = new int[dstWidth * dstHeight];
+      int i = 0;
+      for (int y = 0; y < dstHeight; y++) {
+         // walk along the row by adding the derivative of the transform in x
+         double sx = dstToSrc.a12 * y + dstToSrc.tx;
+         double sy = dstToSrc.a22 * y + dstToSrc.ty;
+         for (int x = 0; x < dstWidth; x++, i++, sx += dstToSrc.a11, sy += dstToSrc.a21) {
+            if (sx >= 0 && sx <= maxX && sy >= 0 && sy <= maxY) {
+               sourceIndex_[i] = (int) sy * srcWidth + (int) sx;
+            } else {
+               sourceIndex_[i] = -1;
+            }
+         }
+      }
+   }
+
+   public long getSizeInBytes() {
+      return 4L * sourceIndex_.length;
+   }
+
+   /**
+    * Copies the transformed source into the target.  Target pixels that do
+    * not map into the source are left untouched.
+    *
+    * @param src Source pixels, byte[] or short[]
+    * @param dst Target pixels, of the same type as the source
+    */
+   public void apply(Object src, Object dst) {
+      if (src instanceof byte[]) {
+         byte[] s = (byte[]) src;
+         byte[] d = (byte[]) dst;
+         for (int i = 0; i < sourceIndex_.length; i++) {
+            if (sourceIndex_[i] >= 0) {
+               d[i] = s[sourceIndex_[i]];
+            }
+         }
+      } else {
+         short[] s = (short[]) src;
+         short[] d = (short[]) dst;
+         for (int i = 0; i < sourceIndex_.length; i++) {
+            if (sourceIndex_[i] >= 0) {
+               d[i] = s[sourceIndex_[i]];
+            }
+         }
+      }
+   }
+}
@@ -0,0 +1,95 @@
+package org.micromanager.assembledata;
+
+import georegression.struct.affine.Affine2D_F64;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class TransformLookupTest {
+
+   private static final int SIZE = 16;
+   // bytes of one table for SIZE x SIZE images
+   private static final long TABLE_BYTES = 4L * SIZE * SIZE;
+
+   private static Affine2D_F64 shift(double tx, double ty) {
+      return new Affine2D_F64(1.0, 0.0, 0.0, 1.0, tx, ty);
+   }
+
+   private static boolean nearInteger(double value) {
+      return Math.abs(value - Math.rint(value)) < 1e-9;
+   }
+
+   @Test
+   public void mapsLikeNearestNeighbourWithSkippedBorder() {
+      // scale by 1.5, rotate by 30 degrees and shift
+      final double cos = Math.cos(Math.PI / 6);
+      final double sin = Math.sin(Math.PI / 6);
+      Affine2D_F64 srcToDst = new Affine2D_F64(1.5 * cos, -1.5 * sin, 1.5 * sin, 1.5 * cos,
+            7.0, -3.0);
+      final int dstWidth = 30;
+      final int dstHeight = 25;
+      short[] src = new short[SIZE * SIZE];
+      for (int i = 0; i < src.length; i++) {
+         src[i] = (short) (i + 1);
+      }
+      short[] dst = new short[dstWidth * dstHeight];
+      new TransformLookup(SIZE, SIZE, dstWidth, dstHeight, srcToDst).apply(src, dst);
+
+      Affine2D_F64 dstToSrc = srcToDst.invert(null);
+      for (int y = 0; y < dstHeight; y++) {
+         for (int x = 0; x < dstWidth; x++) {
+            final double sx = dstToSrc.a11 * x + dstToSrc.a12 * y + dstToSrc.tx;
+            final double sy = dstToSrc.a21 * x + dstToSrc.a22 * y + dstToSrc.ty;
+            // the table adds up the steps along a row, which can round
+            // differently when a pixel maps exactly onto a source pixel edge
+            if (nearInteger(sx) || nearInteger(sy)) {
+               continue;
+            }
+            short expected = 0;
+            if (sx >= 0 && sx <= SIZE - 1 && sy >= 0 && sy <= SIZE - 1) {
+               expected = src[(int) sy * SIZE + (int) sx];
+            }
+            assertEquals(expected, dst[y * dstWidth + x]);
+         }
+      }
+   }
+
+   @Test
+   public void reusesTablesForTheSameGeometry() {
+      TransformLookup.Cache cache = new TransformLookup.Cache(10 * TABLE_BYTES);
+      TransformLookup first = cache.get(SIZE, SIZE, SIZE, SIZE, shift(1.0, 2.0));
+      assertSame(first, cache.get(SIZE, SIZE, SIZE, SIZE, shift(1.0, 2.0)));
+      assertNotSame(first, cache.get(SIZE, SIZE, SIZE, SIZE, shift(2.0, 1.0)));
+      assertNotSame(first, cache.get(SIZE, SIZE, 2 * SIZE, SIZE, shift(1.0, 2.0)));
+      assertEquals(3, cache.size());
+      assertEquals(first.getSizeInBytes() * 4, cache.getSizeInBytes());
+   }
+
+   @Test
+   public void dropsLeastRecentlyUsedTables() {
+      TransformLookup.Cache cache = new TransformLookup.Cache(3 * TABLE_BYTES);
+      TransformLookup a = cache.get(SIZE, SIZE, SIZE, SIZE, shift(0.0, 0.0));
+      TransformLookup b = cache.get(SIZE, SIZE, SIZE, SIZE, shift(1.0, 0.0));
+      TransformLookup c = cache.get(SIZE, SIZE, SIZE, SIZE, shift(2.0, 0.0));
+      // using a makes b the least recently used table
+      assertSame(a, cache.get(SIZE, SIZE, SIZE, SIZE, shift(0.0, 0.0)));
+      TransformLookup d = cache.get(SIZE, SIZE, SIZE, SIZE, shift(3.0, 0.0));
+      assertEquals(3, cache.size());
+      assertEquals(3 * TABLE_BYTES, cache.getSizeInBytes());
+      assertSame(a, cache.get(SIZE, SIZE, SIZE, SIZE, shift(0.0, 0.0)));
+      assertSame(c, cache.get(SIZE, SIZE, SIZE, SIZE, shift(2.0, 0.0)));
+      assertSame(d, cache.get(SIZE, SIZE, SIZE, SIZE, shift(3.0, 0.0)));
+      // b was dropped, and is built again, which in turn drops a
+      assertNotSame(b, cache.get(SIZE, SIZE, SIZE, SIZE, shift(1.0, 0.0)));
+      assertNotSame(a, cache.get(SIZE, SIZE, SIZE, SIZE, shift(0.0, 0.0)));
+      assertEquals(3, cache.size());
+   }
+
+   @Test
+   public void keepsNewestTableWhenBudgetIsTooSmall() {
+      TransformLookup.Cache cache = new TransformLookup.Cache(TABLE_BYTES / 2);
+      cache.get(SIZE, SIZE, SIZE, SIZE, shift(0.0, 0.0));
+      TransformLookup newest = cache.get(SIZE, SIZE, SIZE, SIZE, shift(1.0, 0.0));
+      assertEquals(1, cache.size());
+      assertSame(newest, cache.get(SIZE, SIZE, SIZE, SIZE, shift(1.0, 0.0)));
+   }
+}
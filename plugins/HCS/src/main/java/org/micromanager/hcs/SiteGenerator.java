@@ -57,12 +57,16 @@ public class SiteGenerator extends JFrame implements ParentPlateGUI {
    private static final String SNAKE_ORDER = "Snake";
    private static final String TYPEWRITER_ORDER = "Typewriter";
    private static final String CASCADE_ORDER = "Cascade";
+   private static final String SHORTEST_PATH_ORDER = "Shortest Path";
    
    private static final String ZPLANESTAGE = "Z-Plane stage: ";
 
    private final JTextField spacingFieldX_;
    private final JTextField spacingFieldY_;
    private final JTextField overlapField_;
+   private final JTextField stageSpeedField_;
+   private final JTextField stageAccelerationField_;
+   private final JTextField stageSettleField_;
    private final JTextField columnsField_;
    private final JTextField rowsField_;
    private final JComboBox<String> plateIDCombo_;
@@ -90,6 +94,12 @@ public class SiteGenerator extends JFrame implements ParentPlateGUI {
    private static final String SITE_OFFSET     = "site_offset"; // in um
    private static final String SPACING_MODE    = "spacing_mode";
    private static final String LIST_OVERWRITE  = "list_overwrite";
+   private static final String STAGE_SPEED     = "stage_speed"; // in um/s
+   private static final String STAGE_ACCELERATION = "stage_acceleration"; // in um/s^2
+   private static final String STAGE_SETTLE    = "stage_settle"; // in ms
+   private static final double DEFAULT_STAGE_SPEED = 5000.0;
+   private static final double DEFAULT_STAGE_ACCELERATION = 50000.0;
+   private static final double DEFAULT_STAGE_SETTLE = 50.0;
 
    private final JLabel statusLabel_;
    private final JCheckBox chckbxThreePt_;
@@ -320,11 +330,34 @@ public class SiteGenerator extends JFrame implements ParentPlateGUI {
       sidebar.add(visitOrderInWell_, "growx");
 
       visitOrderBetweenWells_ = new JComboBox<>(
-            new String[] {SNAKE_ORDER, TYPEWRITER_ORDER, CASCADE_ORDER});
-      visitOrderBetweenWells_.addActionListener((ActionEvent e) -> regenerate());
+            new String[] {SNAKE_ORDER, TYPEWRITER_ORDER, CASCADE_ORDER, SHORTEST_PATH_ORDER});
       sidebar.add(new JLabel("Between wells:"), "split 2");
       sidebar.add(visitOrderBetweenWells_, "growx");
 
+      // stage model used to estimate travel times for the shortest path
+      final JPanel stagePanel = new JPanel(new MigLayout("flowx, gap 0, insets 0",
+               "0[]0[]0", "0[]0[]0[]0"));
+      stageSpeedField_ = new JTextField(5);
+      stageSpeedField_.setHorizontalAlignment(SwingConstants.RIGHT);
+      stagePanel.add(new JLabel("Stage speed [\u00b5m/s]"), "gapright 5");
+      stagePanel.add(stageSpeedField_, "wrap");
+      stageAccelerationField_ = new JTextField(5);
+      stageAccelerationField_.setHorizontalAlignment(SwingConstants.RIGHT);
+      stagePanel.add(new JLabel("Acceleration [\u00b5m/s\u00b2]"), "gapright 5");
+      stagePanel.add(stageAccelerationField_, "wrap");
+      stageSettleField_ = new JTextField(5);
+      stageSettleField_.setHorizontalAlignment(SwingConstants.RIGHT);
+      stagePanel.add(new JLabel("Settle time [ms]"), "gapright 5");
+      stagePanel.add(stageSettleField_);
+      // Take zero space when invisible.
+      sidebar.add(stagePanel, "hidemode 2");
+      stagePanel.setVisible(false);
+      visitOrderBetweenWells_.addActionListener((ActionEvent e) -> {
+         stagePanel.setVisible(SHORTEST_PATH_ORDER.equals(
+               visitOrderBetweenWells_.getSelectedItem()));
+         regenerate();
+      });
+
       final JButton refreshButton = new JButton("Refresh",
             IconLoader.getIcon("/org/micromanager/icons/arrow_refresh.png"));
       refreshButton.addActionListener((final ActionEvent e) -> regenerate());
@@ -430,6 +463,10 @@ public class SiteGenerator extends JFrame implements ParentPlateGUI {
       }
       settings.putDoubleList(SITE_OFFSET, Arrays.asList(offset));
       settings.putBoolean(LIST_OVERWRITE, overWriteMMList_.isSelected());
+      settings.putDouble(STAGE_SPEED, stageValue(stageSpeedField_, DEFAULT_STAGE_SPEED));
+      settings.putDouble(STAGE_ACCELERATION,
+            stageValue(stageAccelerationField_, DEFAULT_STAGE_ACCELERATION));
+      settings.putDouble(STAGE_SETTLE, stageValue(stageSettleField_, DEFAULT_STAGE_SETTLE));
    }
 
    protected final void loadSettings() {
@@ -450,6 +487,12 @@ public class SiteGenerator extends JFrame implements ParentPlateGUI {
       moveStage_.setEnabled(isCalibratedXY_);
       overWriteMMList_.setSelected(settings.getBoolean(LIST_OVERWRITE, true));
       appendToMMList_.setSelected(!settings.getBoolean(LIST_OVERWRITE, true));
+      stageSpeedField_.setText(NumberUtils.doubleToDisplayString(
+            settings.getDouble(STAGE_SPEED, DEFAULT_STAGE_SPEED)));
+      stageAccelerationField_.setText(NumberUtils.doubleToDisplayString(
+            settings.getDouble(STAGE_ACCELERATION, DEFAULT_STAGE_ACCELERATION)));
+      stageSettleField_.setText(NumberUtils.doubleToDisplayString(
+            settings.getDouble(STAGE_SETTLE, DEFAULT_STAGE_SETTLE)));
    }
 
    private void setPositionList(String betweenWellOrder, boolean replaceList) {
@@ -471,6 +514,8 @@ public class SiteGenerator extends JFrame implements ParentPlateGUI {
                   return l1.getColumn() - l2.getColumn();
                }
             });
+         } else if (betweenWellOrder.equals(SHORTEST_PATH_ORDER)) {
+            wpl = planShortestPath(wpl);
          }
       }
 
@@ -531,6 +576,49 @@ public class SiteGenerator extends JFrame implements ParentPlateGUI {
 
    }
 
+   /**
+    * Reorders wells and sites to minimize stage travel, and reports the
+    * estimated travel time compared to the snake order.
+    *
+    * @param wpl Selected wells, in snake order.
+    * @return Wells in optimized order.
+    */
+   private List<WellPositionList> planShortestPath(List<WellPositionList> wpl) {
+      StagePathPlanner planner;
+      try {
+         planner = new StagePathPlanner(new StagePathPlanner.StageModel(
+               stageValue(stageSpeedField_, DEFAULT_STAGE_SPEED),
+               stageValue(stageAccelerationField_, DEFAULT_STAGE_ACCELERATION),
+               stageValue(stageSettleField_, DEFAULT_STAGE_SETTLE)));
+      } catch (IllegalArgumentException iae) {
+         studio_.logs().showError(iae.getMessage());
+         return wpl;
+      }
+      double before = planner.travelTime(wpl);
+      List<WellPositionList> planned = planner.plan(wpl);
+      double after = planner.travelTime(planned);
+      String msg = "Estimated stage travel time per plate pass: "
+            + TextUtils.FMT2.format(after) + " s (snake order: "
+            + TextUtils.FMT2.format(before) + " s)";
+      studio_.logs().logMessage("HCS: " + msg);
+      studio_.alerts().postAlert("HCS Site Generator", SiteGenerator.class, msg);
+      return planned;
+   }
+
+   /**
+    * Reads one of the stage model fields, and resets it to the default
+    * value when it does not contain a number.
+    */
+   private double stageValue(JTextField field, double defaultValue) {
+      try {
+         return NumberUtils.displayStringToDouble(field.getText());
+      } catch (java.text.ParseException nfe) {
+         field.setText(NumberUtils.doubleToDisplayString(defaultValue));
+         studio_.logs().logError("NumberFormat error in stage model of HCS generator");
+         return defaultValue;
+      }
+   }
+
    private void updateXySpacing() {
       String mode = (String) spacingMode_.getSelectedItem();
       if (mode.equals(VIEW_SPACING)) {
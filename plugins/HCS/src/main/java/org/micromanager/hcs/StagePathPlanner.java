@@ -0,0 +1,281 @@
+package org.micromanager.hcs;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.micromanager.MultiStagePosition;
+import org.micromanager.PositionList;
+
+/**
+ * Orders wells and the sites within them so that the XY stage spends as
+ * little time as possible travelling across the plate.
+ *
+ * <p>Wells are ordered by the centers of their sites, and the sites in each
+ * well are ordered starting from the site closest to the last site of the
+ * previous well.  Both use a nearest neighbour path that is improved with
+ * 2-opt moves.  Distances are expressed as travel times of the stage model,
+ * so that slow axes and settling times are taken into account.  The result
+ * is never slower than the order the wells and sites were given in.</p>
+ */
+public class StagePathPlanner {
+
+   // stop improving the path after this many passes over all pairs of moves
+   private static final int MAX_TWO_OPT_PASSES = 50;
+
+   /**
+    * Estimates how long the XY stage takes to move between two positions.
+    * Both axes move at the same time, each accelerating up to the top speed
+    * and decelerating again, after which the stage settles.
+    */
+   public static class StageModel {
+      private final double speedUmPerS_;
+      private final double accelerationUmPerS2_;
+      private final double settleS_;
+
+      /**
+       * Creates the stage model.
+       *
+       * @param speedUmPerS Maximum speed of each axis in microns per second.
+       * @param accelerationUmPerS2 Acceleration of each axis in microns per second squared.
+       * @param settleMs Time the stage needs to settle after each move in milliseconds.
+       */
+      public StageModel(double speedUmPerS, double accelerationUmPerS2, double settleMs) {
+         if (speedUmPerS <= 0.0 || accelerationUmPerS2 <= 0.0 || settleMs < 0.0) {
+            throw new IllegalArgumentException("Stage speed and acceleration should be "
+                  + "positive and settle time should not be negative");
+         }
+         speedUmPerS_ = speedUmPerS;
+         accelerationUmPerS2_ = accelerationUmPerS2;
+         settleS_ = settleMs / 1000.0;
+      }
+
+      /**
+       * Returns the time in seconds to move from (x0, y0) to (x1, y1).
+       */
+      public double moveTime(double x0, double y0, double x1, double y1) {
+         double dx = Math.abs(x1 - x0);
+         double dy = Math.abs(y1 - y0);
+         if (dx == 0.0 && dy == 0.0) {
+            return 0.0;
+         }
+         return Math.max(axisTime(dx), axisTime(dy)) + settleS_;
+      }
+
+      private double axisTime(double distance) {
+         // trapezoidal profile, or triangular when top speed is never reached
+         if (distance * accelerationUmPerS2_ <= speedUmPerS_ * speedUmPerS_) {
+            return 2.0 * Math.sqrt(distance / accelerationUmPerS2_);
+         }
+         return distance / speedUmPerS_ + speedUmPerS_ / accelerationUmPerS2_;
+      }
+   }
+
+   private final StageModel model_;
+
+   public StagePathPlanner(StageModel model) {
+      model_ = model;
+   }
+
+   /**
+    * Estimates the time the stage spends travelling when visiting all sites
+    * of the wells in the given order.
+    *
+    * @param wells Wells with the absolute positions of their sites.
+    * @return Travel time in seconds.
+    */
+   public double travelTime(List<WellPositionList> wells) {
+      double time = 0.0;
+      MultiStagePosition previous = null;
+      for (WellPositionList well : wells) {
+         PositionList sites = well.getSitePositions();
+         for (int i = 0; i < sites.getNumberOfPositions(); i++) {
+            MultiStagePosition msp = sites.getPosition(i);
+            if (previous != null) {
+               time += model_.moveTime(previous.getX(), previous.getY(),
+                     msp.getX(), msp.getY());
+            }
+            previous = msp;
+         }
+      }
+      return time;
+   }
+
+   /**
+    * Orders the wells, and the sites within each well, to minimize stage
+    * travel.  The path starts at the first site of the first well in the
+    * given list.  The input is not changed.  When the planned order would
+    * not be faster, the wells are returned in the given order.
+    *
+    * @param wells Wells with the absolute positions of their sites.
+    * @return New well position lists in the optimized order.
+    */
+   public List<WellPositionList> plan(List<WellPositionList> wells) {
+      List<WellPositionList> nonEmpty = new ArrayList<>(wells.size());
+      for (WellPositionList well : wells) {
+         if (well.getSitePositions().getNumberOfPositions() > 0) {
+            nonEmpty.add(well);
+         }
+      }
+      List<WellPositionList> result = new ArrayList<>(wells.size());
+      if (nonEmpty.isEmpty()) {
+         result.addAll(wells);
+         return result;
+      }
+
+      double[] xs = new double[nonEmpty.size()];
+      double[] ys = new double[nonEmpty.size()];
+      for (int i = 0; i < nonEmpty.size(); i++) {
+         PositionList sites = nonEmpty.get(i).getSitePositions();
+         for (int j = 0; j < sites.getNumberOfPositions(); j++) {
+            xs[i] += sites.getPosition(j).getX();
+            ys[i] += sites.getPosition(j).getY();
+         }
+         xs[i] /= sites.getNumberOfPositions();
+         ys[i] /= sites.getNumberOfPositions();
+      }
+      int[] wellOrder = order(xs, ys, 0);
+
+      MultiStagePosition first = nonEmpty.get(0).getSitePositions().getPosition(0);
+      double lastX = first.getX();
+      double lastY = first.getY();
+      for (int w : wellOrder) {
+         WellPositionList well = nonEmpty.get(w);
+         PositionList sites = well.getSitePositions();
+         int n = sites.getNumberOfPositions();
+         // the path through the well starts next to where the stage is
+         double[] siteXs = new double[n + 1];
+         double[] siteYs = new double[n + 1];
+         siteXs[0] = lastX;
+         siteYs[0] = lastY;
+         for (int j = 0; j < n; j++) {
+            siteXs[j + 1] = sites.getPosition(j).getX();
+            siteYs[j + 1] = sites.getPosition(j).getY();
+         }
+         int[] siteOrder = order(siteXs, siteYs, 0);
+         PositionList ordered = new PositionList();
+         for (int k = 1; k <= n; k++) {
+            ordered.addPosition(sites.getPosition(siteOrder[k] - 1));
+         }
+         MultiStagePosition last = ordered.getPosition(n - 1);
+         lastX = last.getX();
+         lastY = last.getY();
+
+         WellPositionList copy = new WellPositionList();
+         copy.setLabel(well.getLabel());
+         copy.setGridCoordinates(well.getRow(), well.getColumn());
+         copy.setSitePositions(ordered);
+         result.add(copy);
+      }
+      // wells without sites do not cost any travel, keep them at the end
+      for (WellPositionList well : wells) {
+         if (well.getSitePositions().getNumberOfPositions() == 0) {
+            result.add(well);
+         }
+      }
+      // wells are ordered by their centers, which can misjudge the real path
+      if (travelTime(result) > travelTime(wells)) {
+         return new ArrayList<>(wells);
+      }
+      return result;
+   }
+
+   /**
+    * Finds a short open path through all points that starts at the given
+    * point.  Both the nearest neighbour path and the given order (with start
+    * moved to the front) are improved with 2-opt, and the faster result is
+    * used, so that the path is never slower than the given order.
+    *
+    * @return Indices of the points in visiting order, starting with start.
+    */
+   int[] order(double[] xs, double[] ys, int start) {
+      int[] nearest = twoOpt(xs, ys, nearestNeighbour(xs, ys, start));
+      int[] given = new int[xs.length];
+      for (int i = 0, j = 1; i < given.length; i++) {
+         if (i == start) {
+            given[0] = i;
+         } else {
+            given[j++] = i;
+         }
+      }
+      given = twoOpt(xs, ys, given);
+      return pathTime(xs, ys, given) < pathTime(xs, ys, nearest) ? given : nearest;
+   }
+
+   /**
+    * Path that always moves on to the closest point not visited yet.
+    */
+   private int[] nearestNeighbour(double[] xs, double[] ys, int start) {
+      final int n = xs.length;
+      int[] path = new int[n];
+      if (n == 0) {
+         return path;
+      }
+      boolean[] visited = new boolean[n];
+      path[0] = start;
+      visited[start] = true;
+      for (int i = 1; i < n; i++) {
+         int previous = path[i - 1];
+         int best = -1;
+         double bestTime = Double.MAX_VALUE;
+         for (int j = 0; j < n; j++) {
+            if (!visited[j]) {
+               double time = cost(xs, ys, previous, j);
+               if (time < bestTime) {
+                  bestTime = time;
+                  best = j;
+               }
+            }
+         }
+         path[i] = best;
+         visited[best] = true;
+      }
+      return path;
+   }
+
+   /**
+    * Improves the path in place with 2-opt moves until no move helps.
+    */
+   private int[] twoOpt(double[] xs, double[] ys, int[] path) {
+      final int n = path.length;
+      // Reversing path[i..k] replaces moves (i-1 -> i) and (k -> k+1) with
+      // (i-1 -> k) and (i -> k+1).  The start stays in place; the end of the
+      // path is free, so there is no move after the last point.
+      boolean improved = true;
+      for (int pass = 0; improved && pass < MAX_TWO_OPT_PASSES; pass++) {
+         improved = false;
+         for (int i = 1; i < n - 1; i++) {
+            for (int k = i + 1; k < n; k++) {
+               double before = cost(xs, ys, path[i - 1], path[i]);
+               double after = cost(xs, ys, path[i - 1], path[k]);
+               if (k < n - 1) {
+                  before += cost(xs, ys, path[k], path[k + 1]);
+                  after += cost(xs, ys, path[i], path[k + 1]);
+               }
+               if (after < before - 1e-9) {
+                  for (int a = i, b = k; a < b; a++, b--) {
+                     int tmp = path[a];
+                     path[a] = path[b];
+                     path[b] = tmp;
+                  }
+                  improved = true;
+               }
+            }
+         }
+      }
+      return path;
+   }
+
+   /**
+    * Returns the time in seconds to visit the points in the given order.
+    */
+   double pathTime(double[] xs, double[] ys, int[] path) {
+      double time = 0.0;
+      for (int i = 1; i < path.length; i++) {
+         time += cost(xs, ys, path[i - 1], path[i]);
+      }
+      return time;
+   }
+
+   private double cost(double[] xs, double[] ys, int from, int to) {
+      return model_.moveTime(xs[from], ys[from], xs[to], ys[to]);
+   }
+}
@@ -0,0 +1,112 @@
+package org.micromanager.hcs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.micromanager.MultiStagePosition;
+import org.micromanager.PositionList;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class StagePathPlannerTest {
+
+   private static final StagePathPlanner PLANNER = new StagePathPlanner(
+         new StagePathPlanner.StageModel(5000.0, 50000.0, 50.0));
+
+   private static int[] inputOrder(int n) {
+      int[] path = new int[n];
+      for (int i = 0; i < n; i++) {
+         path[i] = i;
+      }
+      return path;
+   }
+
+   private static void assertPermutation(int n, int[] path) {
+      int[] sorted = path.clone();
+      Arrays.sort(sorted);
+      assertArrayEquals(inputOrder(n), sorted);
+   }
+
+   @Test
+   public void orderIsNeverSlowerThanInputOrder() {
+      Random random = new Random(5);
+      for (int trial = 0; trial < 300; trial++) {
+         final int n = 1 + random.nextInt(30);
+         double[] xs = new double[n];
+         double[] ys = new double[n];
+         // alternate random clouds with snake-ordered grids, for which the
+         // input order is already hard to beat
+         final int columns = 1 + random.nextInt(6);
+         for (int i = 0; i < n; i++) {
+            if (trial % 2 == 0) {
+               xs[i] = 100000.0 * random.nextDouble();
+               ys[i] = 70000.0 * random.nextDouble();
+            } else {
+               final int row = i / columns;
+               final int column = row % 2 == 0 ? i % columns : columns - 1 - i % columns;
+               xs[i] = 9000.0 * column;
+               ys[i] = 9000.0 * row;
+            }
+         }
+         int[] path = PLANNER.order(xs, ys, 0);
+         assertEquals(0, path[0]);
+         assertPermutation(n, path);
+         assertTrue(PLANNER.pathTime(xs, ys, path)
+               <= PLANNER.pathTime(xs, ys, inputOrder(n)) + 1e-9);
+      }
+   }
+
+   @Test
+   public void orderFindsStraightLine() {
+      // points on a line, given in scrambled order
+      double[] xs = {0.0, 4000.0, 1000.0, 3000.0, 2000.0};
+      double[] ys = new double[xs.length];
+      int[] path = PLANNER.order(xs, ys, 0);
+      assertArrayEquals(new int[] {0, 2, 4, 3, 1}, path);
+   }
+
+   private static WellPositionList well(int row, int column, Random random) {
+      WellPositionList well = new WellPositionList();
+      well.setLabel("" + (char) ('A' + row) + (column + 1));
+      well.setGridCoordinates(row, column);
+      PositionList sites = new PositionList();
+      final int nrSites = random.nextInt(5);
+      for (int s = 0; s < nrSites; s++) {
+         sites.addPosition(new MultiStagePosition("XY", 9000.0 * column
+               + 3000.0 * random.nextDouble(), 9000.0 * row + 3000.0 * random.nextDouble(),
+               "Z", 0.0));
+      }
+      well.setSitePositions(sites);
+      return well;
+   }
+
+   @Test
+   public void planIsNeverSlowerThanInputOrder() {
+      Random random = new Random(8);
+      for (int trial = 0; trial < 100; trial++) {
+         List<WellPositionList> wells = new ArrayList<>();
+         Set<MultiStagePosition> sites = new HashSet<>();
+         final int nrWells = 1 + random.nextInt(12);
+         for (int w = 0; w < nrWells; w++) {
+            WellPositionList well = well(random.nextInt(8), random.nextInt(12), random);
+            wells.add(well);
+            for (int s = 0; s < well.getSitePositions().getNumberOfPositions(); s++) {
+               sites.add(well.getSitePositions().getPosition(s));
+            }
+         }
+         List<WellPositionList> planned = PLANNER.plan(wells);
+         assertEquals(wells.size(), planned.size());
+         Set<MultiStagePosition> plannedSites = new HashSet<>();
+         for (WellPositionList well : planned) {
+            for (int s = 0; s < well.getSitePositions().getNumberOfPositions(); s++) {
+               assertTrue(plannedSites.add(well.getSitePositions().getPosition(s)));
+            }
+         }
+         assertEquals(sites, plannedSites);
+         assertTrue(PLANNER.travelTime(planned) <= PLANNER.travelTime(wells) + 1e-9);
+      }
+   }
+}
@@ -186,6 +186,7 @@ public class MagellanGUIAcquisition extends
       // Always do positions because need the current stage coord?
       createXYPositions();
       getPixelStageTranslator().setPositions(positions_);
+      precomputeSurfaceZRanges();
 
       acqFunctions.add(AcqEventModules.positions(positions_));
 
@@ -472,6 +473,31 @@ public class MagellanGUIAcquisition extends
       return ((MagellanGUIAcquisitionSettings) settings_).spaceMode_;
    }
 
+   /**
+    * Evaluate the surfaces that bound the z stacks over all tiles in parallel,
+    * so that deciding which slices to acquire at each tile is a lookup.
+    */
+   private void precomputeSurfaceZRanges() {
+      MagellanGUIAcquisitionSettings settings = (MagellanGUIAcquisitionSettings) settings_;
+      List<Point2D.Double[]> corners = new ArrayList<Point2D.Double[]>();
+      for (XYStagePosition pos : positions_) {
+         corners.add(pos.getDisplayedTileCorners());
+      }
+      try {
+         if (settings.spaceMode_ == MagellanGUIAcquisitionSettings.SURFACE_FIXED_DISTANCE_Z_STACK) {
+            //extrapolate only if different surface used for XY positions than footprint
+            settings.fixedSurface_.precomputeZRanges(corners,
+                  settings.fixedSurface_ != settings.xyFootprint_);
+         } else if (settings.spaceMode_
+               == MagellanGUIAcquisitionSettings.VOLUME_BETWEEN_SURFACES_Z_STACK) {
+            settings.topSurface_.precomputeZRanges(corners, false);
+            settings.bottomSurface_.precomputeZRanges(corners, false);
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
    private void createXYPositions() {
       try {
          if (((MagellanGUIAcquisitionSettings) settings_).xyFootprint_ == null) {
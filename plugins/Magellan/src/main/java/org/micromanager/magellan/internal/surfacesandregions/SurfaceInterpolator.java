@@ -26,15 +26,23 @@ import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
 import org.apache.commons.math3.geometry.euclidean.twod.Euclidean2D;
 import org.apache.commons.math3.geometry.euclidean.twod.Vector2D;
 import org.apache.commons.math3.geometry.euclidean.twod.hull.ConvexHull2D;
 import org.apache.commons.math3.geometry.euclidean.twod.hull.MonotoneChain;
 import org.apache.commons.math3.geometry.partitioning.Region;
+import org.apache.commons.math3.geometry.partitioning.RegionFactory;
 import org.micromanager.acqj.internal.AffineTransformUtils;
 import org.micromanager.acqj.util.xytiling.XYStagePosition;
 import org.micromanager.magellan.internal.gui.GUI;
@@ -49,8 +57,10 @@ public abstract class SurfaceInterpolator extends XYFootprint {
 
    public static final int NUM_XY_TEST_POINTS = 8;
 
-   private static final int ABOVE_SURFACE = 0;
-   private static final int BELOW_SURFACE = 1;
+   static final int ABOVE_SURFACE = 0;
+   static final int BELOW_SURFACE = 1;
+   //number of tiles handed to a fork-join worker at a time during planning
+   private static final int TILES_PER_CHUNK = 64;
 
    //surface coordinates are neccessarily associated with the coordinate space of particular
    // xy and z devices
@@ -73,6 +83,12 @@ public abstract class SurfaceInterpolator extends XYFootprint {
    protected volatile int minPixelsPerInterpPoint_ = 1;
    private ExecutorService executor_;
    protected volatile SingleResolutionInterpolation currentInterpolation_;
+   //spatial index of points_ for extrapolation, rebuilt whenever the points change
+   protected volatile SurfacePointIndex pointIndex_ =
+         new SurfacePointIndex(new ArrayList<Point3d>());
+   //range of surface z values over each tile, valid as long as interpolation and points are
+   private final ConcurrentHashMap<TileKey, ZRange> zRangeCache_ =
+         new ConcurrentHashMap<TileKey, ZRange>();
    private volatile Future currentInterpolationTask_;
    //Objects for wait/notify sync of calcualtions
    protected Object xyPositionLock_ = new Object();
@@ -250,26 +266,50 @@ public abstract class SurfaceInterpolator extends XYFootprint {
                + "Configuration Wizard");
          throw new RuntimeException();
       }
-      //First check position corners before going into a more detailed set of test points
-      for (Point2D.Double point : positionCorners) {
-         float interpVal;
-         if (!surface.getCurentInterpolation().isInterpDefined(point.x, point.y)) {
-            if (extrapolate) {
-               interpVal = surface.getExtrapolatedValue(point.x, point.y);
-            } else {
-               continue;
-            }
-         } else {
-            interpVal = surface.getCurentInterpolation().getInterpolatedValue(point.x, point.y);
-         }
-         if ((towardsSampleIsPositive && mode == ABOVE_SURFACE && zPos >= interpVal)
-                 || (towardsSampleIsPositive && mode == BELOW_SURFACE && zPos <= interpVal)
-                 || (!towardsSampleIsPositive && mode == ABOVE_SURFACE && zPos <= interpVal)
-                 || (!towardsSampleIsPositive && mode == BELOW_SURFACE) && zPos >= interpVal) {
-            return false;
+      return surface.getZRange(positionCorners, extrapolate)
+            .isBeyond(zPos, mode, towardsSampleIsPositive);
+   }
+
+   /**
+    * Calculate, in parallel, the range of surface z values over each of the
+    * given XY positions, so that later calls to isPositionCompletelyAboveSurface
+    * and isPositionCompletelyBelowSurface for these positions only need a lookup.
+    *
+    * @param positionCorners corners of each position
+    * @param extrapolate whether to extrapolate where the surface is not defined
+    * @throws InterruptedException
+    */
+   public void precomputeZRanges(final List<Point2D.Double[]> positionCorners,
+           final boolean extrapolate) throws InterruptedException {
+      forEachInParallel(positionCorners.size(), (start, end, cancelled) -> {
+         for (int i = start; i < end && !cancelled.get(); i++) {
+            getZRange(positionCorners.get(i), extrapolate);
          }
+      });
+   }
+
+   private ZRange getZRange(Point2D.Double[] positionCorners, boolean extrapolate) {
+      SingleResolutionInterpolation interp = getCurentInterpolation();
+      SurfacePointIndex index = pointIndex_;
+      TileKey key = new TileKey(positionCorners, extrapolate);
+      ZRange range = zRangeCache_.get(key);
+      if (range != null && range.interp_ == interp && range.index_ == index) {
+         return range;
       }
-      // then check a grid of points spanning entire position
+      double[][] testPoints = getTestPoints(positionCorners);
+      range = ZRange.of(interp, index,
+            getValues(interp, testPoints[0], testPoints[1], extrapolate));
+      zRangeCache_.put(key, range);
+      return range;
+   }
+
+   /**
+    * The position corners followed by a grid of points spanning the entire
+    * position, at which the surface is tested.
+    *
+    * @return x coordinates and y coordinates of the test points
+    */
+   private static double[][] getTestPoints(Point2D.Double[] positionCorners) {
       // 9x9 square of points to check for each position
       // square is aligned with axes in pixel space, so convert to pixel space to generate
       // test points
@@ -282,39 +322,171 @@ public abstract class SurfaceInterpolator extends XYFootprint {
       } catch (NoninvertibleTransformException ex) {
          Log.log("Problem inverting affine transform");
       }
-      outerloop:
+      //convert these abritray pixel coordinates back to stage coordinates
+      double[] transformMaxtrix = new double[6];
+      transform.getMatrix(transformMaxtrix);
+      transformMaxtrix[4] = positionCorners[0].getX();
+      transformMaxtrix[5] = positionCorners[0].getY();
+      //create new transform with translation applied
+      transform = new AffineTransform(transformMaxtrix);
+
+      int maxPoints = positionCorners.length + (NUM_XY_TEST_POINTS + 2) * (NUM_XY_TEST_POINTS + 2);
+      double[] testXs = new double[maxPoints];
+      double[] testYs = new double[maxPoints];
+      int numPoints = 0;
+      for (Point2D.Double point : positionCorners) {
+         testXs[numPoints] = point.x;
+         testYs[numPoints] = point.y;
+         numPoints++;
+      }
+      Point2D.Double pixelCoords = new Point2D.Double();
+      Point2D.Double stageCoords = new Point2D.Double();
       for (double x = 0; x <= pixelSpan.x; x += pixelSpan.x / (double) NUM_XY_TEST_POINTS) {
          for (double y = 0; y <= pixelSpan.y; y += pixelSpan.y / (double) NUM_XY_TEST_POINTS) {
-            //convert these abritray pixel coordinates back to stage coordinates
-            double[] transformMaxtrix = new double[6];
-            transform.getMatrix(transformMaxtrix);
-            transformMaxtrix[4] = positionCorners[0].getX();
-            transformMaxtrix[5] = positionCorners[0].getY();
-            //create new transform with translation applied
-            transform = new AffineTransform(transformMaxtrix);
-            Point2D.Double stageCoords = new Point2D.Double();
-            transform.transform(new Point2D.Double(x, y), stageCoords);
-            //test point for inclusion of position
-            float interpVal;
-            if (!surface.getCurentInterpolation().isInterpDefined(stageCoords.x, stageCoords.y)) {
-               if (extrapolate) {
-                  interpVal = surface.getExtrapolatedValue(stageCoords.x, stageCoords.y);
-               } else {
-                  continue;
-               }
-            } else {
-               interpVal = surface.getCurentInterpolation().getInterpolatedValue(stageCoords.x,
-                     stageCoords.y);
+            if (numPoints == testXs.length) {
+               testXs = Arrays.copyOf(testXs, 2 * numPoints);
+               testYs = Arrays.copyOf(testYs, 2 * numPoints);
             }
-            if ((towardsSampleIsPositive && mode == ABOVE_SURFACE && zPos >= interpVal)
-                    || (towardsSampleIsPositive && mode == BELOW_SURFACE && zPos <= interpVal)
-                    || (!towardsSampleIsPositive && mode == ABOVE_SURFACE && zPos <= interpVal)
-                    || (!towardsSampleIsPositive && mode == BELOW_SURFACE) && zPos >= interpVal) {
-               return false;
+            pixelCoords.setLocation(x, y);
+            transform.transform(pixelCoords, stageCoords);
+            testXs[numPoints] = stageCoords.x;
+            testYs[numPoints] = stageCoords.y;
+            numPoints++;
+         }
+      }
+      return new double[][] {Arrays.copyOf(testXs, numPoints), Arrays.copyOf(testYs, numPoints)};
+   }
+
+   private interface ChunkTask {
+      void run(int start, int end, AtomicBoolean cancelled);
+   }
+
+   /**
+    * Run a task over the index range [0, n) in chunks on the common fork-join
+    * pool. Interrupting the calling thread stops the remaining chunks.
+    */
+   private static void forEachInParallel(int n, ChunkTask task) throws InterruptedException {
+      final int numChunks = (n + TILES_PER_CHUNK - 1) / TILES_PER_CHUNK;
+      final AtomicBoolean cancelled = new AtomicBoolean(false);
+      ForkJoinTask<?> job = ForkJoinPool.commonPool().submit(() ->
+            IntStream.range(0, numChunks).parallel().forEach(chunk ->
+                  task.run(chunk * TILES_PER_CHUNK,
+                        Math.min(n, (chunk + 1) * TILES_PER_CHUNK), cancelled)));
+      try {
+         job.get();
+      } catch (InterruptedException e) {
+         cancelled.set(true);
+         throw e;
+      } catch (ExecutionException e) {
+         throw new RuntimeException(e.getCause());
+      }
+   }
+
+   /**
+    * Intersect n regions with the given region, in parallel.
+    *
+    * @param n number of regions
+    * @param regions creates region i, called from worker threads
+    * @param region region to intersect with, not modified
+    * @return for each region whether its intersection with region is not empty
+    * @throws InterruptedException
+    */
+   static boolean[] overlapsRegion(int n, final IntFunction<Region<Euclidean2D>> regions,
+           final Region<Euclidean2D> region) throws InterruptedException {
+      final boolean[] overlaps = new boolean[n];
+      forEachInParallel(n, (start, end, cancelled) -> {
+         //each worker intersects with its own copy of the region
+         Region<Euclidean2D> copy = region.copySelf();
+         RegionFactory<Euclidean2D> factory = new RegionFactory<Euclidean2D>();
+         for (int i = start; i < end && !cancelled.get(); i++) {
+            overlaps[i] = !factory.intersection(regions.apply(i), copy).isEmpty();
+         }
+      });
+      return overlaps;
+   }
+
+   /**
+    * Identifies an XY position by its corners.
+    */
+   private static final class TileKey {
+      private final double[] coords_;
+      private final boolean extrapolate_;
+      private final int hash_;
+
+      TileKey(Point2D.Double[] corners, boolean extrapolate) {
+         coords_ = new double[2 * corners.length];
+         for (int i = 0; i < corners.length; i++) {
+            coords_[2 * i] = corners[i].x;
+            coords_[2 * i + 1] = corners[i].y;
+         }
+         extrapolate_ = extrapolate;
+         hash_ = 31 * Arrays.hashCode(coords_) + (extrapolate ? 1 : 0);
+      }
+
+      @Override
+      public int hashCode() {
+         return hash_;
+      }
+
+      @Override
+      public boolean equals(Object o) {
+         if (!(o instanceof TileKey)) {
+            return false;
+         }
+         TileKey other = (TileKey) o;
+         return extrapolate_ == other.extrapolate_ && Arrays.equals(coords_, other.coords_);
+      }
+   }
+
+   /**
+    * Lowest and highest surface z value over the test points of an XY position,
+    * along with the interpolation and points it was calculated from.
+    */
+   static final class ZRange {
+      private final SingleResolutionInterpolation interp_;
+      private final SurfacePointIndex index_;
+      private final float min_;
+      private final float max_;
+
+      private ZRange(SingleResolutionInterpolation interp, SurfacePointIndex index,
+             float min, float max) {
+         interp_ = interp;
+         index_ = index;
+         min_ = min;
+         max_ = max;
+      }
+
+      static ZRange of(SingleResolutionInterpolation interp, SurfacePointIndex index,
+             float[] values) {
+         float min = Float.POSITIVE_INFINITY;
+         float max = Float.NEGATIVE_INFINITY;
+         for (float value : values) {
+            // NaN (undefined, or not extrapolating) never counts against a position
+            if (value < min) {
+               min = value;
+            }
+            if (value > max) {
+               max = value;
             }
          }
+         return new ZRange(interp, index, min, max);
+      }
+
+      /**
+       * Whether zPos lies completely above (or below) the surface values of
+       * this range.  A range without values, where the surface is not defined
+       * anywhere within the position, counts as completely above and below.
+       */
+      boolean isBeyond(double zPos, int mode, boolean towardsSampleIsPositive) {
+         if (min_ > max_) {
+            return true;
+         }
+         if (towardsSampleIsPositive) {
+            return mode == ABOVE_SURFACE ? zPos < min_ : zPos > max_;
+         } else {
+            return mode == ABOVE_SURFACE ? zPos > max_ : zPos < min_;
+         }
       }
-      return true;
    }
 
    private void calculateConvexHullBounds() {
@@ -360,6 +532,34 @@ public abstract class SurfaceInterpolator extends XYFootprint {
     */
    public abstract float getExtrapolatedValue(double x, double y);
 
+   /**
+    * Evaluate the surface at a batch of XY locations, using the current
+    * interpolation where it is defined and extrapolation elsewhere.
+    *
+    * @param xs x coordinates
+    * @param ys y coordinates, same length as xs
+    * @param extrapolate whether to extrapolate where the interpolation is not defined
+    * @return z values, NaN where the interpolation is not defined and extrapolate is false
+    */
+   public float[] getValues(double[] xs, double[] ys, boolean extrapolate) {
+      return getValues(getCurentInterpolation(), xs, ys, extrapolate);
+   }
+
+   private float[] getValues(SingleResolutionInterpolation interp, double[] xs, double[] ys,
+           boolean extrapolate) {
+      float[] values = new float[xs.length];
+      for (int i = 0; i < xs.length; i++) {
+         if (interp.isInterpDefined(xs[i], ys[i])) {
+            values[i] = interp.getInterpolatedValue(xs[i], ys[i]);
+         } else if (extrapolate) {
+            values[i] = getExtrapolatedValue(xs[i], ys[i]);
+         } else {
+            values[i] = Float.NaN;
+         }
+      }
+      return values;
+   }
+
    private void fitXYPositionsToConvexHull(double overlap) throws InterruptedException {
       int fullTileWidth = (int) Magellan.getCore().getImageWidth();
       int fullTileHeight = (int) Magellan.getCore().getImageHeight();
@@ -418,21 +618,20 @@ public abstract class SurfaceInterpolator extends XYFootprint {
          }
       }
       //delete positions squares (+padding) that do not overlap convex hull
-      for (int i = positions.size() - 1; i >= 0; i--) {
-         if (Thread.interrupted()) {
-            throw new InterruptedException();
-         }
-         XYStagePosition pos = positions.get(i);
-         //create square region correpsonding to stage pos
-         Region<Euclidean2D> square = getStagePositionRegion(
-                 pos.getVisibleTileCorners(overlapX, overlapY));
-         //if convex hull and position have no intersection, delete
-         Region<Euclidean2D> intersection = regionFactory_.intersection(square, convexHullRegion_);
-         if (intersection.isEmpty()) {
-            positions.remove(i);
+      final List<XYStagePosition> candidates = positions;
+      //create square region correpsonding to stage pos
+      final boolean[] overlapsHull = overlapsRegion(candidates.size(),
+            i -> getStagePositionRegion(
+                  candidates.get(i).getVisibleTileCorners(overlapX, overlapY)),
+            convexHullRegion_);
+      positions = new ArrayList<XYStagePosition>();
+      for (int i = 0; i < candidates.size(); i++) {
+         if (overlapsHull[i]) {
+            positions.add(candidates.get(i));
          }
-         square.getBoundarySize();
       }
+      //overlap may have changed
+      zRangeCache_.clear();
       if (Thread.interrupted()) {
          throw new InterruptedException();
       }
@@ -447,6 +646,8 @@ public abstract class SurfaceInterpolator extends XYFootprint {
 
    public synchronized void deleteAllPoints() {
       points_.clear();
+      pointIndex_ = new SurfacePointIndex(points_);
+      zRangeCache_.clear();
    }
 
    public synchronized void deletePointsWithinZRange(double zMin, double zMax) {
@@ -519,6 +720,8 @@ public abstract class SurfaceInterpolator extends XYFootprint {
    private synchronized void updateConvexHullAndInterpolate() {
       //duplicate points for use on caluclation thread
       final LinkedList<Point3d> points = new LinkedList<Point3d>(points_);
+      pointIndex_ = new SurfacePointIndex(points);
+      zRangeCache_.clear();
       if (currentInterpolationTask_ != null && !currentInterpolationTask_.isDone()) {
          // cancel current interpolation because interpolation points have changed,
          // call does not block
@@ -20,24 +20,46 @@ package org.micromanager.magellan.internal.surfacesandregions;
 import delaunay_triangulation.Delaunay_Triangulation;
 import delaunay_triangulation.Point_dt;
 import delaunay_triangulation.Triangle_dt;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import org.apache.commons.math3.geometry.euclidean.threed.Line;
 import org.apache.commons.math3.geometry.euclidean.threed.Plane;
 import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
-import org.apache.commons.math3.geometry.euclidean.twod.Vector2D;
-import org.apache.commons.math3.geometry.partitioning.Region;
 import org.micromanager.magellan.internal.main.Magellan;
 
 /**
  * Subclass that implements a particular interpolation method This one creates a
  * plane based on the 3 closest points in XY space using the delaunay
- * triangulation and calculates specific z values in that plane
+ * triangulation and calculates specific z values in that plane.
+ * Rather than locating the triangle for every grid point, each triangle is
+ * rasterized once onto the grid (in parallel bands of rows), from coarse to
+ * fine resolution so that coarse interpolations are available quickly.
  */
 public class SurfaceInterpolatorSimple extends SurfaceInterpolator {
 
    private static final double TOLERANCE = 0.01;
+   //cells this close to a triangle edge (in barycentric units) count as inside
+   private static final double BARYCENTRIC_TOLERANCE = 1e-9;
+   private static final int TRI_STRIDE = 14;
+   private static final int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+   private static final ExecutorService BAND_EXECUTOR = Executors.newFixedThreadPool(NUM_THREADS,
+         new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "Interpolation band thread");
+               t.setDaemon(true);
+               return t;
+            }
+         });
 
    public SurfaceInterpolatorSimple(String xyName, String zName) {
       super(xyName, zName);
@@ -55,6 +77,8 @@ public class SurfaceInterpolatorSimple extends SurfaceInterpolator {
          triangulationPoints[i] = new Point_dt(points.get(i).x, points.get(i).y, points.get(i).z);
       }
       Delaunay_Triangulation dTri = new Delaunay_Triangulation(triangulationPoints);
+      //plane and barycentric coefficients of every triangle, shared by all resolution levels
+      final double[] triangles = triangleCoefficients(dTri);
 
       int maxPixelDimension = (int) (Math.max(boundXMax_ - boundXMin_, boundYMax_ - boundYMin_)
             / pixSize);
@@ -78,42 +102,14 @@ public class SurfaceInterpolatorSimple extends SurfaceInterpolator {
                / pixelsPerInterpPoint);
          int numInterpPointsY = (int) (((boundYMax_ - boundYMin_) / pixSize)
                / pixelsPerInterpPoint);
-         double dx = (boundXMax_ - boundXMin_) / (numInterpPointsX - 1);
-         double dy = (boundYMax_ - boundYMin_) / (numInterpPointsY - 1);
-
-         float[][] interpVals = new float[numInterpPointsY][numInterpPointsX];
-         float[][] interpNormals = new float[numInterpPointsY][numInterpPointsX];
-         boolean[][] interpDefined = new boolean[numInterpPointsY][numInterpPointsX];
-         for (int yInd = 0; yInd < interpVals.length; yInd++) {
-            for (int xInd = 0; xInd < interpVals[0].length; xInd++) {
-               if (Thread.interrupted()) {
-                  throw new InterruptedException();
-               }
-               double xVal = boundXMin_ + dx * xInd;
-               double yVal = boundYMin_ + dy * yInd;
-               boolean inHull = convexHullRegion_.checkPoint(new Vector2D(xVal, yVal))
-                     == Region.Location.INSIDE;
-               if (inHull) {
-                  Triangle_dt tri = dTri.find(new Point_dt(xVal, yVal));
-                  //convert to apache commons coordinates to make a plane
-                  Vector3D v1 = new Vector3D(tri.p1().x(), tri.p1().y(), tri.p1().z());
-                  Vector3D v2 = new Vector3D(tri.p2().x(), tri.p2().y(), tri.p2().z());
-                  Vector3D v3 = new Vector3D(tri.p3().x(), tri.p3().y(), tri.p3().z());
-                  Plane plane = new Plane(v1, v2, v3, TOLERANCE);
-                  //intersetion of vertical line at these x+y values with plane gives point in plane
-                  Vector3D pointInPlane = plane.intersection(new Line(
-                        new Vector3D(xVal, yVal, 0), new Vector3D(xVal, yVal, 1), TOLERANCE));
-                  float zVal = (float) pointInPlane.getZ();
-                  interpVals[yInd][xInd] = zVal;
-                  float angle = (float) (Vector3D.angle(plane.getNormal(),
-                        new Vector3D(0, 0, 1)) / Math.PI * 180.0);
-                  interpNormals[yInd][xInd] = angle;
-                  interpDefined[yInd][xInd] = true;
-               } else {
-                  interpDefined[yInd][xInd] = false;
-               }
-            }
-         }
+         final double dx = (boundXMax_ - boundXMin_) / (numInterpPointsX - 1);
+         final double dy = (boundYMax_ - boundYMin_) / (numInterpPointsY - 1);
+
+         final float[][] interpVals = new float[numInterpPointsY][numInterpPointsX];
+         final float[][] interpNormals = new float[numInterpPointsY][numInterpPointsX];
+         final boolean[][] interpDefined = new boolean[numInterpPointsY][numInterpPointsX];
+         rasterizeInBands(triangles, boundXMin_, boundYMin_, dx, dy,
+               interpVals, interpNormals, interpDefined, 4 * NUM_THREADS, BAND_EXECUTOR);
          if (Thread.interrupted()) {
             throw new InterruptedException();
          }
@@ -129,53 +125,177 @@ public class SurfaceInterpolatorSimple extends SurfaceInterpolator {
       }
    }
 
+   /**
+    * Precompute, for every (non-degenerate) triangle of the triangulation, the
+    * plane through its corners as z = a*x + b*y + c, the angle of its normal with
+    * the z axis, and two of its barycentric coordinates as linear functions of x
+    * and y, so that filling grid cells needs no further geometry.
+    */
+   static double[] triangleCoefficients(Delaunay_Triangulation dTri) {
+      double[] coefficients = new double[TRI_STRIDE * dTri.trianglesSize()];
+      int n = 0;
+      Iterator<Triangle_dt> it = dTri.trianglesIterator();
+      while (it.hasNext()) {
+         Triangle_dt tri = it.next();
+         if (tri.isHalfplane()) {
+            continue;
+         }
+         double x1 = tri.p1().x();
+         double y1 = tri.p1().y();
+         double z1 = tri.p1().z();
+         double x2 = tri.p2().x();
+         double y2 = tri.p2().y();
+         double z2 = tri.p2().z();
+         double x3 = tri.p3().x();
+         double y3 = tri.p3().y();
+         double z3 = tri.p3().z();
+         //normal as in Plane(p1, p2, p3): (p2 - p1) x (p3 - p1)
+         double ux = x2 - x1;
+         double uy = y2 - y1;
+         double uz = z2 - z1;
+         double vx = x3 - x1;
+         double vy = y3 - y1;
+         double vz = z3 - z1;
+         double nx = uy * vz - uz * vy;
+         double ny = uz * vx - ux * vz;
+         double nz = ux * vy - uy * vx;
+         double det = (y2 - y3) * (x1 - x3) + (x3 - x2) * (y1 - y3);
+         if (Math.abs(nz) < 1e-12 || Math.abs(det) < 1e-12) {
+            continue; //collinear in xy, covers no area
+         }
+         if (n == coefficients.length) {
+            coefficients = Arrays.copyOf(coefficients, 2 * n + TRI_STRIDE);
+         }
+         coefficients[n] = -nx / nz;
+         coefficients[n + 1] = -ny / nz;
+         coefficients[n + 2] = (nx * x1 + ny * y1 + nz * z1) / nz;
+         coefficients[n + 3] = Math.acos(Math.max(-1, Math.min(1,
+               nz / Math.sqrt(nx * nx + ny * ny + nz * nz)))) / Math.PI * 180.0;
+         //barycentric coordinates l1 and l2 (l3 = 1 - l1 - l2)
+         coefficients[n + 4] = (y2 - y3) / det;
+         coefficients[n + 5] = (x3 - x2) / det;
+         coefficients[n + 6] = -((y2 - y3) * x3 + (x3 - x2) * y3) / det;
+         coefficients[n + 7] = (y3 - y1) / det;
+         coefficients[n + 8] = (x1 - x3) / det;
+         coefficients[n + 9] = -((y3 - y1) * x3 + (x1 - x3) * y3) / det;
+         //bounding box
+         coefficients[n + 10] = Math.min(x1, Math.min(x2, x3));
+         coefficients[n + 11] = Math.max(x1, Math.max(x2, x3));
+         coefficients[n + 12] = Math.min(y1, Math.min(y2, y3));
+         coefficients[n + 13] = Math.max(y1, Math.max(y2, y3));
+         n += TRI_STRIDE;
+      }
+      return Arrays.copyOf(coefficients, n);
+   }
+
+   /**
+    * Fill the grid, with cell (0, 0) at (xMin, yMin), from the triangles. The
+    * grid is split in bands of rows that are rasterized in parallel, so that no
+    * two threads write the same cell.
+    */
+   static void rasterizeInBands(final double[] triangles, final double xMin,
+         final double yMin, final double dx, final double dy, final float[][] interpVals,
+         final float[][] interpNormals, final boolean[][] interpDefined, int maxBands,
+         ExecutorService executor) throws InterruptedException {
+      final int numY = interpVals.length;
+      final int numBands = Math.min(numY, maxBands);
+      List<Callable<Void>> bands = new ArrayList<Callable<Void>>(numBands);
+      for (int band = 0; band < numBands; band++) {
+         final int rowStart = (int) ((long) numY * band / numBands);
+         final int rowEnd = (int) ((long) numY * (band + 1) / numBands);
+         bands.add(new Callable<Void>() {
+            @Override
+            public Void call() throws InterruptedException {
+               rasterize(triangles, xMin, yMin, rowStart, rowEnd, dx, dy,
+                     interpVals, interpNormals, interpDefined);
+               return null;
+            }
+         });
+      }
+      try {
+         for (Future<Void> f : executor.invokeAll(bands)) {
+            f.get();
+         }
+      } catch (ExecutionException e) {
+         throw new RuntimeException(e.getCause());
+      }
+   }
+
+   /**
+    * Fill rows rowStart (inclusive) to rowEnd (exclusive) of the grid from the
+    * triangles covering them. Cells outside all triangles are outside the convex
+    * hull and stay undefined.
+    */
+   private static void rasterize(double[] triangles, double xMin, double yMin, int rowStart,
+         int rowEnd, double dx, double dy, float[][] interpVals, float[][] interpNormals,
+         boolean[][] interpDefined) throws InterruptedException {
+      final int numX = interpVals[0].length;
+      final double yBandMin = yMin + dy * rowStart;
+      final double yBandMax = yMin + dy * (rowEnd - 1);
+      for (int t = 0; t < triangles.length; t += TRI_STRIDE) {
+         if (Thread.interrupted()) {
+            throw new InterruptedException();
+         }
+         if (triangles[t + 13] < yBandMin || triangles[t + 12] > yBandMax) {
+            continue;
+         }
+         int yFirst = Math.max(rowStart,
+               (int) Math.floor((triangles[t + 12] - yMin) / dy));
+         int yLast = Math.min(rowEnd - 1,
+               (int) Math.ceil((triangles[t + 13] - yMin) / dy));
+         int xFirst = Math.max(0, (int) Math.floor((triangles[t + 10] - xMin) / dx));
+         int xLast = Math.min(numX - 1,
+               (int) Math.ceil((triangles[t + 11] - xMin) / dx));
+         final double a = triangles[t];
+         final double b = triangles[t + 1];
+         final double c = triangles[t + 2];
+         final float angle = (float) triangles[t + 3];
+         for (int yInd = yFirst; yInd <= yLast; yInd++) {
+            final double yVal = yMin + dy * yInd;
+            final double l1Row = triangles[t + 5] * yVal + triangles[t + 6];
+            final double l2Row = triangles[t + 8] * yVal + triangles[t + 9];
+            final float[] valRow = interpVals[yInd];
+            final float[] normalRow = interpNormals[yInd];
+            final boolean[] definedRow = interpDefined[yInd];
+            for (int xInd = xFirst; xInd <= xLast; xInd++) {
+               final double xVal = xMin + dx * xInd;
+               final double l1 = triangles[t + 4] * xVal + l1Row;
+               final double l2 = triangles[t + 7] * xVal + l2Row;
+               if (l1 < -BARYCENTRIC_TOLERANCE || l2 < -BARYCENTRIC_TOLERANCE
+                     || l1 + l2 > 1 + BARYCENTRIC_TOLERANCE) {
+                  continue;
+               }
+               valRow[xInd] = (float) (a * xVal + b * yVal + c);
+               normalRow[xInd] = angle;
+               definedRow[xInd] = true;
+            }
+         }
+      }
+   }
+
    @Override
    public float getExtrapolatedValue(double x, double y) {
       // If there are only three points, assume that user wants to extrapolate to do a
       // tilted plane acquistion otherwise, do a nearest neightbor interpolation to avoid
       // the extrapolation of unintended crazy z values
        
-      //duplicate points for thread safety
-      final LinkedList<Point3d> points = new LinkedList<Point3d>(points_);
-      final LinkedList<Integer> closestIndices = new LinkedList<Integer>();
-      final LinkedList<Double> closestDistances = new LinkedList<Double>();
-      for  (int i = 0; i < points.size(); i++) {
-         //get current distance
-         Vector2D vertex = new Vector2D(points.get(i).x, points.get(i).y);
-         double distance = vertex.distance(new Vector2D(x, y));
-         if (closestDistances.size() < 3) {
-            closestIndices.add(i);
-            closestDistances.add(distance);
-         } else if (distance < closestDistances.get(2)) {
-            closestIndices.removeLast();
-            closestDistances.removeLast();
-            closestIndices.add(i);
-            closestDistances.add(distance);
-         }
-         //sort
-         Collections.sort(closestIndices, new Comparator<Integer>() {
-            public int compare(Integer left, Integer right) {
-               return (new Double(closestDistances.get(closestIndices.indexOf(left))))
-                     .compareTo(closestDistances.get(closestIndices.indexOf(right)));
-            }
-         });
-         Collections.sort(closestDistances);
+      //index is immutable and replaced whenever the points change
+      final SurfacePointIndex index = pointIndex_;
+      if (index.size() == 0) {
+         throw new IllegalStateException("Surface has no points to extrapolate from");
       }
       float zVal;
-      if (points.size() == 3) {
-         Point3d point1 = points.get(closestIndices.get(0));
-         Point3d point2 = points.get(closestIndices.get(1));
-         Point3d point3 = points.get(closestIndices.get(2));
-         Vector3D v1 = new Vector3D(point1.x, point1.y, point1.z);
-         Vector3D v2 = new Vector3D(point2.x, point2.y, point2.z);
-         Vector3D v3 = new Vector3D(point3.x, point3.y, point3.z);
+      if (index.size() == 3) {
+         Vector3D v1 = new Vector3D(index.getX(0), index.getY(0), index.getZ(0));
+         Vector3D v2 = new Vector3D(index.getX(1), index.getY(1), index.getZ(1));
+         Vector3D v3 = new Vector3D(index.getX(2), index.getY(2), index.getZ(2));
          Plane plane = new Plane(v1, v2, v3, TOLERANCE);
          // intersetion of vertical line at these x+y values with plane gives point in plane
          Vector3D pointInPlane = plane.intersection(new Line(new Vector3D(x, y, 0),
                new Vector3D(x, y, 1), TOLERANCE));
          zVal = (float) pointInPlane.getZ();
       } else {
-         zVal = (float)  points.get(closestIndices.get(0)).z;
+         zVal = (float) index.getZ(index.nearest(x, y, 1)[0]);
       }
 
       return zVal;
@@ -0,0 +1,200 @@
+///////////////////////////////////////////////////////////////////////////////
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package org.micromanager.magellan.internal.surfacesandregions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Immutable 2D KD-tree over the XY coordinates of surface points, for finding
+ * the points closest to an arbitrary XY location in O(log n). Built once each
+ * time the surface points change, and safe to query from multiple threads.
+ *
+ * The tree is implicit: points are stored in arrays ordered so that the middle
+ * element of every range splits that range (alternately in x and y).
+ */
+public class SurfacePointIndex {
+
+   private final double[] xs_;
+   private final double[] ys_;
+   private final double[] zs_;
+
+   public SurfacePointIndex(Collection<Point3d> points) {
+      int n = points.size();
+      xs_ = new double[n];
+      ys_ = new double[n];
+      zs_ = new double[n];
+      int i = 0;
+      for (Point3d p : points) {
+         xs_[i] = p.x;
+         ys_[i] = p.y;
+         zs_[i] = p.z;
+         i++;
+      }
+      build(0, n, 0);
+   }
+
+   public int size() {
+      return xs_.length;
+   }
+
+   public double getX(int index) {
+      return xs_[index];
+   }
+
+   public double getY(int index) {
+      return ys_[index];
+   }
+
+   public double getZ(int index) {
+      return zs_[index];
+   }
+
+   /**
+    * Find the k points closest to (x, y).
+    *
+    * @return indices of at most k points, closest first
+    */
+   public int[] nearest(double x, double y, int k) {
+      k = Math.min(k, xs_.length);
+      int[] indices = new int[k];
+      double[] distances = new double[k];
+      int found = search(0, xs_.length, 0, x, y, indices, distances, 0);
+      return Arrays.copyOf(indices, found);
+   }
+
+   /**
+    * Find all points within the given distance of (x, y).
+    *
+    * @return indices of the points, in no particular order
+    */
+   public int[] withinDistance(double x, double y, double distance) {
+      List<Integer> found = new ArrayList<Integer>();
+      collect(0, xs_.length, 0, x, y, distance * distance, found);
+      int[] indices = new int[found.size()];
+      for (int i = 0; i < indices.length; i++) {
+         indices[i] = found.get(i);
+      }
+      return indices;
+   }
+
+   private void collect(int lo, int hi, int depth, double x, double y, double maxDist,
+           List<Integer> found) {
+      if (lo >= hi) {
+         return;
+      }
+      int mid = (lo + hi) >>> 1;
+      double dx = xs_[mid] - x;
+      double dy = ys_[mid] - y;
+      if (dx * dx + dy * dy <= maxDist) {
+         found.add(mid);
+      }
+      double diff = (depth % 2 == 0) ? x - xs_[mid] : y - ys_[mid];
+      if (diff < 0 || diff * diff <= maxDist) {
+         collect(lo, mid, depth + 1, x, y, maxDist, found);
+      }
+      if (diff >= 0 || diff * diff <= maxDist) {
+         collect(mid + 1, hi, depth + 1, x, y, maxDist, found);
+      }
+   }
+
+   private int search(int lo, int hi, int depth, double x, double y,
+           int[] indices, double[] distances, int found) {
+      if (lo >= hi || indices.length == 0) {
+         return found;
+      }
+      int mid = (lo + hi) >>> 1;
+      double dx = xs_[mid] - x;
+      double dy = ys_[mid] - y;
+      double dist = dx * dx + dy * dy;
+      int k = indices.length;
+      if (found < k || dist < distances[found - 1]) {
+         //insert in sorted position, dropping the furthest if full
+         int pos = found < k ? found++ : k - 1;
+         while (pos > 0 && distances[pos - 1] > dist) {
+            distances[pos] = distances[pos - 1];
+            indices[pos] = indices[pos - 1];
+            pos--;
+         }
+         distances[pos] = dist;
+         indices[pos] = mid;
+      }
+      double diff = (depth % 2 == 0) ? x - xs_[mid] : y - ys_[mid];
+      if (diff < 0) {
+         found = search(lo, mid, depth + 1, x, y, indices, distances, found);
+         if (found < k || diff * diff < distances[found - 1]) {
+            found = search(mid + 1, hi, depth + 1, x, y, indices, distances, found);
+         }
+      } else {
+         found = search(mid + 1, hi, depth + 1, x, y, indices, distances, found);
+         if (found < k || diff * diff < distances[found - 1]) {
+            found = search(lo, mid, depth + 1, x, y, indices, distances, found);
+         }
+      }
+      return found;
+   }
+
+   private void build(int lo, int hi, int depth) {
+      if (hi - lo < 2) {
+         return;
+      }
+      int mid = (lo + hi) >>> 1;
+      double[] keys = (depth % 2 == 0) ? xs_ : ys_;
+      //quickselect so that the median along this axis ends up in the middle
+      int left = lo;
+      int right = hi - 1;
+      while (left < right) {
+         double pivot = keys[(left + right) >>> 1];
+         int i = left;
+         int j = right;
+         while (i <= j) {
+            while (keys[i] < pivot) {
+               i++;
+            }
+            while (keys[j] > pivot) {
+               j--;
+            }
+            if (i <= j) {
+               swap(i, j);
+               i++;
+               j--;
+            }
+         }
+         if (mid <= j) {
+            right = j;
+         } else if (mid >= i) {
+            left = i;
+         } else {
+            break;
+         }
+      }
+      build(lo, mid, depth + 1);
+      build(mid + 1, hi, depth + 1);
+   }
+
+   private void swap(int i, int j) {
+      double t = xs_[i];
+      xs_[i] = xs_[j];
+      xs_[j] = t;
+      t = ys_[i];
+      ys_[i] = ys_[j];
+      ys_[j] = t;
+      t = zs_[i];
+      zs_[i] = zs_[j];
+      zs_[j] = t;
+   }
+
+}
@@ -0,0 +1,110 @@
+package org.micromanager.magellan.internal.surfacesandregions;
+
+import delaunay_triangulation.Delaunay_Triangulation;
+import delaunay_triangulation.Point_dt;
+import delaunay_triangulation.Triangle_dt;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.commons.math3.geometry.euclidean.threed.Line;
+import org.apache.commons.math3.geometry.euclidean.threed.Plane;
+import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Test;
+
+public class SurfaceInterpolatorSimpleTest {
+
+   private static final int NUM_X = 97;
+   private static final int NUM_Y = 83;
+
+   private final ExecutorService executor_ = Executors.newFixedThreadPool(4);
+
+   @After
+   public void tearDown() {
+      executor_.shutdownNow();
+   }
+
+   private static Delaunay_Triangulation triangulation(int n, long seed) {
+      Random random = new Random(seed);
+      Point_dt[] points = new Point_dt[n];
+      for (int i = 0; i < n; i++) {
+         points[i] = new Point_dt(1000 * random.nextDouble(), 800 * random.nextDouble(),
+               50 * random.nextDouble() - 25);
+      }
+      return new Delaunay_Triangulation(points);
+   }
+
+   @Test
+   public void bandsGiveTheSameResultAsOneBand() throws Exception {
+      Delaunay_Triangulation dTri = triangulation(40, 1);
+      double[] triangles = SurfaceInterpolatorSimple.triangleCoefficients(dTri);
+      final double dx = 1000.0 / (NUM_X - 1);
+      final double dy = 800.0 / (NUM_Y - 1);
+
+      float[][] vals = new float[NUM_Y][NUM_X];
+      float[][] normals = new float[NUM_Y][NUM_X];
+      boolean[][] defined = new boolean[NUM_Y][NUM_X];
+      SurfaceInterpolatorSimple.rasterizeInBands(triangles, 0.0, 0.0, dx, dy,
+            vals, normals, defined, 1, executor_);
+      for (int bands : new int[] {2, 7, NUM_Y, 1000}) {
+         float[][] bandVals = new float[NUM_Y][NUM_X];
+         float[][] bandNormals = new float[NUM_Y][NUM_X];
+         boolean[][] bandDefined = new boolean[NUM_Y][NUM_X];
+         SurfaceInterpolatorSimple.rasterizeInBands(triangles, 0.0, 0.0, dx, dy,
+               bandVals, bandNormals, bandDefined, bands, executor_);
+         for (int y = 0; y < NUM_Y; y++) {
+            assertArrayEquals(defined[y], bandDefined[y]);
+            assertArrayEquals(vals[y], bandVals[y], 0.0f);
+            assertArrayEquals(normals[y], bandNormals[y], 0.0f);
+         }
+      }
+   }
+
+   /*
+    * The grid is offset from the points, so that no grid point lies exactly on
+    * the convex hull, where the sequential code did not interpolate.
+    */
+   @Test
+   public void matchesTriangleSearchPerGridPoint() throws Exception {
+      for (long seed = 1; seed <= 5; seed++) {
+         Delaunay_Triangulation dTri = triangulation(3 + 10 * (int) seed, seed);
+         double[] triangles = SurfaceInterpolatorSimple.triangleCoefficients(dTri);
+         final double xMin = -13.7;
+         final double yMin = -9.1;
+         final double dx = 1030.0 / (NUM_X - 1);
+         final double dy = 825.0 / (NUM_Y - 1);
+         float[][] vals = new float[NUM_Y][NUM_X];
+         float[][] normals = new float[NUM_Y][NUM_X];
+         boolean[][] defined = new boolean[NUM_Y][NUM_X];
+         SurfaceInterpolatorSimple.rasterizeInBands(triangles, xMin, yMin, dx, dy,
+               vals, normals, defined, 16, executor_);
+
+         int nrDefined = 0;
+         for (int yInd = 0; yInd < NUM_Y; yInd++) {
+            for (int xInd = 0; xInd < NUM_X; xInd++) {
+               final double xVal = xMin + dx * xInd;
+               final double yVal = yMin + dy * yInd;
+               Triangle_dt tri = dTri.find(new Point_dt(xVal, yVal));
+               final boolean inHull = tri != null && !tri.isHalfplane();
+               assertEquals("(" + xInd + ", " + yInd + ")", inHull, defined[yInd][xInd]);
+               if (!inHull) {
+                  continue;
+               }
+               nrDefined++;
+               Plane plane = new Plane(
+                     new Vector3D(tri.p1().x(), tri.p1().y(), tri.p1().z()),
+                     new Vector3D(tri.p2().x(), tri.p2().y(), tri.p2().z()),
+                     new Vector3D(tri.p3().x(), tri.p3().y(), tri.p3().z()), 0.01);
+               Vector3D pointInPlane = plane.intersection(new Line(
+                     new Vector3D(xVal, yVal, 0), new Vector3D(xVal, yVal, 1), 0.01));
+               float angle = (float) (Vector3D.angle(plane.getNormal(),
+                     new Vector3D(0, 0, 1)) / Math.PI * 180.0);
+               assertEquals((float) pointInPlane.getZ(), vals[yInd][xInd], 1e-3f);
+               assertEquals(angle, normals[yInd][xInd], 1e-3f);
+            }
+         }
+         assertTrue(nrDefined > 0);
+      }
+   }
+}
@@ -0,0 +1,115 @@
+package org.micromanager.magellan.internal.surfacesandregions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.math3.geometry.euclidean.twod.Euclidean2D;
+import org.apache.commons.math3.geometry.euclidean.twod.PolygonsSet;
+import org.apache.commons.math3.geometry.euclidean.twod.Vector2D;
+import org.apache.commons.math3.geometry.euclidean.twod.hull.MonotoneChain;
+import org.apache.commons.math3.geometry.partitioning.Region;
+import org.apache.commons.math3.geometry.partitioning.RegionFactory;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class SurfaceInterpolatorTest {
+
+   /*
+    * Containment test as done for every z slice before the z ranges were
+    * cached: every surface value is compared with the slice position.
+    */
+   private static boolean sequentialTest(float[] interpVals, double zPos, int mode,
+         boolean towardsSampleIsPositive) {
+      for (float interpVal : interpVals) {
+         if (Float.isNaN(interpVal)) {
+            // not defined and not extrapolating
+            continue;
+         }
+         if ((towardsSampleIsPositive && mode == SurfaceInterpolator.ABOVE_SURFACE
+               && zPos >= interpVal)
+               || (towardsSampleIsPositive && mode == SurfaceInterpolator.BELOW_SURFACE
+               && zPos <= interpVal)
+               || (!towardsSampleIsPositive && mode == SurfaceInterpolator.ABOVE_SURFACE
+               && zPos <= interpVal)
+               || (!towardsSampleIsPositive && mode == SurfaceInterpolator.BELOW_SURFACE)
+               && zPos >= interpVal) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   @Test
+   public void zRangeMatchesSequentialTest() {
+      Random random = new Random(1);
+      for (int tile = 0; tile < 500; tile++) {
+         // 4 corners and a 9 x 9 grid, with some undefined values
+         float[] values = new float[85];
+         for (int i = 0; i < values.length; i++) {
+            if (tile % 5 == 0 || random.nextInt(4) == 0) {
+               values[i] = Float.NaN;
+            } else {
+               values[i] = random.nextInt(41) - 20 + (tile % 2 == 0 ? 0.0f : random.nextFloat());
+            }
+         }
+         SurfaceInterpolator.ZRange range = SurfaceInterpolator.ZRange.of(null, null, values);
+         // slices on and between the surface values
+         for (double zPos = -22.0; zPos <= 22.0; zPos += 0.5) {
+            for (int mode : new int[] {SurfaceInterpolator.ABOVE_SURFACE,
+                  SurfaceInterpolator.BELOW_SURFACE}) {
+               for (boolean positive : new boolean[] {true, false}) {
+                  assertEquals(sequentialTest(values, zPos, mode, positive),
+                        range.isBeyond(zPos, mode, positive));
+               }
+            }
+         }
+      }
+   }
+
+   private static Region<Euclidean2D> polygon(double... xy) {
+      Vector2D[] vertices = new Vector2D[xy.length / 2];
+      for (int i = 0; i < vertices.length; i++) {
+         vertices[i] = new Vector2D(xy[2 * i], xy[2 * i + 1]);
+      }
+      return new PolygonsSet(1e-10, vertices);
+   }
+
+   @Test
+   public void parallelHullTestMatchesSequentialTest() throws Exception {
+      Random random = new Random(2);
+      List<Vector2D> points = new ArrayList<Vector2D>();
+      for (int i = 0; i < 30; i++) {
+         double angle = 2 * Math.PI * random.nextDouble();
+         double radius = 400 * Math.sqrt(random.nextDouble());
+         points.add(new Vector2D(500 + radius * Math.cos(angle), 500 + radius * Math.sin(angle)));
+      }
+      Region<Euclidean2D> hull = new MonotoneChain().generate(points).createRegion();
+
+      // tiles on a grid that covers the hull and its surroundings, so that
+      // many tiles lie partly inside and many completely outside
+      final List<Region<Euclidean2D>> tiles = new ArrayList<Region<Euclidean2D>>();
+      for (int row = 0; row < 30; row++) {
+         for (int col = 0; col < 30; col++) {
+            double x = col * 40 - 100;
+            double y = row * 40 - 100;
+            tiles.add(polygon(x, y, x + 45, y, x + 45, y + 45, x, y + 45));
+         }
+      }
+
+      RegionFactory<Euclidean2D> factory = new RegionFactory<Euclidean2D>();
+      boolean[] expected = new boolean[tiles.size()];
+      int inside = 0;
+      for (int i = 0; i < tiles.size(); i++) {
+         expected[i] = !factory.intersection(tiles.get(i), hull).isEmpty();
+         inside += expected[i] ? 1 : 0;
+      }
+      assertTrue(inside > 0 && inside < tiles.size());
+
+      boolean[] found = SurfaceInterpolator.overlapsRegion(tiles.size(), tiles::get, hull);
+      assertArrayEquals(expected, found);
+      // the hull itself is copied for each worker, and not changed
+      for (int i = 0; i < tiles.size(); i++) {
+         assertEquals(expected[i], !factory.intersection(tiles.get(i), hull).isEmpty());
+      }
+   }
+}
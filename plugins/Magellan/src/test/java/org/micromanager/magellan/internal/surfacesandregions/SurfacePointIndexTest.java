@@ -0,0 +1,98 @@
+package org.micromanager.magellan.internal.surfacesandregions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class SurfacePointIndexTest {
+
+   /*
+    * Random points, with every fourth point on a coarse grid so that many
+    * points share an x or a y coordinate.
+    */
+   private static List<Point3d> points(int n, long seed) {
+      Random random = new Random(seed);
+      List<Point3d> points = new ArrayList<Point3d>();
+      for (int i = 0; i < n; i++) {
+         if (i % 4 == 0) {
+            points.add(new Point3d(100 * random.nextInt(10), 100 * random.nextInt(10), i));
+         } else {
+            points.add(new Point3d(1000 * random.nextDouble(), 1000 * random.nextDouble(), i));
+         }
+      }
+      return points;
+   }
+
+   private static double distance(double x, double y, double px, double py) {
+      return Math.hypot(px - x, py - y);
+   }
+
+   @Test
+   public void nearestMatchesBruteForce() {
+      Random random = new Random(2);
+      for (int n : new int[] {0, 1, 2, 3, 17, 500}) {
+         List<Point3d> points = points(n, n);
+         SurfacePointIndex index = new SurfacePointIndex(points);
+         assertEquals(n, index.size());
+         for (int q = 0; q < 200; q++) {
+            // queries also fall outside of the points and on the grid
+            double x = q % 5 == 0 ? 100 * random.nextInt(10) : 1400 * random.nextDouble() - 200;
+            double y = q % 5 == 0 ? 100 * random.nextInt(10) : 1400 * random.nextDouble() - 200;
+            for (int k : new int[] {1, 4, 600}) {
+               double[] expected = new double[n];
+               for (int i = 0; i < n; i++) {
+                  expected[i] = distance(x, y, points.get(i).x, points.get(i).y);
+               }
+               Arrays.sort(expected);
+               int[] nearest = index.nearest(x, y, k);
+               assertEquals(Math.min(k, n), nearest.length);
+               for (int i = 0; i < nearest.length; i++) {
+                  assertEquals(expected[i], distance(x, y, index.getX(nearest[i]),
+                        index.getY(nearest[i])), 1e-9);
+               }
+            }
+         }
+      }
+   }
+
+   @Test
+   public void withinDistanceMatchesBruteForce() {
+      Random random = new Random(3);
+      List<Point3d> points = points(500, 5);
+      SurfacePointIndex index = new SurfacePointIndex(points);
+      for (int q = 0; q < 200; q++) {
+         double x = q % 5 == 0 ? 100 * random.nextInt(10) : 1400 * random.nextDouble() - 200;
+         double y = q % 5 == 0 ? 100 * random.nextInt(10) : 1400 * random.nextDouble() - 200;
+         // radius 100 puts grid points exactly on the edge
+         double radius = q % 2 == 0 ? 100 : 300 * random.nextDouble();
+         Set<Double> expected = new HashSet<Double>();
+         for (Point3d p : points) {
+            if (distance(x, y, p.x, p.y) <= radius) {
+               // z is unique and identifies the point
+               expected.add(p.z);
+            }
+         }
+         Set<Double> found = new HashSet<Double>();
+         for (int i : index.withinDistance(x, y, radius)) {
+            assertTrue(found.add(index.getZ(i)));
+         }
+         assertEquals(expected, found);
+      }
+   }
+
+   @Test
+   public void keepsCoordinatesOfEachPointTogether() {
+      List<Point3d> points = points(100, 7);
+      SurfacePointIndex index = new SurfacePointIndex(points);
+      for (int i = 0; i < index.size(); i++) {
+         Point3d original = points.get((int) index.getZ(i));
+         assertEquals(original.x, index.getX(i), 0.0);
+         assertEquals(original.y, index.getY(i), 0.0);
+      }
+   }
+}
@@ -21,9 +21,6 @@
 package org.micromanager.plugins.mist;
 
 import com.google.common.eventbus.Subscribe;
-import ij.IJ;
-import ij.ImagePlus;
-import ij.process.ImageProcessor;
 import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.Insets;
@@ -60,8 +57,6 @@ import org.micromanager.alerts.UpdatableAlert;
 import org.micromanager.data.Coords;
 import org.micromanager.data.DataProvider;
 import org.micromanager.data.Datastore;
-import org.micromanager.data.Image;
-import org.micromanager.data.internal.DefaultImageJConverter;
 import org.micromanager.display.DataViewer;
 import org.micromanager.display.DisplayWindow;
 import org.micromanager.display.internal.event.DataViewerWillCloseEvent;
@@ -93,6 +88,7 @@ public class MistFrame extends JFrame {
    private static final String MULTIPAGE_TIFF = "Image Stack File";
    private static final String RAM = "RAM only";
    private static final String UNSELECTED_CHANNELS = "UnselectedChannels";
+   private static final String BLEND = "blend";
 
 
    /**
@@ -281,6 +277,12 @@ public class MistFrame extends JFrame {
               profileSettings_.putBoolean("shouldDisplay", shouldDisplay_.isSelected()));
       super.add(shouldDisplay_, "span 2, wrap");
 
+      final JCheckBox blend = new JCheckBox("Blend overlapping tiles");
+      blend.setSelected(profileSettings_.getBoolean(BLEND, false));
+      blend.addActionListener((ActionEvent e) ->
+              profileSettings_.putBoolean(BLEND, blend.isSelected()));
+      super.add(blend, "span 2, wrap");
+
       super.add(new JLabel("Save path: "), "span 3, split");
       savePath_ = new JTextField(35);
       savePath_.setText(profileSettings_.getString("savePath", System.getProperty("user.home")));
@@ -518,22 +520,11 @@ public class MistFrame extends JFrame {
 
       SwingUtilities.invokeLater(() -> assembleButton_.setEnabled(false));
 
-      // calculate new image dimensions
-      int imWidth = dp.getSummaryMetadata().getImageWidth();
-      int imHeight = dp.getSummaryMetadata().getImageHeight();
-      int maxX = 0;
-      int maxY = 0;
-      for (MistGlobalData entry : mistEntries) {
-         if (entry.getPositionX() > maxX) {
-            maxX = entry.getPositionX();
-         }
-         if (entry.getPositionY() > maxY) {
-            maxY = entry.getPositionY();
-         }
-      }
-
-      int newWidth = maxX + imWidth;
-      int newHeight = maxY + imHeight;
+      final MistStitcher stitcher = new MistStitcher(studio_, dp, mistEntries,
+              PositionConvention.HCS.equals(positionConvention),
+              profileSettings_.getBoolean(BLEND, false));
+      int newWidth = stitcher.getWidth();
+      int newHeight = stitcher.getHeight();
 
       final int newNrC = channelList.size();
       final int newNrT = (maxes.getOrDefault(Coords.T, 0) - mins.getOrDefault(Coords.T, 0)
@@ -567,7 +558,7 @@ public class MistFrame extends JFrame {
          }
          Coords intendedDimensions = intendedDimensionsB.build();
          Coords.Builder imgCb = studio_.data().coordsBuilder();
-         int nrImages = 0;
+         List<MistStitcher.Plane> planes = new ArrayList<>(maxNumImages);
          for (int newP = 0; newP < newNrP; newP++) {
             int tmpC = -1;
             for (int c = 0; c < intendedDimensions.getC(); c++) {
@@ -579,87 +570,22 @@ public class MistFrame extends JFrame {
                         t <= maxes.getOrDefault(Coords.T, 0); t++) {
                   for (int z = mins.getOrDefault(Coords.Z, 0); z <= maxes.getOrDefault(Coords.Z, 0);
                         z++) {
-                     if (monitor.isCanceled()) {
-                        newStore.freeze();
-                        if (newDataViewer == null) {
-                           newStore.close();
-                        }
-                        SwingUtilities.invokeLater(() -> assembleButton_.setEnabled(true));
-                        return;
-                     }
-                     ImagePlus newImgPlus = IJ.createImage(
-                             "Stitched image-" + newP, "16-bit black", newWidth, newHeight, 2);
-                     boolean imgAdded = false;
-                     for (int p = 0; p < mistEntries.size(); p++) {
-                        if (monitor.isCanceled()) {
-                           newStore.freeze();
-                           if (newDataViewer == null) {
-                              newStore.close();
-                           }
-                           SwingUtilities.invokeLater(() -> assembleButton_.setEnabled(true));
-                           return;
-                        }
-                        Image img = null;
-                        Coords coords = imgCb.c(c).t(t).z(z)
-                                .p(newP * mistEntries.size() + p)
-                                .build();
-                        if (dp.hasImage(coords)) {
-                           img = dp.getImage(coords);
-                        }
-                        if (img != null) {
-                           imgAdded = true;
-                           String posName = img.getMetadata().getPositionName("");
-                           MistGlobalData msg = null;
-                           if (PositionConvention.HCS.equals(positionConvention)) {
-                              int siteNr = Integer.parseInt(posName.substring(
-                                       posName.lastIndexOf('_')
-                                       + 1));
-                              for (MistGlobalData entry : mistEntries) {
-                                 if (entry.getSiteNr() == siteNr) {
-                                    msg = entry;
-                                    break;
-                                 }
-                              }
-                           } else {
-                              for (MistGlobalData entry : mistEntries) {
-                                 if (entry.getSiteNr() == p) {
-                                    msg = entry;
-                                    break;
-                                 }
-                              }
-                           }
-                           if (msg == null) {
-                              studio_.logs().showError("Did not find specified image");
-                              SwingUtilities.invokeLater(() -> assembleButton_.setEnabled(true));
-                              return;
-                           }
-                           ImageProcessor ip = DefaultImageJConverter.createProcessor(img,
-                                    false);
-                           newImgPlus.getProcessor().insert(ip, msg.getPositionX(),
-                                    msg.getPositionY());
-                        }
-                     }
-                     if (imgAdded) {
-                        Image newImg = studio_.data().ij().createImage(newImgPlus.getProcessor(),
-                                imgCb.c(tmpC).t(t - mins.getOrDefault(Coords.T, 0))
-                                        .z(z - mins.getOrDefault(Coords.Z, 0))
-                                        .p(newP).build(),
-                                dp.getImage(imgCb.c(c).t(t).z(z).p(newP * mistEntries.size())
-                                        .build()).getMetadata().copyBuilderWithNewUUID().build());
-                        newStore.putImage(newImg);
-                        nrImages++;
-                        final int count = nrImages;
-                        SwingUtilities.invokeLater(() -> monitor.setProgress(count));
-                        int processTime = (int) ((System.currentTimeMillis() - startTime) / 1000);
-                        updatableAlert.setText("Processed " + nrImages + " images of "
-                                + maxNumImages + " in " + processTime + " seconds");
-                     }
+                     planes.add(new MistStitcher.Plane(c, t, z, newP,
+                             imgCb.c(tmpC).t(t - mins.getOrDefault(Coords.T, 0))
+                                     .z(z - mins.getOrDefault(Coords.Z, 0))
+                                     .p(newP).build()));
                   }
                }
             }
          }
+         stitcher.stitch(planes, newStore, monitor::isCanceled, (int count) -> {
+            SwingUtilities.invokeLater(() -> monitor.setProgress(count));
+            int processTime = (int) ((System.currentTimeMillis() - startTime) / 1000);
+            updatableAlert.setText("Processed " + count + " images of "
+                    + maxNumImages + " in " + processTime + " seconds");
+         });
       } catch (IOException e) {
-         studio_.logs().showError("Error creating new data store: " + e.getMessage());
+         studio_.logs().showError("Error stitching images: " + e.getMessage());
       } catch (NullPointerException npe) {
          studio_.logs().showError("Coding error in Mist plugin: " + npe.getMessage());
       } finally {
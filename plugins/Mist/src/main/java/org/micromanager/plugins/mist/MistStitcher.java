@@ -0,0 +1,359 @@
+package org.micromanager.plugins.mist;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+import org.micromanager.Studio;
+import org.micromanager.data.Coords;
+import org.micromanager.data.DataProvider;
+import org.micromanager.data.Datastore;
+import org.micromanager.data.Image;
+import org.micromanager.data.Metadata;
+import org.micromanager.data.internal.DefaultImageJConverter;
+
+/**
+ * Assembles tiles into mosaics using the locations found by Mist.
+ *
+ * <p>Every output plane (one combination of channel, time point, slice and
+ * group of positions) is independent of the others, so planes are stitched
+ * in parallel.  The number of planes in flight is limited by the available
+ * heap.  Each plane is filled one band of rows at a time, and only the tiles
+ * that overlap the current band are held in memory.  Tiles can either be
+ * pasted on top of each other (later positions win, as ImageJ's insert did),
+ * or blended linearly in the areas where they overlap.</p>
+ */
+public final class MistStitcher {
+
+   /**
+    * One output plane: where the tiles come from and where the mosaic goes.
+    */
+   public static final class Plane {
+      private final int c_;
+      private final int t_;
+      private final int z_;
+      private final int group_;
+      private final Coords target_;
+
+      /**
+       * Describes an output plane.
+       *
+       * @param c Channel index in the input data.
+       * @param t Time point index in the input data.
+       * @param z Slice index in the input data.
+       * @param group Index of the group of positions that make up the mosaic.
+       * @param target Coordinates of the stitched image in the output.
+       */
+      public Plane(int c, int t, int z, int group, Coords target) {
+         c_ = c;
+         t_ = t;
+         z_ = z;
+         group_ = group;
+         target_ = target;
+      }
+   }
+
+   private final Studio studio_;
+   private final DataProvider dp_;
+   private final List<MistGlobalData> entries_;
+   private final Map<Integer, MistGlobalData> sites_ = new HashMap<>();
+   private final boolean siteFromPositionName_;
+   private final boolean blend_;
+   private final int tileWidth_;
+   private final int tileHeight_;
+   private final int width_;
+   private final int height_;
+   // linear ramps from the tile edges towards the center, used for blending
+   private final float[] rampX_;
+   private final float[] rampY_;
+
+   /**
+    * Creates the stitcher.
+    *
+    * @param studio Studio used to create the output images.
+    * @param dp Input data, with all tiles of a mosaic as consecutive positions.
+    * @param entries Locations found by Mist, one per tile.
+    * @param siteFromPositionName When true (HCS plugin naming), the site number
+    *                             of a tile is taken from its position name,
+    *                             otherwise it is its index in the group.
+    * @param blend Blend overlapping tiles linearly rather than pasting them.
+    */
+   public MistStitcher(Studio studio, DataProvider dp, List<MistGlobalData> entries,
+                       boolean siteFromPositionName, boolean blend) {
+      studio_ = studio;
+      dp_ = dp;
+      entries_ = entries;
+      siteFromPositionName_ = siteFromPositionName;
+      blend_ = blend;
+      tileWidth_ = dp.getSummaryMetadata().getImageWidth();
+      tileHeight_ = dp.getSummaryMetadata().getImageHeight();
+      int maxX = 0;
+      int maxY = 0;
+      for (MistGlobalData entry : entries) {
+         // the first entry for a site wins, as it did when searching the list
+         sites_.putIfAbsent(entry.getSiteNr(), entry);
+         maxX = Math.max(maxX, entry.getPositionX());
+         maxY = Math.max(maxY, entry.getPositionY());
+      }
+      width_ = maxX + tileWidth_;
+      height_ = maxY + tileHeight_;
+      rampX_ = ramp(tileWidth_);
+      rampY_ = ramp(tileHeight_);
+   }
+
+   public int getWidth() {
+      return width_;
+   }
+
+   public int getHeight() {
+      return height_;
+   }
+
+   /**
+    * Number of planes that can be stitched at the same time without running
+    * out of memory, at most one per processor.
+    */
+   public int getNumThreads() {
+      long planeBytes = (long) width_ * height_ * 2;
+      // the tiles overlapping a band span at most two rows of tiles
+      long scratchBytes = 2L * width_ * tileHeight_ * 2;
+      if (blend_) {
+         scratchBytes += (long) width_ * tileHeight_ * 8;
+      }
+      // the finished plane may be copied once more by the storage
+      long perPlane = 2 * planeBytes + scratchBytes;
+      Runtime runtime = Runtime.getRuntime();
+      long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+      long fit = (available / 2) / Math.max(1, perPlane);
+      return (int) Math.max(1, Math.min(runtime.availableProcessors(), fit));
+   }
+
+   /**
+    * Stitches the given planes and puts the results in the store.  Planes
+    * without any tiles are skipped.
+    *
+    * @param planes Planes to stitch.
+    * @param store Datastore that receives the stitched images.
+    * @param canceled Polled regularly, stitching stops when it returns true.
+    * @param progress Called with the number of images put in the store so far.
+    * @return false when stitching was canceled.
+    * @throws IOException when reading a tile or writing a mosaic fails, or a
+    *                     tile has no location in the Mist file.
+    */
+   public boolean stitch(List<Plane> planes, final Datastore store,
+                         final BooleanSupplier canceled, final IntConsumer progress)
+         throws IOException {
+      final AtomicInteger nrImages = new AtomicInteger();
+      ExecutorService executor = Executors.newFixedThreadPool(getNumThreads(), r -> {
+         Thread thread = new Thread(r, "Mist stitcher");
+         thread.setDaemon(true);
+         return thread;
+      });
+      try {
+         List<Future<?>> futures = new ArrayList<>(planes.size());
+         for (final Plane plane : planes) {
+            futures.add(executor.submit(() -> {
+               if (canceled.getAsBoolean()) {
+                  return null;
+               }
+               Image image = stitchPlane(plane, canceled);
+               if (image != null) {
+                  // Datastore.putImage is not meant to be called concurrently
+                  synchronized (store) {
+                     store.putImage(image);
+                  }
+                  progress.accept(nrImages.incrementAndGet());
+               }
+               return null;
+            }));
+         }
+         for (Future<?> future : futures) {
+            future.get();
+         }
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+         return false;
+      } catch (ExecutionException ee) {
+         Throwable cause = ee.getCause();
+         if (cause instanceof IOException) {
+            throw (IOException) cause;
+         } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+         }
+         throw new IOException(cause);
+      } finally {
+         executor.shutdownNow();
+      }
+      return !canceled.getAsBoolean();
+   }
+
+   /**
+    * Stitches a single plane.
+    *
+    * @return The mosaic, or null when the plane has no tiles or was canceled.
+    */
+   private Image stitchPlane(Plane plane, BooleanSupplier canceled) throws IOException {
+      final int nrTiles = entries_.size();
+      Coords.Builder cb = studio_.data().coordsBuilder().c(plane.c_).t(plane.t_).z(plane.z_);
+      // find the location of every tile once, before touching any pixels
+      MistGlobalData[] locations = new MistGlobalData[nrTiles];
+      Metadata metadata = null;
+      for (int p = 0; p < nrTiles; p++) {
+         Coords coords = cb.p(plane.group_ * nrTiles + p).build();
+         if (!dp_.hasImage(coords)) {
+            continue;
+         }
+         Image img = dp_.getImage(coords);
+         if (img == null) {
+            continue;
+         }
+         locations[p] = locate(img, p);
+         if (metadata == null) {
+            metadata = img.getMetadata();
+         }
+      }
+      if (metadata == null) {
+         return null;
+      }
+
+      short[] mosaic = new short[width_ * height_];
+      float[] sum = null;
+      float[] weight = null;
+      if (blend_) {
+         sum = new float[width_ * tileHeight_];
+         weight = new float[width_ * tileHeight_];
+      }
+      // pixels of the tiles that overlap the current band
+      Map<Integer, short[]> tiles = new HashMap<>();
+      for (int bandY = 0; bandY < height_; bandY += tileHeight_) {
+         if (canceled.getAsBoolean()) {
+            return null;
+         }
+         final int bandHeight = Math.min(tileHeight_, height_ - bandY);
+         final int bandEnd = bandY + bandHeight;
+         if (blend_) {
+            Arrays.fill(sum, 0.0f);
+            Arrays.fill(weight, 0.0f);
+         }
+         for (int p = 0; p < nrTiles; p++) {
+            MistGlobalData location = locations[p];
+            if (location == null) {
+               continue;
+            }
+            final int tileY = location.getPositionY();
+            if (tileY + tileHeight_ <= bandY) {
+               tiles.remove(p);
+               continue;
+            }
+            if (tileY >= bandEnd) {
+               continue;
+            }
+            short[] pixels = tiles.get(p);
+            if (pixels == null) {
+               pixels = tilePixels(dp_.getImage(cb.p(plane.group_ * nrTiles + p).build()));
+               tiles.put(p, pixels);
+            }
+            final int y0 = Math.max(bandY, tileY);
+            final int y1 = Math.min(bandEnd, tileY + tileHeight_);
+            final int tileX = location.getPositionX();
+            if (blend_) {
+               addWeighted(pixels, tileX, tileY, y0, y1, bandY, sum, weight);
+            } else {
+               for (int y = y0; y < y1; y++) {
+                  System.arraycopy(pixels, (y - tileY) * tileWidth_,
+                        mosaic, y * width_ + tileX, tileWidth_);
+               }
+            }
+         }
+         if (blend_) {
+            final int offset = bandY * width_;
+            final int length = bandHeight * width_;
+            for (int i = 0; i < length; i++) {
+               if (weight[i] > 0.0f) {
+                  mosaic[offset + i] = (short) (int) (sum[i] / weight[i] + 0.5f);
+               }
+            }
+         }
+      }
+      return studio_.data().createImage(mosaic, width_, height_, 2, 1, plane.target_,
+            metadata.copyBuilderWithNewUUID().build());
+   }
+
+   private void addWeighted(short[] pixels, int tileX, int tileY, int y0, int y1, int bandY,
+                            float[] sum, float[] weight) {
+      for (int y = y0; y < y1; y++) {
+         final float wy = rampY_[y - tileY];
+         final int src = (y - tileY) * tileWidth_;
+         final int dst = (y - bandY) * width_ + tileX;
+         for (int x = 0; x < tileWidth_; x++) {
+            final float w = wy * rampX_[x];
+            sum[dst + x] += w * (pixels[src + x] & 0xffff);
+            weight[dst + x] += w;
+         }
+      }
+   }
+
+   /*
+    * Looks up the Mist location of a tile, either by the site number in its
+    * position name or by its index in the group.
+    */
+   private MistGlobalData locate(Image img, int p) throws IOException {
+      int siteNr = p;
+      String posName = img.getMetadata().getPositionName("");
+      if (siteFromPositionName_) {
+         try {
+            siteNr = Integer.parseInt(posName.substring(posName.lastIndexOf('_') + 1));
+         } catch (NumberFormatException nfe) {
+            throw new IOException("Could not find site number in position name " + posName);
+         }
+      }
+      MistGlobalData location = sites_.get(siteNr);
+      if (location == null) {
+         throw new IOException("Did not find location of position " + posName
+               + " in Mist file");
+      }
+      return location;
+   }
+
+   /*
+    * Returns the pixels of a tile as unsigned 16-bit values.
+    */
+   private static short[] tilePixels(Image img) {
+      Object pixels = img.getRawPixels();
+      if (img.getNumComponents() == 1) {
+         if (pixels instanceof short[]) {
+            return (short[]) pixels;
+         } else if (pixels instanceof byte[]) {
+            byte[] bytes = (byte[]) pixels;
+            short[] shorts = new short[bytes.length];
+            for (int i = 0; i < bytes.length; i++) {
+               shorts[i] = (short) (bytes[i] & 0xff);
+            }
+            return shorts;
+         }
+      }
+      return (short[]) DefaultImageJConverter.createProcessor(img, false)
+            .convertToShort(false).getPixels();
+   }
+
+   /*
+    * Weights that rise linearly from the edges of a tile to its center, so that
+    * each tile fades out where it overlaps its neighbours.
+    */
+   private static float[] ramp(int length) {
+      float[] ramp = new float[length];
+      for (int i = 0; i < length; i++) {
+         ramp[i] = Math.min(i + 1, length - i);
+      }
+      return ramp;
+   }
+}
@@ -0,0 +1,207 @@
+package org.micromanager.plugins.mist;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import org.micromanager.Studio;
+import org.micromanager.data.Coordinates;
+import org.micromanager.data.Coords;
+import org.micromanager.data.DataManager;
+import org.micromanager.data.DataProvider;
+import org.micromanager.data.Datastore;
+import org.micromanager.data.Image;
+import org.micromanager.data.Metadata;
+import org.micromanager.data.SummaryMetadata;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class MistStitcherTest {
+
+   private static final int TILE_WIDTH = 16;
+   private static final int TILE_HEIGHT = 12;
+   private static final int NR_CHANNELS = 2;
+   private static final int NR_FRAMES = 3;
+   // 3 x 2 tiles with uneven overlaps, as Mist finds them
+   private static final int[][] LOCATIONS = {
+         {0, 0}, {13, 1}, {25, 0}, {1, 9}, {12, 10}, {26, 8}};
+
+   private interface Handler {
+      Object invoke(String method, Object[] args) throws Exception;
+   }
+
+   @SuppressWarnings("unchecked")
+   private static <T> T proxy(Class<T> type, final Handler handler) {
+      return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+            (proxy, method, args) -> handler.invoke(method.getName(), args));
+   }
+
+   private static Metadata metadata(final String positionName) {
+      return proxy(Metadata.class, (method, args) -> {
+         if (method.equals("getPositionName")) {
+            return positionName;
+         } else if (method.equals("copyBuilderWithNewUUID")) {
+            return proxy(Metadata.Builder.class,
+                  (m, a) -> m.equals("build") ? metadata(positionName) : null);
+         }
+         return null;
+      });
+   }
+
+   private static Image image(final Object pixels, final Coords coords) {
+      final Metadata metadata = metadata("Pos" + coords.getP());
+      return proxy(Image.class, (method, args) -> {
+         switch (method) {
+            case "getRawPixels":
+               return pixels;
+            case "getNumComponents":
+               return 1;
+            case "getCoords":
+               return coords;
+            case "getMetadata":
+               return metadata;
+            default:
+               return null;
+         }
+      });
+   }
+
+   private static short[][][] tiles() {
+      Random random = new Random(11);
+      short[][][] tiles = new short[NR_CHANNELS * NR_FRAMES][LOCATIONS.length][];
+      for (short[][] plane : tiles) {
+         for (int p = 0; p < plane.length; p++) {
+            plane[p] = new short[TILE_WIDTH * TILE_HEIGHT];
+            for (int i = 0; i < plane[p].length; i++) {
+               // include values above 32767 to exercise unsigned handling
+               plane[p][i] = (short) random.nextInt(65536);
+            }
+         }
+      }
+      return tiles;
+   }
+
+   /*
+    * Stitches all planes of the tiles at once, so that they are processed on
+    * several threads.
+    */
+   private static Map<Coords, short[]> stitch(final short[][][] tiles, boolean blend)
+         throws Exception {
+      final SummaryMetadata summary = proxy(SummaryMetadata.class, (method, args) ->
+            method.equals("getImageWidth") ? TILE_WIDTH
+                  : method.equals("getImageHeight") ? TILE_HEIGHT : null);
+      DataProvider dp = proxy(DataProvider.class, (method, args) -> {
+         switch (method) {
+            case "getSummaryMetadata":
+               return summary;
+            case "hasImage":
+               return true;
+            case "getImage":
+               Coords coords = (Coords) args[0];
+               return image(tiles[coords.getC() * NR_FRAMES + coords.getT()][coords.getP()],
+                     coords);
+            default:
+               return null;
+         }
+      });
+      final DataManager data = proxy(DataManager.class, (method, args) -> {
+         if (method.equals("coordsBuilder")) {
+            return Coordinates.builder();
+         } else if (method.equals("createImage")) {
+            return image(args[0], (Coords) args[5]);
+         }
+         return null;
+      });
+      Studio studio = proxy(Studio.class,
+            (method, args) -> method.equals("data") ? data : null);
+      final Map<Coords, short[]> stitched = new ConcurrentHashMap<>();
+      Datastore store = proxy(Datastore.class, (method, args) -> {
+         if (method.equals("putImage")) {
+            Image image = (Image) args[0];
+            assertNull(stitched.put(image.getCoords(), (short[]) image.getRawPixels()));
+         }
+         return null;
+      });
+
+      List<MistGlobalData> entries = new ArrayList<>();
+      for (int p = 0; p < LOCATIONS.length; p++) {
+         entries.add(new MistGlobalData("tile" + p, p, "A1", LOCATIONS[p][0],
+               LOCATIONS[p][1], p / 3, p % 3));
+      }
+      MistStitcher stitcher = new MistStitcher(studio, dp, entries, false, blend);
+      assertEquals(26 + TILE_WIDTH, stitcher.getWidth());
+      assertEquals(10 + TILE_HEIGHT, stitcher.getHeight());
+      List<MistStitcher.Plane> planes = new ArrayList<>();
+      for (int c = 0; c < NR_CHANNELS; c++) {
+         for (int t = 0; t < NR_FRAMES; t++) {
+            planes.add(new MistStitcher.Plane(c, t, 0, 0,
+                  Coordinates.builder().c(c).t(t).build()));
+         }
+      }
+      assertTrue(stitcher.stitch(planes, store, () -> false, count -> { }));
+      assertEquals(planes.size(), stitched.size());
+      return stitched;
+   }
+
+   private static float ramp(int i, int length) {
+      return Math.min(i + 1, length - i);
+   }
+
+   /*
+    * Straightforward single-threaded mosaic of one plane: each pixel is the
+    * weighted mean of all tiles covering it, or the last tile covering it.
+    */
+   private static short[] sequential(short[][] tiles, int width, int height, boolean blend) {
+      short[] mosaic = new short[width * height];
+      for (int y = 0; y < height; y++) {
+         for (int x = 0; x < width; x++) {
+            float sum = 0.0f;
+            float weight = 0.0f;
+            for (int p = 0; p < tiles.length; p++) {
+               final int tx = x - LOCATIONS[p][0];
+               final int ty = y - LOCATIONS[p][1];
+               if (tx < 0 || tx >= TILE_WIDTH || ty < 0 || ty >= TILE_HEIGHT) {
+                  continue;
+               }
+               final int value = tiles[p][ty * TILE_WIDTH + tx] & 0xffff;
+               if (blend) {
+                  final float w = ramp(ty, TILE_HEIGHT) * ramp(tx, TILE_WIDTH);
+                  sum += w * value;
+                  weight += w;
+               } else {
+                  mosaic[y * width + x] = (short) value;
+               }
+            }
+            if (blend && weight > 0.0f) {
+               mosaic[y * width + x] = (short) (int) (sum / weight + 0.5f);
+            }
+         }
+      }
+      return mosaic;
+   }
+
+   private static void assertMatchesSequential(boolean blend) throws Exception {
+      short[][][] tiles = tiles();
+      Map<Coords, short[]> stitched = stitch(tiles, blend);
+      final int width = 26 + TILE_WIDTH;
+      final int height = 10 + TILE_HEIGHT;
+      for (int c = 0; c < NR_CHANNELS; c++) {
+         for (int t = 0; t < NR_FRAMES; t++) {
+            short[] expected = sequential(tiles[c * NR_FRAMES + t], width, height, blend);
+            assertArrayEquals(expected, stitched.get(Coordinates.builder().c(c).t(t).build()));
+         }
+      }
+   }
+
+   @Test
+   public void blendedPlanesMatchSequentialMosaic() throws Exception {
+      assertMatchesSequential(true);
+   }
+
+   @Test
+   public void pastedPlanesMatchSequentialMosaic() throws Exception {
+      assertMatchesSequential(false);
+   }
+}
@@ -53,6 +53,12 @@ import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
 import org.jfree.data.xy.XYSeries;
@@ -67,6 +73,7 @@ import org.micromanager.display.DisplayWindow;
 import org.micromanager.imageprocessing.BoofCVUtils;
 import org.micromanager.internal.utils.imageanalysis.BoofCVImageConverter;
 import org.micromanager.pointandshootanalysis.algorithm.ContourStats;
+import org.micromanager.pointandshootanalysis.data.FrameCache;
 import org.micromanager.pointandshootanalysis.data.PASData;
 import org.micromanager.pointandshootanalysis.data.PASFrameSet;
 import org.micromanager.pointandshootanalysis.data.ParticleData;
@@ -225,6 +232,13 @@ public class PointAndShootAnalyzer implements Runnable {
       List<Map<Integer, ParticleData>> tracks = new ArrayList<>();
       // Use multiple threads in BoofCV code:
       BoofConcurrency.USE_CONCURRENT = true;
+      // Independent bleach events and control particles are analyzed in parallel
+      final ExecutorService executor = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), (Runnable r) -> {
+               Thread thread = new Thread(r, "PointAndShootAnalyzer");
+               thread.setDaemon(true);
+               return thread;
+            });
       try {
          int imgWidth = dataProvider.getAnyImage().getWidth();
          int imgHeight = dataProvider.getAnyImage().getHeight();
@@ -239,14 +253,15 @@ public class PointAndShootAnalyzer implements Runnable {
          final Point2D_I32 middle = new Point2D_I32(xMiddle, yMiddle);
 
          // create a boofCV Planar that contains all of the MM data (no copy, backed by MM)
-         Coords.Builder cbb = dataProvider.getAnyImage().getCoords().copyBuilder();
+         // The frames are read only once, and shared by all analysis steps below
+         final FrameCache frames = new FrameCache(dataProvider,
+               dataProvider.getAnyImage().getCoords());
          Planar bCVStack = new Planar(GrayU16.class, dataProvider.getNextIndex(Coords.T));
          bCVStack.setWidth(imgWidth);
          bCVStack.setHeight(imgHeight);
          bCVStack.setStride(imgWidth);
          for (int frame = 0; frame < dataProvider.getNextIndex(Coords.T); frame++) {
-            bCVStack.setBand(frame, BoofCVImageConverter.mmToBoofCV(
-                  dataProvider.getImage(cbb.t(frame).build()), false));
+            bCVStack.setBand(frame, frames.getFrame(frame));
          }
          ListIterator<PASData> pasDataIt = pasData.listIterator();
          while (pasDataIt.hasNext()) {
@@ -308,134 +323,28 @@ public class PointAndShootAnalyzer implements Runnable {
          psd_.setStatus("Found " + pasData.size() + " bleach events, now tracking...");
 
          // Track particle that received the bleach by local thresholding
-         // First go backwards in time, then forward
+         // Every bleach event is tracked independently, on its own thread.
+         // Results are merged in the order of the events.
+         List<Callable<Map<Integer, ParticleData>>> trackJobs = new ArrayList<>(pasData.size());
+         final AtomicInteger count = new AtomicInteger();
+         final int nrEvents = pasData.size();
+         for (final PASData pasEntry : pasData) {
+            trackJobs.add(() -> {
+               Map<Integer, ParticleData> track = trackBleachedParticle(frames, pasEntry,
+                     maxDistance, bleachSpotRadius, continueBleachSpotTracking,
+                     nrFramesToMeasureBleachToParticleVector);
+               psd_.setProgress((double) count.incrementAndGet() / (double) nrEvents);
+               return track;
+            });
+         }
+         List<Map<Integer, ParticleData>> eventTracks = invokeAll(executor, trackJobs);
          pasDataIt = pasData.listIterator();
-         Coords.Builder cb = dataProvider.getAnyImage().getCoords().copyBuilder();
-         int count = 0;
-         while (pasDataIt.hasNext()) {
+         for (Map<Integer, ParticleData> track : eventTracks) {
             PASData pasEntry = pasDataIt.next();
-            Map<Integer, ParticleData> track = new TreeMap<>();
-            Point2D_I32 bleachPoint =
-                  new Point2D_I32(pasEntry.pasActual().x, pasEntry.pasActual().y);
-            ParticleData firstParticle = ParticleData.centralParticle(dataProvider, cb,
-                  pasEntry.framePasClicked() + 1, bleachPoint, halfROISize_);
-            if (firstParticle == null) {
-               continue;
-            }
-            Point2D_I32 currentPoint = firstParticle.getCentroid().copy();
-            for (int frame = pasEntry.framePasClicked() + 1; frame >= 0; frame--) {
-               ParticleData nextParticle = ParticleData.centralParticle(dataProvider,
-                     cb, frame, currentPoint, halfROISize_);
-               if (nextParticle != null && (
-                     currentPoint.distance(nextParticle.getCentroid()) < maxDistance)) {
-                  currentPoint = nextParticle.getCentroid();
-                  track.put(frame, nextParticle);
-               } else {
-                  track.put(frame, null);
-                  // TODO: increase counter, give up when too high
-               }
-            }
-
-            // now go forward in time
-            currentPoint = firstParticle.getCentroid().copy();
-            GrayU16 preBleach = (GrayU16) BoofCVImageConverter.subImage(dataProvider, cb,
-                  pasEntry.framePasClicked() + 1, currentPoint, halfROISize_);
-            if (preBleach == null) {
-               continue;
+            if (track != null) {
+               tracks.add(track);
+               pasDataIt.set(pasEntry.copyBuilder().particleDataTrack(track).build());
             }
-            GrayF32 fPreBleach = new GrayF32(preBleach.getWidth(), preBleach.getHeight());
-            ConvertImage.convert(preBleach, fPreBleach);
-            ParticleData previousParticle = null;
-            for (int frame = pasEntry.framePasClicked() + 2;
-                  frame < dataProvider.getNextIndex(Coords.T); frame++) {
-               ParticleData nextParticle = ParticleData.centralParticle(dataProvider,
-                     cb, frame, currentPoint, halfROISize_);
-               if (nextParticle == null || (
-                     currentPoint.distance(nextParticle.getCentroid()) > maxDistance)) {
-                  track.put(frame, null);
-                  if (previousParticle != null) {
-                     nextParticle = previousParticle.copy();
-                  }
-                  // TODO: increase counter, give up when too high
-               }
-
-               previousParticle = nextParticle;
-               if (nextParticle != null) {
-                  currentPoint = nextParticle.getCentroid();
-               }
-               track.put(frame, nextParticle);
-            }
-
-            // Locate the bleachspots in the particle data 
-            int bleachSpotsMissed = 0;
-            currentPoint = track.get(pasEntry.framePasClicked() + 2).getCentroid();
-            final int getCalculateVectorFrame = pasEntry.framePasClicked() + 5
-                  + nrFramesToMeasureBleachToParticleVector;
-            Point2D_I32 offsetVector = null;
-            for (int frame = pasEntry.framePasClicked() + 2;
-                  frame < dataProvider.getNextIndex(Coords.T); frame++) {
-               if (bleachSpotsMissed < 5 || continueBleachSpotTracking) {
-                  ParticleData particle = track.get(frame);
-                  ImageGray current = BoofCVImageConverter.subImage(dataProvider,
-                        cb, frame, currentPoint, halfROISize_);
-                  if (current != null) {
-                     Point2D_I32 offset = new Point2D_I32(currentPoint.x - halfROISize_,
-                           currentPoint.y - halfROISize_);
-                     if (offsetVector != null) {
-                        Point2D_I32 centroid = particle.getCentroid();
-                        Point2D_I32 bp = new Point2D_I32(centroid.x - offsetVector.x,
-                              centroid.y - offsetVector.y);
-                        particle = ParticleData.addBleachSpotToParticle(particle,
-                              (GrayU16) current, offset, bp,
-                              bleachSpotRadius);
-                     } else {
-                        particle = ParticleData.addBleachSpotToParticle(
-                              fPreBleach,
-                              (GrayU16) current,
-                              track,
-                              frame,
-                              particle,
-                              offset,
-                              bleachSpotRadius,
-                              MAXDISTANCE);
-                     }
-                     currentPoint = particle.getCentroid();
-                     track.put(frame, particle);
-                  }
-                  if (particle.getBleachSpot() == null) {
-                     bleachSpotsMissed += 1;
-                  } else {
-                     bleachSpotsMissed = 0;
-                  }
-               }
-               if (continueBleachSpotTracking && frame == getCalculateVectorFrame) {
-                  List<Point2D_I32> vectors = new ArrayList<>(
-                        nrFramesToMeasureBleachToParticleVector);
-                  int startFrame = pasEntry.framePasClicked() + 5;
-                  int endFrame = startFrame + nrFramesToMeasureBleachToParticleVector;
-                  for (int vFrame = startFrame; vFrame < endFrame; vFrame++) {
-                     ParticleData pd = track.get(vFrame);
-                     if (pd != null) {
-                        Point2D_I32 c = pd.getCentroid();
-                        Point2D_I32 b = pd.getBleachSpot();
-                        if (c != null && b != null) {
-                           Point2D_I32 vector = new Point2D_I32(c.x - b.x,
-                                 c.y - b.y);
-                           vectors.add(vector);
-                        }
-                     }
-                  }
-                  if (vectors.size() > 0.8 * nrFramesToMeasureBleachToParticleVector) {
-                     offsetVector = ListUtils.avgPoint2DList(vectors);
-                     // System.out.println("offset: " + offsetVector.x + ", " + offsetVector.y);
-                  }
-
-               }
-            }
-
-            tracks.add(track);
-            pasDataIt.set(pasEntry.copyBuilder().particleDataTrack(track).build());
-            psd_.setProgress((double) ++count / (double) pasData.size());
          }
 
          // Find duplicate tracks (i.e. the same particle was bleached twice
@@ -514,10 +423,7 @@ public class PointAndShootAnalyzer implements Runnable {
          psd_.setProgress(0.0);
          List<Map<Integer, ParticleData>> controlTracks = new ArrayList<>();
          try {
-            cb = dataProvider.getAnyImage().getCoords().copyBuilder();
-            Coords ct0 = cb.t(0).build();
-            GrayU16 img0 = (GrayU16) BoofCVImageConverter.mmToBoofCV(
-                  dataProvider.getImage(ct0), false);
+            GrayU16 img0 = (GrayU16) frames.getFrame(0);
             //GrayU16 img0Gauss = new GrayU16(img0.getWidth(), img0.getHeight());
             //BlurImageOps.gaussian(img0, img0Gauss, 3, -1, null);
 
@@ -555,42 +461,22 @@ public class PointAndShootAnalyzer implements Runnable {
             // only analyze the n largest clusters
             // TODO: make n an input variable
             final int nrLargestClusters = 15;
-            count = 0;
             controlClusters = ListUtils.getNLargestLists(controlClusters, nrLargestClusters);
-            for (List<Point2D_I32> particle : controlClusters) {
-               Point2D_I32 centroid = ContourStats.centroid(particle);
-               Map<Integer, ParticleData> track = new TreeMap<>();
-               Point2D_I32 currentPoint = centroid;
-               int missing = 0;
-               boolean bail = false;
-               for (int frame = 0; frame < dataProvider.getNextIndex(Coords.T) && !bail; frame++) {
-                  ParticleData nextParticle = ParticleData.centralParticle(dataProvider,
-                        cb, frame, currentPoint, halfROISize_);
-                  if (nextParticle != null
-                        && (currentPoint.distance(nextParticle.getCentroid()) < maxDistance)) {
-                     currentPoint = nextParticle.getCentroid();
-                     track.put(frame, nextParticle);
-                     missing = 0;
-                     // TODO: Check whether it is now the same as one of the bleached particles
-                     // and bail if so...
-                     for (ParticleData p : tracksIndexedByFrame.get(frame)) {
-                        if (p != null && p.getCentroid() != null
-                              && p.getCentroid().distance(currentPoint) < maxDistance) {
-                           bail = true;
-                        }
-                     }
-                  } else {
-                     // increase counter, give up when too high
-                     missing++;
-                     if (missing > 10) {
-                        bail = true;
-                     }
-                  }
-               }
-               if (!bail) {
+            List<Callable<Map<Integer, ParticleData>>> controlJobs = new ArrayList<>();
+            final AtomicInteger controlCount = new AtomicInteger();
+            for (final List<Point2D_I32> particle : controlClusters) {
+               controlJobs.add(() -> {
+                  Map<Integer, ParticleData> track = trackControlParticle(frames,
+                        ContourStats.centroid(particle), tracksIndexedByFrame, maxDistance);
+                  psd_.setProgress((double) controlCount.incrementAndGet()
+                        / (double) nrLargestClusters);
+                  return track;
+               });
+            }
+            for (Map<Integer, ParticleData> track : invokeAll(executor, controlJobs)) {
+               if (track != null) {
                   controlTracks.add(track);
                }
-               psd_.setProgress((double) ++count / (double) nrLargestClusters);
             }
 
          } catch (IOException ioe) {
@@ -672,10 +558,216 @@ public class PointAndShootAnalyzer implements Runnable {
 
       } catch (IOException ioe) {
          studio_.logs().showError("Error while reading image data");
+      } finally {
+         executor.shutdownNow();
       }
 
    }
 
+   /**
+    * Tracks the particle that was bleached, first backwards in time from the
+    * bleach event, then forwards, and locates the bleach spot in the particle
+    * in every frame after the event.
+    *
+    * @return Particle track indexed by frame, or null if the particle could
+    *         not be found.
+    */
+   private Map<Integer, ParticleData> trackBleachedParticle(
+         final FrameCache frames,
+         final PASData pasEntry,
+         final int maxDistance,
+         final int bleachSpotRadius,
+         final boolean continueBleachSpotTracking,
+         final int nrFramesToMeasureBleachToParticleVector) throws IOException {
+      Map<Integer, ParticleData> track = new TreeMap<>();
+      Point2D_I32 bleachPoint =
+            new Point2D_I32(pasEntry.pasActual().x, pasEntry.pasActual().y);
+      ParticleData firstParticle = ParticleData.centralParticle(frames,
+            pasEntry.framePasClicked() + 1, bleachPoint, halfROISize_);
+      if (firstParticle == null) {
+         return null;
+      }
+      Point2D_I32 currentPoint = firstParticle.getCentroid().copy();
+      for (int frame = pasEntry.framePasClicked() + 1; frame >= 0; frame--) {
+         ParticleData nextParticle = ParticleData.centralParticle(frames,
+               frame, currentPoint, halfROISize_);
+         if (nextParticle != null && (
+               currentPoint.distance(nextParticle.getCentroid()) < maxDistance)) {
+            currentPoint = nextParticle.getCentroid();
+            track.put(frame, nextParticle);
+         } else {
+            track.put(frame, null);
+            // TODO: increase counter, give up when too high
+         }
+      }
+
+      // now go forward in time
+      currentPoint = firstParticle.getCentroid().copy();
+      GrayU16 preBleach = (GrayU16) frames.subImage(
+            pasEntry.framePasClicked() + 1, currentPoint, halfROISize_);
+      if (preBleach == null) {
+         return null;
+      }
+      GrayF32 fPreBleach = new GrayF32(preBleach.getWidth(), preBleach.getHeight());
+      ConvertImage.convert(preBleach, fPreBleach);
+      ParticleData previousParticle = null;
+      for (int frame = pasEntry.framePasClicked() + 2;
+            frame < frames.getNumberOfFrames(); frame++) {
+         ParticleData nextParticle = ParticleData.centralParticle(frames,
+               frame, currentPoint, halfROISize_);
+         if (nextParticle == null || (
+               currentPoint.distance(nextParticle.getCentroid()) > maxDistance)) {
+            track.put(frame, null);
+            if (previousParticle != null) {
+               nextParticle = previousParticle.copy();
+            }
+            // TODO: increase counter, give up when too high
+         }
+
+         previousParticle = nextParticle;
+         if (nextParticle != null) {
+            currentPoint = nextParticle.getCentroid();
+         }
+         track.put(frame, nextParticle);
+      }
+
+      // Locate the bleachspots in the particle data 
+      int bleachSpotsMissed = 0;
+      currentPoint = track.get(pasEntry.framePasClicked() + 2).getCentroid();
+      final int getCalculateVectorFrame = pasEntry.framePasClicked() + 5
+            + nrFramesToMeasureBleachToParticleVector;
+      Point2D_I32 offsetVector = null;
+      for (int frame = pasEntry.framePasClicked() + 2;
+            frame < frames.getNumberOfFrames(); frame++) {
+         if (bleachSpotsMissed < 5 || continueBleachSpotTracking) {
+            ParticleData particle = track.get(frame);
+            ImageGray current = frames.subImage(
+                  frame, currentPoint, halfROISize_);
+            if (current != null) {
+               Point2D_I32 offset = new Point2D_I32(currentPoint.x - halfROISize_,
+                     currentPoint.y - halfROISize_);
+               if (offsetVector != null) {
+                  Point2D_I32 centroid = particle.getCentroid();
+                  Point2D_I32 bp = new Point2D_I32(centroid.x - offsetVector.x,
+                        centroid.y - offsetVector.y);
+                  particle = ParticleData.addBleachSpotToParticle(particle,
+                        (GrayU16) current, offset, bp,
+                        bleachSpotRadius);
+               } else {
+                  particle = ParticleData.addBleachSpotToParticle(
+                        fPreBleach,
+                        (GrayU16) current,
+                        track,
+                        frame,
+                        particle,
+                        offset,
+                        bleachSpotRadius,
+                        MAXDISTANCE);
+               }
+               currentPoint = particle.getCentroid();
+               track.put(frame, particle);
+            }
+            if (particle.getBleachSpot() == null) {
+               bleachSpotsMissed += 1;
+            } else {
+               bleachSpotsMissed = 0;
+            }
+         }
+         if (continueBleachSpotTracking && frame == getCalculateVectorFrame) {
+            List<Point2D_I32> vectors = new ArrayList<>(
+                  nrFramesToMeasureBleachToParticleVector);
+            int startFrame = pasEntry.framePasClicked() + 5;
+            int endFrame = startFrame + nrFramesToMeasureBleachToParticleVector;
+            for (int vFrame = startFrame; vFrame < endFrame; vFrame++) {
+               ParticleData pd = track.get(vFrame);
+               if (pd != null) {
+                  Point2D_I32 c = pd.getCentroid();
+                  Point2D_I32 b = pd.getBleachSpot();
+                  if (c != null && b != null) {
+                     Point2D_I32 vector = new Point2D_I32(c.x - b.x,
+                           c.y - b.y);
+                     vectors.add(vector);
+                  }
+               }
+            }
+            if (vectors.size() > 0.8 * nrFramesToMeasureBleachToParticleVector) {
+               offsetVector = ListUtils.avgPoint2DList(vectors);
+               // System.out.println("offset: " + offsetVector.x + ", " + offsetVector.y);
+            }
+
+         }
+      }
+
+      return track;
+   }
+
+   /**
+    * Tracks an unbleached particle through all frames.
+    *
+    * @return Particle track indexed by frame, or null if the particle was lost
+    *         or came too close to one of the bleached particles.
+    */
+   private Map<Integer, ParticleData> trackControlParticle(
+         final FrameCache frames,
+         final Point2D_I32 centroid,
+         final Map<Integer, List<ParticleData>> tracksIndexedByFrame,
+         final int maxDistance) throws IOException {
+      Map<Integer, ParticleData> track = new TreeMap<>();
+      Point2D_I32 currentPoint = centroid;
+      int missing = 0;
+      boolean bail = false;
+      for (int frame = 0; frame < frames.getNumberOfFrames() && !bail; frame++) {
+         ParticleData nextParticle = ParticleData.centralParticle(frames,
+               frame, currentPoint, halfROISize_);
+         if (nextParticle != null
+               && (currentPoint.distance(nextParticle.getCentroid()) < maxDistance)) {
+            currentPoint = nextParticle.getCentroid();
+            track.put(frame, nextParticle);
+            missing = 0;
+            // TODO: Check whether it is now the same as one of the bleached particles
+            // and bail if so...
+            for (ParticleData p : tracksIndexedByFrame.get(frame)) {
+               if (p != null && p.getCentroid() != null
+                     && p.getCentroid().distance(currentPoint) < maxDistance) {
+                  bail = true;
+               }
+            }
+         } else {
+            // increase counter, give up when too high
+            missing++;
+            if (missing > 10) {
+               bail = true;
+            }
+         }
+      }
+      return bail ? null : track;
+   }
+
+   /**
+    * Runs the jobs on the executor and returns their results in the order of
+    * the jobs, so that the outcome does not depend on thread scheduling.
+    */
+   private static <T> List<T> invokeAll(ExecutorService executor,
+                                        List<Callable<T>> jobs) throws IOException {
+      List<T> results = new ArrayList<>(jobs.size());
+      try {
+         for (Future<T> future : executor.invokeAll(jobs)) {
+            results.add(future.get());
+         }
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while analyzing", ie);
+      } catch (ExecutionException ee) {
+         if (ee.getCause() instanceof IOException) {
+            throw (IOException) ee.getCause();
+         } else if (ee.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) ee.getCause();
+         }
+         throw new IOException(ee.getCause());
+      }
+      return results;
+   }
+
    /**
     * Convenience methods to convert a string with expected format to an Instant
     *
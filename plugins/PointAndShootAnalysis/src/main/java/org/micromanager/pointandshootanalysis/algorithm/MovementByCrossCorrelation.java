@@ -32,98 +32,42 @@ either expressed or implied, of the FreeBSD Project.
 
 package org.micromanager.pointandshootanalysis.algorithm;
 
-import ij.process.FHT;
 import ij.process.ImageProcessor;
-import java.awt.Point;
 import java.awt.geom.Point2D;
+import org.micromanager.internal.utils.imageanalysis.FFTCorrelator;
 
 /**
  * @author Nico Stuurman
  */
 public class MovementByCrossCorrelation {
-   private final FHT ref_;
+   // edge size of the square around the center in which the movement is searched
+   private static final int SEARCH_SIZE = 32;
+
+   private final float[] ref_;
+   private final int width_;
+   private final int height_;
+   private final FFTCorrelator correlator_;
 
    public MovementByCrossCorrelation(ImageProcessor reference) {
       // (new ij.ImagePlus("reference", reference)).show();
-      ref_ = new FHT(reference);
-      ref_.transform();
-      ref_.resetMinAndMax();
-   }
-
-   public void getJitter(ImageProcessor test, Point2D.Double com) {
-      //(new ij.ImagePlus("test", test)).show();
-      FHT t = new FHT(test);
-      t.transform();
-      t.resetMinAndMax();
-
-      FHT m = ref_.conjugateMultiply(t);
-
-      m.inverseTransform();
-      m.swapQuadrants();
-
-      //ij.ImagePlus imp = new ij.ImagePlus("Test", m);
-      //imp.show();
-
-
-      // return the position of the brightest pixel
-      Point brightPix = new Point(0, 0);
-      brightestPixel(m, brightPix, 32);
-      /*
-      try {
-         // Gaussian fit using Nelder Mead and 3D fitting
-         GaussianFit gs = new GaussianFit(3, 2);
-         // halfsize of the square around brightest pixel used for Gaussian fit
-         int hs = 5;
-         ImageProcessor ip = m.convertToShort(true);
-         // ImagePlus ipp = new ImagePlus("test", ip);
-         // ipp.show();
-         ip.setRoi(brightPix.x - hs, brightPix.y - hs, 2 * hs, 2 * hs);
-         ImageProcessor ipc = ip.crop();
-
-         GaussianFit.Data fitResult = gs.dogaussianfit(ipc, 100);
-         com.x = fitResult.getParms()[GaussianFit.XC] - hs + brightPix.x;
-         com.y = fitResult.getParms()[GaussianFit.YC] - hs + brightPix.y;
-
-      } catch (Exception ex) { 
-      */
-      // Gaussian fit failed, try second best estimate
-      com.x = brightPix.x;
-      com.y = brightPix.y;
-      //}
-
+      ref_ = FFTCorrelator.toFloatArray(reference.getPixels());
+      width_ = reference.getWidth();
+      height_ = reference.getHeight();
+      correlator_ = new FFTCorrelator(width_, height_, SEARCH_SIZE / 2, 1);
    }
 
    /**
-    * Finds the brightest pixel in the center of the image m
-    * only searches in the center of the image in a square with edge size searchsize
+    * Finds the movement of the test image relative to the reference.
     *
-    * @param m          image to be searched
-    * @param brightPix  point use to return coordinates of pixel found
-    * @param searchSize size of edge of center square in which to look for brightest pixel
+    * @param test image of the same size as the reference
+    * @param com  returns the center of the image plus the movement, i.e. the
+    *             position of the correlation peak with the quadrants swapped
     */
-   private void brightestPixel(FHT m, Point brightPix, int searchSize) {
-      float[] pixels = (float[]) m.getPixels();
-      int height = m.getHeight();
-      int width = m.getWidth();
-      int halfHeight = (height / 2);
-      int halfWidth = (width / 2);
-      int halfSearchSize = (searchSize / 2);
-
-      double max = pixels[halfHeight * width + halfWidth];
-      brightPix.x = halfWidth;
-      brightPix.y = halfHeight;
-
-
-      for (int y = halfHeight - halfSearchSize; y < halfHeight + halfSearchSize; y++) {
-         for (int x = halfWidth - halfSearchSize; x < halfWidth + halfSearchSize; x++) {
-            if (pixels[y * width + x] > max) {
-               max = pixels[y * width + x];
-               brightPix.x = x;
-               brightPix.y = y;
-            }
-         }
-      }
-
+   public void getJitter(ImageProcessor test, Point2D.Double com) {
+      FFTCorrelator.Result result = correlator_.correlate(ref_, width_, 0, 0,
+            FFTCorrelator.toFloatArray(test.getPixels()), test.getWidth(), 0, 0);
+      com.x = width_ / 2 + result.getShift().x;
+      com.y = height_ / 2 + result.getShift().y;
    }
 
 }
@@ -3,36 +3,27 @@ package org.micromanager.pointandshootanalysis.algorithm;
 
 import ij.process.ShortProcessor;
 import java.awt.Point;
-import java.util.HashMap;
-import java.util.Map;
+import org.micromanager.internal.utils.imageanalysis.FFTCorrelator;
 
 /**
- * Executes Normalized Cross Correlation in the spatial domain
- * Is very slow, and results are not convincing
+ * Executes Zero-normalized Cross Correlation of a template with a target image,
+ * using the FFT based correlator on an image pyramid
  *
  * @author nico
  */
 public class NormalizedCrossCorrelation {
-   private final float[] normalizedTemplate_;
+   private final float[] template_;
    private final Point templateDim_;
-   private final double templateStdDev_;
 
    public NormalizedCrossCorrelation(ShortProcessor template) {
-      short[] pixels = (short[]) template.getPixels();
+      template_ = FFTCorrelator.toFloatArray(template.getPixels());
       templateDim_ = new Point(template.getWidth(), template.getHeight());
-
-      double avg = shortAverage(pixels);
-
-      normalizedTemplate_ = normalizeShorts(pixels, (float) avg);
-
-      templateStdDev_ = stdDevFromNormalizedData(normalizedTemplate_);
-
    }
 
 
    /**
-    * Performs Zero-normalized cross-correlation in the spatial domain
-    * using the normalized template from the constructor
+    * Performs Zero-normalized cross-correlation
+    * using the template from the constructor
     *
     * @param target image target to which we match our template
     * @param center center position (in pixels) in the target around we cross-correlate
@@ -40,42 +31,17 @@ public class NormalizedCrossCorrelation {
     * @return position (in pixels) in the target where we find the highest cross-correlation
     */
    public Point correlate(ShortProcessor target, Point center, Point range) {
-
-      target.snapshot();
-      // TODO: check dimensions
       Point halfTemplateDim = new Point(templateDim_.x / 2, templateDim_.y / 2);
       Point startPos = new Point(center.x - halfTemplateDim.x, center.y - halfTemplateDim.y);
-      Map<Point, Float> result = new HashMap<Point, Float>();
-
-      for (int x = startPos.x - range.x; x <= startPos.x + range.x; x++) {
-         for (int y = startPos.y - range.y; y <= startPos.y + range.y; y++) {
-            target.setRoi(x, y, templateDim_.x, templateDim_.y);
-            target.crop();
-            short[] targetPixels = (short[]) target.getPixels();
-            double targetAvg = shortAverage(targetPixels);
-            float[] tmpTarget = normalizeShorts(targetPixels, (float) targetAvg);
-            double targetStdDev = stdDevFromNormalizedData(tmpTarget);
-            float cc = 0.0f;
-            for (int i = 0; i < normalizedTemplate_.length; i++) {
-               cc += normalizedTemplate_[i] * tmpTarget[i];
-            }
-            cc = cc / (float) (targetStdDev * templateStdDev_);
-            Point t = new Point(x, y);
-            result.put(t, cc);
-            target.reset();
-         }
-      }
-
-      float max = -Float.MAX_VALUE;
-      Point maxPoint = null;
-      for (Map.Entry<Point, Float> entry : result.entrySet()) {
-         if (entry.getValue() > max) {
-            maxPoint = entry.getKey();
-         }
-      }
-
-      return new Point(maxPoint.x + halfTemplateDim.x,
-            maxPoint.y + halfTemplateDim.y);
+      FFTCorrelator correlator = new FFTCorrelator(templateDim_.x, templateDim_.y,
+            Math.max(range.x, range.y), 1);
+      FFTCorrelator.Result result = correlator.correlate(template_, templateDim_.x, 0, 0,
+            FFTCorrelator.toFloatArray(target.getPixels()), target.getWidth(),
+            startPos.x, startPos.y);
+      int dx = (int) Math.round(Math.max(-range.x, Math.min(range.x, result.getShift().x)));
+      int dy = (int) Math.round(Math.max(-range.y, Math.min(range.y, result.getShift().y)));
+
+      return new Point(center.x + dx, center.y + dy);
 
    }
 
@@ -0,0 +1,184 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          FrameCache.java
+//PROJECT:       PointAndShootAnalysis
+//-----------------------------------------------------------------------------
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.pointandshootanalysis.data;
+
+import boofcv.struct.image.ImageGray;
+import georegression.struct.point.Point2D_I32;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.micromanager.data.Coords;
+import org.micromanager.data.DataProvider;
+import org.micromanager.internal.utils.imageanalysis.BoofCVImageConverter;
+
+/**
+ * Frames of a time series as BoofCV images, shared by everything that
+ * analyzes the data set, so that frames that are used repeatedly are read
+ * from the DataProvider only once.
+ *
+ * <p>The cache holds at most a given number of bytes of pixels; when it is
+ * full, the frame that was used least recently is dropped.  The BoofCV images
+ * point to the pixels of the Micro-Manager images, so they should not be
+ * modified.  Safe to use from multiple threads.</p>
+ */
+public class FrameCache {
+   // by default, use at most this part of the heap
+   private static final int DEFAULT_HEAP_DIVISOR = 4;
+
+   private final DataProvider dp_;
+   private final Coords.Builder cb_;
+   private final int nrFrames_;
+   private final long maxBytes_;
+   // in access order, so that the least recently used frame comes first
+   private final LinkedHashMap<Integer, ImageGray<? extends ImageGray<?>>> frames_ =
+         new LinkedHashMap<>(16, 0.75f, true);
+   private long bytes_ = 0;
+   private long hits_ = 0;
+   private long misses_ = 0;
+
+   /**
+    * Creates a cache that uses at most a quarter of the heap.
+    *
+    * @param dp Micro-Manager data source
+    * @param coords Coordinates of one image in the time series.  Only the
+    *               time point will be changed to read the other frames.
+    */
+   public FrameCache(final DataProvider dp, final Coords coords) {
+      this(dp, coords, Runtime.getRuntime().maxMemory() / DEFAULT_HEAP_DIVISOR);
+   }
+
+   /**
+    * Creates the cache.
+    *
+    * @param dp Micro-Manager data source
+    * @param coords Coordinates of one image in the time series.  Only the
+    *               time point will be changed to read the other frames.
+    * @param maxBytes Pixel bytes above which frames are dropped.  The most
+    *                 recently used frame is always kept.
+    */
+   public FrameCache(final DataProvider dp, final Coords coords, final long maxBytes) {
+      dp_ = dp;
+      cb_ = coords.copyBuilder();
+      nrFrames_ = dp.getNextIndex(Coords.T);
+      maxBytes_ = maxBytes;
+   }
+
+   public int getNumberOfFrames() {
+      return nrFrames_;
+   }
+
+   /**
+    * Returns the given frame, reading it from the data provider if it is not
+    * in the cache.
+    *
+    * @param frame Frame number
+    * @return ImageGray Note that the pixels are not copied.
+    * @throws IOException Can happen with disk based data.
+    */
+   public synchronized ImageGray<? extends ImageGray<?>> getFrame(final int frame)
+         throws IOException {
+      if (frame < 0 || frame >= nrFrames_) {
+         throw new IndexOutOfBoundsException("Frame " + frame + " is not in 0.."
+               + (nrFrames_ - 1));
+      }
+      ImageGray<? extends ImageGray<?>> image = frames_.get(frame);
+      if (image != null) {
+         hits_++;
+         return image;
+      }
+      misses_++;
+      // Coords.Builder and some DataProviders are not thread safe, so this
+      // is done while holding the lock
+      image = BoofCVImageConverter.mmToBoofCV(dp_.getImage(cb_.t(frame).build()), false);
+      frames_.put(frame, image);
+      bytes_ += sizeOf(image);
+      Iterator<ImageGray<? extends ImageGray<?>>> eldest = frames_.values().iterator();
+      while (bytes_ > maxBytes_ && frames_.size() > 1) {
+         bytes_ -= sizeOf(eldest.next());
+         eldest.remove();
+      }
+      return image;
+   }
+
+   /**
+    * @return Number of getFrame calls that found the frame in the cache.
+    */
+   public synchronized long getHits() {
+      return hits_;
+   }
+
+   /**
+    * @return Number of getFrame calls that read the frame from the data provider.
+    */
+   public synchronized long getMisses() {
+      return misses_;
+   }
+
+   /**
+    * @return Bytes of pixels currently in the cache.
+    */
+   public synchronized long getBytes() {
+      return bytes_;
+   }
+
+   /**
+    * @return Frame numbers in the cache, least recently used first.
+    */
+   public synchronized int[] getCachedFrames() {
+      int[] frames = new int[frames_.size()];
+      int i = 0;
+      for (int frame : frames_.keySet()) {
+         frames[i++] = frame;
+      }
+      return frames;
+   }
+
+   private static long sizeOf(ImageGray<?> image) {
+      return (long) image.getWidth() * image.getHeight()
+            * image.getDataType().getNumBits() / 8;
+   }
+
+   /**
+    * Extracts a region around a point from the given frame.  Same as
+    * BoofCVImageConverter.subImage, but without going to the data provider.
+    *
+    * @param frame       Frame number from which we want the image data
+    * @param p           point around which to build the ROI
+    * @param halfBoxSize Half the width and length of the ROI
+    * @return ImageGray, or null if the ROI does not fit in the image.
+    *         Note that the pixels are not copied.
+    * @throws IOException Can happen with disk based data.
+    */
+   @SuppressWarnings("unchecked")
+   public ImageGray<? extends ImageGray<?>> subImage(final int frame,
+                                                     final Point2D_I32 p,
+                                                     final int halfBoxSize) throws IOException {
+      ImageGray<? extends ImageGray<?>> ig = getFrame(frame);
+      if (p.getX() - halfBoxSize < 0
+            || p.getY() - halfBoxSize < 0
+            || p.getX() + halfBoxSize >= ig.getWidth()
+            || p.getY() + halfBoxSize >= ig.getHeight()) {
+         return null; // TODO: we'll get stuck at the edge
+      }
+      return (ImageGray<? extends ImageGray<?>>) ig.subimage(
+            p.getX() - halfBoxSize,
+            p.getY() - halfBoxSize,
+            p.getX() + halfBoxSize,
+            p.getY() + halfBoxSize);
+   }
+}
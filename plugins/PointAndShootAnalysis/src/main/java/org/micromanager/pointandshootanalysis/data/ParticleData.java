@@ -262,8 +262,31 @@ public class ParticleData {
                                               final int frame,
                                               final Point2D_I32 startCenter,
                                               final int halfBoxSize) throws IOException {
+      return centralParticle(BoofCVImageConverter.subImage(dp, cb, frame, startCenter,
+            halfBoxSize), startCenter, halfBoxSize);
+   }
+
+   /**
+    * Finds the centroid of the particle closest to the given input coordinates
+    *
+    * @param frames      Frames of the data set
+    * @param frame       Frame number in which to look for the particle centroid
+    * @param startCenter input xy position around which to look
+    * @param halfBoxSize Defines size of the Box in which the code looks for a particle
+    * @return particle (or null if not found)
+    * @throws IOException
+    */
+   public static ParticleData centralParticle(final FrameCache frames,
+                                              final int frame,
+                                              final Point2D_I32 startCenter,
+                                              final int halfBoxSize) throws IOException {
+      return centralParticle(frames.subImage(frame, startCenter, halfBoxSize),
+            startCenter, halfBoxSize);
+   }
 
-      ImageGray sub = BoofCVImageConverter.subImage(dp, cb, frame, startCenter, halfBoxSize);
+   private static ParticleData centralParticle(final ImageGray sub,
+                                               final Point2D_I32 startCenter,
+                                               final int halfBoxSize) {
       if (sub == null) {
          return null;
       }
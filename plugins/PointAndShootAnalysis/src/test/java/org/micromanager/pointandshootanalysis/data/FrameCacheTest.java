@@ -0,0 +1,136 @@
+package org.micromanager.pointandshootanalysis.data;
+
+import boofcv.struct.image.GrayU16;
+import boofcv.struct.image.ImageGray;
+import georegression.struct.point.Point2D_I32;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import org.micromanager.data.Coordinates;
+import org.micromanager.data.Coords;
+import org.micromanager.data.DataProvider;
+import org.micromanager.data.Image;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class FrameCacheTest {
+
+   private static final int WIDTH = 8;
+   private static final int HEIGHT = 4;
+   private static final long FRAME_BYTES = 2L * WIDTH * HEIGHT;
+   private static final int NR_FRAMES = 10;
+
+   /*
+    * 16-bit image whose first pixel holds the frame number.
+    */
+   private static Image image(int frame) {
+      final short[] pixels = new short[WIDTH * HEIGHT];
+      pixels[0] = (short) frame;
+      return (Image) Proxy.newProxyInstance(Image.class.getClassLoader(),
+            new Class<?>[] {Image.class}, (proxy, method, args) -> {
+               switch (method.getName()) {
+                  case "getBytesPerPixel":
+                     return 2;
+                  case "getWidth":
+                     return WIDTH;
+                  case "getHeight":
+                     return HEIGHT;
+                  case "getRawPixels":
+                     return pixels;
+                  default:
+                     return null;
+               }
+            });
+   }
+
+   /*
+    * Data provider that records the frames that were read from it.
+    */
+   private static DataProvider provider(final List<Integer> reads) {
+      return (DataProvider) Proxy.newProxyInstance(DataProvider.class.getClassLoader(),
+            new Class<?>[] {DataProvider.class}, (proxy, method, args) -> {
+               switch (method.getName()) {
+                  case "getNextIndex":
+                     return NR_FRAMES;
+                  case "getImage":
+                     int frame = ((Coords) args[0]).getT();
+                     reads.add(frame);
+                     return image(frame);
+                  default:
+                     return null;
+               }
+            });
+   }
+
+   private static int frameNumber(ImageGray<?> image) {
+      return ((GrayU16) image).get(0, 0);
+   }
+
+   @Test
+   public void readsEachFrameOnceWhenItFits() throws Exception {
+      List<Integer> reads = new ArrayList<>();
+      FrameCache cache = new FrameCache(provider(reads), Coordinates.builder().t(3).build(),
+            NR_FRAMES * FRAME_BYTES);
+      assertEquals(NR_FRAMES, cache.getNumberOfFrames());
+      for (int pass = 0; pass < 3; pass++) {
+         for (int frame = 0; frame < NR_FRAMES; frame++) {
+            assertEquals(frame, frameNumber(cache.getFrame(frame)));
+         }
+      }
+      assertEquals(NR_FRAMES, reads.size());
+      assertEquals(NR_FRAMES, cache.getMisses());
+      assertEquals(2 * NR_FRAMES, cache.getHits());
+      assertEquals(NR_FRAMES * FRAME_BYTES, cache.getBytes());
+      // the same (uncopied) image is handed out on a hit
+      assertSame(cache.getFrame(4), cache.getFrame(4));
+   }
+
+   @Test
+   public void dropsLeastRecentlyUsedFrame() throws Exception {
+      List<Integer> reads = new ArrayList<>();
+      FrameCache cache = new FrameCache(provider(reads), Coordinates.builder().t(0).build(),
+            3 * FRAME_BYTES);
+      cache.getFrame(0);
+      cache.getFrame(1);
+      cache.getFrame(2);
+      // using frame 0 again makes frame 1 the least recently used one
+      cache.getFrame(0);
+      cache.getFrame(3);
+      assertArrayEquals(new int[] {2, 0, 3}, cache.getCachedFrames());
+      assertEquals(3 * FRAME_BYTES, cache.getBytes());
+      assertEquals(1, cache.getHits());
+
+      assertEquals(1, frameNumber(cache.getFrame(1)));
+      assertArrayEquals(new int[] {0, 3, 1}, cache.getCachedFrames());
+      assertEquals(0, frameNumber(cache.getFrame(0)));
+      assertArrayEquals(new int[] {3, 1, 0}, cache.getCachedFrames());
+      assertEquals(2, cache.getHits());
+      assertEquals(5, cache.getMisses());
+      assertEquals(5, reads.size());
+      assertEquals(Integer.valueOf(1), reads.get(4));
+   }
+
+   @Test
+   public void keepsMostRecentFrameWhenBudgetIsTooSmall() throws Exception {
+      List<Integer> reads = new ArrayList<>();
+      FrameCache cache = new FrameCache(provider(reads), Coordinates.builder().t(0).build(),
+            FRAME_BYTES / 2);
+      cache.getFrame(5);
+      cache.getFrame(5);
+      cache.getFrame(6);
+      assertArrayEquals(new int[] {6}, cache.getCachedFrames());
+      assertEquals(1, cache.getHits());
+      assertEquals(2, reads.size());
+   }
+
+   @Test
+   public void subImageIsViewOnCachedFrame() throws Exception {
+      FrameCache cache = new FrameCache(provider(new ArrayList<>()),
+            Coordinates.builder().t(0).build(), NR_FRAMES * FRAME_BYTES);
+      ImageGray<?> sub = cache.subImage(7, new Point2D_I32(2, 1), 1);
+      assertEquals(2, sub.getWidth());
+      assertEquals(2, sub.getHeight());
+      assertNull(cache.subImage(7, new Point2D_I32(0, 1), 1));
+      assertEquals(1, cache.getMisses());
+   }
+}
@@ -1,114 +1,156 @@
 package org.micromanager.slideexplorer;
 
-import ij.IJ;
-import ij.ImagePlus;
-import ij.io.FileSaver;
 import ij.process.ImageProcessor;
 import java.awt.Point;
-import java.io.File;
-import java.util.Random;
+import java.awt.Rectangle;
 import org.micromanager.internal.utils.imageanalysis.ImageUtils;
 
+/**
+ * In-memory image of a single multitile.  Tiles are owned by a TileStore,
+ * which decides when they are written to its backing file and dropped.
+ */
 public class MultiTile {
 
-   ImageProcessor proc_;
-   int type_;
-   int width_;
-   int height_;
-   String fileName_ = null;
-   boolean cached_ = false;
-   String tmpDirectory_ = "/tmp";
+   private final int width_;
+   private final int height_;
+   private final ImageProcessor proc_;
+   private boolean dirty_;
 
    MultiTile(int type, int width, int height) {
-      type_ = type;
-      width_ = width;
-      height_ = height;
+      this(ImageUtils.makeProcessor(type, width, height));
+      dirty_ = true;
    }
 
-   public synchronized ImageProcessor getImage() {
-      getImageReady();
-      return proc_;
+   MultiTile(ImageProcessor proc) {
+      proc_ = proc;
+      width_ = proc.getWidth();
+      height_ = proc.getHeight();
+      proc_.setInterpolationMethod(ImageProcessor.BILINEAR);
+      dirty_ = false;
    }
 
-   public synchronized void getImageReady() {
-      if (proc_ == null) {
-         if (cached_ == false) {
-            createCleanImage();
-         } else {
-            loadFromCache();
-         }
-      }
-      proc_.setInterpolationMethod(ImageProcessor.BILINEAR);
+   public synchronized ImageProcessor getImage() {
+      return proc_;
    }
 
    public synchronized void setImage(ImageProcessor proc) {
-      getImageReady();
       proc_.insert(proc, 0, 0);
+      dirty_ = true;
    }
 
-   private void createCleanImage() {
-      proc_ = ImageUtils.makeProcessor(type_, width_, height_);
+   /*
+    * True when the image changed since it was last written to the backing file.
+    */
+   synchronized boolean isDirty() {
+      return dirty_;
    }
 
-   public synchronized void insertQuadrantImage(Point quad, ImageProcessor inProc) {
-      // TODO: rewrite this as a fast algorithm. Should require only a single copy.
-      getImageReady();
-      inProc.setInterpolationMethod(ImageProcessor.BILINEAR);
-      ImageProcessor inProcSmall = inProc.resize(width_ / 2, height_ / 2);
-      proc_.insert(inProcSmall, quad.x * width_ / 2, quad.y * height_ / 2);
-      cached_ = false;
+   synchronized void markClean() {
+      dirty_ = false;
    }
 
-   public synchronized void dropFromMemory() {
-      if (!cached_) {
-         cacheOnDisk();
-      }
-
-      proc_ = null;
+   long getSizeInBytes() {
+      return (long) width_ * height_ * TileStore.bytesPerPixel(proc_.getPixels());
    }
 
-   private void cacheOnDisk() {
-      if (proc_ != null) {
-         ImagePlus imgp = new ImagePlus("", proc_);
-         FileSaver fs = new FileSaver(imgp);
-         if (fileName_ == null) {
-            fileName_ = tmpDirectory_ + "/" + Math.abs(randLong()) + ".tif";
+   /*
+    * Downsamples the changed part of a child tile by a factor of two, averaging
+    * each 2x2 block of pixels, and writes the result straight into the given
+    * quadrant of this tile.  Returns the area of this tile that changed, so
+    * that propagation to the next zoom level can be limited to that area.
+    */
+   public synchronized Rectangle insertQuadrantImage(Point quad, ImageProcessor inProc,
+         Rectangle changed) {
+      final int inWidth = inProc.getWidth();
+      final int inHeight = inProc.getHeight();
+      final int halfWidth = width_ / 2;
+      final int halfHeight = height_ / 2;
+      Rectangle src = new Rectangle(0, 0, inWidth, inHeight);
+      if (changed != null) {
+         src = src.intersection(changed);
+      }
+      final int x0 = Math.max(0, src.x) / 2;
+      final int y0 = Math.max(0, src.y) / 2;
+      final int x1 = Math.min(halfWidth, (src.x + src.width + 1) / 2);
+      final int y1 = Math.min(halfHeight, (src.y + src.height + 1) / 2);
+      final int offsetX = quad.x * halfWidth;
+      final int offsetY = quad.y * halfHeight;
+      if (x1 <= x0 || y1 <= y0) {
+         return new Rectangle(offsetX, offsetY, 0, 0);
+      }
+
+      final Object in = inProc.getPixels();
+      final Object out = proc_.getPixels();
+      for (int y = y0; y < y1; y++) {
+         final int row0 = Math.min(2 * y, inHeight - 1) * inWidth;
+         final int row1 = Math.min(2 * y + 1, inHeight - 1) * inWidth;
+         final int outRow = (offsetY + y) * width_ + offsetX;
+         if (in instanceof byte[]) {
+            downsampleRow((byte[]) in, row0, row1, inWidth, (byte[]) out, outRow, x0, x1);
+         } else if (in instanceof short[]) {
+            downsampleRow((short[]) in, row0, row1, inWidth, (short[]) out, outRow, x0, x1);
+         } else if (in instanceof float[]) {
+            downsampleRow((float[]) in, row0, row1, inWidth, (float[]) out, outRow, x0, x1);
+         } else if (in instanceof int[]) {
+            downsampleRow((int[]) in, row0, row1, inWidth, (int[]) out, outRow, x0, x1);
          }
-         fs.saveAsTiff(fileName_);
-         cached_ = true;
       }
+      dirty_ = true;
+      return new Rectangle(offsetX + x0, offsetY + y0, x1 - x0, y1 - y0);
    }
 
-   private void loadFromCache() {
-      ImagePlus imgp = IJ.openImage(fileName_);
-      if (imgp != null) {
-         proc_ = imgp.getProcessor();
-      } else { // Somehow the image got lost.
-         proc_ = null;
-         cached_ = false;
-         getImageReady();
+   private static void downsampleRow(byte[] in, int row0, int row1, int inWidth,
+         byte[] out, int outRow, int x0, int x1) {
+      for (int x = x0; x < x1; x++) {
+         final int c0 = Math.min(2 * x, inWidth - 1);
+         final int c1 = Math.min(2 * x + 1, inWidth - 1);
+         final int sum = (in[row0 + c0] & 0xff) + (in[row0 + c1] & 0xff)
+               + (in[row1 + c0] & 0xff) + (in[row1 + c1] & 0xff);
+         out[outRow + x] = (byte) ((sum + 2) >> 2);
       }
    }
 
-   public String toString() {
-      return "Tile";
+   private static void downsampleRow(short[] in, int row0, int row1, int inWidth,
+         short[] out, int outRow, int x0, int x1) {
+      for (int x = x0; x < x1; x++) {
+         final int c0 = Math.min(2 * x, inWidth - 1);
+         final int c1 = Math.min(2 * x + 1, inWidth - 1);
+         final int sum = (in[row0 + c0] & 0xffff) + (in[row0 + c1] & 0xffff)
+               + (in[row1 + c0] & 0xffff) + (in[row1 + c1] & 0xffff);
+         out[outRow + x] = (short) ((sum + 2) >> 2);
+      }
    }
 
-   private static Random rand = null;
-
-   public static long randLong() {
-      if (rand == null) {
-         rand = new Random();
+   private static void downsampleRow(float[] in, int row0, int row1, int inWidth,
+         float[] out, int outRow, int x0, int x1) {
+      for (int x = x0; x < x1; x++) {
+         final int c0 = Math.min(2 * x, inWidth - 1);
+         final int c1 = Math.min(2 * x + 1, inWidth - 1);
+         out[outRow + x] = 0.25f * (in[row0 + c0] + in[row0 + c1]
+               + in[row1 + c0] + in[row1 + c1]);
       }
-      return rand.nextLong();
    }
 
-   public void wipeFromDisk() {
-      if (fileName_ != null) {
-         File file = new File(fileName_);
-         if (file.exists()) {
-            file.delete();
+   private static void downsampleRow(int[] in, int row0, int row1, int inWidth,
+         int[] out, int outRow, int x0, int x1) {
+      for (int x = x0; x < x1; x++) {
+         final int c0 = Math.min(2 * x, inWidth - 1);
+         final int c1 = Math.min(2 * x + 1, inWidth - 1);
+         final int p00 = in[row0 + c0];
+         final int p01 = in[row0 + c1];
+         final int p10 = in[row1 + c0];
+         final int p11 = in[row1 + c1];
+         int result = 0;
+         for (int shift = 0; shift < 24; shift += 8) {
+            final int sum = ((p00 >> shift) & 0xff) + ((p01 >> shift) & 0xff)
+                  + ((p10 >> shift) & 0xff) + ((p11 >> shift) & 0xff);
+            result |= ((sum + 2) >> 2) << shift;
          }
+         out[outRow + x] = result | (p00 & 0xff000000);
       }
    }
+
+   public String toString() {
+      return "Tile";
+   }
 }
@@ -3,8 +3,8 @@ package org.micromanager.slideexplorer;
 import ij.process.ImageProcessor;
 import java.awt.Dimension;
 import java.awt.Point;
-import java.io.File;
-import java.util.Hashtable;
+import java.awt.Rectangle;
+import java.util.ArrayList;
 import org.micromanager.internal.utils.imageanalysis.ImageUtils;
 
 public class MultiTileCache {
@@ -14,56 +14,80 @@ public class MultiTileCache {
    protected int height_ = 0;
    private int type_ = -1;
 
-   protected Hashtable<Point3D, MultiTile> allTiles_ = new Hashtable<Point3D, MultiTile>();
-   protected Hashtable<Integer, Point3D> currentTiles_ = new Hashtable<Integer, Point3D>();
+   protected final TileStore store_;
 
    public MultiTileCache(int zoomLevels, Dimension tileDimensions) {
       minZoomLevel_ = -zoomLevels + 1;
       width_ = tileDimensions.width;
       height_ = tileDimensions.height;
-
-      File tmpDir = new File("/tmp");
-      if (!tmpDir.exists()) {
-         tmpDir.mkdir();
-      }
+      store_ = new TileStore(width_, height_);
    }
 
    public void addImage(Point idx, ImageProcessor proc) {
-      if (type_ == -1) {
-         type_ = ImageUtils.getImageProcessorType(proc);
-      }
+      synchronized (store_) {
+         if (type_ == -1) {
+            type_ = ImageUtils.getImageProcessorType(proc);
+         }
 
-      MultiTile tile = getTile(idx);
-      tile.setImage(proc);
-      propagateTile(idx, tile);
+         MultiTile tile = getTile(idx);
+         tile.setImage(proc);
+         propagateTile(new Point3D(idx, 0), tile, new Rectangle(0, 0, width_, height_));
+         store_.trimToBudget();
+      }
    }
 
    public ImageProcessor getImage(Point3D multiTileIndex) {
-      return getMultiTile(multiTileIndex).getImage();
+      ImageProcessor proc;
+      synchronized (store_) {
+         proc = getMultiTile(multiTileIndex).getImage();
+         store_.trimToBudget();
+      }
+      prefetchNeighbors(multiTileIndex);
+      return proc;
    }
 
    public boolean hasImage(Point p) {
-      return allTiles_.containsKey(new Point3D(p, 0));
+      return store_.contains(new Point3D(p, 0));
    }
 
    public boolean hasImage(Point3D p) {
-      return allTiles_.containsKey(p);
-   }
-
-   protected void propagateTile(Point idx, MultiTile multiTile) {
-      propagateTile(new Point3D(idx, 0), multiTile);
+      return store_.contains(p);
    }
 
-   protected void propagateTile(Point3D idx, MultiTile multiTile) {
-      if (idx.k > minZoomLevel_) {
+   /*
+    * Downsamples the changed area of a tile into its parent, and so on up to
+    * the lowest zoom level.  Each level only touches the pixels that depend
+    * on the changed area.
+    */
+   protected void propagateTile(Point3D idx, MultiTile multiTile, Rectangle changed) {
+      if (idx.k > minZoomLevel_ && !changed.isEmpty()) {
          Point3D pidx = getParentIndex(idx);
          Point pquad = getParentQuadrant(idx);
          MultiTile parentTile = getMultiTile(pidx);
 
-         ImageProcessor proc = multiTile.getImage();
-         parentTile.insertQuadrantImage(pquad, proc);
-         propagateTile(pidx, parentTile);
+         Rectangle parentChanged = parentTile.insertQuadrantImage(pquad,
+               multiTile.getImage(), changed);
+         propagateTile(pidx, parentTile, parentChanged);
+      }
+   }
+
+   /*
+    * Reads the tiles around the given one, and its parent, back from disk in
+    * the background, as they are likely to be viewed next.
+    */
+   protected void prefetchNeighbors(Point3D idx) {
+      ArrayList<Point3D> neighbors = new ArrayList<Point3D>(9);
+      for (int di = -1; di <= 1; di++) {
+         for (int dj = -1; dj <= 1; dj++) {
+            if (di != 0 || dj != 0) {
+               neighbors.add(newPoint3D(idx.i + di, idx.j + dj, idx.k));
+            }
+         }
+      }
+      if (idx.k > minZoomLevel_) {
+         neighbors.add(getParentIndex(idx));
       }
+      store_.prefetch(neighbors);
    }
 
    protected MultiTile getTile(Point idx) {
@@ -74,24 +98,8 @@ public class MultiTileCache {
       return getMultiTile(new Point3D(i, j, z));
    }
 
-   protected synchronized MultiTile getMultiTile(Point3D idx) {
-
-      if (currentTiles_.containsKey(idx.k)) {
-         Point3D currentTile = currentTiles_.get(idx.k);
-         if (!currentTile.equals(idx)) {
-            allTiles_.get(currentTile).dropFromMemory();
-            currentTiles_.remove(currentTile.k);
-         }
-      }
-
-      currentTiles_.put(idx.k, idx);
-      if (!allTiles_.containsKey(idx)) {
-         MultiTile tile = new MultiTile(type_, width_, height_);
-         allTiles_.put(idx, tile);
-         return tile;
-      } else {
-         return allTiles_.get(idx);
-      }
+   protected MultiTile getMultiTile(Point3D idx) {
+      return store_.getTile(idx, type_);
    }
 
    protected Point3D getParentIndex(Point3D idx) {
@@ -107,11 +115,10 @@ public class MultiTileCache {
    }
 
    public void clear() {
-      for (MultiTile multiTile : allTiles_.values()) {
-         multiTile.wipeFromDisk();
+      synchronized (store_) {
+         store_.clear();
+         type_ = -1;
       }
-      currentTiles_.clear();
-      allTiles_.clear();
    }
 
 
@@ -0,0 +1,313 @@
+package org.micromanager.slideexplorer;
+
+import ij.process.ImageProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.micromanager.internal.utils.ReportingUtils;
+import org.micromanager.internal.utils.imageanalysis.ImageUtils;
+
+/**
+ * Two-tier storage for multitiles.
+ *
+ * Recently used tiles are kept in memory, in least-recently-used order, up to
+ * a budget in bytes.  Tiles that are pushed out are written to a single
+ * memory-mapped backing file in which every tile has a fixed slot of
+ * width * height * bytesPerPixel bytes, so that reading a tile back is a
+ * single copy out of the mapping.  The file grows in regions of several
+ * slots at a time and is deleted when the store is cleared.
+ *
+ * Tiles around a tile that was just viewed can be read back from the file
+ * on a background thread (prefetch), so that panning does not have to wait
+ * for the disk.
+ *
+ * All access to tiles should happen while holding the lock on the store.
+ */
+public class TileStore {
+
+   // Use at most this fraction of the heap for tiles in memory
+   private static final int HEAP_FRACTION = 8;
+   private static final long MAX_REGION_BYTES = 256L << 20;
+   private static final int MAX_SLOTS_PER_REGION = 64;
+
+   private final int width_;
+   private final int height_;
+   private final long memoryBudget_;
+   private long memoryUsed_ = 0;
+
+   private final LinkedHashMap<Point3D, MultiTile> memoryTiles_ =
+         new LinkedHashMap<Point3D, MultiTile>(64, 0.75f, true);
+   private final HashMap<Point3D, Integer> slots_ = new HashMap<Point3D, Integer>();
+   // number of times each slot was written, so that prefetches can detect stale reads
+   private int[] slotWrites_ = new int[MAX_SLOTS_PER_REGION];
+   private int type_ = -1;
+   private int slotBytes_ = 0;
+   private int slotsPerRegion_ = 0;
+   private File file_ = null;
+   private RandomAccessFile raf_ = null;
+   private final ArrayList<MappedByteBuffer> regions_ = new ArrayList<MappedByteBuffer>();
+   private boolean fileFailed_ = false;
+   // incremented by clear(), so that prefetches started earlier are discarded
+   private int generation_ = 0;
+
+   private final Set<Point3D> pendingPrefetches_ = new HashSet<Point3D>();
+   private final ThreadPoolExecutor prefetcher_;
+
+   public TileStore(int width, int height) {
+      this(width, height, Runtime.getRuntime().maxMemory() / HEAP_FRACTION);
+   }
+
+   public TileStore(int width, int height, long memoryBudget) {
+      width_ = width;
+      height_ = height;
+      memoryBudget_ = memoryBudget;
+      prefetcher_ = new ThreadPoolExecutor(1, 1, 5, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+               @Override
+               public Thread newThread(Runnable r) {
+                  Thread thread = new Thread(r, "SlideExplorer tile prefetch");
+                  thread.setDaemon(true);
+                  return thread;
+               }
+            });
+      prefetcher_.allowCoreThreadTimeOut(true);
+   }
+
+   public synchronized boolean contains(Point3D idx) {
+      return memoryTiles_.containsKey(idx) || slots_.containsKey(idx);
+   }
+
+   synchronized boolean isInMemory(Point3D idx) {
+      return memoryTiles_.containsKey(idx);
+   }
+
+   /*
+    * Returns the tile at the given index, reading it back from the backing
+    * file if needed.  A blank tile of the given type is created when the
+    * store has no tile at this index yet.
+    */
+   public synchronized MultiTile getTile(Point3D idx, int type) {
+      MultiTile tile = memoryTiles_.get(idx);
+      if (tile == null) {
+         Integer slot = slots_.get(idx);
+         if (slot != null) {
+            ImageProcessor proc = ImageUtils.makeProcessor(type_, width_, height_);
+            readPixels(slotBuffer(slot), proc.getPixels());
+            tile = new MultiTile(proc);
+         } else {
+            if (type_ == -1) {
+               type_ = type;
+            }
+            tile = new MultiTile(type_, width_, height_);
+         }
+         addToMemory(idx, tile);
+      }
+      return tile;
+   }
+
+   /*
+    * Writes least recently used tiles to the backing file until the tiles in
+    * memory fit in the budget.  The most recently used tile always stays.
+    */
+   public synchronized void trimToBudget() {
+      Iterator<Map.Entry<Point3D, MultiTile>> it = memoryTiles_.entrySet().iterator();
+      while (memoryUsed_ > memoryBudget_ && memoryTiles_.size() > 1 && !fileFailed_) {
+         Map.Entry<Point3D, MultiTile> eldest = it.next();
+         MultiTile tile = eldest.getValue();
+         if (tile.isDirty() || !slots_.containsKey(eldest.getKey())) {
+            try {
+               writeTile(eldest.getKey(), tile);
+            } catch (IOException ex) {
+               fileFailed_ = true;
+               ReportingUtils.logError(ex,
+                     "SlideExplorer could not write tiles to disk, keeping them in memory");
+               return;
+            }
+         }
+         memoryUsed_ -= tile.getSizeInBytes();
+         it.remove();
+      }
+   }
+
+   /*
+    * Reads tiles that are on disk but not in memory back on a background
+    * thread.  Tiles that are already in memory or unknown are ignored.
+    */
+   public synchronized void prefetch(Collection<Point3D> indices) {
+      for (final Point3D idx : indices) {
+         if (memoryTiles_.containsKey(idx) || !slots_.containsKey(idx)
+               || !pendingPrefetches_.add(idx)) {
+            continue;
+         }
+         final int generation = generation_;
+         prefetcher_.execute(new Runnable() {
+            @Override
+            public void run() {
+               prefetchTile(idx, generation);
+            }
+         });
+      }
+   }
+
+   private void prefetchTile(Point3D idx, int generation) {
+      ByteBuffer buffer;
+      int slot;
+      int writes;
+      int type;
+      synchronized (this) {
+         pendingPrefetches_.remove(idx);
+         Integer slotObj = slots_.get(idx);
+         if (generation != generation_ || memoryTiles_.containsKey(idx) || slotObj == null) {
+            return;
+         }
+         slot = slotObj;
+         writes = slotWrites_[slot];
+         buffer = slotBuffer(slot);
+         type = type_;
+      }
+      // The copy out of the mapping, which may have to wait for the disk,
+      // happens without holding the lock.
+      ImageProcessor proc = ImageUtils.makeProcessor(type, width_, height_);
+      readPixels(buffer, proc.getPixels());
+      synchronized (this) {
+         if (generation == generation_ && !memoryTiles_.containsKey(idx)
+               && slotWrites_[slot] == writes) {
+            addToMemory(idx, new MultiTile(proc));
+            trimToBudget();
+         }
+      }
+   }
+
+   /*
+    * Removes all tiles and deletes the backing file.
+    */
+   public synchronized void clear() {
+      generation_++;
+      prefetcher_.getQueue().clear();
+      pendingPrefetches_.clear();
+      memoryTiles_.clear();
+      memoryUsed_ = 0;
+      slots_.clear();
+      regions_.clear();
+      type_ = -1;
+      slotBytes_ = 0;
+      fileFailed_ = false;
+      if (raf_ != null) {
+         try {
+            raf_.close();
+         } catch (IOException ex) {
+            ReportingUtils.logError(ex);
+         }
+         raf_ = null;
+      }
+      if (file_ != null) {
+         // on some platforms the mapping keeps the file open until it is
+         // garbage collected
+         if (!file_.delete()) {
+            file_.deleteOnExit();
+         }
+         file_ = null;
+      }
+   }
+
+   private void addToMemory(Point3D idx, MultiTile tile) {
+      memoryTiles_.put(idx, tile);
+      memoryUsed_ += tile.getSizeInBytes();
+   }
+
+   private void writeTile(Point3D idx, MultiTile tile) throws IOException {
+      Object pixels = tile.getImage().getPixels();
+      Integer slot = slots_.get(idx);
+      if (slot == null) {
+         if (slotBytes_ == 0) {
+            slotBytes_ = width_ * height_ * bytesPerPixel(pixels);
+            slotsPerRegion_ = (int) Math.max(1,
+                  Math.min(MAX_SLOTS_PER_REGION, MAX_REGION_BYTES / slotBytes_));
+         }
+         slot = slots_.size();
+         ensureCapacity(slot);
+         slots_.put(idx, slot);
+      }
+      writePixels(slotBuffer(slot), pixels);
+      slotWrites_[slot]++;
+      tile.markClean();
+   }
+
+   private void ensureCapacity(int slot) throws IOException {
+      if (raf_ == null) {
+         file_ = File.createTempFile("slideexplorer", ".tiles");
+         file_.deleteOnExit();
+         raf_ = new RandomAccessFile(file_, "rw");
+      }
+      while (regions_.size() * slotsPerRegion_ <= slot) {
+         long regionBytes = (long) slotBytes_ * slotsPerRegion_;
+         regions_.add(raf_.getChannel().map(FileChannel.MapMode.READ_WRITE,
+               regions_.size() * regionBytes, regionBytes));
+      }
+      if (slotWrites_.length <= slot) {
+         int[] slotWrites = new int[Math.max(2 * slotWrites_.length, slot + 1)];
+         System.arraycopy(slotWrites_, 0, slotWrites, 0, slotWrites_.length);
+         slotWrites_ = slotWrites;
+      }
+   }
+
+   /*
+    * Returns a view of the slot in its region, in native byte order.
+    */
+   private ByteBuffer slotBuffer(int slot) {
+      ByteBuffer buffer = regions_.get(slot / slotsPerRegion_).duplicate();
+      int offset = (slot % slotsPerRegion_) * slotBytes_;
+      buffer.position(offset);
+      buffer.limit(offset + slotBytes_);
+      return buffer.slice().order(ByteOrder.nativeOrder());
+   }
+
+   private static void writePixels(ByteBuffer buffer, Object pixels) {
+      if (pixels instanceof byte[]) {
+         buffer.put((byte[]) pixels);
+      } else if (pixels instanceof short[]) {
+         buffer.asShortBuffer().put((short[]) pixels);
+      } else if (pixels instanceof float[]) {
+         buffer.asFloatBuffer().put((float[]) pixels);
+      } else if (pixels instanceof int[]) {
+         buffer.asIntBuffer().put((int[]) pixels);
+      }
+   }
+
+   private static void readPixels(ByteBuffer buffer, Object pixels) {
+      if (pixels instanceof byte[]) {
+         buffer.get((byte[]) pixels);
+      } else if (pixels instanceof short[]) {
+         buffer.asShortBuffer().get((short[]) pixels);
+      } else if (pixels instanceof float[]) {
+         buffer.asFloatBuffer().get((float[]) pixels);
+      } else if (pixels instanceof int[]) {
+         buffer.asIntBuffer().get((int[]) pixels);
+      }
+   }
+
+   static int bytesPerPixel(Object pixels) {
+      if (pixels instanceof short[]) {
+         return 2;
+      } else if (pixels instanceof float[] || pixels instanceof int[]) {
+         return 4;
+      }
+      return 1;
+   }
+}
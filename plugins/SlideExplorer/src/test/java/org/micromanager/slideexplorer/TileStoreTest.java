@@ -0,0 +1,139 @@
+package org.micromanager.slideexplorer;
+
+import ij.ImagePlus;
+import ij.process.ShortProcessor;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class TileStoreTest {
+
+   private static final int WIDTH = 16;
+   private static final int HEIGHT = 12;
+   private static final long TILE_BYTES = WIDTH * HEIGHT * 2;
+
+   private static short[] pattern(int seed) {
+      short[] pixels = new short[WIDTH * HEIGHT];
+      for (int i = 0; i < pixels.length; i++) {
+         pixels[i] = (short) (seed * 1000 + i * 7);
+      }
+      return pixels;
+   }
+
+   private static void fill(TileStore store, Point3D idx, int seed) {
+      synchronized (store) {
+         store.getTile(idx, ImagePlus.GRAY16)
+               .setImage(new ShortProcessor(WIDTH, HEIGHT, pattern(seed), null));
+      }
+   }
+
+   private static short[] pixels(TileStore store, Point3D idx) {
+      synchronized (store) {
+         return ((short[]) store.getTile(idx, ImagePlus.GRAY16).getImage().getPixels()).clone();
+      }
+   }
+
+   @Test
+   public void evictsLeastRecentlyUsedTiles() {
+      TileStore store = new TileStore(WIDTH, HEIGHT, 3 * TILE_BYTES);
+      try {
+         for (int i = 0; i < 6; i++) {
+            fill(store, new Point3D(i, 0, 0), i);
+         }
+         // touch tile 1, so that it is more recent than tiles 3 to 5
+         pixels(store, new Point3D(1, 0, 0));
+         store.trimToBudget();
+         for (int i = 0; i < 6; i++) {
+            Point3D idx = new Point3D(i, 0, 0);
+            assertTrue(store.contains(idx));
+            assertEquals("tile " + i, i == 1 || i == 4 || i == 5, store.isInMemory(idx));
+         }
+      } finally {
+         store.clear();
+      }
+   }
+
+   @Test
+   public void readsBackEvictedTiles() {
+      // several regions of 64 slots in the backing file
+      final int nrTiles = 150;
+      TileStore store = new TileStore(WIDTH, HEIGHT, 2 * TILE_BYTES);
+      try {
+         for (int i = 0; i < nrTiles; i++) {
+            fill(store, new Point3D(i % 15, i / 15, 0), i);
+            store.trimToBudget();
+         }
+         for (int i = 0; i < nrTiles; i++) {
+            Point3D idx = new Point3D(i % 15, i / 15, 0);
+            assertArrayEquals("tile " + i, pattern(i), pixels(store, idx));
+            store.trimToBudget();
+         }
+
+         // a tile that changed after it was read back is written again
+         Point3D idx = new Point3D(0, 0, 0);
+         fill(store, idx, 1000);
+         store.trimToBudget();
+         for (int i = 1; i < 5; i++) {
+            pixels(store, new Point3D(i, 0, 0));
+            store.trimToBudget();
+         }
+         assertFalse(store.isInMemory(idx));
+         assertArrayEquals(pattern(1000), pixels(store, idx));
+         assertArrayEquals(pattern(1), pixels(store, new Point3D(1, 0, 0)));
+      } finally {
+         store.clear();
+      }
+   }
+
+   @Test
+   public void prefetchesEvictedTiles() throws Exception {
+      TileStore store = new TileStore(WIDTH, HEIGHT, 4 * TILE_BYTES);
+      try {
+         List<Point3D> evicted = new ArrayList<Point3D>();
+         for (int i = 0; i < 10; i++) {
+            Point3D idx = new Point3D(i, 0, 1);
+            fill(store, idx, i);
+            store.trimToBudget();
+            if (i < 3) {
+               evicted.add(idx);
+            }
+         }
+         for (Point3D idx : evicted) {
+            assertFalse(store.isInMemory(idx));
+         }
+         store.prefetch(evicted);
+         long deadline = System.currentTimeMillis() + 10000;
+         boolean done = false;
+         while (!done && System.currentTimeMillis() < deadline) {
+            done = true;
+            for (Point3D idx : evicted) {
+               done &= store.isInMemory(idx);
+            }
+            Thread.sleep(5);
+         }
+         assertTrue(done);
+         for (int i = 0; i < evicted.size(); i++) {
+            assertArrayEquals(pattern(i), pixels(store, evicted.get(i)));
+         }
+      } finally {
+         store.clear();
+      }
+   }
+
+   @Test
+   public void clearForgetsAllTiles() {
+      TileStore store = new TileStore(WIDTH, HEIGHT, TILE_BYTES);
+      for (int i = 0; i < 4; i++) {
+         fill(store, new Point3D(i, 0, 0), i);
+         store.trimToBudget();
+      }
+      store.clear();
+      for (int i = 0; i < 4; i++) {
+         assertFalse(store.contains(new Point3D(i, 0, 0)));
+      }
+      // a new tile after clearing is blank
+      assertArrayEquals(new short[WIDTH * HEIGHT], pixels(store, new Point3D(0, 0, 0)));
+      store.clear();
+   }
+}
@@ -37,6 +37,9 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.File;
 import java.util.GregorianCalendar;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
 import javax.swing.ButtonGroup;
 import javax.swing.JButton;
@@ -59,6 +62,7 @@ import org.micromanager.internal.utils.FileDialogs;
 import org.micromanager.internal.utils.MDUtils;
 import org.micromanager.internal.utils.TextUtils;
 import org.micromanager.internal.utils.WindowPositioning;
+import org.micromanager.internal.utils.imageanalysis.FFTCorrelator;
 
 
 public class TrackerControl extends JFrame {
@@ -82,11 +86,16 @@ public class TrackerControl extends JFrame {
    private int resolutionPix_ = 5;
    private int offsetPix_ = 100;
    private Timer timer_;
+   // snaps and processes images, one at a time, off the EDT.  Created when tracking starts
+   // and shut down when tracking stops or the window is closed.
+   private ExecutorService trackExecutor_;
+   private final AtomicBoolean trackTaskRunning_ = new AtomicBoolean(false);
    private float[] pixelsPrev_ = null;
    private float[] pixelsCur_ = null;
    private int imWidth_ = 0;
    private String stage_ = "XYStage";
    private Roi roi_;
+   private FFTCorrelator correlator_;
    private ImageStack corrStack_;
    private ImagePlus corrImplus_;
    private boolean mirrorX_ = false;
@@ -214,6 +223,10 @@ public class TrackerControl extends JFrame {
                   diskRadioButton_.isSelected());
             up.setString(TrackerControl.this.getClass(), ROOT, rootField_.getText());
             up.setString(TrackerControl.this.getClass(), NAME, nameField_.getText());
+            if (timer_.isRunning()) {
+               stopTracking();
+            }
+            shutdownTrackExecutor();
          }
       });
 
@@ -388,23 +401,25 @@ public class TrackerControl extends JFrame {
       getContentPane().add(fileLocationsLabel);
 
       // Setup timer
-      final AtomicBoolean taskRunning = new AtomicBoolean(false);
       ActionListener timerHandler = new ActionListener() {
          @Override
          public void actionPerformed(ActionEvent evt) {
             Runnable doTrack = new Runnable() {
                @Override
                public void run() {
-                  TaggedImage tagged = snapSingleImage();
-                  if (tagged != null) {
-                     processOneFrame(tagged, true);
+                  try {
+                     TaggedImage tagged = snapSingleImage();
+                     if (tagged != null) {
+                        processOneFrame(tagged, true);
+                     }
+                  } finally {
+                     trackTaskRunning_.set(false);
                   }
-                  taskRunning.set(false);
                }
             };
-            if (!taskRunning.get()) {
-               taskRunning.set(true);
-               (new Thread(doTrack)).start();
+            if (trackExecutor_ != null && !trackTaskRunning_.get()) {
+               trackTaskRunning_.set(true);
+               trackExecutor_.submit(doTrack);
             }
          }
       };
@@ -447,11 +462,16 @@ public class TrackerControl extends JFrame {
          return;
       }
 
+      // Correlation between successive images is searched on a pyramid,
+      // resolutionPix_ decides how fine the pyramid search goes
+      Rectangle roiBounds = roi_.getBounds();
+      correlator_ = new FFTCorrelator(roiBounds.width, roiBounds.height,
+            offsetPix_, resolutionPix_);
+
       // Set up new ImageJ window to display the correlation image
-      int kCount = 2 * offsetPix_ / resolutionPix_;
-      int lCount = 2 * offsetPix_ / resolutionPix_;
-      corrStack_ = new ij.ImageStack(lCount, kCount);
-      ImageProcessor corrImproc = new ij.process.FloatProcessor(lCount, kCount);
+      int surfaceSize = correlator_.getSurfaceSize();
+      corrStack_ = new ij.ImageStack(surfaceSize, surfaceSize);
+      ImageProcessor corrImproc = new ij.process.FloatProcessor(surfaceSize, surfaceSize);
       corrStack_.addSlice(corrImproc);
       corrImplus_ = new ij.ImagePlus("Cross Correlation", corrStack_);
       corrImplus_.show();
@@ -477,6 +497,16 @@ public class TrackerControl extends JFrame {
       xySeries_ = new XYSeries("Track", false);
       TrackerUtils.plotData("Cell Track: " + acqName_, xySeries_, "X (micron)",
             "Y (micron)", 100, 100);
+      if (trackExecutor_ == null) {
+         trackExecutor_ = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "Live Tracking");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }
       timer_.start();
    }
 
@@ -485,9 +515,20 @@ public class TrackerControl extends JFrame {
 
       app_.logs().logMessage("Tracking stopped at " + GregorianCalendar.getInstance().getTime());
       timer_.stop();
+      shutdownTrackExecutor();
       roi_ = null;
    }
 
+   private void shutdownTrackExecutor() {
+      if (trackExecutor_ != null) {
+         // a frame that was queued but never started will not clear the flag itself
+         if (!trackExecutor_.shutdownNow().isEmpty()) {
+            trackTaskRunning_.set(false);
+         }
+         trackExecutor_ = null;
+      }
+   }
+
    private TaggedImage snapSingleImage() {
       try {
          app_.core().snapImage();
@@ -499,24 +540,7 @@ public class TrackerControl extends JFrame {
             image = image.copyAtCoords(app_.data().getCoordsBuilder()
                   .time(imageCounter_).build());
             store_.putImage(image);
-            int size = image.getWidth() * image.getHeight();
-            if (tagged.pix instanceof byte[]) {
-               pixelsCur_ = new float[size];
-               byte[] pixels = (byte[]) tagged.pix;
-               for (int i = 0; i < size; i++) {
-                  pixelsCur_[i] = pixels[i];
-               }
-            }
-            if (tagged.pix instanceof short[]) {
-               pixelsCur_ = new float[size];
-               short[] pixels = (short[]) tagged.pix;
-               for (int i = 0; i < size; i++) {
-                  pixelsCur_[i] = pixels[i];
-               }
-            }
-            if (tagged.pix instanceof float[]) {
-               pixelsCur_ = java.util.Arrays.copyOf((float[]) tagged.pix, size);
-            }
+            pixelsCur_ = FFTCorrelator.toFloatArray(tagged.pix);
             imWidth_ = image.getWidth();
          }
          return tagged;
@@ -536,59 +560,19 @@ public class TrackerControl extends JFrame {
          return;
       }
 
-      int kCount = 2 * offsetPix_ / resolutionPix_;
-      int lCount = 2 * offsetPix_ / resolutionPix_;
-      ImageProcessor corrImproc = new ij.process.FloatProcessor(lCount, kCount);
-      corrStack_.addSlice(corrImproc);
-
-      // position of correlation maximum
-      int kMax = 0;
-      int lMax = 0;
-
       Rectangle r = roi_.getBounds();
       display_.getImagePlus().setRoi(roi_, true);
       //IJ.write("ROI pos: " + r.x + "," + r.y);
 
-      int width = r.width;
-      int height = r.height;
-      double corScale = width * height;
-
-      double maxCor = 0;
-      for (int k = -offsetPix_; k < offsetPix_; k += resolutionPix_) {
-         for (int l = -offsetPix_; l < offsetPix_; l += resolutionPix_) {
-
-            // calculate correlation
-            double sum = 0.0;
-            double meanPrev = 0.0;
-            double meanCur = 0.0;
-            for (int i = 0; i < height; i++) {
-               for (int j = 0; j < width; j++) {
-                  int row = r.y + i;
-                  int col = r.x + j;
-                  double pixPrev = pixelsPrev_[row * imWidth_ + col];
-                  double pixCur = pixelsCur_[(row + k) * imWidth_ + (col + l)];
-                  sum += pixPrev * pixCur;
-                  meanPrev += pixPrev;
-                  meanCur += pixCur;
-               }
-            }
-            sum /= corScale;
-            meanPrev /= corScale;
-            meanCur /= corScale;
-            sum /= meanPrev * meanCur;
-
-            int x = (l + offsetPix_) / resolutionPix_;
-            int y = (k + offsetPix_) / resolutionPix_;
-            corrImproc.setf(x + lCount * y, (float) sum);
-
-            // check for max value
-            if (sum > maxCor) {
-               maxCor = sum;
-               kMax = k;
-               lMax = l;
-            }
-         }
-      }
+      // displacement of the roi contents between the previous and current image
+      FFTCorrelator.Result result = correlator_.correlate(pixelsPrev_, imWidth_, r.x, r.y,
+            pixelsCur_, imWidth_, r.x, r.y);
+      double lMax = result.getShift().x;
+      double kMax = result.getShift().y;
+
+      ImageProcessor corrImproc = new ij.process.FloatProcessor(result.getSurfaceSize(),
+            result.getSurfaceSize(), result.getSurface());
+      corrStack_.addSlice(corrImproc);
 
       if (corrImplus_ == null) {
          corrImplus_ = new ij.ImagePlus("Cross Correlation", corrStack_);
@@ -665,7 +649,7 @@ public class TrackerControl extends JFrame {
          } // relative motion
       } else {
          // move the roi
-         roi_.setLocation(r.x + lMax, r.y + kMax);
+         roi_.setLocation(r.x + (int) Math.round(lMax), r.y + (int) Math.round(kMax));
 
          display_.getImagePlus().setRoi(roi_, true);
       }
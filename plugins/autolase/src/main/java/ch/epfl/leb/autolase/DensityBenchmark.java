@@ -0,0 +1,65 @@
+package ch.epfl.leb.autolase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how fast the DensityThread can process frames, using a TIFF stack
+ * played back by a TiffCamera in place of a real camera.
+ *
+ * <p>Usage: DensityBenchmark stack.tif [frames] [maxThreads]
+ *
+ * <p>Frames are read from the camera before timing starts, so only the
+ * density calculation is measured.  At 1 kHz each frame has to be processed
+ * in well under 1 ms.
+ */
+public class DensityBenchmark {
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 1) {
+         System.err.println("Usage: DensityBenchmark stack.tif [frames] [maxThreads]");
+         System.exit(1);
+      }
+      int numFrames = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+      int maxThreads = args.length > 2 ? Integer.parseInt(args[2])
+            : Runtime.getRuntime().availableProcessors();
+
+      TiffCamera camera = new TiffCamera(new File(args[0]).getAbsoluteFile(), false);
+      if (camera.getBytesPerPixel() != 2) {
+         System.err.println("Only 16-bit stacks are supported");
+         System.exit(1);
+      }
+      List<short[]> frames = new ArrayList<short[]>();
+      int stackSize = camera.stack.getSize();
+      for (int i = 0; i < stackSize; i++) {
+         frames.add(camera.getNewImage());
+      }
+      System.out.println("Stack " + camera.getWidth() + "x" + camera.getHeight()
+            + ", " + stackSize + " frames, processing " + numFrames + " frames");
+
+      for (int threads = 1; threads <= maxThreads; threads *= 2) {
+         DensityThread densityThread = new DensityThread(camera);
+         densityThread.setNumThreads(threads);
+
+         // warm up, so that the JIT has compiled the kernel
+         for (int i = 0; i < Math.min(numFrames, 1000); i++) {
+            densityThread.processImage(frames.get(i % stackSize),
+                  DensityThread.DEFAULT_WAIT_TIME);
+         }
+
+         double density = 0;
+         long start = System.nanoTime();
+         for (int i = 0; i < numFrames; i++) {
+            density = densityThread.processImage(frames.get(i % stackSize),
+                  DensityThread.DEFAULT_WAIT_TIME);
+         }
+         long end = System.nanoTime();
+         densityThread.setNumThreads(1);
+
+         double usPerFrame = (end - start) / 1000.0 / numFrames;
+         System.out.println(String.format("%2d thread(s): %8.1f us/frame, %8.0f frames/s,"
+               + " final density %.1f", threads, usPerFrame, 1e6 / usPerFrame, density));
+      }
+   }
+}
@@ -1,10 +1,13 @@
 package ch.epfl.leb.autolase;
 
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -14,6 +17,10 @@ import java.util.logging.Logger;
  * to the maximum time a certain pixel is "on", or above a certain threshold.
  * The density is calculated as a moving average (default 1s).
  *
+ * <p>Time is measured between the frames that are actually processed, so
+ * that the estimate stays correct when the thread cannot keep up with the
+ * sampling interval and samples are skipped.
+ *
  * <p>The code only works for 2 bytes per pixel cameras for now.
  *
  * @author Thomas Pengo
@@ -22,6 +29,8 @@ public class DensityThread implements Runnable {
    public static final int DEFAULT_THRESHOLD = 500;
    public static final int DEFAULT_WAIT_TIME = 20;
    public static final int NUM_ELEMS = 50;
+   // Do not split frames in parts smaller than this
+   static final int MIN_PIXELS_PER_THREAD = 65536;
 
    boolean running = true;
    boolean stopping = false;
@@ -34,7 +43,18 @@ public class DensityThread implements Runnable {
    long timeInterval = DEFAULT_WAIT_TIME;
    int fifoNumElems = NUM_ELEMS;
 
-   Queue<Double> densityFifo = new ArrayDeque<Double>(fifoNumElems);
+   // Circular buffer with the last fifoNumElems densities, and their sum
+   double[] densityRing = new double[fifoNumElems];
+   int ringPos = 0;
+   int ringCount = 0;
+   double ringSum = 0;
+
+   // Time each pixel has been above the threshold, in ms
+   float[] accumulator = null;
+   long skippedSamples = 0;
+
+   int numThreads = 1;
+   ExecutorService workers = null;
 
    List<DensityMonitor> monitors =
          Collections.synchronizedList(new ArrayList<DensityMonitor>());
@@ -105,13 +125,35 @@ public class DensityThread implements Runnable {
       return currentDensity;
    }
 
+   /**
+    * Returns the number of sampling intervals that were skipped because
+    * processing a frame took longer than the time interval.
+    *
+    * @return number of skipped samples since the thread was started
+    */
+   public long getSkippedSamples() {
+      return skippedSamples;
+   }
+
+   /**
+    * Sets the number of threads used to process each frame.
+    *
+    * @param numThreads number of threads, 1 to process frames on this thread
+    */
+   public synchronized void setNumThreads(int numThreads) {
+      this.numThreads = Math.max(1, numThreads);
+      if (workers != null) {
+         workers.shutdown();
+         workers = null;
+      }
+   }
+
    @Override
    public void run() {
-      // Current image
-      float[] accumulator = null;
-
-      // Start timer
-      long lastTime = System.currentTimeMillis();
+      long nextSample = System.nanoTime();
+      // Time the previous frame was taken, or -1 if there was none
+      long lastFrame = -1;
+      skippedSamples = 0;
 
       while (!stopping) {
          // Only works with 2 bpp
@@ -124,60 +166,14 @@ public class DensityThread implements Runnable {
             // Get the current image
             try {
                short[] image = camera.getNewImage();
+               long now = System.nanoTime();
 
-               // Reset accumulator if image size has changed
-               if (image != null && accumulator != null
-                     && (image.length != accumulator.length)) {
-                  accumulator = null;
-               }
+               // Pixels that are on now are assumed to have been on since
+               // the previous frame, however long ago that actually was.
+               float elapsed = lastFrame < 0 ? timeInterval : (now - lastFrame) / 1e6f;
+               lastFrame = now;
 
-               // Threshold the image
-               boolean[] curMask = new boolean[image.length];
-               for (int i = 0; i < curMask.length; i++) {
-                  curMask[i] = image[i] > threshold;
-               }
-
-               // Calculate accumulator
-               if (accumulator == null) {
-                  // A_0 = I_0 > t;
-                  accumulator = new float[image.length];
-                  for (int i = 0; i < accumulator.length; i++) {
-                     if (curMask[i]) {
-                        accumulator[i] = timeInterval;
-                     }
-                  }
-               } else {
-                  // A_i = (I_i > t) (1 + A_i-1)
-                  for (int i = 0; i < accumulator.length; i++) {
-                     if (!curMask[i]) {
-                        accumulator[i] = 0;
-                     } else {
-                        accumulator[i] += timeInterval;
-                     }
-                  }
-               }
-
-               // Density measure: max(A_i)
-               double curd = 0;
-               for (int i = 0; i < image.length; i++) {
-                  if (accumulator[i] > curd) {
-                     curd = accumulator[i];
-                  }
-               }
-
-               // Moving average estimate
-               if (densityFifo.size() == fifoNumElems) {
-                  densityFifo.remove();
-               }
-               densityFifo.offer(curd);
-
-               double meanDensity = 0;
-               for (Double d : densityFifo) {
-                  meanDensity += d;
-               }
-               meanDensity /= densityFifo.size();
-
-               currentDensity = meanDensity;
+               currentDensity = processImage(image, elapsed);
 
                for (DensityMonitor m : monitors) {
                   m.densityChanged(currentDensity);
@@ -190,10 +186,24 @@ public class DensityThread implements Runnable {
             } catch (Exception ex) {
                Logger.getLogger(DensityThread.class.getName()).log(Level.SEVERE, null, ex);
             }
+         } else {
+            lastFrame = -1;
          }
 
+         // Sample at a fixed rate.  When processing took longer than the
+         // interval, skip the samples that were missed instead of catching
+         // up with a burst of frames.
+         final long intervalNs = timeInterval * 1000000L;
+         nextSample += intervalNs;
+         long now = System.nanoTime();
+         if (now >= nextSample) {
+            long missed = (now - nextSample) / intervalNs + 1;
+            skippedSamples += missed;
+            nextSample += missed * intervalNs;
+         }
          try {
-            Thread.sleep(timeInterval);
+            long wait = nextSample - now;
+            Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
          } catch (InterruptedException ex) {
             Logger.getLogger(DensityThread.class.getName()).log(Level.SEVERE, null, ex);
 
@@ -201,6 +211,120 @@ public class DensityThread implements Runnable {
          }
       }
 
+      synchronized (this) {
+         if (workers != null) {
+            workers.shutdown();
+            workers = null;
+         }
+      }
       stopping = false;
    }
+
+   /**
+    * Updates the accumulator with a new frame and returns the moving average
+    * of the density.
+    *
+    * @param image   new frame
+    * @param elapsed time since the previous frame, in ms
+    * @return moving average of the density
+    */
+   synchronized double processImage(short[] image, float elapsed) throws Exception {
+      // Reset accumulator if image size has changed
+      if (accumulator == null || image.length != accumulator.length) {
+         accumulator = new float[image.length];
+      }
+
+      // Density measure: max(A_i)
+      double curd;
+      if (numThreads > 1 && image.length >= MIN_PIXELS_PER_THREAD * 2) {
+         curd = accumulateParallel(image, elapsed);
+      } else {
+         curd = accumulate(image, accumulator, 0, image.length, threshold, elapsed);
+      }
+
+      // Moving average estimate
+      if (densityRing.length != fifoNumElems) {
+         densityRing = new double[fifoNumElems];
+         ringCount = 0;
+         ringPos = 0;
+         ringSum = 0;
+      }
+      if (ringCount == densityRing.length) {
+         ringSum -= densityRing[ringPos];
+      } else {
+         ringCount++;
+      }
+      densityRing[ringPos] = curd;
+      ringSum += curd;
+      ringPos++;
+      if (ringPos == densityRing.length) {
+         ringPos = 0;
+         // avoid drift of the running sum
+         ringSum = 0;
+         for (int i = 0; i < ringCount; i++) {
+            ringSum += densityRing[i];
+         }
+      }
+
+      return ringSum / ringCount;
+   }
+
+   /**
+    * Thresholds the image, updates the accumulator and finds its maximum,
+    * all in a single pass over the pixels from start to end:
+    * A_i = (I_i > t) (A_i-1 + dt)
+    *
+    * @return maximum of the updated accumulator in this range
+    */
+   static float accumulate(short[] image, float[] accumulator, int start, int end,
+                           int threshold, float elapsed) {
+      float max = 0;
+      for (int i = start; i < end; i++) {
+         if ((image[i] & 0xffff) > threshold) {
+            float a = accumulator[i] + elapsed;
+            accumulator[i] = a;
+            if (a > max) {
+               max = a;
+            }
+         } else {
+            accumulator[i] = 0;
+         }
+      }
+      return max;
+   }
+
+   private float accumulateParallel(final short[] image, final float elapsed)
+         throws Exception {
+      if (workers == null) {
+         workers = Executors.newFixedThreadPool(numThreads - 1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "AutoLase density worker");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }
+      final int nrParts = Math.min(numThreads, image.length / MIN_PIXELS_PER_THREAD);
+      final int partSize = (image.length + nrParts - 1) / nrParts;
+      final int t = threshold;
+      List<Future<Float>> parts = new ArrayList<Future<Float>>(nrParts - 1);
+      for (int p = 1; p < nrParts; p++) {
+         final int start = p * partSize;
+         final int end = Math.min(image.length, start + partSize);
+         parts.add(workers.submit(new Callable<Float>() {
+            @Override
+            public Float call() {
+               return accumulate(image, accumulator, start, end, t, elapsed);
+            }
+         }));
+      }
+      // the first part is done on this thread
+      float max = accumulate(image, accumulator, 0, Math.min(image.length, partSize), t,
+            elapsed);
+      for (Future<Float> part : parts) {
+         max = Math.max(max, part.get());
+      }
+      return max;
+   }
 }
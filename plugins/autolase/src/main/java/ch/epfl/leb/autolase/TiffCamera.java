@@ -19,10 +19,23 @@ public class TiffCamera implements Camera {
    ImagePlus win;
 
    public TiffCamera(java.io.File path) throws IOException {
+      this(path, true);
+   }
+
+   /**
+    * @param path TIFF stack whose slices are returned one after the other
+    * @param show whether to show the stack in a window
+    */
+   public TiffCamera(java.io.File path, boolean show) throws IOException {
       win = new Opener().openTiff(path.getParent(), path.getName());
+      if (win == null) {
+         throw new IOException("Could not open " + path);
+      }
       stack = win.getImageStack();
 
-      win.show();
+      if (show) {
+         win.show();
+      }
    }
 
    @Override
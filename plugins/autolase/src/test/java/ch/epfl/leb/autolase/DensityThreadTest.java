@@ -0,0 +1,155 @@
+package ch.epfl.leb.autolase;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class DensityThreadTest {
+
+   /*
+    * The density calculation as it was done before the steps were fused:
+    * threshold into a mask, update the accumulator, find its maximum and
+    * average over a queue of the last densities.
+    */
+   private static class PerStepDensity {
+      private final int threshold_;
+      private final int numElems_;
+      private final Queue<Double> densityFifo_ = new ArrayDeque<Double>();
+      private float[] accumulator_ = null;
+
+      PerStepDensity(int threshold, int numElems) {
+         threshold_ = threshold;
+         numElems_ = numElems;
+      }
+
+      double process(short[] image, float elapsed) {
+         if (accumulator_ != null && image.length != accumulator_.length) {
+            accumulator_ = null;
+         }
+
+         boolean[] curMask = new boolean[image.length];
+         for (int i = 0; i < curMask.length; i++) {
+            curMask[i] = (image[i] & 0xffff) > threshold_;
+         }
+
+         if (accumulator_ == null) {
+            accumulator_ = new float[image.length];
+         }
+         for (int i = 0; i < accumulator_.length; i++) {
+            if (!curMask[i]) {
+               accumulator_[i] = 0;
+            } else {
+               accumulator_[i] += elapsed;
+            }
+         }
+
+         double curd = 0;
+         for (int i = 0; i < image.length; i++) {
+            if (accumulator_[i] > curd) {
+               curd = accumulator_[i];
+            }
+         }
+
+         if (densityFifo_.size() == numElems_) {
+            densityFifo_.remove();
+         }
+         densityFifo_.offer(curd);
+
+         double meanDensity = 0;
+         for (Double d : densityFifo_) {
+            meanDensity += d;
+         }
+         return meanDensity / densityFifo_.size();
+      }
+   }
+
+   /*
+    * Frames with a few bright blinking spots on a noisy background, so that
+    * pixels stay on for a varying number of frames.
+    */
+   private static short[][] frames(int nrFrames, int nrPixels, long seed) {
+      Random random = new Random(seed);
+      short[][] frames = new short[nrFrames][nrPixels];
+      int[] spots = new int[nrPixels / 500 + 1];
+      for (int s = 0; s < spots.length; s++) {
+         spots[s] = random.nextInt(nrPixels);
+      }
+      for (short[] frame : frames) {
+         for (int i = 0; i < nrPixels; i++) {
+            frame[i] = (short) (400 + random.nextInt(150));
+         }
+         for (int s = 0; s < spots.length; s++) {
+            if (random.nextInt(8) == 0) {
+               spots[s] = random.nextInt(nrPixels);
+            }
+            // include values that are negative as a signed short
+            frame[spots[s]] = (short) (random.nextBoolean() ? 1000 + random.nextInt(5000)
+                  : 40000 + random.nextInt(20000));
+         }
+      }
+      return frames;
+   }
+
+   private static void compare(DensityThread densityThread, short[][] frames, long seed)
+         throws Exception {
+      PerStepDensity reference = new PerStepDensity(densityThread.threshold,
+            densityThread.fifoNumElems);
+      Random random = new Random(seed);
+      for (short[] frame : frames) {
+         // frames do not always arrive after exactly the nominal interval
+         float elapsed = DensityThread.DEFAULT_WAIT_TIME + random.nextFloat() * 15.0f;
+         double expected = reference.process(frame, elapsed);
+         assertEquals(expected, densityThread.processImage(frame, elapsed),
+               1e-9 * Math.max(1.0, expected));
+         assertArrayEquals(reference.accumulator_, densityThread.accumulator, 0.0f);
+      }
+   }
+
+   @Test
+   public void fusedPassMatchesPerStepComputation() throws Exception {
+      // more frames than the moving average holds, so that the ring wraps
+      short[][] frames = frames(3 * DensityThread.NUM_ELEMS + 7, 64 * 48, 1);
+      compare(new DensityThread(null), frames, 2);
+   }
+
+   @Test
+   public void resetsWhenTheImageSizeChanges() throws Exception {
+      DensityThread densityThread = new DensityThread(null);
+      densityThread.setThreshold(700);
+      PerStepDensity reference = new PerStepDensity(700, DensityThread.NUM_ELEMS);
+      short[][] small = frames(20, 32 * 32, 3);
+      short[][] large = frames(20, 40 * 40, 4);
+      for (short[][] frames : new short[][][] {small, large, small}) {
+         for (short[] frame : frames) {
+            assertEquals(reference.process(frame, 10.0f),
+                  densityThread.processImage(frame, 10.0f), 1e-9);
+         }
+      }
+   }
+
+   @Test
+   public void threadsGiveTheSameResultAsOneThread() throws Exception {
+      // large enough to be split over several threads
+      short[][] frames = frames(40, 5 * DensityThread.MIN_PIXELS_PER_THREAD + 123, 5);
+      for (int threads : new int[] {1, 2, 3, 8}) {
+         DensityThread densityThread = new DensityThread(null);
+         densityThread.setNumThreads(threads);
+         try {
+            compare(densityThread, frames, 6);
+         } finally {
+            densityThread.setNumThreads(1);
+         }
+      }
+   }
+
+   @Test
+   public void unsignedPixelsAboveThreshold() throws Exception {
+      DensityThread densityThread = new DensityThread(null);
+      short[] image = new short[] {(short) 60000, 0, (short) 32768, 100};
+      densityThread.processImage(image, 20.0f);
+      assertArrayEquals(new float[] {20.0f, 0.0f, 20.0f, 0.0f},
+            densityThread.accumulator, 0.0f);
+   }
+}